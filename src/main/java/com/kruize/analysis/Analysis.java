@@ -23,6 +23,6 @@ public interface Analysis
     void calculateCpuLimit(MetricsImpl metrics);
     void calculateMemLimit(MetricsImpl metrics);
     void calculateCpuRequests(MetricsImpl metrics);
-    void calculateMemRequests(MetricsImpl metrics, int referenceIndex, int targetIndex);
+    void calculateMemRequests(MetricsImpl metrics);
     void finalizeY2DRecommendations(MetricsImpl metrics);
 }
@@ -19,14 +19,11 @@ package com.kruize.analysis;
 import com.kruize.exceptions.InvalidValueException;
 import com.kruize.metrics.MetricCollector;
 import com.kruize.metrics.MetricsImpl;
+import com.kruize.metrics.SampleStore;
 import com.kruize.util.MathUtil;
-import org.apache.commons.math3.stat.descriptive.DescriptiveStatistics;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.math.RoundingMode;
-import java.text.DecimalFormat;
-import java.util.ArrayList;
 import java.util.Arrays;
 
 public class AnalysisImpl implements Analysis
@@ -35,6 +32,7 @@ public class AnalysisImpl implements Analysis
 
     private static final double ONE_MB = 1000 * 1000;
     private static final double DEFAULT_SPIKE = 50 * ONE_MB;
+    /* Read from the quantile sketches of the samples, within PERCENTILE_ACCURACY of the exact value */
     private static final int CPU_PERCENTILE = 80;
 
     /* The additional buffer on top of the generated recommendations */
@@ -60,11 +58,9 @@ public class AnalysisImpl implements Analysis
     @Override
     public void calculateCpuLimit(MetricsImpl instance)
     {
-        double maxCpu = 0;
+        SampleStore samples = instance.getSamples();
 
-        ArrayList<MetricCollector> metrics = instance.metricCollector;
-
-        if (metrics.size() == 0) {
+        if (samples.isEmpty()) {
             try {
                 instance.setCurrentCpuLimit(0);
                 LOGGER.info("Current CPU Limits set to 0");
@@ -76,18 +72,12 @@ public class AnalysisImpl implements Analysis
             return;
         }
 
-        for (MetricCollector metricCollector : metrics) {
-            double cpu = metricCollector.getFromIndex(MetricCollector.CPU_INDEX);
-            if (maxCpu < cpu)
-                maxCpu = cpu;
-        }
+        double maxCpu = Math.max(samples.getMaxCpu(), 0);
 
         double cpuLimit = maxCpu * CPU_BUFFER;
-        DecimalFormat singleDecimalPlace = new DecimalFormat("#.#");
-        singleDecimalPlace.setRoundingMode(RoundingMode.CEILING);
-
-        cpuLimit = Double.parseDouble(singleDecimalPlace.format(cpuLimit));
-        LOGGER.debug("CPU Limit for {} is {}", instance.getName(), cpuLimit);
+        cpuLimit = MathUtil.ceilToTenth(cpuLimit);
+        if (LOGGER.isDebugEnabled())
+            LOGGER.debug("CPU Limit for {} is {}", instance.getName(), cpuLimit);
         try {
             instance.setCurrentCpuLimit(cpuLimit);
         } catch (InvalidValueException e) {
@@ -100,10 +90,9 @@ public class AnalysisImpl implements Analysis
     {
         final int INDEX = MetricCollector.CPU_INDEX;
 
-        ArrayList<MetricCollector> metrics = instance.metricCollector;
-        ArrayList<MetricCollector> percentileList = new ArrayList<>();
+        SampleStore samples = instance.getSamples();
 
-        if (metrics.size() == 0) {
+        if (samples.isEmpty()) {
             try {
                 instance.setCurrentCpuRequests(0);
                 LOGGER.info("Current CPU Requests set to 0");
@@ -113,35 +102,17 @@ public class AnalysisImpl implements Analysis
             return;
         }
 
-        DescriptiveStatistics referenceValues = new DescriptiveStatistics();
-
-        for (MetricCollector metric : metrics) {
-            double value = metric.getFromIndex(INDEX);
-            referenceValues.addValue(value);
-        }
-
-        double percentileValue = MathUtil.getPercentile(referenceValues, CPU_PERCENTILE);
-
-        LOGGER.debug("CPU values: {}", Arrays.toString(referenceValues.getValues()));
-        LOGGER.debug("{}th percentile is {}", CPU_PERCENTILE, percentileValue);
-
-        for (MetricCollector metric : metrics) {
-            if (metric.getFromIndex(INDEX) >= percentileValue)
-            {
-                MetricCollector temp = MetricCollector.Copy(metric);
+        double percentileValue = samples.getPercentile(INDEX, CPU_PERCENTILE);
 
-                DecimalFormat singleDecimalPlace = new DecimalFormat("#.#");
-                singleDecimalPlace.setRoundingMode(RoundingMode.CEILING);
-
-                double targetValue = temp.getFromIndex(INDEX);
-                temp.setForIndex((Double.parseDouble(singleDecimalPlace.format(targetValue))), INDEX);
-
-                percentileList.add(temp);
-            }
+        if (LOGGER.isDebugEnabled()) {
+            LOGGER.debug("CPU values: {}", Arrays.toString(samples.toArray(INDEX)));
+            LOGGER.debug("{}th percentile is {}", CPU_PERCENTILE, percentileValue);
         }
 
-        double cpuRequests = MathUtil.getMode(percentileList, INDEX);
-        LOGGER.debug("Current CPU Requests for {} is {}", instance.getName(), cpuRequests);
+        /* Most frequent CPU, rounded up to 0.1 core, at or above its percentile */
+        double cpuRequests = samples.getCpuMode(percentileValue);
+        if (LOGGER.isDebugEnabled())
+            LOGGER.debug("Current CPU Requests for {} is {}", instance.getName(), cpuRequests);
         try {
             instance.setCurrentCpuRequests(cpuRequests);
         } catch (InvalidValueException e) {
@@ -150,14 +121,11 @@ public class AnalysisImpl implements Analysis
     }
 
     @Override
-    public void calculateMemRequests(MetricsImpl instance, int referenceIndex, int targetIndex)
+    public void calculateMemRequests(MetricsImpl instance)
     {
-        final int ROUND_TO_MUL_OF = 5;
-
-        ArrayList<MetricCollector> metrics = instance.metricCollector;
-        ArrayList<MetricCollector> percentileList = new ArrayList<>();
+        SampleStore samples = instance.getSamples();
 
-        if (metrics.size() == 0) {
+        if (samples.isEmpty()) {
             try {
                 instance.setCurrentRssRequests(0);
             } catch (InvalidValueException e) {
@@ -166,29 +134,14 @@ public class AnalysisImpl implements Analysis
             return;
         }
 
-        DescriptiveStatistics referenceValues = new DescriptiveStatistics();
+        double percentileValue = samples.getPercentile(MetricCollector.CPU_INDEX, CPU_PERCENTILE);
+        if (LOGGER.isDebugEnabled())
+            LOGGER.debug("{}th percentile is {}", CPU_PERCENTILE, percentileValue);
 
-        for (MetricCollector metric : metrics) {
-            double value = metric.getFromIndex(referenceIndex);
-            referenceValues.addValue(value);
-        }
-
-        double percentileValue = MathUtil.getPercentile(referenceValues, CPU_PERCENTILE);
-        LOGGER.debug("{}th percentile is {}", CPU_PERCENTILE, percentileValue);
-
-        for (MetricCollector metric : metrics) {
-            if (metric.getFromIndex(referenceIndex) >= percentileValue)
-            {
-                MetricCollector temp = MetricCollector.Copy(metric);
-                temp.setForIndex(roundToNearestMultiple(temp.getFromIndex(targetIndex), ROUND_TO_MUL_OF), targetIndex);
-                percentileList.add(temp);
-            }
-        }
-
-        LOGGER.debug("RSS values (CPU >= 80th percentile) : {}", Arrays.toString(percentileList.toArray()));
-
-        double memRequests = MathUtil.getMode(percentileList, targetIndex);
-        LOGGER.debug("Current Memory Requests for {} is {}", instance.getName(), memRequests);
+        /* Most frequent RSS while the CPU is at or above its percentile */
+        double memRequests = samples.getRssMode(percentileValue);
+        if (LOGGER.isDebugEnabled())
+            LOGGER.debug("Current Memory Requests for {} is {}", instance.getName(), memRequests);
 
         try {
             instance.setCurrentRssRequests(MathUtil.bytesToMB(memRequests));
@@ -200,13 +153,9 @@ public class AnalysisImpl implements Analysis
     @Override
     public void calculateMemLimit(MetricsImpl instance)
     {
-        double spike;
-        double maxMem = 0;
-
-        ArrayList<Double> rssValues = new ArrayList<>();
-        ArrayList<MetricCollector> metrics = instance.metricCollector;
+        SampleStore samples = instance.getSamples();
 
-        if (metrics.size() == 0) {
+        if (samples.isEmpty()) {
             try {
                 instance.setCurrentRssLimit(0);
             } catch (InvalidValueException e) {
@@ -215,21 +164,20 @@ public class AnalysisImpl implements Analysis
             return;
         }
 
-        for (MetricCollector metricCollector : metrics) {
-            double mem = metricCollector.getFromIndex(MetricCollector.RSS_INDEX);
-            rssValues.add(mem);
-            if (maxMem < mem)
-                maxMem = mem;
-        }
+        double maxMem = Math.max(samples.getMaxRss(), 0);
+
+        /* The largest increase between two consecutive samples, at least the default spike */
+        double spike = Math.max(samples.getMaxRssIncrease(), DEFAULT_SPIKE);
 
-        spike = getLargestSpike(rssValues);
-        LOGGER.debug("Spike is {}" , spike);
+        if (LOGGER.isDebugEnabled())
+            LOGGER.debug("Spike is {}", spike);
 
         double memRequests = instance.getRssRequests();
 
         // If spike is very low
         double memLimit = Math.max(memRequests + spike, maxMem * MEM_BUFFER);
-        LOGGER.debug("Current Memory Limit for {} is {}", instance.getName(), memLimit);
+        if (LOGGER.isDebugEnabled())
+            LOGGER.debug("Current Memory Limit for {} is {}", instance.getName(), memLimit);
         try {
             instance.setCurrentRssLimit(MathUtil.bytesToMB(memLimit));
         } catch (InvalidValueException e) {
@@ -237,19 +185,6 @@ public class AnalysisImpl implements Analysis
         }
     }
 
-    private static double getLargestSpike(ArrayList<Double> arrayList)
-    {
-        double largestSpike = DEFAULT_SPIKE;
-
-        for (int i = 1; i < arrayList.size(); i++) {
-            double difference = (arrayList.get(i) - arrayList.get(i - 1));
-            if (difference > largestSpike)
-                largestSpike = difference;
-        }
-
-        return largestSpike;
-    }
-
     @Override
     public void finalizeY2DRecommendations(MetricsImpl instance)
     {
@@ -286,11 +221,4 @@ public class AnalysisImpl implements Analysis
             e.printStackTrace();
         }
     }
-
-    // function to round the number to multiple of number specified
-    @SuppressWarnings("SameParameterValue")
-    private static double roundToNearestMultiple(double number, double multipleOf)
-    {
-        return multipleOf * (Math.ceil(Math.abs(number/multipleOf)));
-    }
 }
@@ -20,11 +20,16 @@ import com.kruize.metrics.MetricsImpl;
 import com.kruize.metrics.runtimes.java.JavaApplicationMetricsImpl;
 import com.kruize.metrics.runtimes.java.JavaMetricCollector;
 import com.kruize.metrics.runtimes.java.openj9.OpenJ9MetricCollector;
+import com.kruize.recommendations.runtimes.java.JavaRecommendations;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.HashMap;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class OpenJ9AnalysisImpl
 {
@@ -53,141 +58,172 @@ public class OpenJ9AnalysisImpl
     }
 
     /**
-     * Triplet of JavaTriplets needed for analysis
+     * Triplet of JavaTriplets needed for analysis, with the largest part of the RSS
+     * outside the heap and non-heap. Folds in the samples of the application as they come.
      */
     private static class JavaAnalysisTriplet
     {
         JavaTriplet rssMax;
         JavaTriplet heapMax;
         JavaTriplet nonHeapMax;
+        double openJ9MemMax;
 
         JavaAnalysisTriplet()
         {
             rssMax = new JavaTriplet();
             heapMax = new JavaTriplet();
             nonHeapMax = new JavaTriplet();
+            openJ9MemMax = 0;
+        }
+
+        void add(OpenJ9MetricCollector openJ9MetricCollector)
+        {
+            double rss = openJ9MetricCollector.getRss();
+            double heap = openJ9MetricCollector.getHeap();
+            double nonHeap = openJ9MetricCollector.getNonHeap();
+
+            if (heap > heapMax.heap)
+                heapMax = new JavaTriplet(rss, heap, nonHeap);
+
+            if (nonHeap > nonHeapMax.nonHeap)
+                nonHeapMax = new JavaTriplet(rss, heap, nonHeap);
+
+            openJ9MemMax = Math.max(openJ9MemMax, rss - (heap + nonHeap));
         }
     }
 
     private static final Logger LOGGER = LoggerFactory.getLogger(OpenJ9AnalysisImpl.class);
 
-    private static Map<String,JavaAnalysisTriplet> applicationAnalysisMap = new HashMap<>();
+    private static final Map<String, JavaAnalysisTriplet> applicationAnalysisMap = new ConcurrentHashMap<>();
 
     /**
-     * Get the heap recommendation for an instance
+     * Update the heap, non-heap and RSS recommendations of the application of an instance
+     * with the java metrics collected since its last analysis.
+     *
+     * Instances of different applications can be analysed in parallel. The metrics collected
+     * are taken out of the shared map, so every sample is only looked at once.
      *
      * @param metrics instance of the application
      */
-    public static void analyseHeapRecommendation(MetricsImpl metrics)
+    public static void analyse(MetricsImpl metrics)
     {
-        for (String application : JavaApplicationMetricsImpl.javaApplicationMetricsMap.keySet())
+        String application = metrics.getLabelName();
+        JavaAnalysisTriplet javaAnalysisTriplet = applicationAnalysisMap.computeIfAbsent(application,
+                name -> new JavaAnalysisTriplet());
+
+        synchronized (javaAnalysisTriplet)
         {
-            if (!applicationAnalysisMap.containsKey(application))
-            {
-                applicationAnalysisMap.put(application, new JavaAnalysisTriplet());
-            }
+            ArrayList<JavaMetricCollector> newMetrics =
+                    JavaApplicationMetricsImpl.javaApplicationMetricsMap.remove(application);
 
-            for (JavaMetricCollector metricCollector :
-                    JavaApplicationMetricsImpl.javaApplicationMetricsMap.get(application))
+            if (newMetrics != null)
             {
-                OpenJ9MetricCollector openJ9MetricCollector = (OpenJ9MetricCollector) metricCollector;
-
-                if (openJ9MetricCollector.getHeap() > applicationAnalysisMap.get(application).heapMax.heap)
+                for (JavaMetricCollector metricCollector : newMetrics)
                 {
-                    double rss = openJ9MetricCollector.getRss();
-                    double heap = openJ9MetricCollector.getHeap();
-                    double nonHeap = openJ9MetricCollector.getNonHeap();
-
-                    applicationAnalysisMap.get(application).heapMax = new JavaTriplet(rss, heap, nonHeap);
+                    javaAnalysisTriplet.add((OpenJ9MetricCollector) metricCollector);
                 }
             }
 
-            double heapRecommendation = applicationAnalysisMap.get(application).heapMax.heap;
-
-            JavaApplicationMetricsImpl.javaApplicationInfoMap
+            JavaRecommendations javaRecommendations = JavaApplicationMetricsImpl.javaApplicationInfoMap
                     .get(application)
-                    .getJavaRecommendations()
-                    .setHeapRecommendation(heapRecommendation);
-
-            LOGGER.info("Heap recommendation for {} is {}MB", application, heapRecommendation);
+                    .getJavaRecommendations();
 
+            analyseHeapRecommendation(application, javaAnalysisTriplet, javaRecommendations);
+            analyseNonHeapRecommendation(application, javaAnalysisTriplet, javaRecommendations);
+            analyseRssMax(javaAnalysisTriplet, javaRecommendations);
         }
     }
 
     /**
-     * Get the non-heap recommendation for an instance
-     *
-     * @param metrics instance of the application
+     * Write the analysis state of all applications, so that it can be restored after a restart.
      */
-    public static void analyseNonHeapRecommendation(MetricsImpl metrics)
+    public static void writeState(DataOutput output) throws IOException
     {
-        for (String application : JavaApplicationMetricsImpl.javaApplicationMetricsMap.keySet())
+        output.writeInt(applicationAnalysisMap.size());
+
+        for (Map.Entry<String, JavaAnalysisTriplet> entry : applicationAnalysisMap.entrySet())
         {
-            if (!applicationAnalysisMap.containsKey(application))
+            JavaAnalysisTriplet javaAnalysisTriplet = entry.getValue();
+
+            synchronized (javaAnalysisTriplet)
             {
-                applicationAnalysisMap.put(application, new JavaAnalysisTriplet());
+                output.writeUTF(entry.getKey());
+                writeTriplet(output, javaAnalysisTriplet.rssMax);
+                writeTriplet(output, javaAnalysisTriplet.heapMax);
+                writeTriplet(output, javaAnalysisTriplet.nonHeapMax);
+                output.writeDouble(javaAnalysisTriplet.openJ9MemMax);
             }
+        }
+    }
 
-            for (JavaMetricCollector metricCollector :
-                    JavaApplicationMetricsImpl.javaApplicationMetricsMap.get(application))
-            {
-                OpenJ9MetricCollector openJ9MetricCollector = (OpenJ9MetricCollector) metricCollector;
+    /**
+     * Restore the analysis state written by {@link #writeState(DataOutput)}, before any analysis.
+     */
+    public static void readState(DataInput input) throws IOException
+    {
+        int applications = input.readInt();
 
-                if (openJ9MetricCollector.getNonHeap() > applicationAnalysisMap.get(application).nonHeapMax.nonHeap)
-                {
-                    double rss = openJ9MetricCollector.getRss();
-                    double heap = openJ9MetricCollector.getHeap();
-                    double nonHeap = openJ9MetricCollector.getNonHeap();
+        for (int i = 0; i < applications; i++)
+        {
+            JavaAnalysisTriplet javaAnalysisTriplet = new JavaAnalysisTriplet();
+            String application = input.readUTF();
+            javaAnalysisTriplet.rssMax = readTriplet(input);
+            javaAnalysisTriplet.heapMax = readTriplet(input);
+            javaAnalysisTriplet.nonHeapMax = readTriplet(input);
+            javaAnalysisTriplet.openJ9MemMax = input.readDouble();
+
+            applicationAnalysisMap.put(application, javaAnalysisTriplet);
+        }
+    }
 
-                    applicationAnalysisMap.get(application).nonHeapMax = new JavaTriplet(rss, heap, nonHeap);
-                }
-            }
+    private static void writeTriplet(DataOutput output, JavaTriplet javaTriplet) throws IOException
+    {
+        output.writeDouble(javaTriplet.rss);
+        output.writeDouble(javaTriplet.heap);
+        output.writeDouble(javaTriplet.nonHeap);
+    }
 
-            double nonHeapRecommendation = applicationAnalysisMap.get(application).nonHeapMax.nonHeap;
+    private static JavaTriplet readTriplet(DataInput input) throws IOException
+    {
+        return new JavaTriplet(input.readDouble(), input.readDouble(), input.readDouble());
+    }
 
-            JavaApplicationMetricsImpl.javaApplicationInfoMap
-                    .get(application)
-                    .getJavaRecommendations()
-                    .setNonHeapRecommendation(nonHeapRecommendation);
+    /**
+     * Get the heap recommendation for an application
+     */
+    private static void analyseHeapRecommendation(String application, JavaAnalysisTriplet javaAnalysisTriplet,
+                                                  JavaRecommendations javaRecommendations)
+    {
+        double heapRecommendation = javaAnalysisTriplet.heapMax.heap;
+        javaRecommendations.setHeapRecommendation(heapRecommendation);
 
-            LOGGER.info("Non-heap recommendation for {} is {}MB", application, nonHeapRecommendation);
+        LOGGER.info("Heap recommendation for {} is {}MB", application, heapRecommendation);
+    }
 
-        }
+    /**
+     * Get the non-heap recommendation for an application
+     */
+    private static void analyseNonHeapRecommendation(String application, JavaAnalysisTriplet javaAnalysisTriplet,
+                                                     JavaRecommendations javaRecommendations)
+    {
+        double nonHeapRecommendation = javaAnalysisTriplet.nonHeapMax.nonHeap;
+        javaRecommendations.setNonHeapRecommendation(nonHeapRecommendation);
+
+        LOGGER.info("Non-heap recommendation for {} is {}MB", application, nonHeapRecommendation);
     }
 
     /**
      * Use obtained heap and non-heap recommendations to get improved rss sizing recommendations,
      * which can in turn be used to improve requests sizing.
-     *
-     * @param metrics
      */
-    public static void analyseRssMax(MetricsImpl metrics)
+    private static void analyseRssMax(JavaAnalysisTriplet javaAnalysisTriplet,
+                                      JavaRecommendations javaRecommendations)
     {
-        for (String application : JavaApplicationMetricsImpl.javaApplicationMetricsMap.keySet())
-        {
-            double rssMax = 0;
-            double openJ9MemMax = 0;
+        double rssMax = Math.max(javaAnalysisTriplet.heapMax.rss, javaAnalysisTriplet.nonHeapMax.rss);
 
-            for (JavaMetricCollector javaMetricCollector :
-                    JavaApplicationMetricsImpl.javaApplicationMetricsMap.get(application))
-            {
-                OpenJ9MetricCollector openJ9MetricCollector = (OpenJ9MetricCollector) javaMetricCollector;
-                openJ9MemMax = Math.max(openJ9MemMax,
-                        openJ9MetricCollector.getRss() -
-                                (openJ9MetricCollector.getHeap() + openJ9MetricCollector.getNonHeap()));
-            }
-
-            JavaAnalysisTriplet javaAnalysisTriplet = applicationAnalysisMap.get(application);
-
-            rssMax = Math.max(javaAnalysisTriplet.heapMax.rss, javaAnalysisTriplet.nonHeapMax.rss);
+        rssMax = Math.max(rssMax, (javaAnalysisTriplet.heapMax.heap +
+                javaAnalysisTriplet.nonHeapMax.nonHeap + javaAnalysisTriplet.openJ9MemMax));
 
-            rssMax = Math.max(rssMax, (javaAnalysisTriplet.heapMax.heap +
-                    javaAnalysisTriplet.nonHeapMax.nonHeap + openJ9MemMax));
-
-            JavaApplicationMetricsImpl.javaApplicationInfoMap
-                    .get(application)
-                    .getJavaRecommendations()
-                    .setRssMax(rssMax);
-        }
+        javaRecommendations.setRssMax(rssMax);
     }
 }
@@ -0,0 +1,450 @@
+/*******************************************************************************
+ * Copyright (c) 2020, 2020 IBM Corporation and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+
+package com.kruize.collection;
+
+import com.kruize.metrics.MetricsImpl;
+import com.kruize.query.Query;
+import com.kruize.query.prometheus.PrometheusResponseDecoder;
+import com.kruize.query.prometheus.RemoteRead;
+import com.kruize.storage.SampleLog;
+import com.kruize.util.HttpUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Loads the history of an instance from the range query API of the monitoring agent.
+ *
+ * The lookback window is split into chunks of at most {@link #MAX_POINTS_PER_CHUNK} steps,
+ * and the CPU and RSS queries of several chunks are kept in flight while earlier chunks are
+ * decoded. The two series are joined on their timestamps, so a gap in one of them only drops
+ * the points missing from it.
+ *
+ * The history can instead be loaded from the remote read API, with the raw samples of all the
+ * series of the instance over the whole window in one request. They are resampled on the steps
+ * of the window, and the range queries are used if the remote read fails.
+ */
+class Backfill
+{
+    private static final Logger LOGGER = LoggerFactory.getLogger(Backfill.class);
+
+    /* Prometheus refuses range queries returning more than 11000 points per series */
+    private static final int MAX_POINTS_PER_CHUNK = 1000;
+
+    /* Chunks of an instance requested at the same time, on top of the instances backfilled in parallel */
+    private static final int MAX_CHUNKS_IN_FLIGHT = 4;
+
+    private final Query query;
+    private final URL rangeQueryURL;
+    private final long lookbackSeconds;
+    private final long stepSeconds;
+    private final SampleLog sampleLog;
+
+    /* Null if the history is only loaded with range queries */
+    private final URL remoteReadURL;
+
+    /**
+     * @param query query for the environment
+     * @param monitoringAgentEndpoint monitoring agent endpoint
+     * @param lookbackSeconds length of the history to load
+     * @param stepSeconds time between two points of the history
+     * @param sampleLog log the samples loaded are appended to, null if there is none
+     * @param remoteRead true to load the history from the remote read API
+     */
+    Backfill(Query query, String monitoringAgentEndpoint, long lookbackSeconds, long stepSeconds,
+             SampleLog sampleLog, boolean remoteRead) throws MalformedURLException
+    {
+        this.query = query;
+        this.rangeQueryURL = new URL(monitoringAgentEndpoint + query.getRangeQueryEndpoint());
+        this.remoteReadURL = remoteRead ? new URL(monitoringAgentEndpoint + query.getRemoteReadEndpoint()) : null;
+        this.lookbackSeconds = lookbackSeconds;
+        this.stepSeconds = stepSeconds;
+        this.sampleLog = sampleLog;
+    }
+
+    /**
+     * Add the history of the instance to its samples, oldest first.
+     *
+     * @param instance instance to load the history of
+     * @return number of samples added
+     * @throws IOException if the history could not be fetched
+     */
+    int backfill(MetricsImpl instance) throws IOException
+    {
+        return backfill(instance, Long.MIN_VALUE);
+    }
+
+    /**
+     * Add the history of the instance after a sample it already has to its samples, oldest first.
+     *
+     * @param instance instance to load the history of
+     * @param afterMillis timestamp of the latest sample of the instance, in milliseconds
+     * @return number of samples added
+     * @throws IOException if the history could not be fetched
+     */
+    int backfill(MetricsImpl instance, long afterMillis) throws IOException
+    {
+        /* Align the window on the step, so that CPU and RSS points share their timestamps */
+        long end = TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis()) / stepSeconds * stepSeconds;
+        long start = end - lookbackSeconds + stepSeconds;
+
+        /* Only the gap after the latest sample, from the first step strictly after it */
+        if (afterMillis != Long.MIN_VALUE)
+            start = Math.max(start, (Math.floorDiv(afterMillis / 1000, stepSeconds) + 1) * stepSeconds);
+
+        if (start > end)
+            return 0;
+
+        if (remoteReadURL != null) {
+            try {
+                return readRemote(instance, start, end);
+            } catch (IOException e) {
+                LOGGER.debug("Could not read the history of {} remotely, querying it instead: {}",
+                        instance.getName(), e.getMessage());
+            }
+        }
+
+        return queryRanges(instance, start, end);
+    }
+
+    /**
+     * Load the history with range queries, chunk by chunk.
+     *
+     * @param start first step of the window, in seconds
+     * @param end last step of the window, in seconds
+     */
+    private int queryRanges(MetricsImpl instance, long start, long end) throws IOException
+    {
+        String cpuQuery = query.getRangeCpuQuery(instance.getName());
+        String rssQuery = query.getRangeRssQuery(instance.getName());
+
+        long chunkLength = stepSeconds * MAX_POINTS_PER_CHUNK;
+
+        List<long[]> chunks = new ArrayList<>();
+
+        /* Both ends of a range are inclusive, hence the chunks end one step before the next starts */
+        for (long chunkStart = start; chunkStart <= end; chunkStart += chunkLength) {
+            chunks.add(new long[] { chunkStart, Math.min(chunkStart + chunkLength - stepSeconds, end) });
+        }
+
+        List<CompletableFuture<InputStream>> cpuResponses = new ArrayList<>(chunks.size());
+        List<CompletableFuture<InputStream>> rssResponses = new ArrayList<>(chunks.size());
+
+        int added = 0;
+        int decoded = 0;
+
+        try {
+            for (; decoded < chunks.size(); decoded++) {
+                /* Keep the next chunks in flight while this one is decoded */
+                while (cpuResponses.size() < Math.min(decoded + MAX_CHUNKS_IN_FLIGHT, chunks.size())) {
+                    long[] chunk = chunks.get(cpuResponses.size());
+                    cpuResponses.add(HttpUtil.postFormForStreamAsync(rangeQueryURL,
+                            getRangeParameters(cpuQuery, chunk[0], chunk[1])));
+                    rssResponses.add(HttpUtil.postFormForStreamAsync(rangeQueryURL,
+                            getRangeParameters(rssQuery, chunk[0], chunk[1])));
+                }
+
+                Series cpu = Series.decode(cpuResponses.get(decoded).join());
+                Series rss = Series.decode(rssResponses.get(decoded).join());
+
+                added += join(instance, cpu, rss, sampleLog);
+            }
+        } catch (CompletionException e) {
+            throw new IOException("Could not get the history of " + instance.getName(), e.getCause());
+        } finally {
+            /* Release the connections of the chunks left unread after a failure */
+            for (int i = decoded; i < cpuResponses.size(); i++) {
+                cpuResponses.get(i).thenAccept(Backfill::closeQuietly);
+                rssResponses.get(i).thenAccept(Backfill::closeQuietly);
+            }
+        }
+
+        return added;
+    }
+
+    /**
+     * Load the history from the raw samples of the window, read with a single remote read request.
+     * Nothing is added to the instance unless the whole response could be read.
+     *
+     * @param start first step of the window, in seconds
+     * @param end last step of the window, in seconds
+     */
+    private int readRemote(MetricsImpl instance, long start, long end) throws IOException
+    {
+        Resampler resampler = new Resampler(TimeUnit.SECONDS.toMillis(start), TimeUnit.SECONDS.toMillis(stepSeconds),
+                (int) ((end - start) / stepSeconds) + 1);
+
+        /* From one step before the window, so that the counters have a previous sample in the first step */
+        byte[] request = RemoteRead.encodeRequest(TimeUnit.SECONDS.toMillis(start - stepSeconds),
+                TimeUnit.SECONDS.toMillis(end),
+                Arrays.asList(query.getCpuSeriesMatchers(instance), query.getRssSeriesMatchers(instance)));
+
+        Map<String, String> headers = new LinkedHashMap<>();
+        headers.put("Content-Type", RemoteRead.CONTENT_TYPE);
+        headers.put("Content-Encoding", RemoteRead.CONTENT_ENCODING);
+        headers.put("X-Prometheus-Remote-Read-Version", RemoteRead.VERSION);
+
+        try {
+            RemoteRead.decode(HttpUtil.postForStreamAsync(remoteReadURL, headers, request).join(), resampler);
+        } catch (CompletionException e) {
+            throw new IOException("Could not read the history of " + instance.getName(), e.getCause());
+        }
+
+        resampler.flush();
+        return join(instance, resampler.getCpu(), resampler.getRss(), sampleLog);
+    }
+
+    private Map<String, String> getRangeParameters(String query, long start, long end)
+    {
+        Map<String, String> parameters = new LinkedHashMap<>();
+        parameters.put("query", query);
+        parameters.put("start", String.valueOf(start));
+        parameters.put("end", String.valueOf(end));
+        parameters.put("step", String.valueOf(stepSeconds));
+        return parameters;
+    }
+
+    private static void closeQuietly(InputStream inputStream)
+    {
+        try {
+            if (inputStream != null)
+                inputStream.close();
+        } catch (IOException ignored) { }
+    }
+
+    /**
+     * Merge the two series of a chunk on their timestamps, both being in ascending order.
+     */
+    private static int join(MetricsImpl instance, Series cpu, Series rss, SampleLog sampleLog)
+    {
+        int added = 0;
+        int cpuIndex = 0;
+        int rssIndex = 0;
+
+        while (cpuIndex < cpu.count && rssIndex < rss.count) {
+            long cpuTimestamp = cpu.timestamps[cpuIndex];
+            long rssTimestamp = rss.timestamps[rssIndex];
+
+            if (cpuTimestamp < rssTimestamp) {
+                cpuIndex++;
+            } else if (rssTimestamp < cpuTimestamp) {
+                rssIndex++;
+            } else {
+                instance.addSample(cpuTimestamp, rss.values[rssIndex], cpu.values[cpuIndex], 0);
+                if (sampleLog != null)
+                    sampleLog.append(instance, cpuTimestamp, rss.values[rssIndex], cpu.values[cpuIndex], 0);
+                added++;
+                cpuIndex++;
+                rssIndex++;
+            }
+        }
+
+        return added;
+    }
+
+    /**
+     * Points of the first series of a range query result
+     */
+    private static class Series implements PrometheusResponseDecoder.SampleHandler
+    {
+        private Map<String, String> labels = null;
+        private long[] timestamps = new long[64];
+        private double[] values = new double[64];
+        private int count = 0;
+
+        static Series decode(InputStream response) throws IOException
+        {
+            Series series = new Series();
+            PrometheusResponseDecoder.decode(response, series);
+            return series;
+        }
+
+        @Override
+        public void onSample(Map<String, String> labels, long timestamp, double value)
+        {
+            if (this.labels == null)
+                this.labels = labels;
+
+            if (labels != this.labels || Double.isNaN(value))
+                return;
+
+            add(timestamp, value);
+        }
+
+        void add(long timestamp, double value)
+        {
+            if (count == timestamps.length) {
+                timestamps = Arrays.copyOf(timestamps, count * 2);
+                values = Arrays.copyOf(values, count * 2);
+            }
+
+            timestamps[count] = timestamp;
+            values[count] = value;
+            count++;
+        }
+    }
+
+    /**
+     * Raw samples of the series of an instance, resampled on the steps of the window the same way
+     * as by the range queries. The CPU of a step is the sum of the rates of the CPU counters over
+     * the step, and the RSS the sum of the last values of the RSS series within the step. A sample
+     * belongs to the first step at or after it.
+     */
+    private static class Resampler implements RemoteRead.ChunkHandler
+    {
+        private static final int CPU_QUERY = 0;
+
+        private final long startMillis;
+        private final long stepMillis;
+
+        private final double[] cpu;
+        private final double[] rss;
+        private final boolean[] hasCpu;
+        private final boolean[] hasRss;
+
+        /* The chunks of a series can come in several frames, with equal labels */
+        private final Map<Map<String, String>, SeriesState> series = new HashMap<>();
+
+        private static class SeriesState
+        {
+            final boolean isCpu;
+            long lastTimestamp = Long.MIN_VALUE;
+            double lastValue;
+
+            /* Step being summed up, -1 for none */
+            int step = -1;
+            double increase;
+            long duration;
+            double value;
+
+            SeriesState(boolean isCpu)
+            {
+                this.isCpu = isCpu;
+            }
+        }
+
+        Resampler(long startMillis, long stepMillis, int steps)
+        {
+            this.startMillis = startMillis;
+            this.stepMillis = stepMillis;
+            this.cpu = new double[steps];
+            this.rss = new double[steps];
+            this.hasCpu = new boolean[steps];
+            this.hasRss = new boolean[steps];
+        }
+
+        @Override
+        public void onChunk(int queryIndex, Map<String, String> labels, long[] timestamps, double[] values,
+                            int count)
+        {
+            SeriesState state = series.computeIfAbsent(labels, key -> new SeriesState(queryIndex == CPU_QUERY));
+
+            for (int i = 0; i < count; i++) {
+                long timestamp = timestamps[i];
+                double value = values[i];
+
+                /* Staleness markers, and samples out of order */
+                if (Double.isNaN(value) || timestamp <= state.lastTimestamp)
+                    continue;
+
+                int step = (int) Math.floorDiv(timestamp - startMillis + stepMillis - 1, stepMillis);
+                boolean inWindow = step >= 0 && step < cpu.length;
+
+                if (inWindow && step != state.step) {
+                    flush(state);
+                    state.step = step;
+                }
+
+                if (state.isCpu) {
+                    if (inWindow && state.lastTimestamp != Long.MIN_VALUE) {
+                        /* A counter going down was reset, and counted again from zero */
+                        state.increase += value >= state.lastValue ? value - state.lastValue : value;
+                        state.duration += timestamp - state.lastTimestamp;
+                    }
+                } else if (inWindow) {
+                    state.value = value;
+                }
+
+                state.lastTimestamp = timestamp;
+                state.lastValue = value;
+            }
+        }
+
+        /**
+         * Add the steps still being summed up, once all chunks were read
+         */
+        void flush()
+        {
+            for (SeriesState state : series.values()) {
+                flush(state);
+            }
+        }
+
+        Series getCpu()
+        {
+            return getSeries(cpu, hasCpu);
+        }
+
+        Series getRss()
+        {
+            return getSeries(rss, hasRss);
+        }
+
+        private void flush(SeriesState state)
+        {
+            if (state.step < 0)
+                return;
+
+            if (!state.isCpu) {
+                rss[state.step] += state.value;
+                hasRss[state.step] = true;
+            } else if (state.duration > 0) {
+                cpu[state.step] += state.increase / (state.duration / 1000.0);
+                hasCpu[state.step] = true;
+            }
+
+            state.step = -1;
+            state.increase = 0;
+            state.duration = 0;
+        }
+
+        private Series getSeries(double[] values, boolean[] hasValues)
+        {
+            Series resampled = new Series();
+
+            for (int step = 0; step < values.length; step++) {
+                if (hasValues[step])
+                    resampled.add(startMillis + step * stepMillis, values[step]);
+            }
+
+            return resampled;
+        }
+    }
+}
@@ -0,0 +1,183 @@
+/*******************************************************************************
+ * Copyright (c) 2020, 2020 IBM Corporation and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+
+package com.kruize.collection;
+
+import com.kruize.exceptions.InvalidValueException;
+import com.kruize.metrics.Metrics;
+import com.kruize.metrics.MetricsImpl;
+import com.kruize.metrics.runtimes.java.JavaApplicationInfo;
+import com.kruize.metrics.runtimes.java.JavaApplicationMetricsImpl;
+import com.kruize.query.Query;
+import com.kruize.query.prometheus.PrometheusResponseDecoder;
+import com.kruize.query.runtimes.java.JavaQuery;
+import com.kruize.util.HttpUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+/**
+ * Current CPU and RSS of all monitored instances, and the memory of the OpenJ9 ones,
+ * fetched with one query each per collection cycle instead of one query per instance.
+ */
+class BatchedMetrics
+{
+    private static final Logger LOGGER = LoggerFactory.getLogger(BatchedMetrics.class);
+
+    private final Query query;
+    private final Map<String, Double> cpuValues;
+    private final Map<String, Double> rssValues;
+
+    /* Memory of the OpenJ9 instances by their pod label, then by the id label of the part of memory */
+    private final Map<String, Map<String, Double>> javaMemoryValues;
+
+    private BatchedMetrics(Query query, Map<String, Double> cpuValues, Map<String, Double> rssValues,
+                           Map<String, Map<String, Double>> javaMemoryValues)
+    {
+        this.query = query;
+        this.cpuValues = cpuValues;
+        this.rssValues = rssValues;
+        this.javaMemoryValues = javaMemoryValues;
+    }
+
+    /**
+     * @param query query for the environment
+     * @param monitoringAgentEndpoint monitoring agent endpoint
+     * @param instances instances to get the metrics of
+     * @return metrics of the instances, or null if they could not be fetched
+     */
+    static BatchedMetrics fetch(Query query, String monitoringAgentEndpoint,
+                                Collection<? extends MetricsImpl> instances)
+    {
+        if (instances.isEmpty())
+            return new BatchedMetrics(query, Collections.emptyMap(), Collections.emptyMap(), Collections.emptyMap());
+
+        try {
+            URL url = new URL(monitoringAgentEndpoint + query.getQueryPostEndpoint());
+
+            /* Both queries are in flight at the same time */
+            CompletableFuture<InputStream> cpuResponse = HttpUtil.postFormForStreamAsync(url,
+                    Collections.singletonMap("query", query.getBatchedCpuQuery(instances)));
+            CompletableFuture<InputStream> rssResponse = HttpUtil.postFormForStreamAsync(url,
+                    Collections.singletonMap("query", query.getBatchedRssQuery(instances)));
+
+            List<String> javaInstances = getOpenJ9Instances(instances);
+            CompletableFuture<InputStream> javaMemoryResponse = null;
+            if (!javaInstances.isEmpty()) {
+                javaMemoryResponse = HttpUtil.postFormForStreamAsync(url,
+                        Collections.singletonMap("query", JavaQuery.getMemoryQuery(javaInstances, "used")));
+            }
+
+            Map<String, Double> cpuValues = getValues(query, cpuResponse.join());
+            Map<String, Double> rssValues = getValues(query, rssResponse.join());
+            Map<String, Map<String, Double>> javaMemoryValues = javaMemoryResponse == null
+                    ? Collections.emptyMap()
+                    : getJavaMemoryValues(javaMemoryResponse.join());
+
+            return new BatchedMetrics(query, cpuValues, rssValues, javaMemoryValues);
+        } catch (IOException | CompletionException | InvalidValueException e) {
+            LOGGER.warn("Could not get batched metrics, querying instances separately");
+            return null;
+        }
+    }
+
+    /**
+     * @throws IndexOutOfBoundsException if no value was returned for the instance
+     */
+    double getCpu(Metrics instance) throws IndexOutOfBoundsException
+    {
+        return getValue(cpuValues, instance);
+    }
+
+    /**
+     * @throws IndexOutOfBoundsException if no value was returned for the instance
+     */
+    double getRss(Metrics instance) throws IndexOutOfBoundsException
+    {
+        return getValue(rssValues, instance);
+    }
+
+    /**
+     * @return memory of the OpenJ9 instance keyed by the id label of each part, or null if none was returned
+     */
+    Map<String, Double> getJavaMemory(MetricsImpl instance)
+    {
+        return javaMemoryValues.get(instance.getLabelName());
+    }
+
+    private double getValue(Map<String, Double> values, Metrics instance) throws IndexOutOfBoundsException
+    {
+        Double value = values.get(query.getInstanceKey(instance));
+
+        if (value == null)
+            throw new IndexOutOfBoundsException("No value for " + instance.getName());
+
+        return value;
+    }
+
+    private static List<String> getOpenJ9Instances(Collection<? extends MetricsImpl> instances)
+    {
+        List<String> javaInstances = new ArrayList<>();
+
+        for (MetricsImpl instance : instances) {
+            JavaApplicationInfo javaApplicationInfo =
+                    JavaApplicationMetricsImpl.javaApplicationInfoMap.get(instance.getLabelName());
+
+            if ("java".equals(instance.getRuntime()) && javaApplicationInfo != null
+                    && javaApplicationInfo.getVM().equals("OpenJ9"))
+                javaInstances.add(instance.getLabelName());
+        }
+
+        return javaInstances;
+    }
+
+    private static Map<String, Map<String, Double>> getJavaMemoryValues(InputStream response) throws IOException
+    {
+        Map<String, Map<String, Double>> values = new HashMap<>();
+        String podLabel = JavaQuery.getPodLabel();
+
+        PrometheusResponseDecoder.decode(response, (labels, timestamp, value) -> {
+            String instance = labels.get(podLabel);
+            String id = labels.get("id");
+
+            if (instance != null && id != null)
+                values.computeIfAbsent(instance, name -> new HashMap<>()).put(id, value);
+        });
+
+        return values;
+    }
+
+    private static Map<String, Double> getValues(Query query, InputStream response) throws IOException
+    {
+        Map<String, Double> values = new HashMap<>();
+
+        PrometheusResponseDecoder.decode(response,
+                (labels, timestamp, value) -> values.put(query.getInstanceKey(labels), value));
+
+        return values;
+    }
+}
@@ -16,30 +16,44 @@
 
 package com.kruize.collection;
 
-import com.google.gson.JsonArray;
-import com.google.gson.JsonElement;
-import com.google.gson.JsonParser;
+import com.kruize.analysis.Analysis;
 import com.kruize.analysis.runtimes.java.OpenJ9AnalysisImpl;
 import com.kruize.environment.DeploymentInfo;
 import com.kruize.environment.EnvTypeImpl;
+import com.kruize.environment.kubernetes.KubeletScraper;
 import com.kruize.exceptions.ApplicationIdleStateException;
 import com.kruize.exceptions.InvalidValueException;
-import com.kruize.exceptions.NoSuchApplicationException;
-import com.kruize.metrics.MetricCollector;
 import com.kruize.metrics.Metrics;
 import com.kruize.metrics.MetricsImpl;
 import com.kruize.metrics.runtimes.java.JavaApplicationMetricsImpl;
 import com.kruize.query.Query;
+import com.kruize.query.prometheus.PrometheusResponseDecoder;
 import com.kruize.recommendations.application.ApplicationRecommendationsImpl;
+import com.kruize.recommendations.application.ApplicationSnapshot;
+import com.kruize.service.HealthService;
+import com.kruize.storage.RecommendationsCheckpoint;
+import com.kruize.storage.SampleLog;
 import com.kruize.util.HttpUtil;
 import com.kruize.util.MathUtil;
+import io.prometheus.client.Counter;
 import io.prometheus.client.Gauge;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
 
 public class CollectMetrics implements Runnable
@@ -97,51 +111,160 @@ public class CollectMetrics implements Runnable
             .help("Current RSS of application")
             .labelNames("namespace", "application_name")
             .register();
+    private static final Gauge cycleDurationGauge = Gauge.build()
+            .name("kruize_collection_cycle_seconds")
+            .help("Wall-clock time taken by the last collection cycle")
+            .register();
+    private static final Counter cycleTimeoutsCounter = Counter.build()
+            .name("kruize_collection_cycle_timeouts_total")
+            .help("Instances not collected because the cycle deadline was reached")
+            .register();
+
+    private static final double NANOS_PER_SECOND = 1e9;
+
+    /* Time allowed for loading the history of all instances at startup */
+    private static final long BACKFILL_DEADLINE_MINUTES = 10;
+
+    /* Time between two compactions of the sample log */
+    private static final long SAMPLE_LOG_COMPACTION_MINUTES = 60;
 
     private EnvTypeImpl envType = EnvTypeImpl.getInstance();
     private Query query = envType.query;
 
     private static final Logger LOGGER = LoggerFactory.getLogger(CollectMetrics.class);
     private ApplicationRecommendationsImpl applicationRecommendations = envType.applicationRecommendations;
+    private CollectionEngine collectionEngine = CollectionEngine.create(DeploymentInfo.getCollectionWorkers());
+    private SamplingScheduler samplingScheduler = new SamplingScheduler(DeploymentInfo.getCollectionMinInterval(),
+            DeploymentInfo.getCollectionMaxInterval(), DeploymentInfo.getCollectionInterval());
+
+    /* Instances whose collection task is running, including tasks of a previous cycle that
+     * outlived its deadline, so that an instance is never collected by two tasks at once */
+    private final Set<MetricsImpl> instancesInFlight = ConcurrentHashMap.newKeySet();
+
+    /* Null if samples are not logged */
+    private SampleLog sampleLog = openSampleLog();
+    private long lastCompaction = System.nanoTime();
+
+    /* Null if the recommendations are not checkpointed */
+    private RecommendationsCheckpoint checkpoint = DeploymentInfo.getCheckpointPath().isEmpty()
+            ? null
+            : new RecommendationsCheckpoint(Paths.get(DeploymentInfo.getCheckpointPath()));
+    private long lastCheckpoint = System.nanoTime();
+
+    /* Null unless the samples are pushed by the monitoring agent, or scraped from the kubelets */
+    private PushedMetrics pushedMetrics = DeploymentInfo.getQueryMode().equals("REMOTE_WRITE")
+            || DeploymentInfo.getQueryMode().equals("KUBELET")
+            ? PushedMetrics.getInstance()
+            : null;
+
+    /* Null unless the samples are scraped from the kubelets */
+    private KubeletScraper kubeletScraper = DeploymentInfo.getQueryMode().equals("KUBELET")
+            ? new KubeletScraper(query.getSeriesMetricNames(), pushedMetrics::add)
+            : null;
 
     static
     {
         HttpUtil.disableSSLVertification();
     }
 
-    private void getMetrics(String application)
+    /**
+     * Collect and analyse the current metrics of a single instance of an application.
+     * Called concurrently for different instances by the collection engine.
+     *
+     * @param application name of the application
+     * @param metrics instance of the application
+     * @param monitoringAgentEndPoint monitoring agent endpoint
+     * @param batchedMetrics metrics of all instances fetched for the cycle, null to query the instance
+     */
+    private void getMetrics(String application, MetricsImpl metrics, String monitoringAgentEndPoint,
+                            BatchedMetrics batchedMetrics)
     {
-        String monitoringAgentEndPoint = DeploymentInfo.getMonitoringAgentEndpoint() + query.getAPIEndpoint();
+        String instanceName = metrics.getName();
 
-        for (MetricsImpl metrics : envType.applicationRecommendations.applicationMap.get(application)) {
-            /* TODO add better checks to see if instance is still running */
-            if (metrics.getCurrentStatus()) {
-                String instanceName = metrics.getName();
+        String rssQuery = query.getRssQuery(instanceName);
 
-                String rssQuery = query.getRssQuery(instanceName);
+        /* TODO replace it by seconds and calculate ourselves? */
+        String cpuQuery = query.getCpuQuery(instanceName);
 
-                /* TODO replace it by seconds and calculate ourselves? */
-                String cpuQuery = query.getCpuQuery(instanceName);
+        try {
+            CurrentMetrics currentMetrics =
+                    new CurrentMetrics(monitoringAgentEndPoint, metrics, rssQuery, cpuQuery, batchedMetrics)
+                            .invoke();
 
-                try {
-                    CurrentMetrics currentMetrics =
-                            new CurrentMetrics(monitoringAgentEndPoint, metrics, rssQuery, cpuQuery).invoke();
+            if (currentMetrics.isIdle())
+                samplingScheduler.recordIdle(application);
+            else if (currentMetrics.isCollected())
+                samplingScheduler.recordSample(application, currentMetrics.getCpu(), currentMetrics.getRss());
 
-                    analyseMetrics(metrics);
+            analyseMetrics(metrics);
 
-                    if (metrics.getRuntime() != null)
-                    {
-                        CollectRuntimeMetrics.collectRuntimeMetrics(metrics, monitoringAgentEndPoint);
-                        analyseRuntimeMetrics(metrics);
-                    }
+            if (metrics.getRuntime() != null)
+            {
+                Map<String, Double> javaMemory = null;
+                if (pushedMetrics != null)
+                    javaMemory = pushedMetrics.getJavaMemory(metrics);
+                else if (batchedMetrics != null)
+                    javaMemory = batchedMetrics.getJavaMemory(metrics);
+
+                CollectRuntimeMetrics.collectRuntimeMetrics(metrics, monitoringAgentEndPoint, javaMemory);
+                analyseRuntimeMetrics(metrics);
+            }
 
-                    setKruizeRecommendations(application, metrics, currentMetrics);
+            setKruizeRecommendations(application, metrics, currentMetrics);
 
-                } catch (Exception e) {
-                    e.printStackTrace();
-                }
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * @param applications applications to be collected in the cycle
+     * @return one collection task for every instance of the applications that is currently running
+     */
+    private List<Runnable> getCollectionTasks(List<String> applications)
+    {
+        String monitoringAgentEndPoint = DeploymentInfo.getMonitoringAgentEndpoint() + query.getAPIEndpoint();
+        List<MetricsImpl> runningInstances = new ArrayList<>();
+
+        int skipped = 0;
+
+        for (String application : applications) {
+            for (MetricsImpl metrics : applicationRecommendations.applicationMap.get(application)) {
+                /* TODO add better checks to see if instance is still running */
+                if (!metrics.getCurrentStatus())
+                    continue;
+
+                if (instancesInFlight.contains(metrics))
+                    skipped++;
+                else
+                    runningInstances.add(metrics);
             }
         }
+
+        if (skipped > 0)
+            LOGGER.debug("Skipping {} instances still collected by the previous cycle", skipped);
+
+        BatchedMetrics batchedMetrics = null;
+        if (DeploymentInfo.getQueryMode().equals("BATCHED")) {
+            batchedMetrics = BatchedMetrics.fetch(query, DeploymentInfo.getMonitoringAgentEndpoint(),
+                    runningInstances);
+        }
+
+        List<Runnable> tasks = new ArrayList<>(runningInstances.size());
+        for (MetricsImpl metrics : runningInstances) {
+            final BatchedMetrics cycleMetrics = batchedMetrics;
+            tasks.add(() -> {
+                /* Marked once started, as a task cancelled before it starts never runs */
+                instancesInFlight.add(metrics);
+                try {
+                    getMetrics(metrics.getApplicationName(), metrics, monitoringAgentEndPoint, cycleMetrics);
+                } finally {
+                    instancesInFlight.remove(metrics);
+                }
+            });
+        }
+
+        return tasks;
     }
 
     private void setKruizeRecommendations(String application, Metrics metrics,
@@ -166,13 +289,18 @@ public class CollectMetrics implements Runnable
         double memoryRequests = 0;
         double memoryLimit = 0;
 
-        try {
-            cpuRequests = applicationRecommendations.getCpuRequests(application);
-            cpuLimit = applicationRecommendations.getCpuLimit(application);
+        /* The recommendations of the application are read from the last published snapshot, as
+         * the other instances of the application are being collected by other tasks meanwhile */
+        ApplicationSnapshot applicationSnapshot = applicationRecommendations.getSnapshot()
+                .getApplications().get(application);
 
-            memoryRequests = MathUtil.MBToBytes(applicationRecommendations.getRssRequests(application));
-            memoryLimit = MathUtil.MBToBytes(applicationRecommendations.getRssLimits(application));
-        } catch (NoSuchApplicationException ignored) { }
+        if (applicationSnapshot != null) {
+            cpuRequests = applicationSnapshot.getCpuRequests();
+            cpuLimit = applicationSnapshot.getCpuLimit();
+
+            memoryRequests = MathUtil.MBToBytes(applicationSnapshot.getRssRequests());
+            memoryLimit = MathUtil.MBToBytes(applicationSnapshot.getRssLimits());
+        }
 
         cpuRequestsGauge.labels(namespace, application).set(cpuRequests);
         cpuLimitsGauge.labels(namespace, application).set(cpuLimit);
@@ -189,11 +317,20 @@ public class CollectMetrics implements Runnable
 
     private void analyseMetrics(MetricsImpl metrics)
     {
-        envType.analysis.calculateCpuRequests(metrics);
-        envType.analysis.calculateCpuLimit(metrics);
-        envType.analysis.calculateMemRequests(metrics, MetricCollector.CPU_INDEX, MetricCollector.RSS_INDEX);
-        envType.analysis.calculateMemLimit(metrics);
-        envType.analysis.finalizeY2DRecommendations(metrics);
+        analyseMetrics(envType.analysis, metrics);
+    }
+
+    /**
+     * Generate the recommendations of the instance from its samples, every collection cycle.
+     * Package-private for the allocation benchmark, which runs it without an environment.
+     */
+    static void analyseMetrics(Analysis analysis, MetricsImpl metrics)
+    {
+        analysis.calculateCpuRequests(metrics);
+        analysis.calculateCpuLimit(metrics);
+        analysis.calculateMemRequests(metrics);
+        analysis.calculateMemLimit(metrics);
+        analysis.finalizeY2DRecommendations(metrics);
     }
 
     /**
@@ -208,9 +345,7 @@ public class CollectMetrics implements Runnable
                     .get(metrics.getLabelName())
                     .getVM().equals("OpenJ9"))
             {
-                OpenJ9AnalysisImpl.analyseHeapRecommendation(metrics);
-                OpenJ9AnalysisImpl.analyseNonHeapRecommendation(metrics);
-                OpenJ9AnalysisImpl.analyseRssMax(metrics);
+                OpenJ9AnalysisImpl.analyse(metrics);
             }
         }
     }
@@ -220,72 +355,225 @@ public class CollectMetrics implements Runnable
     public void run()
     {
         try {
+            Set<String> restoredApplications = restoreCheckpoint();
+
+            getPreviousData();
+
             for (String application : applicationRecommendations.applicationMap.keySet()) {
-                getPreviousData(application);
-                getPreviousKruizeRecs(application, query);
+                if (!restoredApplications.contains(application))
+                    getPreviousKruizeRecs(application, query);
             }
+            applicationRecommendations.publishSnapshot();
 
             while (true) {
-                for (String application : applicationRecommendations.applicationMap.keySet()) {
-                    getMetrics(application);
+                /* Pause collection while the monitoring agent is failing, resuming once it may be probed.
+                 * Samples pushed or scraped from the kubelets do not depend on it, and are still collected. */
+                if (pushedMetrics == null
+                        && HttpUtil.isMonitoringAgentUnavailable() && HttpUtil.getNanosUntilRetry() > 0) {
+                    HealthService.setCurrentStatus(HealthService.STATUS_DEGRADED);
+                    TimeUnit.NANOSECONDS.sleep(Math.min(HttpUtil.getNanosUntilRetry(),
+                            TimeUnit.SECONDS.toNanos(DeploymentInfo.getCollectionInterval())));
+                    continue;
                 }
-                TimeUnit.SECONDS.sleep(10);
+
+                long cycleStart = System.nanoTime();
+
+                if (kubeletScraper != null)
+                    scrapeKubelets();
+
+                List<String> dueApplications = samplingScheduler.getDueApplications(
+                        applicationRecommendations.applicationMap.keySet(), cycleStart);
+
+                int timedOut = collectionEngine.runCycle(getCollectionTasks(dueApplications),
+                        DeploymentInfo.getCollectionCycleDeadline(), TimeUnit.SECONDS);
+
+                samplingScheduler.reschedule(dueApplications, cycleStart);
+
+                double cycleSeconds = (System.nanoTime() - cycleStart) / NANOS_PER_SECOND;
+                cycleDurationGauge.set(cycleSeconds);
+                cycleTimeoutsCounter.inc(timedOut);
+                LOGGER.debug("Collection cycle of {} applications took {}s", dueApplications.size(), cycleSeconds);
+
+                HealthService.setCurrentStatus(HttpUtil.isMonitoringAgentUnavailable()
+                        ? HealthService.STATUS_DEGRADED
+                        : HealthService.STATUS_UP);
+
                 envType.getAllApps();
+                applicationRecommendations.publishSnapshot();
+
+                if (pushedMetrics != null)
+                    pushedMetrics.expire(System.currentTimeMillis());
+
+                if (sampleLog != null)
+                    maintainSampleLog();
+
+                if (checkpoint != null && System.nanoTime() - lastCheckpoint
+                        >= TimeUnit.SECONDS.toNanos(DeploymentInfo.getCheckpointInterval())) {
+                    writeCheckpoint();
+                }
+
+                /* Sleep until the next application is due, looking for new
+                 * applications at least once every collection interval */
+                long now = System.nanoTime();
+                long intervalNanos = TimeUnit.SECONDS.toNanos(DeploymentInfo.getCollectionInterval());
+                long remainingNanos = Math.min(samplingScheduler.getNanosUntilNextDue(now),
+                        cycleStart + intervalNanos - now);
+
+                if (remainingNanos > 0) {
+                    TimeUnit.NANOSECONDS.sleep(remainingNanos);
+                } else if (now - cycleStart > intervalNanos) {
+                    LOGGER.warn("Collection cycle took {}s, longer than the {}s interval",
+                            (now - cycleStart) / NANOS_PER_SECOND, DeploymentInfo.getCollectionInterval());
+                }
             }
         } catch (InterruptedException e) {
             e.printStackTrace();
+        } finally {
+            collectionEngine.shutdown();
         }
     }
 
-    private void getPreviousData(String application)
+    /**
+     * Scrape the current samples of all nodes from their kubelets, running the nodes on the collection engine.
+     * The samples are taken by the instances like pushed samples.
+     */
+    private void scrapeKubelets()
     {
-        for (MetricsImpl metrics : applicationRecommendations.applicationMap.get(application)) {
-            ArrayList<Double> rssList = new ArrayList<>();
-            ArrayList<Double> cpuList = new ArrayList<>();
-
-            try {
-                String prometheusURL = DeploymentInfo.getMonitoringAgentEndpoint() + query.getAPIEndpoint();
-
-                String instanceName = metrics.getName();
+        long scrapeStart = System.nanoTime();
+        List<Runnable> tasks = kubeletScraper.getScrapeTasks();
 
-                JsonArray rssArray = getAsJsonArray(new URL(prometheusURL + query.getPreviousRssQuery(instanceName)), "values");
-                JsonArray cpuArray = getAsJsonArray(new URL(prometheusURL + query.getPreviousCpuQuery(instanceName)), "values");
+        collectionEngine.runCycle(tasks, DeploymentInfo.getCollectionCycleDeadline(), TimeUnit.SECONDS);
+        LOGGER.debug("Scraped the kubelets of {} nodes in {}s", tasks.size(),
+                (System.nanoTime() - scrapeStart) / NANOS_PER_SECOND);
+    }
 
-                for (JsonElement rssValue : rssArray) {
-                    rssList.add(rssValue.getAsJsonArray().get(1).getAsDouble());
-                }
+    /**
+     * Load the history of all known instances, running the instances on the collection engine.
+     * The samples of the sample log are loaded first, and only the history after them is
+     * loaded from the monitoring agent.
+     */
+    private void getPreviousData()
+    {
+        Backfill backfill;
+        try {
+            backfill = new Backfill(query, DeploymentInfo.getMonitoringAgentEndpoint(),
+                    DeploymentInfo.getBackfillLookback(), DeploymentInfo.getBackfillStep(), sampleLog,
+                    DeploymentInfo.getBackfillMode().equals("REMOTE_READ"));
+        } catch (MalformedURLException e) {
+            e.printStackTrace();
+            return;
+        }
 
-                for (JsonElement cpuValue : cpuArray) {
-                    cpuList.add(cpuValue.getAsJsonArray().get(1).getAsDouble());
-                }
+        Map<MetricsImpl, Long> lastLoggedTimestamps = Collections.emptyMap();
+        if (sampleLog != null) {
+            long replayStart = System.nanoTime();
+            lastLoggedTimestamps = sampleLog.replay(applicationRecommendations::findInstance);
+            LOGGER.info("Loaded the logged samples of {} instances in {}s", lastLoggedTimestamps.size(),
+                    (System.nanoTime() - replayStart) / NANOS_PER_SECOND);
+        }
 
-                if (rssList.size() == cpuList.size()) {
-                    for (int i = 0; i < rssList.size(); i++) {
-                        metrics.metricCollector.add(new MetricCollector(rssList.get(i), cpuList.get(i), 0));
+        List<Runnable> tasks = new ArrayList<>();
+        for (String application : applicationRecommendations.applicationMap.keySet()) {
+            for (MetricsImpl metrics : applicationRecommendations.applicationMap.get(application)) {
+                long lastLoggedTimestamp = lastLoggedTimestamps.getOrDefault(metrics, Long.MIN_VALUE);
+                tasks.add(() -> {
+                    try {
+                        int samples = backfill.backfill(metrics, lastLoggedTimestamp);
+                        LOGGER.debug("Loaded {} previous samples of {}", samples, metrics.getName());
+                    } catch (IOException e) {
+                        LOGGER.info("No previous data available for {}", metrics.getName());
                     }
-                }
-            } catch (NullPointerException | MalformedURLException | IndexOutOfBoundsException e) {
-                LOGGER.info("No previous data available for {}", application);
+                });
             }
+        }
+
+        long backfillStart = System.nanoTime();
+        collectionEngine.runCycle(tasks, BACKFILL_DEADLINE_MINUTES, TimeUnit.MINUTES);
+        LOGGER.info("Loaded previous data of {} instances in {}s", tasks.size(),
+                (System.nanoTime() - backfillStart) / NANOS_PER_SECOND);
+    }
+
+    /**
+     * @return log of the samples in the configured directory, null if there is none or it cannot be opened
+     */
+    private static SampleLog openSampleLog()
+    {
+        if (DeploymentInfo.getSampleLogDirectory().isEmpty())
+            return null;
+
+        try {
+            return SampleLog.open(Paths.get(DeploymentInfo.getSampleLogDirectory()));
+        } catch (IOException e) {
+            LOGGER.error("Cannot open the sample log in {}, samples are not logged: {}",
+                    DeploymentInfo.getSampleLogDirectory(), e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Write the samples logged during the cycle to the disk, and compact the log from time to time
+     */
+    private void maintainSampleLog()
+    {
+        sampleLog.force();
+
+        if (System.nanoTime() - lastCompaction < TimeUnit.MINUTES.toNanos(SAMPLE_LOG_COMPACTION_MINUTES))
+            return;
+
+        long minTimestamp = System.currentTimeMillis()
+                - TimeUnit.SECONDS.toMillis(DeploymentInfo.getSampleRetentionAge());
+        sampleLog.compact(minTimestamp, (namespace, name) -> {
+            MetricsImpl instance = applicationRecommendations.findInstance(namespace, name);
+            return instance != null && !instance.getStatus().equals("terminated");
+        });
+        lastCompaction = System.nanoTime();
+    }
+
+    /**
+     * Restore the recommendations of the last checkpoint, if any
+     *
+     * @return applications with restored recommendations, the previous recommendations of the
+     * other applications being loaded from the monitoring agent
+     */
+    private Set<String> restoreCheckpoint()
+    {
+        if (checkpoint == null)
+            return Collections.emptySet();
+
+        try {
+            long restoreStart = System.nanoTime();
+            Set<String> restoredApplications = checkpoint.restore(applicationRecommendations);
+            LOGGER.info("Restored the checkpoint in {}s", (System.nanoTime() - restoreStart) / NANOS_PER_SECOND);
+            return restoredApplications;
+        } catch (IOException e) {
+            LOGGER.error("Cannot restore the checkpoint {}: {}", checkpoint.getPath(), e.getMessage());
+            return Collections.emptySet();
+        }
+    }
 
+    private void writeCheckpoint()
+    {
+        try {
+            checkpoint.write(applicationRecommendations);
+        } catch (IOException e) {
+            LOGGER.error("Cannot write the checkpoint {}: {}", checkpoint.getPath(), e.getMessage());
         }
+        lastCheckpoint = System.nanoTime();
     }
 
-    private JsonArray getAsJsonArray(URL url, String values) throws IndexOutOfBoundsException
+    /**
+     * Write the recommendations and the logged samples to the disk before exiting.
+     * Called from a shutdown hook, while the collector may still be running.
+     */
+    public void shutdown()
     {
-        String response = HttpUtil.getDataFromURL(url);
-
-        return new JsonParser()
-                .parse(response)
-                .getAsJsonObject()
-                .get("data")
-                .getAsJsonObject()
-                .get("result")
-                .getAsJsonArray()
-                .get(0)
-                .getAsJsonObject()
-                .get(values)
-                .getAsJsonArray();
+        if (sampleLog != null)
+            sampleLog.force();
+
+        if (checkpoint != null) {
+            writeCheckpoint();
+            LOGGER.info("Wrote the checkpoint {}", checkpoint.getPath());
+        }
     }
 
     private void getPreviousKruizeRecs(String application, Query query)
@@ -337,14 +625,14 @@ public class CollectMetrics implements Runnable
             throws IndexOutOfBoundsException, MalformedURLException
     {
         LOGGER.debug("Recommendation URL: {}", recommendationURL);
-        JsonArray kruizeArray = getAsJsonArray(new URL(recommendationURL), "values");
-
-        //get last old value
-        return kruizeArray
-                .get(kruizeArray.size() - 1)
-                .getAsJsonArray()
-                .get(1)
-                .getAsDouble();
+
+        try {
+            //get last old value
+            return PrometheusResponseDecoder.getLastValue(
+                    HttpUtil.getStreamFromURLAsync(new URL(recommendationURL)).join());
+        } catch (IOException | CompletionException e) {
+            throw new IndexOutOfBoundsException("No recommendations for " + applicationName);
+        }
     }
 
     private class CurrentMetrics
@@ -353,15 +641,22 @@ public class CollectMetrics implements Runnable
         private MetricsImpl metrics;
         private String rssQuery;
         private String cpuQuery;
+        private BatchedMetrics batchedMetrics;
         private double rss;
         private double cpu;
+        private boolean collected = false;
+        private boolean idle = false;
 
-        CurrentMetrics(String monitoringAgentEndPoint, MetricsImpl metrics, String rssQuery, String cpuQuery)
+        private static final double MIN_CPU = 0.02;
+
+        CurrentMetrics(String monitoringAgentEndPoint, MetricsImpl metrics, String rssQuery, String cpuQuery,
+                       BatchedMetrics batchedMetrics)
         {
             this.monitoringAgentEndPoint = monitoringAgentEndPoint;
             this.metrics = metrics;
             this.rssQuery = rssQuery;
             this.cpuQuery = cpuQuery;
+            this.batchedMetrics = batchedMetrics;
         }
 
         double getRss()
@@ -374,14 +669,39 @@ public class CollectMetrics implements Runnable
             return cpu;
         }
 
+        /**
+         * @return true if a sample of the instance was added
+         */
+        boolean isCollected()
+        {
+            return collected;
+        }
+
+        boolean isIdle()
+        {
+            return idle;
+        }
+
         CurrentMetrics invoke() throws MalformedURLException
         {
-            double MIN_CPU = 0.02;
+            if (pushedMetrics != null)
+                return takePushedSamples();
+
             try {
-                cpu = getValueForQuery(new URL(monitoringAgentEndPoint + cpuQuery));
+                if (batchedMetrics != null) {
+                    cpu = batchedMetrics.getCpu(metrics);
+                    rss = batchedMetrics.getRss(metrics);
+                } else {
+                    /* Send both queries before waiting on either of them */
+                    CompletableFuture<InputStream> cpuResponse =
+                            HttpUtil.getStreamFromURLAsync(new URL(monitoringAgentEndPoint + cpuQuery));
+                    CompletableFuture<InputStream> rssResponse =
+                            HttpUtil.getStreamFromURLAsync(new URL(monitoringAgentEndPoint + rssQuery));
+
+                    cpu = getValue(cpuResponse);
+                    rss = getValue(rssResponse);
+                }
                 LOGGER.debug("CPU: " + cpu);
-
-                rss = getValueForQuery(new URL(monitoringAgentEndPoint + rssQuery));
                 LOGGER.debug("RSS: " + rss);
 
                 //TODO Get network data from monitoring agent
@@ -391,20 +711,56 @@ public class CollectMetrics implements Runnable
                     throw new ApplicationIdleStateException();
                 }
 
-                metrics.metricCollector.add(new MetricCollector(rss, cpu, network));
+                addSample(System.currentTimeMillis(), network);
                 return this;
 
-            } catch (IndexOutOfBoundsException | ApplicationIdleStateException e) {
+            } catch (ApplicationIdleStateException e) {
+                idle = true;
+                return this;
+            } catch (IndexOutOfBoundsException e) {
+                return this;
+            } catch (UncheckedIOException | CompletionException e) {
+                /* No response while requests are paused by the circuit breaker, or after the retries
+                 * failed. The instance has no sample for this cycle, and is queried again next cycle. */
+                LOGGER.debug("No sample of {} for this cycle: {}", metrics.getName(), e.getCause().toString());
                 return this;
             }
 
         }
 
-        private double getValueForQuery(URL url) throws IndexOutOfBoundsException
+        /**
+         * Add the samples pushed for the instance since the last cycle, instead of querying it.
+         * The instance is idle if its latest pushed sample is.
+         */
+        private CurrentMetrics takePushedSamples()
+        {
+            pushedMetrics.takeSamples(metrics, (timestamp, sampleCpu, sampleRss) -> {
+                cpu = sampleCpu;
+                rss = sampleRss;
+                idle = cpu < MIN_CPU;
+
+                if (!idle)
+                    addSample(timestamp, 0);
+            });
+
+            return this;
+        }
+
+        private void addSample(long timestamp, double network)
+        {
+            metrics.addSample(timestamp, rss, cpu, network);
+            if (sampleLog != null)
+                sampleLog.append(metrics, timestamp, rss, cpu, network);
+            collected = true;
+        }
+
+        private double getValue(CompletableFuture<InputStream> response) throws IndexOutOfBoundsException
         {
-            return getAsJsonArray(url, "value")
-                    .get(1)
-                    .getAsDouble();
+            try {
+                return PrometheusResponseDecoder.getFirstValue(response.join());
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
         }
     }
 }
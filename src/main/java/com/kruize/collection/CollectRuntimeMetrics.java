@@ -23,6 +23,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.ArrayList;
+import java.util.Map;
 
 class CollectRuntimeMetrics
 {
@@ -33,13 +34,16 @@ class CollectRuntimeMetrics
      *
      * @param metrics instance of the application
      * @param monitoringAgentEndpoint monitoring agent endpoint
+     * @param javaMemory memory of the instance fetched for all instances or pushed, keyed by the id label,
+     *                   null to query the instance
      */
-    static void collectRuntimeMetrics(MetricsImpl metrics, String monitoringAgentEndpoint)
+    static void collectRuntimeMetrics(MetricsImpl metrics, String monitoringAgentEndpoint,
+                                      Map<String, Double> javaMemory)
     {
         if (metrics.getRuntime().equals("java"))
         {
             LOGGER.info("Collecting java metrics for {}", metrics.getLabelName());
-            collectJavaMetrics(metrics, monitoringAgentEndpoint);
+            collectJavaMetrics(metrics, monitoringAgentEndpoint, javaMemory);
         }
         else if (metrics.getRuntime().equals("nodejs"))
         {
@@ -52,8 +56,11 @@ class CollectRuntimeMetrics
      *
      * @param metrics instance of the application
      * @param monitoringAgentEndpoint monitoring agent endpoint
+     * @param javaMemory memory of the instance fetched for all instances or pushed, keyed by the id label,
+     *                   null to query the instance
      */
-    private static void collectJavaMetrics(MetricsImpl metrics, String monitoringAgentEndpoint)
+    private static void collectJavaMetrics(MetricsImpl metrics, String monitoringAgentEndpoint,
+                                           Map<String, Double> javaMemory)
     {
         String labelName = metrics.getLabelName();
 
@@ -68,14 +75,16 @@ class CollectRuntimeMetrics
                 OpenJ9MetricCollector openJ9MetricCollector = new OpenJ9MetricCollector(
                         JavaApplicationMetricsImpl.javaApplicationInfoMap.get(labelName).getGcPolicy());
 
-                openJ9MetricCollector.collectOpenJ9Metrics(metrics, monitoringAgentEndpoint, "used");
+                openJ9MetricCollector.collectOpenJ9Metrics(metrics, monitoringAgentEndpoint, "used", javaMemory);
 
-                if (!JavaApplicationMetricsImpl.javaApplicationMetricsMap.containsKey(labelName))
-                {
-                    JavaApplicationMetricsImpl.javaApplicationMetricsMap.put(labelName, new ArrayList<>());
-                }
+                /* Atomic with the analysis taking the list out of the map */
+                JavaApplicationMetricsImpl.javaApplicationMetricsMap.compute(labelName, (name, collected) -> {
+                    if (collected == null)
+                        collected = new ArrayList<>();
 
-                JavaApplicationMetricsImpl.javaApplicationMetricsMap.get(labelName).add(openJ9MetricCollector);
+                    collected.add(openJ9MetricCollector);
+                    return collected;
+                });
             }
         }
     }
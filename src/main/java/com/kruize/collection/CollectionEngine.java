@@ -0,0 +1,180 @@
+/*******************************************************************************
+ * Copyright (c) 2020, 2020 IBM Corporation and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+
+package com.kruize.collection;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the per-instance collection tasks of a cycle on a pool of workers.
+ *
+ * On a Java 21+ runtime every task gets its own virtual thread, with a semaphore
+ * bounding how many of them talk to the monitoring agent at once. On older runtimes
+ * a fixed pool of daemon threads of the same size is used instead.
+ */
+public class CollectionEngine
+{
+    private static final Logger LOGGER = LoggerFactory.getLogger(CollectionEngine.class);
+
+    private final ExecutorService executor;
+    private final Semaphore permits;
+    private final int workers;
+
+    private CollectionEngine(ExecutorService executor, Semaphore permits, int workers)
+    {
+        this.executor = executor;
+        this.permits = permits;
+        this.workers = workers;
+    }
+
+    /**
+     * @param workers maximum number of tasks running concurrently
+     * @return engine backed by virtual threads if the runtime supports them
+     */
+    public static CollectionEngine create(int workers)
+    {
+        ExecutorService virtualThreadExecutor = getVirtualThreadExecutor();
+
+        if (virtualThreadExecutor != null) {
+            LOGGER.info("Collection engine using virtual threads, {} concurrent tasks", workers);
+            return new CollectionEngine(virtualThreadExecutor, new Semaphore(workers), workers);
+        }
+
+        LOGGER.info("Collection engine using {} worker threads", workers);
+        return new CollectionEngine(Executors.newFixedThreadPool(workers, new WorkerThreadFactory()),
+                null, workers);
+    }
+
+    public int getWorkers()
+    {
+        return workers;
+    }
+
+    /**
+     * Run all tasks of a collection cycle, waiting at most until the deadline.
+     * Tasks still pending or running once the deadline passes are cancelled. A running task
+     * blocked on a request is interrupted, but only stops once the request times out, so the
+     * caller must not start the task of the same instance again while it is still running.
+     *
+     * @param tasks collection tasks of the cycle
+     * @param deadline time allowed for the whole cycle
+     * @param unit unit of the deadline
+     * @return number of tasks that did not complete before the deadline
+     */
+    public int runCycle(List<Runnable> tasks, long deadline, TimeUnit unit)
+    {
+        List<Future<?>> futures = new ArrayList<>(tasks.size());
+
+        for (Runnable task : tasks) {
+            futures.add(executor.submit(wrap(task)));
+        }
+
+        long deadlineNanos = System.nanoTime() + unit.toNanos(deadline);
+        int timedOut = 0;
+
+        for (Future<?> future : futures) {
+            long remaining = deadlineNanos - System.nanoTime();
+            try {
+                future.get(Math.max(remaining, 0), TimeUnit.NANOSECONDS);
+            } catch (TimeoutException e) {
+                future.cancel(true);
+                timedOut++;
+            } catch (ExecutionException e) {
+                LOGGER.error("Collection task failed", e.getCause());
+            } catch (CancellationException ignored) {
+            } catch (InterruptedException e) {
+                futures.forEach(pending -> pending.cancel(true));
+                Thread.currentThread().interrupt();
+                return futures.size();
+            }
+        }
+
+        if (timedOut > 0) {
+            LOGGER.warn("{} of {} collection tasks did not finish within the cycle deadline",
+                    timedOut, tasks.size());
+        }
+
+        return timedOut;
+    }
+
+    public void shutdown()
+    {
+        executor.shutdownNow();
+    }
+
+    private Runnable wrap(Runnable task)
+    {
+        if (permits == null)
+            return task;
+
+        return () -> {
+            try {
+                permits.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+
+            try {
+                task.run();
+            } finally {
+                permits.release();
+            }
+        };
+    }
+
+    /**
+     * Executors.newVirtualThreadPerTaskExecutor() is only available from Java 21,
+     * while Kruize is built for Java 11, hence the lookup through reflection.
+     */
+    private static ExecutorService getVirtualThreadExecutor()
+    {
+        try {
+            return (ExecutorService) Executors.class
+                    .getMethod("newVirtualThreadPerTaskExecutor")
+                    .invoke(null);
+        } catch (ReflectiveOperationException | ClassCastException e) {
+            return null;
+        }
+    }
+
+    private static class WorkerThreadFactory implements ThreadFactory
+    {
+        private final AtomicInteger threadCount = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable runnable)
+        {
+            Thread thread = new Thread(runnable, "kruize-collector-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,231 @@
+/*******************************************************************************
+ * Copyright (c) 2020, 2020 IBM Corporation and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+
+package com.kruize.collection;
+
+import com.kruize.metrics.Metrics;
+import com.kruize.metrics.MetricsImpl;
+import com.kruize.query.Query;
+import com.kruize.query.prometheus.PrometheusQuery;
+import com.kruize.query.runtimes.java.JavaQuery;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Samples pushed by the monitoring agent through remote write, or scraped from the kubelets,
+ * kept until the collector takes them.
+ *
+ * The CPU counters of the containers of an instance are turned into rates, and summed up with
+ * its RSS by the timestamp of the scrape they come from. The series of a scrape can be pushed in
+ * different requests, so the samples of a scrape are only complete, and handed to the collector,
+ * once a sample of a later scrape of the instance has been pushed.
+ *
+ * Samples are added by the threads of the server or the scrape tasks, and taken by the
+ * collection engine, so the samples of an instance are guarded by their own lock.
+ */
+public class PushedMetrics
+{
+    /* Samples of an instance kept until taken, the oldest being dropped past it */
+    private static final int MAX_PENDING_SAMPLES = 256;
+
+    /* Time after which series and instances that are no longer pushed are forgotten */
+    private static final long EXPIRY_MILLIS = 10 * 60 * 1000;
+
+    private static final String JAVA_MEMORY_METRIC = "jvm_memory_used_bytes";
+
+    private static PushedMetrics pushedMetrics = null;
+
+    private final Query query;
+
+    /* Last sample of every CPU counter, by the labels of its series: timestamp and value */
+    private final ConcurrentHashMap<Map<String, String>, double[]> cpuCounters = new ConcurrentHashMap<>();
+
+    private final ConcurrentHashMap<String, InstanceSamples> instanceSamples = new ConcurrentHashMap<>();
+
+    /* Last used memory of the java instances by their pod label, then by the id label of the part of memory */
+    private final ConcurrentHashMap<String, JavaMemory> javaMemory = new ConcurrentHashMap<>();
+
+    interface SampleHandler
+    {
+        void onSample(long timestamp, double cpu, double rss);
+    }
+
+    private static class InstanceSamples
+    {
+        /* CPU, RSS, and whether each was pushed, by timestamp of the scrape */
+        final TreeMap<Long, double[]> samples = new TreeMap<>();
+        long lastPushed;
+    }
+
+    private static class JavaMemory
+    {
+        final Map<String, Double> memoryById = new ConcurrentHashMap<>();
+        volatile long lastPushed;
+    }
+
+    private static final int CPU = 0;
+    private static final int RSS = 1;
+    private static final int HAS_CPU = 2;
+    private static final int HAS_RSS = 3;
+
+    private PushedMetrics(Query query)
+    {
+        this.query = query;
+    }
+
+    public static synchronized PushedMetrics getInstance()
+    {
+        if (pushedMetrics == null)
+            pushedMetrics = new PushedMetrics(PrometheusQuery.getInstance());
+
+        return pushedMetrics;
+    }
+
+    /**
+     * Add a pushed sample, ignoring the series that are not used for the recommendations.
+     *
+     * @param labels labels of the series, with its metric name as the __name__ label
+     * @param timestamp timestamp of the sample in milliseconds
+     * @param value value of the sample
+     */
+    public void add(Map<String, String> labels, long timestamp, double value)
+    {
+        if (Double.isNaN(value))
+            return;
+
+        if (query.isCpuSeries(labels)) {
+            addCpuCounter(labels, timestamp, value);
+        } else if (query.isRssSeries(labels)) {
+            addInstanceSample(query.getInstanceKey(labels), timestamp, RSS, value);
+        } else if (JAVA_MEMORY_METRIC.equals(labels.get("__name__"))) {
+            String instance = labels.get(JavaQuery.getPodLabel());
+            String id = labels.get("id");
+
+            if (instance != null && id != null) {
+                JavaMemory memory = javaMemory.computeIfAbsent(instance, name -> new JavaMemory());
+                memory.memoryById.put(id, value);
+                memory.lastPushed = timestamp;
+            }
+        }
+    }
+
+    /**
+     * Take the complete samples of an instance pushed since they were last taken, oldest first.
+     *
+     * @return number of samples handed over
+     */
+    int takeSamples(Metrics instance, SampleHandler handler)
+    {
+        InstanceSamples pending = instanceSamples.get(query.getInstanceKey(instance));
+        if (pending == null)
+            return 0;
+
+        Map<Long, double[]> completeSamples = new TreeMap<>();
+        synchronized (pending) {
+            if (pending.samples.isEmpty())
+                return 0;
+
+            long lastTimestamp = pending.samples.lastKey();
+            Iterator<Map.Entry<Long, double[]>> iterator = pending.samples.entrySet().iterator();
+
+            while (iterator.hasNext()) {
+                Map.Entry<Long, double[]> sample = iterator.next();
+                if (sample.getKey() == lastTimestamp)
+                    break;
+
+                completeSamples.put(sample.getKey(), sample.getValue());
+                iterator.remove();
+            }
+        }
+
+        int taken = 0;
+        for (Map.Entry<Long, double[]> sample : completeSamples.entrySet()) {
+            double[] values = sample.getValue();
+
+            /* The first sample of a counter gives no rate */
+            if (values[HAS_CPU] == 0 || values[HAS_RSS] == 0)
+                continue;
+
+            handler.onSample(sample.getKey(), values[CPU], values[RSS]);
+            taken++;
+        }
+
+        return taken;
+    }
+
+    /**
+     * @return last pushed memory of the java instance keyed by the id label of each part, or null if none was pushed
+     */
+    Map<String, Double> getJavaMemory(MetricsImpl instance)
+    {
+        JavaMemory memory = javaMemory.get(instance.getLabelName());
+        return memory == null ? null : new HashMap<>(memory.memoryById);
+    }
+
+    /**
+     * Forget the series and instances that were not pushed for a while, such as terminated pods.
+     *
+     * @param now current time in milliseconds
+     */
+    void expire(long now)
+    {
+        long oldest = now - EXPIRY_MILLIS;
+
+        cpuCounters.values().removeIf(counter -> counter[0] < oldest);
+        javaMemory.values().removeIf(memory -> memory.lastPushed < oldest);
+        instanceSamples.values().removeIf(pending -> {
+            synchronized (pending) {
+                return pending.lastPushed < oldest;
+            }
+        });
+    }
+
+    private void addCpuCounter(Map<String, String> labels, long timestamp, double value)
+    {
+        double[] previous = cpuCounters.put(labels, new double[] { timestamp, value });
+
+        /* Samples pushed out of order, and counter resets, give no rate */
+        if (previous == null || timestamp <= previous[0] || value < previous[1])
+            return;
+
+        double rate = (value - previous[1]) / ((timestamp - previous[0]) / 1000.0);
+        addInstanceSample(query.getInstanceKey(labels), timestamp, CPU, rate);
+    }
+
+    private void addInstanceSample(String instance, long timestamp, int index, double value)
+    {
+        InstanceSamples pending = instanceSamples.computeIfAbsent(instance, name -> new InstanceSamples());
+
+        synchronized (pending) {
+            double[] values = pending.samples.computeIfAbsent(timestamp, time -> new double[4]);
+
+            /* CPU is summed up over the containers, RSS is the one of the pod */
+            if (index == CPU)
+                values[CPU] += value;
+            else
+                values[RSS] = value;
+            values[index + 2] = 1;
+
+            if (pending.samples.size() > MAX_PENDING_SAMPLES)
+                pending.samples.pollFirstEntry();
+            pending.lastPushed = Math.max(pending.lastPushed, timestamp);
+        }
+    }
+}
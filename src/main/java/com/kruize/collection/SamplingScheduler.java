@@ -0,0 +1,220 @@
+/*******************************************************************************
+ * Copyright (c) 2020, 2020 IBM Corporation and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+
+package com.kruize.collection;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decides when each application is sampled next.
+ *
+ * Applications start at the initial interval. An application whose total CPU or RSS moved
+ * by more than {@link #VOLATILE_CHANGE} since it was last sampled goes back to the minimum
+ * interval, while one that is idle or moved by less than {@link #STABLE_CHANGE} has its
+ * interval doubled, up to the maximum interval.
+ */
+class SamplingScheduler
+{
+    private static final Logger LOGGER = LoggerFactory.getLogger(SamplingScheduler.class);
+
+    private static final double VOLATILE_CHANGE = 0.2;
+    private static final double STABLE_CHANGE = 0.05;
+
+    private final long minIntervalNanos;
+    private final long maxIntervalNanos;
+    private final long initialIntervalNanos;
+
+    private final Map<String, ApplicationSchedule> schedules = new ConcurrentHashMap<>();
+
+    /**
+     * @param minInterval shortest interval between two samples of an application, in seconds
+     * @param maxInterval longest interval between two samples of an application, in seconds
+     * @param initialInterval interval of applications not sampled yet, in seconds
+     */
+    SamplingScheduler(long minInterval, long maxInterval, long initialInterval)
+    {
+        if (maxInterval < minInterval) {
+            LOGGER.warn("Maximum collection interval {}s is below the minimum of {}s, using the minimum",
+                    maxInterval, minInterval);
+            maxInterval = minInterval;
+        }
+
+        this.minIntervalNanos = TimeUnit.SECONDS.toNanos(minInterval);
+        this.maxIntervalNanos = TimeUnit.SECONDS.toNanos(maxInterval);
+        this.initialIntervalNanos = clamp(TimeUnit.SECONDS.toNanos(initialInterval));
+    }
+
+    /**
+     * Applications not seen before are due immediately. Applications no longer
+     * in the list are forgotten.
+     *
+     * @param applications all known applications
+     * @param now current value of {@link System#nanoTime()}
+     * @return applications to be sampled now
+     */
+    List<String> getDueApplications(Collection<String> applications, long now)
+    {
+        schedules.keySet().retainAll(applications);
+
+        List<String> due = new ArrayList<>();
+        for (String application : applications) {
+            ApplicationSchedule schedule = schedules.computeIfAbsent(application,
+                    name -> new ApplicationSchedule(now, initialIntervalNanos));
+
+            if (now - schedule.nextDue >= 0)
+                due.add(application);
+        }
+
+        return due;
+    }
+
+    /**
+     * Record a sample of an instance of the application. Safe to call from collection tasks.
+     */
+    void recordSample(String application, double cpu, double rss)
+    {
+        ApplicationSchedule schedule = schedules.get(application);
+        if (schedule != null)
+            schedule.recordSample(cpu, rss);
+    }
+
+    /**
+     * Record that an instance of the application was found idle.
+     */
+    void recordIdle(String application)
+    {
+        ApplicationSchedule schedule = schedules.get(application);
+        if (schedule != null)
+            schedule.recordIdle();
+    }
+
+    /**
+     * Compute the next interval of the applications sampled in the cycle from what was recorded.
+     *
+     * @param sampledApplications applications sampled in the cycle
+     * @param cycleStart value of {@link System#nanoTime()} when the cycle started
+     */
+    void reschedule(Collection<String> sampledApplications, long cycleStart)
+    {
+        for (String application : sampledApplications) {
+            ApplicationSchedule schedule = schedules.get(application);
+            if (schedule == null)
+                continue;
+
+            long interval = schedule.reschedule(cycleStart);
+            LOGGER.debug("Next sample of {} in {}s", application, TimeUnit.NANOSECONDS.toSeconds(interval));
+        }
+    }
+
+    /**
+     * @param now current value of {@link System#nanoTime()}
+     * @return time until the next application is due, in nanoseconds
+     */
+    long getNanosUntilNextDue(long now)
+    {
+        long untilNextDue = maxIntervalNanos;
+
+        for (ApplicationSchedule schedule : schedules.values()) {
+            untilNextDue = Math.min(untilNextDue, schedule.nextDue - now);
+        }
+
+        return Math.max(untilNextDue, 0);
+    }
+
+    private long clamp(long intervalNanos)
+    {
+        return Math.max(minIntervalNanos, Math.min(intervalNanos, maxIntervalNanos));
+    }
+
+    private class ApplicationSchedule
+    {
+        private volatile long nextDue;
+        private long interval;
+
+        /* Totals of the instances sampled in the current and the previous cycle */
+        private double cpu = 0;
+        private double rss = 0;
+        private double previousCpu = -1;
+        private double previousRss = -1;
+        private boolean sampled = false;
+        private boolean idle = false;
+
+        ApplicationSchedule(long nextDue, long interval)
+        {
+            this.nextDue = nextDue;
+            this.interval = interval;
+        }
+
+        synchronized void recordSample(double cpu, double rss)
+        {
+            this.cpu += cpu;
+            this.rss += rss;
+            sampled = true;
+        }
+
+        synchronized void recordIdle()
+        {
+            idle = true;
+        }
+
+        synchronized long reschedule(long cycleStart)
+        {
+            if (sampled) {
+                double change = Math.max(getChange(previousCpu, cpu), getChange(previousRss, rss));
+
+                if (change > VOLATILE_CHANGE)
+                    interval = minIntervalNanos;
+                else if (change < STABLE_CHANGE)
+                    interval = clamp(interval * 2);
+
+                previousCpu = cpu;
+                previousRss = rss;
+            } else if (idle) {
+                interval = clamp(interval * 2);
+            }
+
+            cpu = 0;
+            rss = 0;
+            sampled = false;
+            idle = false;
+
+            nextDue = cycleStart + interval;
+            return interval;
+        }
+
+        /**
+         * @return relative change from the previous value, infinite for the first sample
+         */
+        private double getChange(double previous, double current)
+        {
+            if (previous < 0)
+                return Double.POSITIVE_INFINITY;
+
+            if (previous == 0)
+                return current == 0 ? 0 : Double.POSITIVE_INFINITY;
+
+            return Math.abs(current - previous) / previous;
+        }
+    }
+}
@@ -16,6 +16,7 @@
 
 package com.kruize.environment;
 
+import com.kruize.exceptions.InvalidValueException;
 import com.kruize.exceptions.MonitoringAgentNotSupportedException;
 import com.kruize.exceptions.env.ClusterTypeNotSupportedException;
 import com.kruize.exceptions.env.K8sTypeNotSupportedException;
@@ -25,6 +26,10 @@ import org.slf4j.LoggerFactory;
 
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 public class DeploymentInfo
 {
@@ -37,6 +42,47 @@ public class DeploymentInfo
     private static String monitoringAgentEndpoint = "";
     private static boolean monitoringAgentRunning = false;
 
+    /* Collection engine settings. Intervals and deadline are in seconds */
+    private static int collectionWorkers = 16;
+    private static int collectionInterval = 10;
+    private static int collectionMinInterval = 5;
+    private static int collectionMaxInterval = 160;
+    private static int collectionCycleDeadline = 60;
+
+    /* BATCHED queries all instances at once, INSTANCE queries each instance separately */
+    private static String queryMode = "BATCHED";
+
+    /* LIST lists all pods every cycle, WATCH lists them once and then watches for changes */
+    private static String discoveryMode = "LIST";
+    /* Namespaces of the pods to monitor, all namespaces if empty */
+    private static List<String> namespaces = Collections.emptyList();
+
+    /* HTTP settings for the monitoring agent. Timeouts and cooldown are in seconds */
+    private static String httpVersion = "HTTP_1_1";
+    private static int httpConnectTimeout = 10;
+    private static int httpRequestTimeout = 30;
+    private static int httpRetries = 2;
+    private static int circuitBreakerCooldown = 30;
+
+    /* Samples kept for every instance, at most this many and this old (in seconds) */
+    private static int sampleRetentionCount = 20000;
+    private static long sampleRetentionAge = TimeUnit.DAYS.toSeconds(7);
+    private static double percentileAccuracy = 0.01;
+
+    /* History loaded for every instance at startup, and the resolution it is loaded at, in seconds */
+    private static long backfillLookback = TimeUnit.HOURS.toSeconds(5);
+    private static int backfillStep = 60;
+
+    /* RANGE_QUERY loads the history with range queries, REMOTE_READ reads the raw samples */
+    private static String backfillMode = "RANGE_QUERY";
+
+    /* Directory of the log of samples kept across restarts, not kept if empty */
+    private static String sampleLogDirectory = "";
+
+    /* File the recommendations are checkpointed to, not checkpointed if empty, and the time between checkpoints */
+    private static String checkpointPath = "";
+    private static int checkpointInterval = 300;
+
     private static final Logger LOGGER = LoggerFactory.getLogger(DeploymentInfo.class);
 
 
@@ -163,6 +209,385 @@ public class DeploymentInfo
             DeploymentInfo.monitoringAgentRunning = true;
     }
 
+    public static int getCollectionWorkers()
+    {
+        return collectionWorkers;
+    }
+
+    public static void setCollectionWorkers(String collectionWorkers) throws InvalidValueException
+    {
+        if (collectionWorkers != null)
+            DeploymentInfo.collectionWorkers = parsePositiveInt("COLLECTION_WORKERS", collectionWorkers);
+    }
+
+    public static int getCollectionInterval()
+    {
+        return collectionInterval;
+    }
+
+    public static void setCollectionInterval(String collectionInterval) throws InvalidValueException
+    {
+        if (collectionInterval != null)
+            DeploymentInfo.collectionInterval = parsePositiveInt("COLLECTION_INTERVAL", collectionInterval);
+    }
+
+    public static int getCollectionMinInterval()
+    {
+        return collectionMinInterval;
+    }
+
+    public static void setCollectionMinInterval(String collectionMinInterval) throws InvalidValueException
+    {
+        if (collectionMinInterval != null)
+            DeploymentInfo.collectionMinInterval =
+                    parsePositiveInt("COLLECTION_MIN_INTERVAL", collectionMinInterval);
+    }
+
+    public static int getCollectionMaxInterval()
+    {
+        return collectionMaxInterval;
+    }
+
+    public static void setCollectionMaxInterval(String collectionMaxInterval) throws InvalidValueException
+    {
+        if (collectionMaxInterval != null)
+            DeploymentInfo.collectionMaxInterval =
+                    parsePositiveInt("COLLECTION_MAX_INTERVAL", collectionMaxInterval);
+    }
+
+    public static int getCollectionCycleDeadline()
+    {
+        return collectionCycleDeadline;
+    }
+
+    public static void setCollectionCycleDeadline(String collectionCycleDeadline) throws InvalidValueException
+    {
+        if (collectionCycleDeadline != null)
+            DeploymentInfo.collectionCycleDeadline =
+                    parsePositiveInt("COLLECTION_CYCLE_DEADLINE", collectionCycleDeadline);
+    }
+
+    public static String getQueryMode()
+    {
+        return queryMode;
+    }
+
+    public static void setQueryMode(String queryMode) throws InvalidValueException
+    {
+        if (queryMode == null)
+            return;
+
+        queryMode = queryMode.toUpperCase();
+
+        if (queryMode.equals("KUBELET") && getClusterType().toUpperCase().equals("DOCKER")) {
+            LOGGER.error("Query mode {} is only supported on Kubernetes", queryMode);
+            throw new InvalidValueException("Query mode " + queryMode + " is only supported on Kubernetes");
+        }
+
+        if (SupportedTypes.QUERY_MODES_SUPPORTED.contains(queryMode)) {
+            DeploymentInfo.queryMode = queryMode;
+        } else {
+            LOGGER.error("Query mode {} is not supported", queryMode);
+            throw new InvalidValueException("Query mode " + queryMode + " is not supported");
+        }
+    }
+
+    public static String getDiscoveryMode()
+    {
+        return discoveryMode;
+    }
+
+    public static void setDiscoveryMode(String discoveryMode) throws InvalidValueException
+    {
+        if (discoveryMode == null)
+            return;
+
+        discoveryMode = discoveryMode.toUpperCase();
+
+        if (SupportedTypes.DISCOVERY_MODES_SUPPORTED.contains(discoveryMode)) {
+            DeploymentInfo.discoveryMode = discoveryMode;
+        } else {
+            LOGGER.error("Discovery mode {} is not supported", discoveryMode);
+            throw new InvalidValueException("Discovery mode " + discoveryMode + " is not supported");
+        }
+    }
+
+    public static List<String> getNamespaces()
+    {
+        return namespaces;
+    }
+
+    /**
+     * @param namespaces comma separated namespaces, empty for all namespaces
+     */
+    public static void setNamespaces(String namespaces)
+    {
+        if (namespaces == null)
+            return;
+
+        List<String> namespaceList = new ArrayList<>();
+        for (String namespace : namespaces.split(",")) {
+            namespace = namespace.trim();
+            if (!namespace.isEmpty() && !namespaceList.contains(namespace))
+                namespaceList.add(namespace);
+        }
+
+        DeploymentInfo.namespaces = Collections.unmodifiableList(namespaceList);
+    }
+
+    public static String getHttpVersion()
+    {
+        return httpVersion;
+    }
+
+    public static void setHttpVersion(String httpVersion) throws InvalidValueException
+    {
+        if (httpVersion == null)
+            return;
+
+        httpVersion = httpVersion.toUpperCase();
+
+        if (SupportedTypes.HTTP_VERSIONS_SUPPORTED.contains(httpVersion)) {
+            DeploymentInfo.httpVersion = httpVersion;
+        } else {
+            LOGGER.error("HTTP version {} is not supported", httpVersion);
+            throw new InvalidValueException("HTTP version " + httpVersion + " is not supported");
+        }
+    }
+
+    public static int getHttpRequestTimeout()
+    {
+        return httpRequestTimeout;
+    }
+
+    public static void setHttpRequestTimeout(String httpRequestTimeout) throws InvalidValueException
+    {
+        if (httpRequestTimeout != null)
+            DeploymentInfo.httpRequestTimeout = parsePositiveInt("HTTP_REQUEST_TIMEOUT", httpRequestTimeout);
+    }
+
+    public static int getHttpConnectTimeout()
+    {
+        return httpConnectTimeout;
+    }
+
+    public static void setHttpConnectTimeout(String httpConnectTimeout) throws InvalidValueException
+    {
+        if (httpConnectTimeout != null)
+            DeploymentInfo.httpConnectTimeout = parsePositiveInt("HTTP_CONNECT_TIMEOUT", httpConnectTimeout);
+    }
+
+    public static int getHttpRetries()
+    {
+        return httpRetries;
+    }
+
+    public static void setHttpRetries(String httpRetries) throws InvalidValueException
+    {
+        if (httpRetries == null)
+            return;
+
+        try {
+            int retries = Integer.parseInt(httpRetries.trim());
+            if (retries >= 0) {
+                DeploymentInfo.httpRetries = retries;
+                return;
+            }
+        } catch (NumberFormatException ignored) { }
+
+        LOGGER.error("HTTP_RETRIES must be zero or a positive integer, got {}", httpRetries);
+        throw new InvalidValueException("HTTP_RETRIES must be zero or a positive integer");
+    }
+
+    public static int getCircuitBreakerCooldown()
+    {
+        return circuitBreakerCooldown;
+    }
+
+    public static void setCircuitBreakerCooldown(String circuitBreakerCooldown) throws InvalidValueException
+    {
+        if (circuitBreakerCooldown != null)
+            DeploymentInfo.circuitBreakerCooldown =
+                    parsePositiveInt("CIRCUIT_BREAKER_COOLDOWN", circuitBreakerCooldown);
+    }
+
+    public static int getSampleRetentionCount()
+    {
+        return sampleRetentionCount;
+    }
+
+    public static void setSampleRetentionCount(String sampleRetentionCount) throws InvalidValueException
+    {
+        if (sampleRetentionCount != null)
+            DeploymentInfo.sampleRetentionCount = parsePositiveInt("SAMPLE_RETENTION_COUNT", sampleRetentionCount);
+    }
+
+    public static long getSampleRetentionAge()
+    {
+        return sampleRetentionAge;
+    }
+
+    /**
+     * @param sampleRetentionAge duration such as 90m, 5h, 2d or 1w
+     */
+    public static void setSampleRetentionAge(String sampleRetentionAge) throws InvalidValueException
+    {
+        if (sampleRetentionAge != null)
+            DeploymentInfo.sampleRetentionAge = parseDuration("SAMPLE_RETENTION_AGE", sampleRetentionAge);
+    }
+
+    public static double getPercentileAccuracy()
+    {
+        return percentileAccuracy;
+    }
+
+    /**
+     * @param percentileAccuracy relative error of the percentiles, such as 0.01 for 1%
+     */
+    public static void setPercentileAccuracy(String percentileAccuracy) throws InvalidValueException
+    {
+        if (percentileAccuracy == null)
+            return;
+
+        try {
+            double accuracy = Double.parseDouble(percentileAccuracy);
+            if (!(accuracy > 0 && accuracy < 1))
+                throw new InvalidValueException("PERCENTILE_ACCURACY must be between 0 and 1: " + percentileAccuracy);
+
+            DeploymentInfo.percentileAccuracy = accuracy;
+        } catch (NumberFormatException e) {
+            throw new InvalidValueException("PERCENTILE_ACCURACY must be a number: " + percentileAccuracy);
+        }
+    }
+
+    public static long getBackfillLookback()
+    {
+        return backfillLookback;
+    }
+
+    /**
+     * @param backfillLookback duration such as 90m, 5h, 2d or 1w
+     */
+    public static void setBackfillLookback(String backfillLookback) throws InvalidValueException
+    {
+        if (backfillLookback != null)
+            DeploymentInfo.backfillLookback = parseDuration("BACKFILL_LOOKBACK", backfillLookback);
+    }
+
+    public static int getBackfillStep()
+    {
+        return backfillStep;
+    }
+
+    public static void setBackfillStep(String backfillStep) throws InvalidValueException
+    {
+        if (backfillStep != null)
+            DeploymentInfo.backfillStep = parsePositiveInt("BACKFILL_STEP", backfillStep);
+    }
+
+    public static String getBackfillMode()
+    {
+        return backfillMode;
+    }
+
+    public static void setBackfillMode(String backfillMode) throws InvalidValueException
+    {
+        if (backfillMode == null)
+            return;
+
+        backfillMode = backfillMode.toUpperCase();
+
+        if (SupportedTypes.BACKFILL_MODES_SUPPORTED.contains(backfillMode)) {
+            DeploymentInfo.backfillMode = backfillMode;
+        } else {
+            LOGGER.error("Backfill mode {} is not supported", backfillMode);
+            throw new InvalidValueException("Backfill mode " + backfillMode + " is not supported");
+        }
+    }
+
+    public static String getSampleLogDirectory()
+    {
+        return sampleLogDirectory;
+    }
+
+    public static void setSampleLogDirectory(String sampleLogDirectory)
+    {
+        if (sampleLogDirectory != null)
+            DeploymentInfo.sampleLogDirectory = sampleLogDirectory.trim();
+    }
+
+    public static String getCheckpointPath()
+    {
+        return checkpointPath;
+    }
+
+    public static void setCheckpointPath(String checkpointPath)
+    {
+        if (checkpointPath != null)
+            DeploymentInfo.checkpointPath = checkpointPath.trim();
+    }
+
+    public static int getCheckpointInterval()
+    {
+        return checkpointInterval;
+    }
+
+    public static void setCheckpointInterval(String checkpointInterval) throws InvalidValueException
+    {
+        if (checkpointInterval != null)
+            DeploymentInfo.checkpointInterval = parsePositiveInt("CHECKPOINT_INTERVAL", checkpointInterval);
+    }
+
+    private static int parsePositiveInt(String name, String value) throws InvalidValueException
+    {
+        try {
+            int parsedValue = Integer.parseInt(value.trim());
+            if (parsedValue > 0)
+                return parsedValue;
+        } catch (NumberFormatException ignored) { }
+
+        LOGGER.error("{} must be a positive integer, got {}", name, value);
+        throw new InvalidValueException(name + " must be a positive integer");
+    }
+
+    /**
+     * @return duration in seconds
+     */
+    private static long parseDuration(String name, String value) throws InvalidValueException
+    {
+        String duration = value.trim().toLowerCase();
+
+        if (duration.length() > 1) {
+            TimeUnit unit = null;
+            long multiplier = 1;
+
+            switch (duration.charAt(duration.length() - 1)) {
+                case 'm':
+                    unit = TimeUnit.MINUTES;
+                    break;
+                case 'h':
+                    unit = TimeUnit.HOURS;
+                    break;
+                case 'd':
+                    unit = TimeUnit.DAYS;
+                    break;
+                case 'w':
+                    unit = TimeUnit.DAYS;
+                    multiplier = 7;
+                    break;
+            }
+
+            try {
+                long amount = Long.parseLong(duration.substring(0, duration.length() - 1));
+                if (unit != null && amount > 0)
+                    return unit.toSeconds(amount * multiplier);
+            } catch (NumberFormatException ignored) { }
+        }
+
+        LOGGER.error("{} must be a duration such as 30m, 5h, 2d or 1w, got {}", name, value);
+        throw new InvalidValueException(name + " must be a duration such as 30m, 5h, 2d or 1w");
+    }
+
     public static void logDeploymentInfo()
     {
         LOGGER.info("Cluster Type: {}", getClusterType());
@@ -171,6 +596,27 @@ public class DeploymentInfo
         LOGGER.info("Monitoring Agent: {}", getMonitoringAgent());
         LOGGER.info("Monitoring Agent URL: {}", getMonitoringAgentEndpoint());
         LOGGER.info("Is Monitoring Agent Running: {}", isMonitoringAgentRunning());
-        LOGGER.info("Monitoring agent service: {}\n\n", getMonitoringAgentService());
+        LOGGER.info("Monitoring agent service: {}", getMonitoringAgentService());
+        LOGGER.info("Collection workers: {}", getCollectionWorkers());
+        LOGGER.info("Collection interval: {}s", getCollectionInterval());
+        LOGGER.info("Collection interval bounds: {}s to {}s", getCollectionMinInterval(), getCollectionMaxInterval());
+        LOGGER.info("Collection cycle deadline: {}s", getCollectionCycleDeadline());
+        LOGGER.info("Query mode: {}", getQueryMode());
+        LOGGER.info("Discovery mode: {}", getDiscoveryMode());
+        LOGGER.info("Namespaces: {}", getNamespaces().isEmpty() ? "all" : String.join(", ", getNamespaces()));
+        LOGGER.info("HTTP version: {}", getHttpVersion());
+        LOGGER.info("HTTP connect timeout: {}s", getHttpConnectTimeout());
+        LOGGER.info("HTTP request timeout: {}s", getHttpRequestTimeout());
+        LOGGER.info("HTTP retries: {}", getHttpRetries());
+        LOGGER.info("Circuit breaker cooldown: {}s", getCircuitBreakerCooldown());
+        LOGGER.info("Sample retention: {} samples, {}s", getSampleRetentionCount(), getSampleRetentionAge());
+        LOGGER.info("Percentile accuracy: {}", getPercentileAccuracy());
+        LOGGER.info("Backfill lookback: {}s", getBackfillLookback());
+        LOGGER.info("Backfill step: {}s", getBackfillStep());
+        LOGGER.info("Backfill mode: {}", getBackfillMode());
+        LOGGER.info("Sample log directory: {}",
+                getSampleLogDirectory().isEmpty() ? "none" : getSampleLogDirectory());
+        LOGGER.info("Checkpoint: {}, every {}s\n\n",
+                getCheckpointPath().isEmpty() ? "none" : getCheckpointPath(), getCheckpointInterval());
     }
 }
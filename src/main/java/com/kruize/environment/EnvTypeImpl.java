@@ -23,6 +23,8 @@ import com.kruize.metrics.MetricsImpl;
 import com.kruize.query.Query;
 import com.kruize.recommendations.application.ApplicationRecommendationsImpl;
 
+import java.util.List;
+import java.util.Set;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -56,6 +58,23 @@ public abstract class EnvTypeImpl implements EnvType
         return envType;
     }
 
+    /**
+     * Set the runtimes found after the instances were added on the instances.
+     * Used when instances are not added again every cycle.
+     */
+    protected void updateRuntimes()
+    {
+        for (String runtime : applicationRecommendations.runtimesMap.keySet()) {
+            Set<String> runtimeApplications = applicationRecommendations.getRuntimeApplications(runtime);
+            for (List<MetricsImpl> instances : applicationRecommendations.applicationMap.values()) {
+                for (MetricsImpl instance : instances) {
+                    if (instance.getRuntime() == null && runtimeApplications.contains(instance.getLabelName()))
+                        instance.setRuntime(runtime);
+                }
+            }
+        }
+    }
+
     protected static String parseApplicationNameFromInstanceName(String podName)
     {
         Pattern pattern = Pattern.compile("-[a-zA-Z]*?\\d+");
@@ -35,6 +35,18 @@ public class SupportedTypes
     public static final Set<String> MONITORING_AGENTS_SUPPORTED =
             new HashSet<>(Collections.singletonList("PROMETHEUS"));
 
+    public static final Set<String> QUERY_MODES_SUPPORTED =
+            new HashSet<>(Arrays.asList("BATCHED", "INSTANCE", "REMOTE_WRITE", "KUBELET"));
+
+    public static final Set<String> DISCOVERY_MODES_SUPPORTED =
+            new HashSet<>(Arrays.asList("LIST", "WATCH"));
+
+    public static final Set<String> BACKFILL_MODES_SUPPORTED =
+            new HashSet<>(Arrays.asList("RANGE_QUERY", "REMOTE_READ"));
+
+    public static final Set<String> HTTP_VERSIONS_SUPPORTED =
+            new HashSet<>(Arrays.asList("HTTP_1_1", "HTTP_2"));
+
     public static final Set<String> RUNTIMES_SUPPORTED =
             new HashSet<>(Collections.singletonList("JAVA"));
 }
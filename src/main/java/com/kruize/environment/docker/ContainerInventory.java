@@ -0,0 +1,173 @@
+/*******************************************************************************
+ * Copyright (c) 2020, 2020 IBM Corporation and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+
+package com.kruize.environment.docker;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Containers listed in the inventory file, read again only when the file changes.
+ *
+ * Changes are noticed through a watch on the directory of the file, and by comparing the
+ * modification time and size of the file, as watches do not see every change to files
+ * mounted into a container. A file that cannot be parsed, such as one being rewritten,
+ * keeps the previous containers until it can be read again.
+ */
+class ContainerInventory
+{
+    private static final Logger LOGGER = LoggerFactory.getLogger(ContainerInventory.class);
+
+    private final Path file;
+    private WatchService watchService = null;
+
+    /* Modification time and size of the file when it was last read, -1 if it never was */
+    private long lastModified = -1;
+    private long lastSize = -1;
+
+    private Map<String, JsonObject> containers = Collections.emptyMap();
+
+    ContainerInventory(Path file)
+    {
+        this.file = file.toAbsolutePath();
+
+        try {
+            watchService = FileSystems.getDefault().newWatchService();
+            this.file.getParent().register(watchService,
+                    StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_MODIFY,
+                    StandardWatchEventKinds.ENTRY_DELETE);
+        } catch (IOException | UnsupportedOperationException e) {
+            LOGGER.warn("Cannot watch {}, checking its modification time instead: {}", file, e.getMessage());
+            watchService = null;
+        }
+    }
+
+    /**
+     * Read the file again if it changed since it was last read.
+     *
+     * @return true if the containers were read again
+     */
+    boolean refresh()
+    {
+        boolean changed = pollWatchEvents();
+
+        BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(file, BasicFileAttributes.class);
+        } catch (IOException e) {
+            /* Possibly being replaced, the previous containers are kept */
+            LOGGER.warn("Cannot read {}: {}", file, e.getMessage());
+            return false;
+        }
+
+        long modified = attributes.lastModifiedTime().toMillis();
+        long size = attributes.size();
+
+        if (!changed && modified == lastModified && size == lastSize)
+            return false;
+
+        Map<String, JsonObject> parsedContainers = parse();
+        if (parsedContainers == null)
+            return false;
+
+        containers = parsedContainers;
+        lastModified = modified;
+        lastSize = size;
+        return true;
+    }
+
+    /**
+     * @return containers by name, in the order of the file
+     */
+    Map<String, JsonObject> getContainers()
+    {
+        return containers;
+    }
+
+    /**
+     * @return true if there were events for the file since the last call
+     */
+    private boolean pollWatchEvents()
+    {
+        if (watchService == null)
+            return false;
+
+        boolean changed = false;
+        try {
+            WatchKey key;
+            while ((key = watchService.poll()) != null) {
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW
+                            || file.getFileName().equals(event.context()))
+                        changed = true;
+                }
+                key.reset();
+            }
+        } catch (ClosedWatchServiceException e) {
+            watchService = null;
+        }
+
+        return changed;
+    }
+
+    /**
+     * @return containers of the file, or null if it cannot be read or parsed
+     */
+    private Map<String, JsonObject> parse()
+    {
+        try (Reader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            Map<String, JsonObject> parsedContainers = new LinkedHashMap<>();
+
+            for (JsonElement container : new JsonParser()
+                    .parse(reader)
+                    .getAsJsonObject()
+                    .get("containers")
+                    .getAsJsonArray()) {
+
+                if (container != null && container.isJsonObject() && container.getAsJsonObject().has("name"))
+                    parsedContainers.put(container.getAsJsonObject().get("name").getAsString(),
+                            container.getAsJsonObject());
+            }
+
+            return parsedContainers;
+        } catch (IOException | JsonParseException | IllegalStateException | NullPointerException
+                | UnsupportedOperationException e) {
+            LOGGER.warn("Cannot parse {}, keeping the previous containers: {}", file, e.getMessage());
+            return null;
+        }
+    }
+}
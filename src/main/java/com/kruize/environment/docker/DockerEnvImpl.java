@@ -16,10 +16,8 @@
 
 package com.kruize.environment.docker;
 
-import com.google.gson.JsonArray;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
-import com.google.gson.JsonParser;
 import com.kruize.analysis.AnalysisImpl;
 import com.kruize.environment.DeploymentInfo;
 import com.kruize.environment.EnvTypeImpl;
@@ -28,6 +26,7 @@ import com.kruize.metrics.MetricsImpl;
 import com.kruize.metrics.runtimes.java.JavaApplicationInfo;
 import com.kruize.metrics.runtimes.java.JavaApplicationMetricsImpl;
 import com.kruize.query.prometheus.PrometheusQuery;
+import com.kruize.query.prometheus.PrometheusResponseDecoder;
 import com.kruize.query.runtimes.java.JavaQuery;
 import com.kruize.recommendations.application.ApplicationRecommendationsImpl;
 import com.kruize.recommendations.runtimes.java.openj9.OpenJ9JavaRecommendations;
@@ -35,11 +34,15 @@ import com.kruize.util.HttpUtil;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.FileReader;
 import java.io.IOException;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletionException;
 
 public class DockerEnvImpl extends EnvTypeImpl
 {
@@ -69,51 +72,101 @@ public class DockerEnvImpl extends EnvTypeImpl
         this.query = PrometheusQuery.getInstance();
     }
 
+    /*
+     * kruize-docker.json contains the details of the containers.
+     * For each container, the details are expressed in the form of key-value pairs
+     * where the keys are name, cpu_limit and mem_limit.
+     * Example file:
+     * {
+     *   "containers": [
+     *     { "name": "kruize", "cpu_limit": "0.5", "mem_limit": "70m" },
+     *     { "name": "acmeair-mono", "cpu_limit": "3.3", "mem_limit": "350m" },
+     *     { "name": "acmeair-db1", "cpu_limit": "5", "mem_limit": "2.3g" }
+     *   ]
+     * }
+     */
+    private static final String INVENTORY_FILE = "/opt/app/kruize-docker.json";
+
+    private ContainerInventory containerInventory = null;
+
+    /* Containers of the inventory when it was last applied */
+    private Map<String, JsonObject> containers = Collections.emptyMap();
+
     @Override
     public void getAllApps()
     {
-        JsonArray containerList = null;
-        ArrayList<String> monitoredInstances = new ArrayList<>();
-
         getRuntimeInfo();
 
-        /*
-         * kruize-docker.json contains the details of the containers.
-         * For each container, the details are expressed in the form of key-value pairs
-         * where the keys are name, cpu_limit and mem_limit.
-         * Example file:
-         * {
-         *   "containers": [
-         *     { "name": "kruize", "cpu_limit": "0.5", "mem_limit": "70m" },
-         *     { "name": "acmeair-mono", "cpu_limit": "3.3", "mem_limit": "350m" },
-         *     { "name": "acmeair-db1", "cpu_limit": "5", "mem_limit": "2.3g" }
-         *   ]
-         * }
-         */
-        try (FileReader reader = new FileReader("/opt/app/kruize-docker.json"))
-        {
-            containerList = new JsonParser()
-                    .parse(reader)
-                    .getAsJsonObject()
-                    .get("containers")
-                    .getAsJsonArray();
+        if (containerInventory == null)
+            containerInventory = new ContainerInventory(Paths.get(INVENTORY_FILE));
 
-        } catch (IOException | NullPointerException e) {
-            e.printStackTrace();
-        }
+        /* An inventory missing, empty or being rewritten is read again on the next cycle */
+        if (containerInventory.refresh())
+            applyInventory(containerInventory.getContainers());
+
+        updateRuntimes();
+    }
 
-        if (containerList != null && containerList.size() > 0) {
-            for (JsonElement container : containerList) {
-                if (container != null && container.getAsJsonObject().size() > 0)
-                    insertMetrics(container);
-                    monitoredInstances.add(container.getAsJsonObject().get("name").getAsString());
+    /**
+     * Add the containers new to the inventory, update the limits of the containers changed
+     * in it, and terminate the containers no longer in it.
+     */
+    private void applyInventory(Map<String, JsonObject> inventory)
+    {
+        if (inventory.isEmpty())
+            LOGGER.warn("No containers to monitor in {}", INVENTORY_FILE);
+
+        for (Map.Entry<String, JsonObject> container : inventory.entrySet()) {
+            if (container.getValue().equals(containers.get(container.getKey())))
+                continue;
+
+            try {
+                /* Adding a container already monitored only updates its status, not its limits */
+                MetricsImpl existing = applicationRecommendations.findInstance("local", container.getKey());
+                if (existing != null)
+                    updateLimits(existing, container.getValue());
+
+                insertMetrics(container.getValue());
+            } catch (RuntimeException | InvalidValueException e) {
+                LOGGER.warn("Cannot monitor container {}: {}", container.getKey(), e.getMessage());
             }
-        } else {
-            LOGGER.error("No containers to monitor.");
-            System.exit(1);
         }
 
-        updateStatus(monitoredInstances);
+        for (String containerName : containers.keySet()) {
+            if (!inventory.containsKey(containerName))
+                applicationRecommendations.terminateInstance("local", containerName);
+        }
+
+        containers = inventory;
+    }
+
+    /**
+     * Update the original limits of a container already monitored to those of the inventory
+     */
+    private void updateLimits(MetricsImpl containerMetrics, JsonObject container) throws InvalidValueException
+    {
+        double cpuLimit = getLimit(container, "cpu_limit");
+        double memoryLimit = getLimit(container, "mem_limit");
+
+        if (cpuLimit == containerMetrics.getOriginalCpuLimit()
+                && memoryLimit == containerMetrics.getOriginalMemoryLimit())
+            return;
+
+        LOGGER.info("Limits of container {} changed: CPU {} to {}, memory {} to {}",
+                containerMetrics.getName(),
+                containerMetrics.getOriginalCpuLimit(), cpuLimit,
+                containerMetrics.getOriginalMemoryLimit(), memoryLimit);
+
+        containerMetrics.setOriginalCpuLimit(cpuLimit);
+        containerMetrics.setOriginalMemoryLimit(memoryLimit);
+    }
+
+    /**
+     * @return limit of the container in the inventory, 0 if it has none
+     */
+    private static double getLimit(JsonObject container, String name)
+    {
+        return container.has(name) ? container.get(name).getAsDouble() : 0;
     }
 
     /**
@@ -135,26 +188,18 @@ public class DockerEnvImpl extends EnvTypeImpl
      */
     private void getJavaApps() throws MalformedURLException
     {
-        if (!applicationRecommendations.runtimesMap.containsKey("java"))
-        {
-            applicationRecommendations.runtimesMap.put("java", new ArrayList<>());
-        }
-
         try
         {
             PrometheusQuery prometheusQuery = PrometheusQuery.getInstance();
             JavaQuery javaQuery = new JavaQuery();
 
-            JsonArray javaApps = getJsonArray(new URL(DeploymentInfo.getMonitoringAgentEndpoint()
+            List<Map<String, String>> javaApps = getSeriesLabels(new URL(DeploymentInfo.getMonitoringAgentEndpoint()
                     + prometheusQuery.getAPIEndpoint() + javaQuery.fetchJavaAppsQuery()));
 
-            if (javaApps == null) return;
-
-            for (JsonElement jsonElement : javaApps)
+            for (Map<String, String> metric : javaApps)
             {
-                JsonObject metric = jsonElement.getAsJsonObject().get("metric").getAsJsonObject();
-                String job = metric.get("job").getAsString();
-                String heap_id = metric.get("id").getAsString();
+                String job = metric.get("job");
+                String heap_id = metric.get("id");
 
                 javaQuery = JavaQuery.getInstance(heap_id);
 
@@ -162,9 +207,9 @@ public class DockerEnvImpl extends EnvTypeImpl
                 if (JavaApplicationMetricsImpl.javaApplicationInfoMap.containsKey(job))
                     continue;
 
-                if (!applicationRecommendations.runtimesMap.get("java").contains(job))
+                if (!applicationRecommendations.getRuntimeApplications("java").contains(job))
                 {
-                    applicationRecommendations.runtimesMap.get("java").add(job);
+                    applicationRecommendations.getRuntimeApplications("java").add(job);
 
                     String vm = javaQuery.getVm();
 
@@ -178,7 +223,7 @@ public class DockerEnvImpl extends EnvTypeImpl
                     }
                 }
             }
-        } catch (InvalidValueException e) {
+        } catch (InvalidValueException | IOException | CompletionException e) {
             e.printStackTrace();
         }
 
@@ -189,17 +234,17 @@ public class DockerEnvImpl extends EnvTypeImpl
 
     }
 
-    private JsonArray getJsonArray(URL url)
+    private List<Map<String, String>> getSeriesLabels(URL url) throws IOException
     {
-        String response = HttpUtil.getDataFromURL(url);
-
-        return new JsonParser()
-                .parse(response)
-                .getAsJsonObject()
-                .get("data")
-                .getAsJsonObject()
-                .get("result")
-                .getAsJsonArray();
+        List<Map<String, String>> seriesLabels = new ArrayList<>();
+
+        PrometheusResponseDecoder.decode(HttpUtil.getStreamFromURLAsync(url).join(), (labels, timestamp, value) -> {
+            /* Samples of a series share its labels, only keep them once */
+            if (seriesLabels.isEmpty() || seriesLabels.get(seriesLabels.size() - 1) != labels)
+                seriesLabels.add(labels);
+        });
+
+        return seriesLabels;
     }
 
 
@@ -216,29 +261,7 @@ public class DockerEnvImpl extends EnvTypeImpl
         assert containerMetrics != null;
         String containerName = containerMetrics.getApplicationName();
 
-        if (applicationRecommendations.applicationMap.containsKey(containerName)) {
-            applicationRecommendations.addMetricToApplication(containerName, containerMetrics);
-        } else {
-            ArrayList<MetricsImpl> containerMetricsArrayList = new ArrayList<>();
-            containerMetricsArrayList.add(containerMetrics);
-            applicationRecommendations.applicationMap.put(containerName, containerMetricsArrayList);
-        }
-    }
-
-    private void updateStatus(ArrayList<String> monitoredInstances)
-    {
-        for (String application : applicationRecommendations.applicationMap.keySet())
-        {
-            for (MetricsImpl instance : applicationRecommendations.applicationMap.get(application))
-            {
-                if (!monitoredInstances.contains(instance.getName()))
-                {
-                    try {
-                        instance.setStatus("terminated");
-                    } catch (InvalidValueException ignored) { }
-                }
-            }
-        }
+        applicationRecommendations.addMetricToApplication(containerName, containerMetrics);
     }
 
     private MetricsImpl getMetrics(JsonElement container) throws NullPointerException, InvalidValueException
@@ -251,13 +274,8 @@ public class DockerEnvImpl extends EnvTypeImpl
         containerMetrics.setLabelName(containerName);
         containerMetrics.setApplicationName(containerName);
 
-        if (container.getAsJsonObject().has("mem_limit")) {
-            containerMetrics.setOriginalMemoryLimit(container.getAsJsonObject().get("mem_limit").getAsDouble());
-        }
-
-        if (container.getAsJsonObject().has("cpu_limit")) {
-            containerMetrics.setOriginalCpuLimit(container.getAsJsonObject().get("cpu_limit").getAsDouble());
-        }
+        containerMetrics.setOriginalMemoryLimit(getLimit(container.getAsJsonObject(), "mem_limit"));
+        containerMetrics.setOriginalCpuLimit(getLimit(container.getAsJsonObject(), "cpu_limit"));
 
         for (String runtime : applicationRecommendations.runtimesMap.keySet())
         {
@@ -0,0 +1,144 @@
+/*******************************************************************************
+ * Copyright (c) 2020, 2020 IBM Corporation and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+
+package com.kruize.environment.kubernetes;
+
+import com.kruize.query.prometheus.PrometheusResponseDecoder;
+import com.kruize.query.prometheus.TextFormatParser;
+import com.squareup.okhttp.Call;
+import com.squareup.okhttp.Response;
+import io.kubernetes.client.ApiClient;
+import io.kubernetes.client.ApiException;
+import io.kubernetes.client.apis.CoreV1Api;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Scrapes the container metrics of every node from the cAdvisor endpoint of its kubelet,
+ * instead of querying them from the monitoring agent.
+ *
+ * The kubelets are reached through the node proxy of the API server, with the service account
+ * of Kruize, which needs to get nodes/proxy. Every node is scraped by its own task, so that
+ * the nodes are scraped concurrently by the collection engine.
+ */
+public class KubeletScraper
+{
+    private static final Logger LOGGER = LoggerFactory.getLogger(KubeletScraper.class);
+
+    private static final String CADVISOR_PATH = "/proxy/metrics/cadvisor";
+
+    /* Time between two listings of the nodes */
+    private static final long NODE_LIST_INTERVAL_MINUTES = 5;
+
+    private static final String[] AUTH_NAMES = new String[] { "BearerToken" };
+
+    private final Set<String> metricNames;
+    private final PrometheusResponseDecoder.SampleHandler handler;
+
+    private List<String> nodes = Collections.emptyList();
+    private long nodesListed;
+
+    /**
+     * @param metricNames names of the metrics whose samples are handed over
+     * @param handler handler for the samples of all nodes, called concurrently by the scrape tasks
+     */
+    public KubeletScraper(Set<String> metricNames, PrometheusResponseDecoder.SampleHandler handler)
+    {
+        this.metricNames = metricNames;
+        this.handler = handler;
+    }
+
+    /**
+     * @return one task for every node of the cluster, scraping the metrics of its containers
+     */
+    public List<Runnable> getScrapeTasks()
+    {
+        ApiClient apiClient;
+        try {
+            apiClient = KubernetesClient.getApiClient();
+        } catch (IOException e) {
+            LOGGER.error("Cannot create the client of the API server: {}", e.getMessage());
+            return Collections.emptyList();
+        }
+
+        if (nodes.isEmpty() || System.nanoTime() - nodesListed
+                >= TimeUnit.MINUTES.toNanos(NODE_LIST_INTERVAL_MINUTES)) {
+            listNodes(apiClient);
+        }
+
+        List<Runnable> tasks = new ArrayList<>(nodes.size());
+        for (String node : nodes) {
+            tasks.add(() -> scrape(apiClient, node));
+        }
+
+        return tasks;
+    }
+
+    private void listNodes(ApiClient apiClient)
+    {
+        List<String> nodeNames = new ArrayList<>();
+
+        try {
+            KubernetesClient.listNodes(new CoreV1Api(apiClient),
+                    node -> nodeNames.add(node.getMetadata().getName()));
+        } catch (ApiException e) {
+            LOGGER.error("Cannot list the nodes, keeping the {} known nodes: {}", nodes.size(), e.getMessage());
+            LOGGER.debug("Insufficient RBAC permissions (list) for nodes.");
+            return;
+        }
+
+        nodes = nodeNames;
+        nodesListed = System.nanoTime();
+    }
+
+    private void scrape(ApiClient apiClient, String node)
+    {
+        /* cAdvisor stamps the samples of each container with the time it was last updated, which
+         * differs between the containers of a pod. The samples are stamped with the time of the
+         * scrape instead, so that the containers of a pod are summed up together. */
+        long timestamp = System.currentTimeMillis();
+
+        Map<String, String> headers = new HashMap<>();
+        headers.put("Accept", "text/plain;version=0.0.4");
+
+        try {
+            Call call = apiClient.buildCall("/api/v1/nodes/" + apiClient.escapeString(node) + CADVISOR_PATH,
+                    "GET", Collections.emptyList(), Collections.emptyList(), null, headers,
+                    new HashMap<>(), AUTH_NAMES, null);
+            Response response = call.execute();
+
+            if (!response.isSuccessful()) {
+                response.body().close();
+                LOGGER.warn("Cannot scrape the kubelet of node {}: HTTP {}", node, response.code());
+                return;
+            }
+
+            TextFormatParser.parse(response.body().byteStream(), metricNames, timestamp,
+                    (labels, sampleTimestamp, value) -> handler.onSample(labels, timestamp, value));
+        } catch (IOException | ApiException e) {
+            LOGGER.warn("Cannot scrape the kubelet of node {}: {}", node, e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,188 @@
+/*******************************************************************************
+ * Copyright (c) 2020, 2020 IBM Corporation and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+
+package com.kruize.environment.kubernetes;
+
+import com.squareup.okhttp.OkHttpClient;
+import io.kubernetes.client.ApiClient;
+import io.kubernetes.client.ApiException;
+import io.kubernetes.client.apis.CoreV1Api;
+import io.kubernetes.client.models.V1Node;
+import io.kubernetes.client.models.V1NodeList;
+import io.kubernetes.client.models.V1Pod;
+import io.kubernetes.client.models.V1PodList;
+import io.kubernetes.client.models.V1Service;
+import io.kubernetes.client.models.V1ServiceList;
+import io.kubernetes.client.util.Config;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Clients of the Kubernetes API server shared by discovery, and paged listing of pods, services and nodes.
+ */
+final class KubernetesClient
+{
+    /* Items per page when listing, so that no single response is too large */
+    static final int PAGE_SIZE = 500;
+
+    private static ApiClient apiClient = null;
+    private static ApiClient watchClient = null;
+
+    private KubernetesClient() { }
+
+    /**
+     * @return client created once from the kubeconfig or the service account, reusing its connections
+     */
+    static synchronized ApiClient getApiClient() throws IOException
+    {
+        if (apiClient == null)
+            apiClient = Config.defaultClient();
+
+        return apiClient;
+    }
+
+    /**
+     * Replace the client used for the requests to the API server, such as with one for a test server.
+     *
+     * @param client client to be used
+     */
+    static synchronized void setApiClient(ApiClient client)
+    {
+        apiClient = client;
+    }
+
+    /**
+     * @return client for watches, sharing the connection pool of the API client, but without
+     * a read timeout as watches stay idle while nothing changes
+     */
+    static synchronized ApiClient getWatchClient() throws IOException
+    {
+        if (watchClient == null) {
+            OkHttpClient httpClient = getApiClient().getHttpClient().clone();
+            httpClient.setReadTimeout(0, TimeUnit.SECONDS);
+
+            watchClient = Config.defaultClient();
+            watchClient.setHttpClient(httpClient);
+        }
+
+        return watchClient;
+    }
+
+    /**
+     * List pods page by page, passing each pod to the consumer.
+     *
+     * @param namespace namespace of the pods, null for all namespaces
+     * @param labelSelector only list the pods matching it, null for all pods
+     * @return resource version of the list, from which to watch for changes
+     */
+    static String listPods(CoreV1Api api, String namespace, String labelSelector,
+                           Consumer<V1Pod> consumer) throws ApiException
+    {
+        String continueToken = null;
+        V1PodList podList;
+
+        do {
+            if (namespace == null) {
+                podList = api.listPodForAllNamespaces(
+                        continueToken,
+                        null,
+                        null,
+                        labelSelector,
+                        PAGE_SIZE,
+                        null,
+                        null,
+                        null,
+                        null
+                );
+            } else {
+                podList = api.listNamespacedPod(
+                        namespace,
+                        null,
+                        null,
+                        continueToken,
+                        null,
+                        labelSelector,
+                        PAGE_SIZE,
+                        null,
+                        null,
+                        null
+                );
+            }
+
+            podList.getItems().forEach(consumer);
+            continueToken = podList.getMetadata().getContinue();
+        } while (continueToken != null && !continueToken.isEmpty());
+
+        return podList.getMetadata().getResourceVersion();
+    }
+
+    /**
+     * List the services of all namespaces page by page, passing each service to the consumer.
+     *
+     * @param fieldSelector only list the services matching it, such as metadata.name=prometheus,
+     *                      null for all services
+     */
+    static void listServices(CoreV1Api api, String fieldSelector, Consumer<V1Service> consumer) throws ApiException
+    {
+        String continueToken = null;
+        V1ServiceList serviceList;
+
+        do {
+            serviceList = api.listServiceForAllNamespaces(
+                    continueToken,
+                    fieldSelector,
+                    null,
+                    null,
+                    PAGE_SIZE,
+                    null,
+                    null,
+                    null,
+                    null
+            );
+
+            serviceList.getItems().forEach(consumer);
+            continueToken = serviceList.getMetadata().getContinue();
+        } while (continueToken != null && !continueToken.isEmpty());
+    }
+
+    /**
+     * List the nodes of the cluster page by page, passing each node to the consumer.
+     */
+    static void listNodes(CoreV1Api api, Consumer<V1Node> consumer) throws ApiException
+    {
+        String continueToken = null;
+        V1NodeList nodeList;
+
+        do {
+            nodeList = api.listNode(
+                    null,
+                    null,
+                    continueToken,
+                    null,
+                    null,
+                    PAGE_SIZE,
+                    null,
+                    null,
+                    null
+            );
+
+            nodeList.getItems().forEach(consumer);
+            continueToken = nodeList.getMetadata().getContinue();
+        } while (continueToken != null && !continueToken.isEmpty());
+    }
+}
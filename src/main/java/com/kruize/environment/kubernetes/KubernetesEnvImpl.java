@@ -16,10 +16,6 @@
 
 package com.kruize.environment.kubernetes;
 
-import com.google.gson.JsonArray;
-import com.google.gson.JsonElement;
-import com.google.gson.JsonObject;
-import com.google.gson.JsonParser;
 import com.kruize.analysis.AnalysisImpl;
 import com.kruize.environment.DeploymentInfo;
 import com.kruize.environment.EnvTypeImpl;
@@ -31,18 +27,16 @@ import com.kruize.metrics.MetricsImpl;
 import com.kruize.metrics.runtimes.java.JavaApplicationInfo;
 import com.kruize.metrics.runtimes.java.JavaApplicationMetricsImpl;
 import com.kruize.query.prometheus.PrometheusQuery;
+import com.kruize.query.prometheus.PrometheusResponseDecoder;
 import com.kruize.query.runtimes.java.JavaQuery;
 import com.kruize.recommendations.application.ApplicationRecommendationsImpl;
 import com.kruize.recommendations.runtimes.java.openj9.OpenJ9JavaRecommendations;
 import com.kruize.util.HttpUtil;
 import com.kruize.util.MathUtil;
-import io.kubernetes.client.ApiClient;
 import io.kubernetes.client.ApiException;
-import io.kubernetes.client.Configuration;
 import io.kubernetes.client.apis.CoreV1Api;
 import io.kubernetes.client.custom.Quantity;
 import io.kubernetes.client.models.*;
-import io.kubernetes.client.util.Config;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -50,12 +44,21 @@ import java.io.IOException;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class KubernetesEnvImpl extends EnvTypeImpl
 {
     private static final Logger LOGGER = LoggerFactory.getLogger(KubernetesEnvImpl.class);
 
+    /* Pods are monitored if they have this label, selected by the API server */
+    private static final String MONITORED_LABEL = "app.kubernetes.io/name";
+
+    /* Only used when discovering the pods with a watch, one for each namespace */
+    private List<PodInformer> podInformers = null;
+
     @Override
     public void setupMonitoringAgent()
     {
@@ -87,29 +90,17 @@ public class KubernetesEnvImpl extends EnvTypeImpl
 
     private boolean checkMonitoringAgentRunning() throws IOException, ApiException
     {
-        ApiClient client = Config.defaultClient();
-        Configuration.setDefaultApiClient(client);
-        CoreV1Api api = new CoreV1Api();
-
-        V1ServiceList serviceList = api.listServiceForAllNamespaces(
-                null,
-                null,
-                null,
-                null,
-                null,
-                null,
-                null,
-                null,
-                null
-        );
-
-        for (V1Service service : serviceList.getItems()) {
+        CoreV1Api api = new CoreV1Api(KubernetesClient.getApiClient());
+
+        /* Names containing the agent cannot be selected by the API server, the services are paged instead */
+        AtomicBoolean running = new AtomicBoolean(false);
+        KubernetesClient.listServices(api, null, service -> {
             String serviceName = service.getMetadata().getName();
             if (serviceName.toUpperCase().contains(DeploymentInfo.getMonitoringAgent()))
-                return true;
-        }
+                running.set(true);
+        });
 
-        return false;
+        return running.get();
     }
 
     private boolean checkMonitoringAgentSupported()
@@ -139,76 +130,105 @@ public class KubernetesEnvImpl extends EnvTypeImpl
     @Override
     public void getAllApps()
     {
-        ArrayList<String> monitoredInstances = new ArrayList<>();
         getRuntimeInfo();
 
-        ApiClient apiClient = null;
-        try {
-            apiClient = Config.defaultClient();
-        } catch (IOException e) {
-            e.printStackTrace();
+        if (DeploymentInfo.getDiscoveryMode().equals("WATCH")) {
+            watchAllApps();
+            return;
         }
-        Configuration.setDefaultApiClient(apiClient);
-        CoreV1Api api = new CoreV1Api();
 
-        //Get all the pods in the cluster
-        V1PodList podList = null;
-        try {
-            podList = api.listPodForAllNamespaces(
-                    null,
-                    null,
-                    null,
-                    null,
-                    null,
-                    null,
-                    null,
-                    null,
-                    null
-            );
-        } catch (ApiException e) {
-            e.printStackTrace();
-        }
+        long generation = applicationRecommendations.beginDiscovery();
 
-        if (podList != null) {
-            for (V1Pod pod : podList.getItems()) {
-                try {
-                    final String label = "app.kubernetes.io/name";
-                    boolean containsLabel = pod.getMetadata().getLabels().containsKey(label);
-                    boolean isAppsodyApplication = pod.getKind() != null && pod.getKind().equals("AppsodyApplication");
+        //Get the pods to monitor, from all namespaces or the configured ones
+        try {
+            CoreV1Api api = new CoreV1Api(KubernetesClient.getApiClient());
 
-                    if (containsLabel || isAppsodyApplication) {
-                        insertMetrics(pod);
-                        monitoredInstances.add(pod.getMetadata().getName());
+            for (String namespace : getNamespaces()) {
+                KubernetesClient.listPods(api, namespace, MONITORED_LABEL, pod -> {
+                    try {
+                        if (isMonitored(pod))
+                            insertMetrics(pod);
+                    } catch (NullPointerException ignored) {
                     }
-                } catch (NullPointerException ignored) {
-                }
+                });
             }
-        } else {
+        } catch (IOException | ApiException e) {
+            e.printStackTrace();
             LOGGER.debug("Insufficient RBAC permissions (list, get, watch) for pods and services.");
             System.exit(1);
         }
 
-        updateStatus(monitoredInstances);
+        /* Pods no longer listed have terminated */
+        applicationRecommendations.terminateUnseen(generation);
     }
 
     /**
-     * Check if the application being monitored has been terminated,
-     * and update status if so
-     * @param monitoredInstances Arraylist of all pods currently running that Kruize is monitoring
+     * Start the pod informers on the first call, which add the monitored pods before
+     * returning. The informers then apply the changes to the pods as they happen, so
+     * later calls only update the runtimes of the instances.
      */
-    private void updateStatus(ArrayList<String> monitoredInstances)
+    private void watchAllApps()
     {
-        for (String application : applicationRecommendations.applicationMap.keySet())
-        {
-            for (MetricsImpl instance : applicationRecommendations.applicationMap.get(application))
+        if (podInformers == null) {
+            podInformers = new ArrayList<>();
+
+            PodInformer.Listener listener = new PodInformer.Listener()
             {
-                if (!monitoredInstances.contains(instance.getName()))
+                @Override
+                public void onPodChanged(V1Pod pod)
                 {
                     try {
-                        instance.setStatus("terminated");
-                    } catch (InvalidValueException ignored) { }
+                        if (isMonitored(pod))
+                            insertMetrics(pod);
+                    } catch (NullPointerException ignored) {
+                    }
                 }
+
+                @Override
+                public void onPodDeleted(V1Pod pod)
+                {
+                    if (isMonitored(pod))
+                        applicationRecommendations.terminateInstance(pod.getMetadata().getNamespace(),
+                                pod.getMetadata().getName());
+                }
+            };
+
+            try {
+                for (String namespace : getNamespaces()) {
+                    PodInformer podInformer = new PodInformer(KubernetesClient.getWatchClient(),
+                            namespace, MONITORED_LABEL, listener);
+                    podInformer.start();
+                    podInformers.add(podInformer);
+                }
+            } catch (IOException | ApiException e) {
+                e.printStackTrace();
+                LOGGER.debug("Insufficient RBAC permissions (list, get, watch) for pods and services.");
+                System.exit(1);
             }
+            return;
+        }
+
+        updateRuntimes();
+    }
+
+    /**
+     * @return the configured namespaces, or only null for all namespaces
+     */
+    private static List<String> getNamespaces()
+    {
+        List<String> namespaces = DeploymentInfo.getNamespaces();
+        return namespaces.isEmpty() ? Collections.singletonList(null) : namespaces;
+    }
+
+    private static boolean isMonitored(V1Pod pod)
+    {
+        try {
+            boolean containsLabel = pod.getMetadata().getLabels().containsKey(MONITORED_LABEL);
+            boolean isAppsodyApplication = pod.getKind() != null && pod.getKind().equals("AppsodyApplication");
+
+            return containsLabel || isAppsodyApplication;
+        } catch (NullPointerException ignored) {
+            return false;
         }
     }
 
@@ -231,35 +251,27 @@ public class KubernetesEnvImpl extends EnvTypeImpl
      */
     private void getJavaApps() throws MalformedURLException
     {
-        if (!applicationRecommendations.runtimesMap.containsKey("java"))
-        {
-            applicationRecommendations.runtimesMap.put("java", new ArrayList<>());
-        }
-
         try
         {
             PrometheusQuery prometheusQuery = PrometheusQuery.getInstance();
             JavaQuery javaQuery = new JavaQuery();
 
-            JsonArray javaApps = getJsonArray(new URL(DeploymentInfo.getMonitoringAgentEndpoint()
+            List<Map<String, String>> javaApps = getSeriesLabels(new URL(DeploymentInfo.getMonitoringAgentEndpoint()
                     + prometheusQuery.getAPIEndpoint() + javaQuery.fetchJavaAppsQuery()));
 
-            if (javaApps == null) return;
-
-            for (JsonElement jsonElement : javaApps)
+            for (Map<String, String> metric : javaApps)
             {
-                JsonObject metric = jsonElement.getAsJsonObject().get("metric").getAsJsonObject();
 
                 String kubernetes_name;
                 String kubernetesType = DeploymentInfo.getKubernetesType().toUpperCase();
 
                 if (kubernetesType.equals("OPENSHIFT") || kubernetesType.equals("MINIKUBE")) {
-                    kubernetes_name = metric.get("pod").getAsString();
+                    kubernetes_name = metric.get("pod");
                 } else {
-                    kubernetes_name = metric.get("kubernetes_name").getAsString();
+                    kubernetes_name = metric.get("kubernetes_name");
                 }
 
-                String heap_id = metric.get("id").getAsString();
+                String heap_id = metric.get("id");
 
                 javaQuery = JavaQuery.getInstance(heap_id);
 
@@ -267,10 +279,10 @@ public class KubernetesEnvImpl extends EnvTypeImpl
                 if (JavaApplicationMetricsImpl.javaApplicationInfoMap.containsKey(kubernetes_name))
                     continue;
 
-                if (!applicationRecommendations.runtimesMap.get("java").contains(kubernetes_name))
+                if (!applicationRecommendations.getRuntimeApplications("java").contains(kubernetes_name))
                 {
                     LOGGER.info("{} added to java runtime collection array", kubernetes_name);
-                    applicationRecommendations.runtimesMap.get("java").add(kubernetes_name);
+                    applicationRecommendations.getRuntimeApplications("java").add(kubernetes_name);
 
                     String vm = javaQuery.getVm();
                     LOGGER.info("VM is {}", vm);
@@ -295,18 +307,17 @@ public class KubernetesEnvImpl extends EnvTypeImpl
 
     }
 
-    private JsonArray getJsonArray(URL url)
+    private List<Map<String, String>> getSeriesLabels(URL url) throws IOException
     {
-        String response = HttpUtil.getDataFromURL(url);
+        List<Map<String, String>> seriesLabels = new ArrayList<>();
 
-        return new JsonParser()
-                .parse(response)
-                .getAsJsonObject()
-                .get("data")
-                .getAsJsonObject()
-                .get("result")
-                .getAsJsonArray();
+        PrometheusResponseDecoder.decode(HttpUtil.getStreamFromURLAsync(url).join(), (labels, timestamp, value) -> {
+            /* Samples of a series share its labels, only keep them once */
+            if (seriesLabels.isEmpty() || seriesLabels.get(seriesLabels.size() - 1) != labels)
+                seriesLabels.add(labels);
+        });
 
+        return seriesLabels;
     }
 
     private void insertMetrics(V1Pod pod)
@@ -321,13 +332,7 @@ public class KubernetesEnvImpl extends EnvTypeImpl
         assert metricsImpl != null;
         String applicationName = metricsImpl.getApplicationName();
 
-        if (applicationRecommendations.applicationMap.containsKey(applicationName)) {
-            applicationRecommendations.addMetricToApplication(applicationName, metricsImpl);
-        } else {
-            ArrayList<MetricsImpl> podMetricsArrayList = new ArrayList<>();
-            podMetricsArrayList.add(metricsImpl);
-            applicationRecommendations.applicationMap.put(applicationName, podMetricsArrayList);
-        }
+        applicationRecommendations.addMetricToApplication(applicationName, metricsImpl);
     }
 
     private MetricsImpl getPodMetrics(V1Pod pod) throws InvalidValueException
@@ -430,30 +435,16 @@ public class KubernetesEnvImpl extends EnvTypeImpl
 
     private void getMonitoringEndpointFromService() throws IOException, ApiException
     {
-        ApiClient client = Config.defaultClient();
-        Configuration.setDefaultApiClient(client);
-        CoreV1Api api = new CoreV1Api();
-
-        V1ServiceList serviceList = api.listServiceForAllNamespaces(
-                null,
-                null,
-                null,
-                null,
-                null,
-                null,
-                null,
-                null,
-                null
-        );
-
-        for (V1Service service : serviceList.getItems()) {
-            String serviceName = service.getMetadata().getName();
-            if (serviceName.toUpperCase().equals(DeploymentInfo.getMonitoringAgentService())) {
-                String clusterIP = service.getSpec().getClusterIP();
-                int port = service.getSpec().getPorts().get(0).getPort();
-                DeploymentInfo.setMonitoringAgentEndpoint("http://" + clusterIP + ":" + port);
-            }
-        }
+        CoreV1Api api = new CoreV1Api(KubernetesClient.getApiClient());
+
+        /* Service names are lower case DNS labels */
+        String fieldSelector = "metadata.name=" + DeploymentInfo.getMonitoringAgentService().toLowerCase();
+
+        KubernetesClient.listServices(api, fieldSelector, service -> {
+            String clusterIP = service.getSpec().getClusterIP();
+            int port = service.getSpec().getPorts().get(0).getPort();
+            DeploymentInfo.setMonitoringAgentEndpoint("http://" + clusterIP + ":" + port);
+        });
     }
 
     private void setMonitoringLabels()
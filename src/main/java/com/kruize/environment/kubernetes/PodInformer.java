@@ -0,0 +1,262 @@
+/*******************************************************************************
+ * Copyright (c) 2020, 2020 IBM Corporation and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+
+package com.kruize.environment.kubernetes;
+
+import com.google.gson.reflect.TypeToken;
+import com.squareup.okhttp.Call;
+import io.kubernetes.client.ApiClient;
+import io.kubernetes.client.ApiException;
+import io.kubernetes.client.apis.CoreV1Api;
+import io.kubernetes.client.models.V1Pod;
+import io.kubernetes.client.models.V1Status;
+import io.kubernetes.client.util.Watch;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Keeps a cache of the pods of the cluster with one list followed by a watch, and passes
+ * every change to a listener, instead of listing all pods every cycle.
+ *
+ * The watch resumes from the resource version of the last event seen. Once the API server
+ * no longer has that version (410 Gone), the pods are listed again and the differences
+ * with the cache are passed to the listener as changes and deletions.
+ */
+class PodInformer
+{
+    private static final Logger LOGGER = LoggerFactory.getLogger(PodInformer.class);
+
+    /* The API server closes watches after a while, this asks for a random time in 5 to 10 minutes */
+    private static final int WATCH_TIMEOUT_SECONDS = 300;
+
+    private static final long MIN_BACKOFF_MILLIS = 1000;
+    private static final long MAX_BACKOFF_MILLIS = 30000;
+
+    interface Listener
+    {
+        /**
+         * Called for a new pod, or a pod whose metadata, spec or status changed.
+         */
+        void onPodChanged(V1Pod pod);
+
+        void onPodDeleted(V1Pod pod);
+    }
+
+    private final ApiClient apiClient;
+    private final CoreV1Api api;
+    private final String namespace;
+    private final String labelSelector;
+    private final Listener listener;
+
+    /* Only accessed by the thread listing and watching the pods */
+    private final Map<String, V1Pod> pods = new HashMap<>();
+    private String resourceVersion;
+
+    private volatile boolean running = false;
+    private Thread watchThread;
+
+    /**
+     * @param apiClient client of the API server without a read timeout, as watches stay idle
+     *                  while nothing changes
+     * @param namespace namespace of the pods, null for all namespaces
+     * @param labelSelector only cache the pods matching it, null for all pods
+     */
+    PodInformer(ApiClient apiClient, String namespace, String labelSelector, Listener listener)
+    {
+        this.apiClient = apiClient;
+        this.api = new CoreV1Api(apiClient);
+        this.namespace = namespace;
+        this.labelSelector = labelSelector;
+        this.listener = listener;
+    }
+
+    /**
+     * List the pods, passing each of them to the listener before returning, then
+     * watch for changes in the background.
+     */
+    synchronized void start() throws ApiException
+    {
+        if (running)
+            return;
+
+        list();
+
+        running = true;
+        watchThread = new Thread(this::watchLoop,
+                "kruize-pod-informer" + (namespace == null ? "" : "-" + namespace));
+        watchThread.setDaemon(true);
+        watchThread.start();
+    }
+
+    synchronized void stop()
+    {
+        running = false;
+        if (watchThread != null)
+            watchThread.interrupt();
+    }
+
+    private void watchLoop()
+    {
+        long backoffMillis = MIN_BACKOFF_MILLIS;
+
+        while (running) {
+            try {
+                if (resourceVersion == null)
+                    list();
+
+                long watchStart = System.currentTimeMillis();
+                watch();
+
+                /* Watches ending right away are retried after a backoff, not in a busy loop */
+                if (System.currentTimeMillis() - watchStart >= MIN_BACKOFF_MILLIS) {
+                    backoffMillis = MIN_BACKOFF_MILLIS;
+                    continue;
+                }
+            } catch (ApiException e) {
+                if (e.getCode() == HttpURLConnection.HTTP_GONE) {
+                    LOGGER.info("Pod watch expired, listing the pods again");
+                    resourceVersion = null;
+                    continue;
+                }
+                LOGGER.warn("Pod watch failed with HTTP {}: {}", e.getCode(), e.getMessage());
+            } catch (RuntimeException | IOException e) {
+                /* Also thrown by the watch when the connection breaks */
+                LOGGER.warn("Pod watch failed: {}", e.getMessage());
+            }
+
+            try {
+                Thread.sleep(backoffMillis);
+            } catch (InterruptedException e) {
+                return;
+            }
+            backoffMillis = Math.min(backoffMillis * 2, MAX_BACKOFF_MILLIS);
+        }
+    }
+
+    /**
+     * List all pods, replacing the cache. Pods in the cache but no longer listed are
+     * passed to the listener as deleted.
+     */
+    private void list() throws ApiException
+    {
+        Set<String> listed = new HashSet<>();
+        String listResourceVersion = KubernetesClient.listPods(api, namespace, labelSelector, pod -> {
+            String key = getKey(pod);
+            listed.add(key);
+            pods.put(key, pod);
+            listener.onPodChanged(pod);
+        });
+
+        pods.entrySet().removeIf(entry -> {
+            if (listed.contains(entry.getKey()))
+                return false;
+            listener.onPodDeleted(entry.getValue());
+            return true;
+        });
+
+        resourceVersion = listResourceVersion;
+        LOGGER.debug("Listed {} pods at resource version {}", pods.size(), resourceVersion);
+    }
+
+    /**
+     * Watch the pods from the current resource version until the API server ends the watch.
+     */
+    private void watch() throws ApiException, IOException
+    {
+        int timeoutSeconds = WATCH_TIMEOUT_SECONDS + ThreadLocalRandom.current().nextInt(WATCH_TIMEOUT_SECONDS);
+
+        Call call;
+        if (namespace == null) {
+            call = api.listPodForAllNamespacesCall(
+                    null,
+                    null,
+                    null,
+                    labelSelector,
+                    null,
+                    null,
+                    resourceVersion,
+                    timeoutSeconds,
+                    true,
+                    null,
+                    null);
+        } else {
+            call = api.listNamespacedPodCall(
+                    namespace,
+                    null,
+                    null,
+                    null,
+                    null,
+                    labelSelector,
+                    null,
+                    resourceVersion,
+                    timeoutSeconds,
+                    true,
+                    null,
+                    null);
+        }
+
+        try (Watch<V1Pod> watch = Watch.createWatch(apiClient, call,
+                new TypeToken<Watch.Response<V1Pod>>() { }.getType())) {
+
+            while (running && watch.hasNext()) {
+                Watch.Response<V1Pod> event = watch.next();
+
+                /* Mostly 410 Gone. The status may be parsed as a pod, so any error is handled as expiry */
+                if (event.type.equals("ERROR")) {
+                    V1Status status = event.status;
+                    LOGGER.info("Pod watch expired ({}), listing the pods again",
+                            status != null ? status.getMessage() : "error event");
+                    resourceVersion = null;
+                    return;
+                }
+
+                V1Pod pod = event.object;
+                if (pod == null || pod.getMetadata() == null)
+                    continue;
+
+                String key = getKey(pod);
+                switch (event.type) {
+                    case "ADDED":
+                    case "MODIFIED":
+                        pods.put(key, pod);
+                        listener.onPodChanged(pod);
+                        break;
+                    case "DELETED":
+                        pods.remove(key);
+                        listener.onPodDeleted(pod);
+                        break;
+                    default:
+                        break;
+                }
+
+                resourceVersion = pod.getMetadata().getResourceVersion();
+            }
+        }
+    }
+
+    private static String getKey(V1Pod pod)
+    {
+        return pod.getMetadata().getNamespace() + "/" + pod.getMetadata().getName();
+    }
+}
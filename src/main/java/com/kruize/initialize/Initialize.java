@@ -45,9 +45,31 @@ public class Initialize
         DeploymentInfo.setAuthType(auth_type);
         DeploymentInfo.setMonitoringAgent(monitoring_agent);
         DeploymentInfo.setAuthToken(auth_token);
+        DeploymentInfo.setHttpVersion(System.getenv("HTTP_VERSION"));
+        DeploymentInfo.setHttpConnectTimeout(System.getenv("HTTP_CONNECT_TIMEOUT"));
+        DeploymentInfo.setHttpRequestTimeout(System.getenv("HTTP_REQUEST_TIMEOUT"));
+        DeploymentInfo.setHttpRetries(System.getenv("HTTP_RETRIES"));
+        DeploymentInfo.setCircuitBreakerCooldown(System.getenv("CIRCUIT_BREAKER_COOLDOWN"));
         DeploymentInfo.setMonitoringAgentEndpoint(monitoring_agent_endpoint);
         DeploymentInfo.setMonitoringAgentService(monitoring_agent_service);
         DeploymentInfo.checkMonitoringAgentRunning();
+        DeploymentInfo.setCollectionWorkers(System.getenv("COLLECTION_WORKERS"));
+        DeploymentInfo.setCollectionInterval(System.getenv("COLLECTION_INTERVAL"));
+        DeploymentInfo.setCollectionMinInterval(System.getenv("COLLECTION_MIN_INTERVAL"));
+        DeploymentInfo.setCollectionMaxInterval(System.getenv("COLLECTION_MAX_INTERVAL"));
+        DeploymentInfo.setCollectionCycleDeadline(System.getenv("COLLECTION_CYCLE_DEADLINE"));
+        DeploymentInfo.setQueryMode(System.getenv("QUERY_MODE"));
+        DeploymentInfo.setDiscoveryMode(System.getenv("DISCOVERY_MODE"));
+        DeploymentInfo.setNamespaces(System.getenv("NAMESPACES"));
+        DeploymentInfo.setSampleRetentionCount(System.getenv("SAMPLE_RETENTION_COUNT"));
+        DeploymentInfo.setSampleRetentionAge(System.getenv("SAMPLE_RETENTION_AGE"));
+        DeploymentInfo.setPercentileAccuracy(System.getenv("PERCENTILE_ACCURACY"));
+        DeploymentInfo.setBackfillLookback(System.getenv("BACKFILL_LOOKBACK"));
+        DeploymentInfo.setBackfillStep(System.getenv("BACKFILL_STEP"));
+        DeploymentInfo.setBackfillMode(System.getenv("BACKFILL_MODE"));
+        DeploymentInfo.setSampleLogDirectory(System.getenv("SAMPLE_LOG_DIR"));
+        DeploymentInfo.setCheckpointPath(System.getenv("CHECKPOINT_PATH"));
+        DeploymentInfo.setCheckpointInterval(System.getenv("CHECKPOINT_INTERVAL"));
 
         /* Initialization done successfully */
         HealthService.setCurrentStatus(HealthService.STATUS_UP);
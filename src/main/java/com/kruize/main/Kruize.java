@@ -21,6 +21,7 @@ import com.kruize.initialize.Initialize;
 import com.kruize.service.HealthService;
 import com.kruize.service.ListApplicationsService;
 import com.kruize.service.RecommendationsService;
+import com.kruize.service.RemoteWriteService;
 import io.prometheus.client.exporter.MetricsServlet;
 import org.eclipse.jetty.server.Server;
 import org.eclipse.jetty.servlet.ServletContextHandler;
@@ -43,6 +44,8 @@ public class Kruize
         metricThread.setDaemon(true);
         metricThread.start();
 
+        Runtime.getRuntime().addShutdownHook(new Thread(collectMetrics::shutdown, "kruize-shutdown"));
+
         startServer();
     }
 
@@ -67,6 +70,7 @@ public class Kruize
         context.addServlet(RecommendationsService.class, "/recommendations");
         context.addServlet(ListApplicationsService.class, "/listApplications");
         context.addServlet(HealthService.class, "/health");
+        context.addServlet(RemoteWriteService.class, "/api/v1/write");
     }
 
     private static void disableServerLogging()
@@ -0,0 +1,181 @@
+/*******************************************************************************
+ * Copyright (c) 2020, 2020 IBM Corporation and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+
+package com.kruize.metrics;
+
+import com.kruize.util.LongCountMap;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Counts of the samples held by a store, by CPU rounded up to 0.1 core, the rounding of the
+ * CPU requests, and by RSS rounded up to 1 MB within each of those CPU buckets.
+ *
+ * The counts are updated as samples are added and dropped, so that the most frequent
+ * rounded values among the samples above a CPU threshold are found from the counts
+ * alone, without going through the samples. A query only goes through the CPU buckets
+ * and the RSS buckets of the CPU buckets above the threshold, whose number is bounded
+ * by the range of the values rather than by the number of samples.
+ *
+ * All samples in the 0.1 core bucket of the threshold are counted, including those below
+ * the threshold itself. The CPU threshold, a percentile read from a quantile sketch, is
+ * also only known within the relative accuracy of the sketch. It is lowered by that accuracy
+ * before being rounded to its bucket, so that the bucket of the exact percentile is always
+ * included, at the cost of including the bucket below it when the threshold is close to
+ * its lower bound.
+ */
+class BucketedModes
+{
+    /* One megabyte in SI units, like MathUtil.bytesToMB */
+    private static final double RSS_BUCKET_WIDTH = 1000 * 1000;
+
+    /* Relative error of the CPU thresholds */
+    private final double thresholdAccuracy;
+
+    /* Count by CPU bucket */
+    private final LongCountMap cpuCounts = new LongCountMap();
+
+    /* Count by RSS bucket, for every CPU bucket with samples */
+    private final Map<Long, LongCountMap> rssCountsByCpu = new HashMap<>();
+
+    /* Count by RSS bucket of the CPU buckets above the threshold, rebuilt on every query */
+    private final LongCountMap rssCounts = new LongCountMap();
+
+    /**
+     * @param thresholdAccuracy relative error of the CPU thresholds of the queries
+     */
+    BucketedModes(double thresholdAccuracy)
+    {
+        this.thresholdAccuracy = thresholdAccuracy;
+    }
+
+    void add(double cpu, double rss)
+    {
+        long cpuBucket = getCpuBucket(cpu);
+
+        cpuCounts.add(cpuBucket, 1);
+        rssCountsByCpu.computeIfAbsent(cpuBucket, bucket -> new LongCountMap()).add(getRssBucket(rss), 1);
+    }
+
+    void remove(double cpu, double rss)
+    {
+        long cpuBucket = getCpuBucket(cpu);
+        LongCountMap bucketRssCounts = rssCountsByCpu.get(cpuBucket);
+
+        if (bucketRssCounts == null)
+            return;
+
+        cpuCounts.add(cpuBucket, -1);
+        bucketRssCounts.add(getRssBucket(rss), -1);
+
+        if (bucketRssCounts.size() == 0)
+            rssCountsByCpu.remove(cpuBucket);
+    }
+
+    /**
+     * @param minCpu CPU threshold, the samples in the same 0.1 core bucket being included
+     * @return most frequent CPU rounded up to 0.1 core at or above the threshold, the highest on ties
+     */
+    double getCpuMode(double minCpu)
+    {
+        long minCpuBucket = getThresholdBucket(minCpu);
+        long modeBucket = getModeBucket(cpuCounts, minCpuBucket);
+
+        return modeBucket < 0 ? 0 : modeBucket / 10.0;
+    }
+
+    /**
+     * @param minCpu CPU threshold, the samples in the same 0.1 core bucket being included
+     * @return most frequent RSS rounded up to 1 MB, in bytes, of the samples at or above the threshold,
+     * the highest on ties
+     */
+    double getRssMode(double minCpu)
+    {
+        long minCpuBucket = getThresholdBucket(minCpu);
+
+        rssCounts.clear();
+        for (Map.Entry<Long, LongCountMap> entry : rssCountsByCpu.entrySet()) {
+            if (entry.getKey() < minCpuBucket)
+                continue;
+
+            LongCountMap bucketRssCounts = entry.getValue();
+            for (int slot = 0; slot < bucketRssCounts.capacity(); slot++) {
+                long count = bucketRssCounts.getCountAt(slot);
+                if (count != 0)
+                    rssCounts.add(bucketRssCounts.getKeyAt(slot), count);
+            }
+        }
+
+        long modeBucket = getModeBucket(rssCounts, 0);
+
+        return modeBucket < 0 ? 0 : modeBucket * RSS_BUCKET_WIDTH;
+    }
+
+    /**
+     * @return bucket of the lowest value the CPU threshold may stand for, within its accuracy
+     */
+    private long getThresholdBucket(double minCpu)
+    {
+        return getCpuBucket(minCpu / (1 + thresholdAccuracy));
+    }
+
+    /**
+     * @return lowest multiple of 0.1 core not below the value, in tenths of a core
+     */
+    private static long getCpuBucket(double cpu)
+    {
+        long bucket = (long) Math.ceil(Math.abs(cpu) * 10);
+
+        /* Undo the rounding of the multiplication, 0.3 * 10 being slightly above 3 */
+        if (bucket > 0 && (bucket - 1) / 10.0 >= Math.abs(cpu))
+            bucket--;
+
+        return bucket;
+    }
+
+    /**
+     * @return lowest multiple of 1 MB not below the value, in megabytes
+     */
+    private static long getRssBucket(double rss)
+    {
+        return (long) Math.ceil(Math.abs(rss) / RSS_BUCKET_WIDTH);
+    }
+
+    /**
+     * @return bucket with the highest count among those not below minBucket, -1 if there are none
+     */
+    private static long getModeBucket(LongCountMap counts, long minBucket)
+    {
+        long modeBucket = -1;
+        long modeCount = 0;
+
+        for (int slot = 0; slot < counts.capacity(); slot++) {
+            long count = counts.getCountAt(slot);
+            long bucket = counts.getKeyAt(slot);
+
+            if (count <= 0 || bucket < minBucket)
+                continue;
+
+            if (count > modeCount || (count == modeCount && bucket > modeBucket)) {
+                modeBucket = bucket;
+                modeCount = count;
+            }
+        }
+
+        return modeBucket;
+    }
+}
@@ -16,22 +16,26 @@
 
 package com.kruize.metrics;
 
+import com.kruize.environment.DeploymentInfo;
 import com.kruize.exceptions.InvalidValueException;
 import com.kruize.recommendations.instance.Recommendations;
 import com.kruize.recommendations.instance.RecommendationsImpl;
 import com.kruize.recommendations.runtimes.java.JavaRecommendations;
 
-import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
 
 public class MetricsImpl implements Metrics
 {
     private String name;
-    private String status;
-    private String runtime;
+    private volatile String status;
+    private volatile String runtime;
     private String labelName;
     private String namespace;
     private String applicationName;
 
+    /* Last discovery pass that found the instance */
+    private volatile long discoveryGeneration = 0;
+
     private double originalMemoryLimit = 0;
     private double originalMemoryRequests = 0;
 
@@ -41,7 +45,9 @@ public class MetricsImpl implements Metrics
     private Recommendations y2dRecommendations = new RecommendationsImpl();
     private Recommendations currentRecommendations = new RecommendationsImpl();
 
-    public ArrayList<MetricCollector> metricCollector = new ArrayList<>();
+    private final SampleStore samples = new SampleStore(DeploymentInfo.getSampleRetentionCount(),
+            TimeUnit.SECONDS.toMillis(DeploymentInfo.getSampleRetentionAge()),
+            DeploymentInfo.getPercentileAccuracy());
 
     public MetricsImpl() {}
 
@@ -294,4 +300,32 @@ public class MetricsImpl implements Metrics
     {
         this.runtime = runtime;
     }
+
+    public long getDiscoveryGeneration()
+    {
+        return discoveryGeneration;
+    }
+
+    public void setDiscoveryGeneration(long discoveryGeneration)
+    {
+        this.discoveryGeneration = discoveryGeneration;
+    }
+
+    /**
+     * Add a sample of the instance. Samples are added in the order they were taken.
+     *
+     * @param timestamp time of the sample in milliseconds
+     * @param rss RSS in bytes
+     * @param cpu CPU in cores
+     * @param network network bytes
+     */
+    public void addSample(long timestamp, double rss, double cpu, double network)
+    {
+        samples.add(timestamp, rss, cpu, network);
+    }
+
+    public SampleStore getSamples()
+    {
+        return samples;
+    }
 }
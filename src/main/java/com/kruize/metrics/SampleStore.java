@@ -0,0 +1,345 @@
+/*******************************************************************************
+ * Copyright (c) 2020, 2020 IBM Corporation and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+
+package com.kruize.metrics;
+
+import com.kruize.util.QuantileSketch;
+
+/**
+ * Samples of an instance, kept column by column in ring buffers of primitives.
+ *
+ * The buffers grow as samples are added, up to the maximum count. Past it, the
+ * oldest samples are overwritten. Samples older than the maximum age, relative to
+ * the newest sample, are dropped as new ones arrive.
+ *
+ * CPU and RSS are also summarized in quantile sketches kept in step with the samples held,
+ * so that their percentiles are read without sorting the samples, and counted by rounded
+ * value so that their modes are read without going through the samples. Their maximums
+ * and the largest RSS increase between consecutive samples are tracked as they change.
+ *
+ * Single writer: samples of an instance are added, and read through the cursor, percentiles
+ * and modes, by one thread at a time, the collection task of the instance. Only the number of
+ * samples held may be read by other threads, such as the collector weighting the
+ * recommendations of the instances of an application.
+ */
+public class SampleStore
+{
+    private static final int INITIAL_CAPACITY = 64;
+
+    private final int maxCount;
+    private final long maxAgeMillis;
+
+    private long[] timestamps;
+    private double[] cpuValues;
+    private double[] rssValues;
+    private double[] networkValues;
+
+    /* Index of the oldest sample, and number of samples held */
+    private int head = 0;
+    private int size = 0;
+
+    /* Copy of the size published to other threads, written once a sample is added or dropped */
+    private volatile int publishedSize = 0;
+
+    /* Sequence number of the next sample added, the oldest one held being nextSequence - size */
+    private long nextSequence = 0;
+
+    private final QuantileSketch cpuSketch;
+    private final QuantileSketch rssSketch;
+    private final BucketedModes modes;
+
+    private final WindowMaximum maxCpu = new WindowMaximum();
+    private final WindowMaximum maxRss = new WindowMaximum();
+
+    /* Increase of the RSS from the previous sample, by sequence number of the later sample */
+    private final WindowMaximum maxRssIncrease = new WindowMaximum();
+
+    private final Cursor cursor = new Cursor();
+
+    /**
+     * @param maxCount maximum number of samples kept
+     * @param maxAgeMillis maximum age of the samples kept, relative to the newest one
+     * @param relativeAccuracy relative error of the CPU and RSS percentiles
+     */
+    public SampleStore(int maxCount, long maxAgeMillis, double relativeAccuracy)
+    {
+        this.maxCount = maxCount;
+        this.maxAgeMillis = maxAgeMillis;
+        this.cpuSketch = new QuantileSketch(relativeAccuracy);
+        this.rssSketch = new QuantileSketch(relativeAccuracy);
+        this.modes = new BucketedModes(relativeAccuracy);
+
+        int capacity = Math.min(INITIAL_CAPACITY, maxCount);
+        timestamps = new long[capacity];
+        cpuValues = new double[capacity];
+        rssValues = new double[capacity];
+        networkValues = new double[capacity];
+    }
+
+    /**
+     * Add a sample, newer than all samples already held.
+     *
+     * @param timestamp time of the sample in milliseconds
+     */
+    public void add(long timestamp, double rss, double cpu, double network)
+    {
+        if (size == timestamps.length) {
+            if (size < maxCount)
+                grow();
+            else
+                dropOldest();
+        }
+
+        long sequence = nextSequence++;
+
+        if (size > 0)
+            maxRssIncrease.add(sequence, rss - rssValues[(head + size - 1) % timestamps.length]);
+
+        int index = (head + size) % timestamps.length;
+        timestamps[index] = timestamp;
+        cpuValues[index] = cpu;
+        rssValues[index] = rss;
+        networkValues[index] = network;
+        size++;
+
+        cpuSketch.add(cpu);
+        rssSketch.add(rss);
+        modes.add(cpu, rss);
+        maxCpu.add(sequence, cpu);
+        maxRss.add(sequence, rss);
+
+        while (size > 0 && timestamp - timestamps[head] > maxAgeMillis) {
+            dropOldest();
+        }
+
+        publishedSize = size;
+    }
+
+    /**
+     * @return number of samples held, safe to read from any thread
+     */
+    public int size()
+    {
+        return publishedSize;
+    }
+
+    public boolean isEmpty()
+    {
+        return publishedSize == 0;
+    }
+
+    /**
+     * The cursor is owned by the store and reused, so that reading the samples does not
+     * allocate. Only one pass over the samples can be in progress at a time.
+     *
+     * @return cursor positioned before the oldest sample
+     */
+    public Cursor cursor()
+    {
+        cursor.position = -1;
+        return cursor;
+    }
+
+    /**
+     * @param valueIndex MetricCollector.CPU_INDEX or MetricCollector.RSS_INDEX
+     * @param percentile percentile between 0 and 100
+     * @return percentile of the values held, within the relative accuracy of the store
+     */
+    public double getPercentile(int valueIndex, double percentile)
+    {
+        QuantileSketch sketch = valueIndex == MetricCollector.CPU_INDEX ? cpuSketch : rssSketch;
+        return sketch.getQuantile(percentile / 100);
+    }
+
+    /**
+     * @param minCpu CPU threshold within the relative accuracy of the store, such as a percentile,
+     * the samples of its 0.1 core bucket being included
+     * @return most frequent CPU rounded up to 0.1 core among the samples above the threshold,
+     * the highest value on ties
+     */
+    public double getCpuMode(double minCpu)
+    {
+        return modes.getCpuMode(minCpu);
+    }
+
+    /**
+     * @param minCpu CPU threshold within the relative accuracy of the store, such as a percentile,
+     * the samples of its 0.1 core bucket being included
+     * @return most frequent RSS rounded up to 1 MB, in bytes, among the samples above
+     * the CPU threshold, the highest value on ties
+     */
+    public double getRssMode(double minCpu)
+    {
+        return modes.getRssMode(minCpu);
+    }
+
+    /**
+     * @return highest CPU of the samples held, 0 if there are none
+     */
+    public double getMaxCpu()
+    {
+        return maxCpu.getMaximum(0);
+    }
+
+    /**
+     * @return highest RSS of the samples held, 0 if there are none
+     */
+    public double getMaxRss()
+    {
+        return maxRss.getMaximum(0);
+    }
+
+    /**
+     * @return largest increase of the RSS between two consecutive samples held, 0 if there are none
+     */
+    public double getMaxRssIncrease()
+    {
+        return maxRssIncrease.getMaximum(0);
+    }
+
+    private void dropOldest()
+    {
+        cpuSketch.remove(cpuValues[head]);
+        rssSketch.remove(rssValues[head]);
+        modes.remove(cpuValues[head], rssValues[head]);
+
+        head = (head + 1) % timestamps.length;
+        size--;
+
+        long oldestSequence = nextSequence - size;
+        maxCpu.evictBefore(oldestSequence);
+        maxRss.evictBefore(oldestSequence);
+
+        /* An increase is kept as long as the sample before it is held */
+        maxRssIncrease.evictBefore(oldestSequence + 1);
+    }
+
+    /**
+     * Double the buffers, unrolling the ring so that the oldest sample is first again.
+     */
+    private void grow()
+    {
+        int capacity = (int) Math.min((long) timestamps.length * 2, maxCount);
+
+        timestamps = unroll(timestamps, capacity);
+        cpuValues = unroll(cpuValues, capacity);
+        rssValues = unroll(rssValues, capacity);
+        networkValues = unroll(networkValues, capacity);
+        head = 0;
+    }
+
+    private long[] unroll(long[] buffer, int capacity)
+    {
+        long[] unrolled = new long[capacity];
+        int firstPart = Math.min(size, buffer.length - head);
+
+        System.arraycopy(buffer, head, unrolled, 0, firstPart);
+        System.arraycopy(buffer, 0, unrolled, firstPart, size - firstPart);
+        return unrolled;
+    }
+
+    private double[] unroll(double[] buffer, int capacity)
+    {
+        double[] unrolled = new double[capacity];
+        int firstPart = Math.min(size, buffer.length - head);
+
+        System.arraycopy(buffer, head, unrolled, 0, firstPart);
+        System.arraycopy(buffer, 0, unrolled, firstPart, size - firstPart);
+        return unrolled;
+    }
+
+    /**
+     * @param valueIndex one of the MetricCollector indexes
+     * @return copy of the values in the order they were added
+     */
+    public double[] toArray(int valueIndex)
+    {
+        double[] column = valueIndex == MetricCollector.CPU_INDEX ? cpuValues
+                : valueIndex == MetricCollector.RSS_INDEX ? rssValues
+                : networkValues;
+
+        double[] values = new double[size];
+        int firstPart = Math.min(size, column.length - head);
+
+        System.arraycopy(column, head, values, 0, firstPart);
+        System.arraycopy(column, 0, values, firstPart, size - firstPart);
+        return values;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "SampleStore{size=" + size + ", capacity=" + timestamps.length + ", maxCount=" + maxCount + "}";
+    }
+
+    /**
+     * Walks the samples from the oldest to the newest.
+     */
+    public class Cursor
+    {
+        private int position = -1;
+        private int index;
+
+        private Cursor() { }
+
+        /**
+         * @return true if the cursor moved to the next sample, false once past the newest one
+         */
+        public boolean next()
+        {
+            if (position + 1 >= size)
+                return false;
+
+            position++;
+            index = (head + position) % timestamps.length;
+            return true;
+        }
+
+        public long getTimestamp()
+        {
+            return timestamps[index];
+        }
+
+        public double getCpu()
+        {
+            return cpuValues[index];
+        }
+
+        public double getRss()
+        {
+            return rssValues[index];
+        }
+
+        public double getNetwork()
+        {
+            return networkValues[index];
+        }
+
+        /**
+         * @param valueIndex one of the MetricCollector indexes
+         */
+        public double get(int valueIndex)
+        {
+            if (valueIndex == MetricCollector.CPU_INDEX)
+                return cpuValues[index];
+
+            if (valueIndex == MetricCollector.RSS_INDEX)
+                return rssValues[index];
+
+            return networkValues[index];
+        }
+    }
+}
@@ -0,0 +1,91 @@
+/*******************************************************************************
+ * Copyright (c) 2020, 2020 IBM Corporation and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+
+package com.kruize.metrics;
+
+/**
+ * Maximum of a sliding window of values, each identified by an increasing sequence number.
+ *
+ * Only the values that may still become the maximum are kept, in a queue of decreasing
+ * values: a new value discards the smaller ones before it. Adding and evicting are both
+ * O(1) amortized, and the maximum is always at the front of the queue.
+ */
+class WindowMaximum
+{
+    private static final int INITIAL_CAPACITY = 16;
+
+    private long[] sequences = new long[INITIAL_CAPACITY];
+    private double[] values = new double[INITIAL_CAPACITY];
+    private int head = 0;
+    private int size = 0;
+
+    /**
+     * @param sequence sequence number of the value, above all those already added
+     */
+    void add(long sequence, double value)
+    {
+        while (size > 0 && values[getIndex(size - 1)] <= value) {
+            size--;
+        }
+
+        if (size == sequences.length)
+            grow();
+
+        int index = getIndex(size);
+        sequences[index] = sequence;
+        values[index] = value;
+        size++;
+    }
+
+    /**
+     * Forget the values with a sequence number below the given one.
+     */
+    void evictBefore(long sequence)
+    {
+        while (size > 0 && sequences[head] < sequence) {
+            head = (head + 1) % sequences.length;
+            size--;
+        }
+    }
+
+    /**
+     * @return maximum of the values in the window, or the default if there are none
+     */
+    double getMaximum(double defaultValue)
+    {
+        return size == 0 ? defaultValue : values[head];
+    }
+
+    private int getIndex(int position)
+    {
+        return (head + position) % sequences.length;
+    }
+
+    private void grow()
+    {
+        long[] newSequences = new long[sequences.length * 2];
+        double[] newValues = new double[values.length * 2];
+
+        for (int i = 0; i < size; i++) {
+            newSequences[i] = sequences[getIndex(i)];
+            newValues[i] = values[getIndex(i)];
+        }
+
+        sequences = newSequences;
+        values = newValues;
+        head = 0;
+    }
+}
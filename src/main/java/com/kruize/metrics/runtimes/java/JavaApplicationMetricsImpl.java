@@ -19,12 +19,16 @@ package com.kruize.metrics.runtimes.java;
 import com.kruize.exceptions.NoSuchApplicationException;
 
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class JavaApplicationMetricsImpl implements JavaApplicationMetrics
 {
-    public static HashMap<String, JavaApplicationInfo> javaApplicationInfoMap = new HashMap<>();
-    public static HashMap<String, ArrayList<JavaMetricCollector>> javaApplicationMetricsMap = new HashMap<>();
+    public static final ConcurrentHashMap<String, JavaApplicationInfo> javaApplicationInfoMap =
+            new ConcurrentHashMap<>();
+
+    /* Java metrics collected by application and not analysed yet */
+    public static final ConcurrentHashMap<String, ArrayList<JavaMetricCollector>> javaApplicationMetricsMap =
+            new ConcurrentHashMap<>();
 
     @Override
     public double getHeapSize(String application) throws NoSuchApplicationException
@@ -16,8 +16,6 @@
 
 package com.kruize.metrics.runtimes.java.openj9;
 
-import com.google.gson.JsonArray;
-import com.google.gson.JsonParser;
 import com.kruize.environment.DeploymentInfo;
 import com.kruize.environment.EnvTypeImpl;
 import com.kruize.exceptions.InvalidValueException;
@@ -30,6 +28,7 @@ import com.kruize.metrics.runtimes.java.openj9.heap.OpenJ9GenconHeap;
 import com.kruize.metrics.runtimes.java.openj9.heap.OpenJ9MetronomeHeap;
 import com.kruize.metrics.runtimes.java.openj9.heap.OpenJ9NoGcHeap;
 import com.kruize.query.Query;
+import com.kruize.query.prometheus.PrometheusResponseDecoder;
 import com.kruize.query.prometheus.runtimes.java.openj9.OpenJ9JavaQuery;
 import com.kruize.query.runtimes.java.JavaQuery;
 import com.kruize.util.HttpUtil;
@@ -37,8 +36,12 @@ import com.kruize.util.MathUtil;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.net.MalformedURLException;
+import java.io.IOException;
+import java.io.InputStream;
 import java.net.URL;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 
 public class OpenJ9MetricCollector extends JavaMetricCollector
 {
@@ -111,63 +114,81 @@ public class OpenJ9MetricCollector extends JavaMetricCollector
         this.rss = rss;
     }
 
-    public void collectOpenJ9Metrics(MetricsImpl metrics, String monitoringAgentEndPoint, String area)
+    /**
+     * Collect the RSS, heap and non-heap of an instance.
+     *
+     * @param metrics instance of the application
+     * @param monitoringAgentEndPoint monitoring agent endpoint
+     * @param area area of memory
+     * @param memoryById memory of the instance already fetched for all instances, keyed by the id label,
+     *                   or null to query the memory of the instance
+     */
+    public void collectOpenJ9Metrics(MetricsImpl metrics, String monitoringAgentEndPoint, String area,
+                                     Map<String, Double> memoryById)
     {
         String labelName = metrics.getLabelName();
         LOGGER.info("Calling openj9 collection");
 
         try {
-            double rss = getValueForQuery(new URL(monitoringAgentEndPoint +
+            /* Send both queries of the instance first, then wait for their responses */
+            CompletableFuture<InputStream> rssResponse = HttpUtil.getStreamFromURLAsync(new URL(monitoringAgentEndPoint +
                     query.getRssQuery(metrics.getName())));
-            setRss(MathUtil.bytesToMB(rss));
 
-            for (String partOfHeap: javaQuery.heapQuery.getPartsOfHeap())
-            {
-                double value = getValueForQuery(new URL(monitoringAgentEndPoint +
-                        javaQuery.heapQuery.getHeapQuery(labelName, partOfHeap, area)));
-                heap.setHeap(MathUtil.bytesToMB(value), partOfHeap);
+            CompletableFuture<InputStream> memoryResponse = null;
+            if (memoryById == null) {
+                memoryResponse = HttpUtil.getStreamFromURLAsync(new URL(monitoringAgentEndPoint +
+                        javaQuery.getMemoryQuery(labelName, area)));
             }
 
-            for (String partOfNonHeap : javaQuery.nonHeapQuery.getPartsOfNonHeap())
-            {
-                double value = getValueForQuery(new URL(monitoringAgentEndPoint +
-                        javaQuery.nonHeapQuery.getNonHeapQuery(labelName, partOfNonHeap, area)));
-                nonHeap.setNonHeap(MathUtil.bytesToMB(value), partOfNonHeap);
+            double rss = getValueForResponse(rssResponse);
+            setRss(MathUtil.bytesToMB(rss));
+
+            if (memoryById != null) {
+                for (Map.Entry<String, Double> memory : memoryById.entrySet()) {
+                    setMemory(memory.getKey(), memory.getValue());
+                }
+            } else {
+                PrometheusResponseDecoder.decode(memoryResponse.join(),
+                        (labels, timestamp, value) -> setMemory(labels.get("id"), value));
             }
 
-        } catch (InvalidValueException | IndexOutOfBoundsException | MalformedURLException | NullPointerException e) {
+        } catch (InvalidValueException | NullPointerException | IOException | CompletionException e) {
             e.printStackTrace();
         }
     }
 
-    private double getValueForQuery(URL url) throws IndexOutOfBoundsException
+    /**
+     * Route a memory series to its part of heap or non-heap
+     *
+     * @param id id label of the series
+     * @param bytes value of the series
+     */
+    private void setMemory(String id, double bytes)
     {
         try {
-            return getAsJsonArray(url)
-                    .get(1)
-                    .getAsDouble();
+            String partOfHeap = javaQuery.heapQuery.getPartOfHeap(id);
+            if (partOfHeap != null) {
+                heap.setHeap(MathUtil.bytesToMB(bytes), partOfHeap);
+                return;
+            }
 
-        } catch (Exception e) {
-            LOGGER.info(url.toString());
+            String partOfNonHeap = javaQuery.nonHeapQuery.getPartOfNonHeap(id);
+            if (partOfNonHeap != null)
+                nonHeap.setNonHeap(MathUtil.bytesToMB(bytes), partOfNonHeap);
+
+        } catch (InvalidValueException e) {
             e.printStackTrace();
-            return 0;
         }
     }
 
-    private JsonArray getAsJsonArray(URL url) throws IndexOutOfBoundsException
+    private double getValueForResponse(CompletableFuture<InputStream> response) throws IndexOutOfBoundsException
     {
-        String response = HttpUtil.getDataFromURL(url);
-
-        return new JsonParser()
-                .parse(response)
-                .getAsJsonObject()
-                .get("data")
-                .getAsJsonObject()
-                .get("result")
-                .getAsJsonArray()
-                .get(0)
-                .getAsJsonObject()
-                .get("value")
-                .getAsJsonArray();
+        try {
+            return PrometheusResponseDecoder.getFirstValue(response.join());
+
+        } catch (Exception e) {
+            e.printStackTrace();
+            return 0;
+        }
     }
 }
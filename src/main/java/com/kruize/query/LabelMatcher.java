@@ -0,0 +1,71 @@
+/*******************************************************************************
+ * Copyright (c) 2020, 2020 IBM Corporation and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+
+package com.kruize.query;
+
+/**
+ * Matcher of a label of the series selected by a query, such as pod="acmeair" or container!~"POD|".
+ * A label that is not set matches the empty string.
+ */
+public final class LabelMatcher
+{
+    /**
+     * Kinds of matchers, in the order of the LabelMatcher.Type enum of the Prometheus protocols
+     */
+    public enum Type
+    {
+        EQUAL,
+        NOT_EQUAL,
+        REGEX,
+        NOT_REGEX
+    }
+
+    private final Type type;
+    private final String name;
+    private final String value;
+
+    private LabelMatcher(Type type, String name, String value)
+    {
+        this.type = type;
+        this.name = name;
+        this.value = value;
+    }
+
+    public static LabelMatcher equal(String name, String value)
+    {
+        return new LabelMatcher(Type.EQUAL, name, value);
+    }
+
+    public static LabelMatcher notRegex(String name, String regex)
+    {
+        return new LabelMatcher(Type.NOT_REGEX, name, regex);
+    }
+
+    public Type getType()
+    {
+        return type;
+    }
+
+    public String getName()
+    {
+        return name;
+    }
+
+    public String getValue()
+    {
+        return value;
+    }
+}
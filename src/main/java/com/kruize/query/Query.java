@@ -16,6 +16,13 @@
 
 package com.kruize.query;
 
+import com.kruize.metrics.Metrics;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
 public interface Query
 {
     String getCpuQuery(String podName);
@@ -29,11 +36,76 @@ public interface Query
 
     String getAPIEndpoint();
 
-    String getPreviousCpuQuery(String podName);
-    String getPreviousRssQuery(String podName);
+    /**
+     * Queries for the history of an instance, with a single series in the result.
+     * Evaluated over a time range by {@link #getRangeQueryEndpoint()}, so they do not
+     * carry a range or subquery selector themselves.
+     *
+     * @param podName name of the instance
+     * @return query string
+     */
+    String getRangeCpuQuery(String podName);
+    String getRangeRssQuery(String podName);
+
+    String getRangeQueryEndpoint();
+
+    /**
+     * Matchers of the raw series summed up by the range queries, for the remote read API.
+     * The CPU series are counters of the CPU time used, in seconds.
+     *
+     * @param instance instance of an application
+     * @return label matchers, including one on the metric name
+     */
+    List<LabelMatcher> getCpuSeriesMatchers(Metrics instance);
+    List<LabelMatcher> getRssSeriesMatchers(Metrics instance);
+
+    String getRemoteReadEndpoint();
 
     String getPreviousCpuReqRec(String applicationName);
     String getPreviousCpuLimRec(String applicationName);
     String getPreviousMemReqRec(String applicationName);
     String getPreviousMemLimRec(String applicationName);
+
+    /**
+     * Queries returning the current values of all the given instances in a single result,
+     * with one series per instance. Sent as POST requests to {@link #getQueryPostEndpoint()}.
+     *
+     * @param instances instances to be queried
+     * @return query string
+     */
+    String getBatchedCpuQuery(Collection<? extends Metrics> instances);
+    String getBatchedRssQuery(Collection<? extends Metrics> instances);
+
+    String getQueryPostEndpoint();
+
+    /**
+     * Key identifying an instance in the result of a batched query
+     *
+     * @param labels labels of a series returned by a batched query
+     * @return key of the instance the series belongs to
+     */
+    String getInstanceKey(Map<String, String> labels);
+
+    /**
+     * @param instance instance of an application
+     * @return key of the instance, matching {@link #getInstanceKey(Map)} for its series
+     */
+    String getInstanceKey(Metrics instance);
+
+    /**
+     * Series pushed by the monitoring agent, summed up by instance the same way as by the
+     * batched queries. The CPU series are counters of the CPU time used, in seconds.
+     *
+     * @param labels labels of a pushed series, with its metric name as the __name__ label
+     * @return true if the series is part of the CPU, or the RSS, of the instance given by
+     * {@link #getInstanceKey(Map)}
+     */
+    boolean isCpuSeries(Map<String, String> labels);
+    boolean isRssSeries(Map<String, String> labels);
+
+    /**
+     * @return names of the metrics of the series matched by {@link #isCpuSeries(Map)} and
+     * {@link #isRssSeries(Map)}, for picking them out of scraped metrics
+     */
+    Set<String> getSeriesMetricNames();
 }
@@ -16,6 +16,17 @@
 
 package com.kruize.query.prometheus;
 
+import com.kruize.metrics.Metrics;
+import com.kruize.query.LabelMatcher;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+
 public class DockerPrometheusQuery extends PrometheusQuery {
 
     @Override
@@ -60,14 +71,81 @@ public class DockerPrometheusQuery extends PrometheusQuery {
     }
 
     @Override
-    public String getPreviousCpuQuery(String instanceName)
+    public String getRangeCpuQuery(String instanceName)
+    {
+        return "sum(rate(container_cpu_usage_seconds_total{name=\"" + instanceName + "\"}[1m]))";
+    }
+
+    @Override
+    public String getRangeRssQuery(String instanceName)
     {
-        return "rate(container_cpu_usage_seconds_total{name=\"" + instanceName + "\"}[1m])[5h:]";
+        return "sum(container_memory_working_set_bytes{name=\"" + instanceName + "\"})";
     }
 
     @Override
-    public String getPreviousRssQuery(String instanceName)
+    public String getBatchedCpuQuery(Collection<? extends Metrics> instances)
+    {
+        return "sum by (name) (rate(container_cpu_usage_seconds_total{name=~\"" +
+                getNameRegex(instances) + "\"}[1m]))";
+    }
+
+    @Override
+    public String getBatchedRssQuery(Collection<? extends Metrics> instances)
+    {
+        return "sum by (name) (container_memory_working_set_bytes{name=~\"" +
+                getNameRegex(instances) + "\"})";
+    }
+
+    @Override
+    public String getInstanceKey(Map<String, String> labels)
+    {
+        return labels.get("name");
+    }
+
+    @Override
+    public String getInstanceKey(Metrics instance)
+    {
+        return instance.getName();
+    }
+
+    @Override
+    public List<LabelMatcher> getCpuSeriesMatchers(Metrics instance)
+    {
+        return Arrays.asList(
+                LabelMatcher.equal("__name__", "container_cpu_usage_seconds_total"),
+                LabelMatcher.equal("name", instance.getName()));
+    }
+
+    @Override
+    public List<LabelMatcher> getRssSeriesMatchers(Metrics instance)
+    {
+        return Arrays.asList(
+                LabelMatcher.equal("__name__", "container_memory_working_set_bytes"),
+                LabelMatcher.equal("name", instance.getName()));
+    }
+
+    @Override
+    public boolean isCpuSeries(Map<String, String> labels)
+    {
+        return "container_cpu_usage_seconds_total".equals(labels.get("__name__")) && labels.containsKey("name");
+    }
+
+    @Override
+    public boolean isRssSeries(Map<String, String> labels)
+    {
+        return "container_memory_working_set_bytes".equals(labels.get("__name__")) && labels.containsKey("name");
+    }
+
+    @Override
+    public Set<String> getSeriesMetricNames()
+    {
+        return new HashSet<>(Arrays.asList("container_cpu_usage_seconds_total", "container_memory_working_set_bytes"));
+    }
+
+    private static String getNameRegex(Collection<? extends Metrics> instances)
     {
-        return "container_memory_working_set_bytes{name=\"" + instanceName + "\"}[5h]";
+        return getRegexAlternation(instances.stream()
+                .map(Metrics::getName)
+                .collect(Collectors.toList()));
     }
 }
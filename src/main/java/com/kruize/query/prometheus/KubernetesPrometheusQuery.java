@@ -16,6 +16,17 @@
 
 package com.kruize.query.prometheus;
 
+import com.kruize.metrics.Metrics;
+import com.kruize.query.LabelMatcher;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+
 public class KubernetesPrometheusQuery extends PrometheusQuery {
 
     @Override
@@ -60,18 +71,99 @@ public class KubernetesPrometheusQuery extends PrometheusQuery {
                 podLabel + "=~\"" + podName + ".*\"}";
     }
     @Override
-    public String getPreviousCpuQuery(String podName)
+    public String getRangeCpuQuery(String podName)
     {
-        return "rate(container_cpu_usage_seconds_total{" +
-                podLabel + "=~\"" + podName + "\"," +
-                containerLabel + "!=\"POD\"}[1m])[5h:]";
+        /* Same containers as the batched query, so that history and current values match */
+        return "sum(rate(container_cpu_usage_seconds_total{" +
+                podLabel + "=\"" + podName + "\"," +
+                containerLabel + "!~\"POD|\"}[1m]))";
+    }
+
+    @Override
+    public String getRangeRssQuery(String podName)
+    {
+        return "sum(container_memory_working_set_bytes{" +
+                containerLabel + "=\"\"," +
+                podLabel + "=\"" + podName + "\"})";
+    }
+
+    @Override
+    public List<LabelMatcher> getCpuSeriesMatchers(Metrics instance)
+    {
+        return Arrays.asList(
+                LabelMatcher.equal("__name__", "container_cpu_usage_seconds_total"),
+                LabelMatcher.equal("namespace", instance.getNamespace()),
+                LabelMatcher.equal(podLabel, instance.getName()),
+                LabelMatcher.notRegex(containerLabel, "POD|"));
+    }
+
+    @Override
+    public List<LabelMatcher> getRssSeriesMatchers(Metrics instance)
+    {
+        return Arrays.asList(
+                LabelMatcher.equal("__name__", "container_memory_working_set_bytes"),
+                LabelMatcher.equal("namespace", instance.getNamespace()),
+                LabelMatcher.equal(podLabel, instance.getName()),
+                LabelMatcher.equal(containerLabel, ""));
     }
 
     @Override
-    public String getPreviousRssQuery(String podName)
+    public String getBatchedCpuQuery(Collection<? extends Metrics> instances)
     {
-        return "container_memory_working_set_bytes{" +
+        /* Sum up the containers of each pod, leaving out the pause container
+         * and the cgroup of the pod itself, which would count them twice */
+        return "sum by (namespace," + podLabel + ") (rate(container_cpu_usage_seconds_total{" +
+                containerLabel + "!~\"POD|\"," +
+                "namespace=~\"" + getNamespaceRegex(instances) + "\"}[1m]))";
+    }
+
+    @Override
+    public String getBatchedRssQuery(Collection<? extends Metrics> instances)
+    {
+        return "sum by (namespace," + podLabel + ") (container_memory_working_set_bytes{" +
                 containerLabel + "=\"\"," +
-                podLabel + "=\"" + podName + "\"}[5h]";
+                "namespace=~\"" + getNamespaceRegex(instances) + "\"})";
+    }
+
+    @Override
+    public String getInstanceKey(Map<String, String> labels)
+    {
+        return labels.get("namespace") + "/" + labels.get(podLabel);
+    }
+
+    @Override
+    public String getInstanceKey(Metrics instance)
+    {
+        return instance.getNamespace() + "/" + instance.getName();
+    }
+
+    @Override
+    public boolean isCpuSeries(Map<String, String> labels)
+    {
+        /* Empty labels are not pushed, so the cgroup of the pod itself has no container label */
+        String container = labels.get(containerLabel);
+        return "container_cpu_usage_seconds_total".equals(labels.get("__name__"))
+                && container != null && !container.isEmpty() && !container.equals("POD");
+    }
+
+    @Override
+    public boolean isRssSeries(Map<String, String> labels)
+    {
+        String container = labels.get(containerLabel);
+        return "container_memory_working_set_bytes".equals(labels.get("__name__"))
+                && (container == null || container.isEmpty());
+    }
+
+    @Override
+    public Set<String> getSeriesMetricNames()
+    {
+        return new HashSet<>(Arrays.asList("container_cpu_usage_seconds_total", "container_memory_working_set_bytes"));
+    }
+
+    private static String getNamespaceRegex(Collection<? extends Metrics> instances)
+    {
+        return getRegexAlternation(instances.stream()
+                .map(Metrics::getNamespace)
+                .collect(Collectors.toSet()));
     }
 }
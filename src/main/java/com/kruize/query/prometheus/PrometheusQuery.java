@@ -19,6 +19,10 @@ package com.kruize.query.prometheus;
 import com.kruize.environment.DeploymentInfo;
 import com.kruize.query.Query;
 
+import java.util.Collection;
+import java.util.Set;
+import java.util.TreeSet;
+
 public abstract class PrometheusQuery implements Query
 {
     private static PrometheusQuery prometheusQuery = null;
@@ -47,6 +51,24 @@ public abstract class PrometheusQuery implements Query
         return "/api/v1/query?query=";
     }
 
+    @Override
+    public String getQueryPostEndpoint()
+    {
+        return "/api/v1/query";
+    }
+
+    @Override
+    public String getRangeQueryEndpoint()
+    {
+        return "/api/v1/query_range";
+    }
+
+    @Override
+    public String getRemoteReadEndpoint()
+    {
+        return "/api/v1/read";
+    }
+
     @Override
     public String getPreviousCpuReqRec(String applicationName)
     {
@@ -90,4 +112,31 @@ public abstract class PrometheusQuery implements Query
     {
         this.containerLabel = containerLabel;
     }
+
+    /**
+     * Build a regex matching exactly any of the given values, to be used
+     * inside a double quoted PromQL label matcher.
+     *
+     * @param values values to be matched
+     * @return regex alternation of the values
+     */
+    public static String getRegexAlternation(Collection<String> values)
+    {
+        /* Sorted and deduplicated, so that the same set of values gives the same query */
+        Set<String> sortedValues = new TreeSet<>(values);
+        StringBuilder regex = new StringBuilder();
+
+        for (String value : sortedValues) {
+            if (regex.length() > 0)
+                regex.append('|');
+
+            for (char character : value.toCharArray()) {
+                if ("\\.+*?()|[]{}^$".indexOf(character) >= 0)
+                    regex.append("\\\\");
+                regex.append(character);
+            }
+        }
+
+        return regex.toString();
+    }
 }
@@ -0,0 +1,308 @@
+/*******************************************************************************
+ * Copyright (c) 2020, 2020 IBM Corporation and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+
+package com.kruize.query.prometheus;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Decodes the JSON response of the Prometheus query APIs as it is read from the stream,
+ * handing every sample over as primitives instead of building a JSON tree of the response.
+ *
+ * Vector, matrix and scalar results are supported.
+ */
+public class PrometheusResponseDecoder
+{
+    /**
+     * Receives the samples of a query result, in the order they appear in the response.
+     */
+    public interface SampleHandler
+    {
+        /**
+         * @param labels labels of the series, the same map for all samples of a series
+         * @param timestamp timestamp of the sample in milliseconds
+         * @param value value of the sample
+         */
+        void onSample(Map<String, String> labels, long timestamp, double value);
+    }
+
+    private static final int INITIAL_BUFFER_SIZE = 64;
+
+    private PrometheusResponseDecoder() { }
+
+    /**
+     * Decode a query response, closing the stream once done.
+     *
+     * @param inputStream response of the query API
+     * @param handler handler for the samples of the result
+     * @throws IOException if the response cannot be read, is not valid, or the query failed
+     */
+    public static void decode(InputStream inputStream, SampleHandler handler) throws IOException
+    {
+        if (inputStream == null)
+            throw new IOException("No response to decode");
+
+        try (JsonReader reader = new JsonReader(new InputStreamReader(inputStream, StandardCharsets.UTF_8))) {
+            String status = null;
+            String error = null;
+
+            reader.beginObject();
+            while (reader.hasNext()) {
+                switch (reader.nextName()) {
+                    case "status":
+                        status = reader.nextString();
+                        break;
+                    case "error":
+                        error = reader.nextString();
+                        break;
+                    case "data":
+                        readData(reader, handler);
+                        break;
+                    default:
+                        reader.skipValue();
+                }
+            }
+            reader.endObject();
+
+            if ("error".equals(status))
+                throw new IOException("Query failed: " + error);
+
+        } catch (IllegalStateException | NumberFormatException e) {
+            throw new IOException("Invalid query response", e);
+        }
+    }
+
+    /**
+     * @param inputStream response of the query API
+     * @return value of the first sample of the first series in the result
+     * @throws IndexOutOfBoundsException if the result is empty
+     * @throws IOException if the response cannot be decoded
+     */
+    public static double getFirstValue(InputStream inputStream) throws IndexOutOfBoundsException, IOException
+    {
+        FirstSeriesHandler firstSeries = new FirstSeriesHandler();
+        decode(inputStream, firstSeries);
+
+        if (firstSeries.count == 0)
+            throw new IndexOutOfBoundsException("Empty query result");
+
+        return firstSeries.firstValue;
+    }
+
+    /**
+     * @param inputStream response of the query API
+     * @return value of the last sample of the first series in the result
+     * @throws IndexOutOfBoundsException if the result is empty
+     * @throws IOException if the response cannot be decoded
+     */
+    public static double getLastValue(InputStream inputStream) throws IndexOutOfBoundsException, IOException
+    {
+        FirstSeriesHandler firstSeries = new FirstSeriesHandler();
+        decode(inputStream, firstSeries);
+
+        if (firstSeries.count == 0)
+            throw new IndexOutOfBoundsException("Empty query result");
+
+        return firstSeries.lastValue;
+    }
+
+    /**
+     * @param inputStream response of the query API
+     * @return values of all samples of the first series in the result
+     * @throws IndexOutOfBoundsException if the result is empty
+     * @throws IOException if the response cannot be decoded
+     */
+    public static double[] getFirstSeriesValues(InputStream inputStream) throws IndexOutOfBoundsException, IOException
+    {
+        FirstSeriesHandler firstSeries = new FirstSeriesHandler();
+        firstSeries.values = new double[INITIAL_BUFFER_SIZE];
+        decode(inputStream, firstSeries);
+
+        if (firstSeries.count == 0)
+            throw new IndexOutOfBoundsException("Empty query result");
+
+        return Arrays.copyOf(firstSeries.values, firstSeries.count);
+    }
+
+    private static void readData(JsonReader reader, SampleHandler handler) throws IOException
+    {
+        reader.beginObject();
+        while (reader.hasNext()) {
+            if (!reader.nextName().equals("result")) {
+                reader.skipValue();
+                continue;
+            }
+
+            if (reader.peek() != JsonToken.BEGIN_ARRAY) {
+                reader.skipValue();
+                continue;
+            }
+
+            reader.beginArray();
+
+            /* A scalar result is a single [timestamp, value] pair instead of a list of series */
+            if (reader.peek() == JsonToken.NUMBER) {
+                long timestamp = toMillis(reader.nextDouble());
+                handler.onSample(Collections.emptyMap(), timestamp, parseValue(reader.nextString()));
+            } else {
+                while (reader.hasNext()) {
+                    readSeries(reader, handler);
+                }
+            }
+
+            reader.endArray();
+        }
+        reader.endObject();
+    }
+
+    private static void readSeries(JsonReader reader, SampleHandler handler) throws IOException
+    {
+        Map<String, String> labels = null;
+
+        /* Samples read before the labels of the series, which Prometheus always sends first */
+        long[] pendingTimestamps = null;
+        double[] pendingValues = null;
+        int pending = 0;
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+
+            if (name.equals("metric")) {
+                labels = readLabels(reader);
+                continue;
+            }
+
+            if (!name.equals("value") && !name.equals("values")) {
+                reader.skipValue();
+                continue;
+            }
+
+            boolean matrix = name.equals("values");
+            if (matrix)
+                reader.beginArray();
+
+            while (!matrix || reader.hasNext()) {
+                reader.beginArray();
+                long timestamp = toMillis(reader.nextDouble());
+                double value = parseValue(reader.nextString());
+                reader.endArray();
+
+                if (labels != null) {
+                    handler.onSample(labels, timestamp, value);
+                } else {
+                    if (pendingTimestamps == null) {
+                        pendingTimestamps = new long[INITIAL_BUFFER_SIZE];
+                        pendingValues = new double[INITIAL_BUFFER_SIZE];
+                    } else if (pending == pendingTimestamps.length) {
+                        pendingTimestamps = Arrays.copyOf(pendingTimestamps, pending * 2);
+                        pendingValues = Arrays.copyOf(pendingValues, pending * 2);
+                    }
+                    pendingTimestamps[pending] = timestamp;
+                    pendingValues[pending] = value;
+                    pending++;
+                }
+
+                if (!matrix)
+                    break;
+            }
+
+            if (matrix)
+                reader.endArray();
+        }
+        reader.endObject();
+
+        if (labels == null)
+            labels = Collections.emptyMap();
+
+        for (int i = 0; i < pending; i++) {
+            handler.onSample(labels, pendingTimestamps[i], pendingValues[i]);
+        }
+    }
+
+    private static Map<String, String> readLabels(JsonReader reader) throws IOException
+    {
+        Map<String, String> labels = new HashMap<>();
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            labels.put(reader.nextName(), reader.nextString());
+        }
+        reader.endObject();
+
+        return labels;
+    }
+
+    private static long toMillis(double timestampSeconds)
+    {
+        return Math.round(timestampSeconds * 1000);
+    }
+
+    private static double parseValue(String value)
+    {
+        switch (value) {
+            case "NaN":
+                return Double.NaN;
+            case "+Inf":
+                return Double.POSITIVE_INFINITY;
+            case "-Inf":
+                return Double.NEGATIVE_INFINITY;
+            default:
+                return Double.parseDouble(value);
+        }
+    }
+
+    private static class FirstSeriesHandler implements SampleHandler
+    {
+        private Map<String, String> firstLabels = null;
+        private double firstValue;
+        private double lastValue;
+        private int count = 0;
+
+        /* Only kept if allocated before decoding */
+        private double[] values = null;
+
+        @Override
+        public void onSample(Map<String, String> labels, long timestamp, double value)
+        {
+            if (firstLabels == null) {
+                firstLabels = labels;
+                firstValue = value;
+            }
+
+            /* All samples of a series share the same labels map */
+            if (labels == firstLabels) {
+                if (values != null) {
+                    if (count == values.length)
+                        values = Arrays.copyOf(values, count * 2);
+                    values[count] = value;
+                }
+                lastValue = value;
+                count++;
+            }
+        }
+    }
+}
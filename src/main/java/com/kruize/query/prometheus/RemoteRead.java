@@ -0,0 +1,380 @@
+/*******************************************************************************
+ * Copyright (c) 2020, 2020 IBM Corporation and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+
+package com.kruize.query.prometheus;
+
+import com.kruize.query.LabelMatcher;
+import com.kruize.util.Snappy;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32C;
+
+/**
+ * Requests and responses of the Prometheus remote read API, asking for the raw samples of
+ * the series as streamed XOR chunks.
+ *
+ * The request is a snappy compressed protobuf ReadRequest:
+ * <pre>
+ *   ReadRequest  { repeated Query queries = 1; repeated ResponseType accepted_response_types = 2; }
+ *   Query        { int64 start_timestamp_ms = 1; int64 end_timestamp_ms = 2; repeated LabelMatcher matchers = 3; }
+ *   LabelMatcher { Type type = 1; string name = 2; string value = 3; }
+ * </pre>
+ * The response is a stream of frames, each one the length of a message as a varint, the CRC32C
+ * of the message as four big endian bytes, and an uncompressed ChunkedReadResponse:
+ * <pre>
+ *   ChunkedReadResponse { repeated ChunkedSeries chunked_series = 1; int64 query_index = 2; }
+ *   ChunkedSeries       { repeated Label labels = 1; repeated Chunk chunks = 2; }
+ *   Chunk               { int64 min_time_ms = 1; int64 max_time_ms = 2; Encoding type = 3; bytes data = 4; }
+ * </pre>
+ * The chunks of a series are sent in time order, and the chunks of a long series can be split
+ * across several frames, each one carrying the labels of the series again.
+ */
+public class RemoteRead
+{
+    /**
+     * Receives the samples of the chunks of a remote read response, in the order they appear in it.
+     */
+    public interface ChunkHandler
+    {
+        /**
+         * @param queryIndex index of the query the series is selected by
+         * @param labels labels of the series, equal maps for all chunks of a series
+         * @param timestamps timestamps of the samples in milliseconds, oldest first
+         * @param values values of the samples
+         * @param count number of samples of the chunk, the arrays being reused for the next chunk
+         */
+        void onChunk(int queryIndex, Map<String, String> labels, long[] timestamps, double[] values, int count);
+    }
+
+    public static final String CONTENT_TYPE = "application/x-protobuf";
+    public static final String CONTENT_ENCODING = "snappy";
+    public static final String VERSION = "0.1.0";
+
+    private static final int RESPONSE_TYPE_STREAMED_XOR_CHUNKS = 1;
+    private static final int ENCODING_XOR = 1;
+
+    /* Largest frame accepted, Prometheus sending frames of about 1MB */
+    private static final int MAX_FRAME_SIZE = 64 << 20;
+
+    private static final int WIRE_VARINT = 0;
+    private static final int WIRE_FIXED64 = 1;
+    private static final int WIRE_LENGTH_DELIMITED = 2;
+    private static final int WIRE_FIXED32 = 5;
+
+    /* Chunks hold at most 120 samples when written by Prometheus, and 65535 by their format */
+    private long[] timestamps = new long[128];
+    private double[] values = new double[128];
+
+    private byte[] frame;
+    private int frameEnd;
+    private int position;
+
+    private RemoteRead() { }
+
+    /**
+     * @param startMillis start of the time range, inclusive
+     * @param endMillis end of the time range, inclusive
+     * @param queries label matchers of each query
+     * @return snappy compressed ReadRequest for the raw samples of the series selected by the queries
+     */
+    public static byte[] encodeRequest(long startMillis, long endMillis, List<List<LabelMatcher>> queries)
+    {
+        ByteArrayOutputStream request = new ByteArrayOutputStream();
+
+        for (List<LabelMatcher> matchers : queries) {
+            ByteArrayOutputStream query = new ByteArrayOutputStream();
+            writeVarintField(query, 1, startMillis);
+            writeVarintField(query, 2, endMillis);
+
+            for (LabelMatcher matcher : matchers) {
+                ByteArrayOutputStream labelMatcher = new ByteArrayOutputStream();
+                writeVarintField(labelMatcher, 1, matcher.getType().ordinal());
+                writeBytesField(labelMatcher, 2, matcher.getName().getBytes(StandardCharsets.UTF_8));
+                writeBytesField(labelMatcher, 3, matcher.getValue().getBytes(StandardCharsets.UTF_8));
+                writeBytesField(query, 3, labelMatcher.toByteArray());
+            }
+
+            writeBytesField(request, 1, query.toByteArray());
+        }
+
+        writeVarintField(request, 2, RESPONSE_TYPE_STREAMED_XOR_CHUNKS);
+
+        return Snappy.compress(request.toByteArray());
+    }
+
+    /**
+     * Decode a streamed remote read response, closing the stream once done.
+     *
+     * @param inputStream response of the remote read API
+     * @param handler handler for the samples of the chunks
+     * @throws IOException if the response cannot be read or is not valid
+     */
+    public static void decode(InputStream inputStream, ChunkHandler handler) throws IOException
+    {
+        if (inputStream == null)
+            throw new IOException("No response to decode");
+
+        RemoteRead decoder = new RemoteRead();
+        CRC32C crc = new CRC32C();
+
+        try (DataInputStream input = new DataInputStream(inputStream)) {
+            int size;
+            while ((size = readFrameSize(input)) >= 0) {
+                int checksum = input.readInt();
+
+                if (decoder.frame == null || decoder.frame.length < size)
+                    decoder.frame = new byte[Math.max(size, 1024)];
+                input.readFully(decoder.frame, 0, size);
+
+                crc.reset();
+                crc.update(decoder.frame, 0, size);
+                if ((int) crc.getValue() != checksum)
+                    throw new IOException("Corrupted remote read frame");
+
+                decoder.frameEnd = size;
+                decoder.readChunkedReadResponse(size, handler);
+            }
+        } catch (EOFException e) {
+            throw new IOException("Truncated remote read response");
+        } catch (ArrayIndexOutOfBoundsException e) {
+            throw new IOException("Invalid remote read response");
+        }
+    }
+
+    /**
+     * @return size of the next frame, or -1 at the end of the response
+     */
+    private static int readFrameSize(InputStream input) throws IOException
+    {
+        long size = 0;
+
+        for (int shift = 0; shift < 35; shift += 7) {
+            int b = input.read();
+            if (b < 0) {
+                if (shift == 0)
+                    return -1;
+                throw new EOFException();
+            }
+
+            size |= (long) (b & 0x7F) << shift;
+            if (b < 0x80) {
+                if (size > MAX_FRAME_SIZE)
+                    throw new IOException("Remote read frame too large: " + size);
+                return (int) size;
+            }
+        }
+
+        throw new IOException("Invalid remote read frame size");
+    }
+
+    private void readChunkedReadResponse(int end, ChunkHandler handler) throws IOException
+    {
+        /* The index of the query comes after the series, so it is looked up first */
+        int queryIndex = 0;
+        position = 0;
+        while (position < end) {
+            int key = (int) readVarint();
+            if (key == (2 << 3 | WIRE_VARINT))
+                queryIndex = (int) readVarint();
+            else
+                skipField(key);
+        }
+
+        position = 0;
+        while (position < end) {
+            int key = (int) readVarint();
+            if (key == (1 << 3 | WIRE_LENGTH_DELIMITED))
+                readChunkedSeries(readLength(), queryIndex, handler);
+            else
+                skipField(key);
+        }
+        checkEnd(end);
+    }
+
+    private void readChunkedSeries(int end, int queryIndex, ChunkHandler handler) throws IOException
+    {
+        /* Labels come before the chunks, but are only relied on once the series is read */
+        Map<String, String> labels = new HashMap<>();
+        int start = position;
+
+        while (position < end) {
+            int key = (int) readVarint();
+            if (key == (1 << 3 | WIRE_LENGTH_DELIMITED))
+                readLabel(readLength(), labels);
+            else
+                skipField(key);
+        }
+        checkEnd(end);
+
+        position = start;
+        while (position < end) {
+            int key = (int) readVarint();
+            if (key == (2 << 3 | WIRE_LENGTH_DELIMITED))
+                readChunk(readLength(), queryIndex, labels, handler);
+            else
+                skipField(key);
+        }
+    }
+
+    private void readLabel(int end, Map<String, String> labels) throws IOException
+    {
+        String name = null;
+        String value = "";
+
+        while (position < end) {
+            int key = (int) readVarint();
+
+            if (key == (1 << 3 | WIRE_LENGTH_DELIMITED))
+                name = readString();
+            else if (key == (2 << 3 | WIRE_LENGTH_DELIMITED))
+                value = readString();
+            else
+                skipField(key);
+        }
+        checkEnd(end);
+
+        if (name != null)
+            labels.put(name, value);
+    }
+
+    private void readChunk(int end, int queryIndex, Map<String, String> labels, ChunkHandler handler)
+            throws IOException
+    {
+        int encoding = 0;
+        int dataStart = -1;
+        int dataEnd = -1;
+
+        while (position < end) {
+            int key = (int) readVarint();
+
+            if (key == (3 << 3 | WIRE_VARINT)) {
+                encoding = (int) readVarint();
+            } else if (key == (4 << 3 | WIRE_LENGTH_DELIMITED)) {
+                dataEnd = readLength();
+                dataStart = position;
+                position = dataEnd;
+            } else {
+                skipField(key);
+            }
+        }
+        checkEnd(end);
+
+        if (encoding != ENCODING_XOR)
+            throw new IOException("Unsupported chunk encoding: " + encoding);
+        if (dataStart < 0)
+            return;
+
+        int count = XorChunk.getCount(frame, dataStart, dataEnd - dataStart);
+        if (count > timestamps.length) {
+            timestamps = new long[count];
+            values = new double[count];
+        }
+
+        count = XorChunk.decode(frame, dataStart, dataEnd - dataStart, timestamps, values);
+        handler.onChunk(queryIndex, labels, timestamps, values, count);
+    }
+
+    private long readVarint() throws IOException
+    {
+        long result = 0;
+
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = frame[position++];
+            result |= (long) (b & 0x7F) << shift;
+            if (b >= 0)
+                return result;
+        }
+
+        throw new IOException("Invalid varint in remote read response");
+    }
+
+    /**
+     * @return end of a length delimited field, whose length was just read
+     */
+    private int readLength() throws IOException
+    {
+        long length = readVarint();
+
+        if (length < 0 || length > frameEnd - position)
+            throw new IOException("Invalid field length in remote read response");
+
+        return position + (int) length;
+    }
+
+    private String readString() throws IOException
+    {
+        int end = readLength();
+        String value = new String(frame, position, end - position, StandardCharsets.UTF_8);
+        position = end;
+        return value;
+    }
+
+    private void skipField(int key) throws IOException
+    {
+        switch (key & 0x07) {
+            case WIRE_VARINT:
+                readVarint();
+                break;
+            case WIRE_FIXED64:
+                position += 8;
+                break;
+            case WIRE_LENGTH_DELIMITED:
+                position = readLength();
+                break;
+            case WIRE_FIXED32:
+                position += 4;
+                break;
+            default:
+                throw new IOException("Unsupported wire type in remote read response: " + (key & 0x07));
+        }
+    }
+
+    private void checkEnd(int end) throws IOException
+    {
+        if (position != end)
+            throw new IOException("Invalid message length in remote read response");
+    }
+
+    private static void writeVarintField(ByteArrayOutputStream output, int field, long value)
+    {
+        writeVarint(output, field << 3 | WIRE_VARINT);
+        writeVarint(output, value);
+    }
+
+    private static void writeBytesField(ByteArrayOutputStream output, int field, byte[] value)
+    {
+        writeVarint(output, field << 3 | WIRE_LENGTH_DELIMITED);
+        writeVarint(output, value.length);
+        output.write(value, 0, value.length);
+    }
+
+    private static void writeVarint(ByteArrayOutputStream output, long value)
+    {
+        while ((value & ~0x7FL) != 0) {
+            output.write((int) (value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        output.write((int) value);
+    }
+}
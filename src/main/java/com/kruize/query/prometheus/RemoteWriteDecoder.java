@@ -0,0 +1,228 @@
+/*******************************************************************************
+ * Copyright (c) 2020, 2020 IBM Corporation and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+
+package com.kruize.query.prometheus;
+
+import com.kruize.util.Snappy;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Decodes the snappy compressed protobuf WriteRequest sent by the Prometheus remote write protocol,
+ * handing every sample over as primitives, the same way as the samples of a query response.
+ *
+ * Only the fields used by Kruize are read, the others being skipped:
+ * <pre>
+ *   WriteRequest { repeated TimeSeries timeseries = 1; }
+ *   TimeSeries   { repeated Label labels = 1; repeated Sample samples = 2; }
+ *   Label        { string name = 1; string value = 2; }
+ *   Sample       { double value = 1; int64 timestamp = 2; }
+ * </pre>
+ * The metric name is the __name__ label of a series.
+ */
+public class RemoteWriteDecoder
+{
+    private static final int WIRE_VARINT = 0;
+    private static final int WIRE_FIXED64 = 1;
+    private static final int WIRE_LENGTH_DELIMITED = 2;
+    private static final int WIRE_FIXED32 = 5;
+
+    private final byte[] buffer;
+    private int position;
+
+    /* Samples of the series being decoded, handed over once its labels are known */
+    private long[] timestamps = new long[4];
+    private double[] values = new double[4];
+    private int sampleCount;
+
+    private RemoteWriteDecoder(byte[] buffer)
+    {
+        this.buffer = buffer;
+    }
+
+    /**
+     * Decode the body of a remote write request.
+     *
+     * @param body snappy compressed WriteRequest
+     * @param handler handler for the samples of the request
+     * @throws IOException if the request is not valid
+     */
+    public static void decode(byte[] body, PrometheusResponseDecoder.SampleHandler handler) throws IOException
+    {
+        RemoteWriteDecoder decoder = new RemoteWriteDecoder(Snappy.decompress(body));
+
+        try {
+            decoder.readWriteRequest(handler);
+        } catch (ArrayIndexOutOfBoundsException e) {
+            throw new IOException("Truncated remote write request");
+        }
+    }
+
+    private void readWriteRequest(PrometheusResponseDecoder.SampleHandler handler) throws IOException
+    {
+        while (position < buffer.length) {
+            int key = (int) readVarint();
+
+            if (key == (1 << 3 | WIRE_LENGTH_DELIMITED))
+                readTimeSeries(readLength(), handler);
+            else
+                skipField(key);
+        }
+    }
+
+    private void readTimeSeries(int end, PrometheusResponseDecoder.SampleHandler handler) throws IOException
+    {
+        Map<String, String> labels = new HashMap<>();
+        sampleCount = 0;
+
+        while (position < end) {
+            int key = (int) readVarint();
+
+            if (key == (1 << 3 | WIRE_LENGTH_DELIMITED))
+                readLabel(readLength(), labels);
+            else if (key == (2 << 3 | WIRE_LENGTH_DELIMITED))
+                readSample(readLength());
+            else
+                skipField(key);
+        }
+        checkEnd(end);
+
+        for (int i = 0; i < sampleCount; i++) {
+            handler.onSample(labels, timestamps[i], values[i]);
+        }
+    }
+
+    private void readLabel(int end, Map<String, String> labels) throws IOException
+    {
+        String name = null;
+        String value = "";
+
+        while (position < end) {
+            int key = (int) readVarint();
+
+            if (key == (1 << 3 | WIRE_LENGTH_DELIMITED))
+                name = readString();
+            else if (key == (2 << 3 | WIRE_LENGTH_DELIMITED))
+                value = readString();
+            else
+                skipField(key);
+        }
+        checkEnd(end);
+
+        if (name != null)
+            labels.put(name, value);
+    }
+
+    private void readSample(int end) throws IOException
+    {
+        double value = 0;
+        long timestamp = 0;
+
+        while (position < end) {
+            int key = (int) readVarint();
+
+            if (key == (1 << 3 | WIRE_FIXED64))
+                value = Double.longBitsToDouble(readFixed64());
+            else if (key == (2 << 3 | WIRE_VARINT))
+                timestamp = readVarint();
+            else
+                skipField(key);
+        }
+        checkEnd(end);
+
+        if (sampleCount == timestamps.length) {
+            timestamps = Arrays.copyOf(timestamps, sampleCount * 2);
+            values = Arrays.copyOf(values, sampleCount * 2);
+        }
+        timestamps[sampleCount] = timestamp;
+        values[sampleCount] = value;
+        sampleCount++;
+    }
+
+    private long readVarint() throws IOException
+    {
+        long result = 0;
+
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = buffer[position++];
+            result |= (long) (b & 0x7F) << shift;
+            if (b >= 0)
+                return result;
+        }
+
+        throw new IOException("Invalid varint in remote write request");
+    }
+
+    private long readFixed64()
+    {
+        long result = 0;
+        for (int i = 0; i < 8; i++) {
+            result |= (long) (buffer[position++] & 0xFF) << (8 * i);
+        }
+        return result;
+    }
+
+    /**
+     * @return end of a length delimited field, whose length was just read
+     */
+    private int readLength() throws IOException
+    {
+        long length = readVarint();
+
+        if (length < 0 || length > buffer.length - position)
+            throw new IOException("Invalid field length in remote write request");
+
+        return position + (int) length;
+    }
+
+    private String readString() throws IOException
+    {
+        int end = readLength();
+        String value = new String(buffer, position, end - position, StandardCharsets.UTF_8);
+        position = end;
+        return value;
+    }
+
+    private void skipField(int key) throws IOException
+    {
+        switch (key & 0x07) {
+            case WIRE_VARINT:
+                readVarint();
+                break;
+            case WIRE_FIXED64:
+                position += 8;
+                break;
+            case WIRE_LENGTH_DELIMITED:
+                position = readLength();
+                break;
+            case WIRE_FIXED32:
+                position += 4;
+                break;
+            default:
+                throw new IOException("Unsupported wire type in remote write request: " + (key & 0x07));
+        }
+    }
+
+    private void checkEnd(int end) throws IOException
+    {
+        if (position != end)
+            throw new IOException("Invalid message length in remote write request");
+    }
+}
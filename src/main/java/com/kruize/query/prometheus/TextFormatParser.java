@@ -0,0 +1,334 @@
+/*******************************************************************************
+ * Copyright (c) 2020, 2020 IBM Corporation and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+
+package com.kruize.query.prometheus;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Parses the Prometheus text exposition format as it is read from the stream, such as the
+ * metrics exposed by the kubelets:
+ * <pre>
+ *   # TYPE container_cpu_usage_seconds_total counter
+ *   container_cpu_usage_seconds_total{container="web",namespace="default",pod="web-1"} 42.5 1600000000000
+ * </pre>
+ * Lines are parsed in place in the read buffer. Only the samples of the requested metrics are
+ * handed over, the other lines being skipped once their metric name is read, so that the many
+ * metrics that are not used cost no allocation.
+ */
+public final class TextFormatParser
+{
+    private static final int BUFFER_SIZE = 64 << 10;
+
+    /* Longest line accepted, so that a response without line ends does not grow the buffer without bound */
+    private static final int MAX_LINE_LENGTH = 1 << 20;
+
+    private final byte[][] metricNames;
+    private final String[] metricNameStrings;
+
+    private byte[] buffer = new byte[BUFFER_SIZE];
+    private int lineStart;
+    private int position;
+    private int lineEnd;
+
+    /* Label values with escapes, decoded before being turned into strings */
+    private ByteArrayOutputStream unescaped = null;
+
+    private TextFormatParser(Set<String> metricNames)
+    {
+        this.metricNameStrings = metricNames.toArray(new String[0]);
+        this.metricNames = new byte[metricNameStrings.length][];
+
+        for (int i = 0; i < metricNameStrings.length; i++) {
+            this.metricNames[i] = metricNameStrings[i].getBytes(StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * Parse metrics in the text format, closing the stream once done.
+     *
+     * @param inputStream metrics in the text format
+     * @param metricNames names of the metrics whose samples are handed over
+     * @param timestamp timestamp in milliseconds of the samples exposed without one
+     * @param handler handler for the samples, with the metric name as the __name__ label
+     * @throws IOException if the metrics cannot be read or a line of the requested metrics is not valid
+     */
+    public static void parse(InputStream inputStream, Set<String> metricNames, long timestamp,
+                             PrometheusResponseDecoder.SampleHandler handler) throws IOException
+    {
+        if (inputStream == null)
+            throw new IOException("No metrics to parse");
+
+        TextFormatParser parser = new TextFormatParser(metricNames);
+
+        try (InputStream input = inputStream) {
+            parser.parseLines(input, timestamp, handler);
+        }
+    }
+
+    private void parseLines(InputStream input, long timestamp, PrometheusResponseDecoder.SampleHandler handler)
+            throws IOException
+    {
+        int start = 0;
+        int limit = 0;
+        int scanned = 0;
+        boolean endOfStream = false;
+
+        while (true) {
+            int newline = indexOf(buffer, scanned, limit, (byte) '\n');
+
+            if (newline < 0 && !endOfStream) {
+                scanned = limit;
+
+                /* Move the partial line to the start of the buffer, growing it for long lines */
+                if (start > 0) {
+                    System.arraycopy(buffer, start, buffer, 0, limit - start);
+                    limit -= start;
+                    scanned -= start;
+                    start = 0;
+                } else if (limit == buffer.length) {
+                    if (buffer.length >= MAX_LINE_LENGTH)
+                        throw new IOException("Line longer than " + MAX_LINE_LENGTH + " bytes");
+                    buffer = Arrays.copyOf(buffer, buffer.length * 2);
+                }
+
+                int read = input.read(buffer, limit, buffer.length - limit);
+                if (read < 0)
+                    endOfStream = true;
+                else
+                    limit += read;
+                continue;
+            }
+
+            int end = newline < 0 ? limit : newline;
+            if (end > start && buffer[end - 1] == '\r')
+                end--;
+
+            parseLine(start, end, timestamp, handler);
+
+            if (newline < 0)
+                return;
+
+            start = newline + 1;
+            scanned = start;
+        }
+    }
+
+    private void parseLine(int start, int end, long defaultTimestamp, PrometheusResponseDecoder.SampleHandler handler)
+            throws IOException
+    {
+        lineStart = start;
+        position = start;
+        lineEnd = end;
+
+        skipWhitespace();
+        if (position == lineEnd || buffer[position] == '#')
+            return;
+
+        int nameStart = position;
+        while (position < lineEnd && buffer[position] != '{' && !isWhitespace(buffer[position])) {
+            position++;
+        }
+
+        String name = getMetricName(nameStart, position);
+        if (name == null)
+            return;
+
+        Map<String, String> labels = new HashMap<>();
+        labels.put("__name__", name);
+
+        skipWhitespace();
+        if (position < lineEnd && buffer[position] == '{') {
+            position++;
+            parseLabels(labels);
+        }
+
+        skipWhitespace();
+        double value = parseValue(readToken());
+
+        skipWhitespace();
+        long timestamp = defaultTimestamp;
+        if (position < lineEnd)
+            timestamp = parseTimestamp(readToken());
+
+        handler.onSample(labels, timestamp, value);
+    }
+
+    /**
+     * @return name of the requested metric in the buffer between start and end, null if it is not requested
+     */
+    private String getMetricName(int start, int end)
+    {
+        for (int i = 0; i < metricNames.length; i++) {
+            if (Arrays.equals(buffer, start, end, metricNames[i], 0, metricNames[i].length))
+                return metricNameStrings[i];
+        }
+
+        return null;
+    }
+
+    private void parseLabels(Map<String, String> labels) throws IOException
+    {
+        while (true) {
+            skipWhitespace();
+            if (position == lineEnd)
+                throw invalidLine();
+            if (buffer[position] == '}') {
+                position++;
+                return;
+            }
+
+            int nameStart = position;
+            while (position < lineEnd && buffer[position] != '=' && !isWhitespace(buffer[position])) {
+                position++;
+            }
+            String name = new String(buffer, nameStart, position - nameStart, StandardCharsets.UTF_8);
+
+            skipWhitespace();
+            expect('=');
+            skipWhitespace();
+            expect('"');
+            labels.put(name, readLabelValue());
+
+            skipWhitespace();
+            if (position < lineEnd && buffer[position] == ',')
+                position++;
+        }
+    }
+
+    /**
+     * @return label value up to its closing quote, with the \\, \" and \n escapes decoded
+     */
+    private String readLabelValue() throws IOException
+    {
+        int valueStart = position;
+        boolean escaped = false;
+
+        while (position < lineEnd && buffer[position] != '"') {
+            if (buffer[position] == '\\') {
+                escaped = true;
+                position++;
+            }
+            position++;
+        }
+
+        if (position >= lineEnd)
+            throw invalidLine();
+
+        int valueEnd = position++;
+        if (!escaped)
+            return new String(buffer, valueStart, valueEnd - valueStart, StandardCharsets.UTF_8);
+
+        if (unescaped == null)
+            unescaped = new ByteArrayOutputStream();
+        unescaped.reset();
+
+        for (int i = valueStart; i < valueEnd; i++) {
+            byte b = buffer[i];
+            if (b == '\\') {
+                b = buffer[++i];
+                if (b == 'n')
+                    b = '\n';
+            }
+            unescaped.write(b);
+        }
+
+        return new String(unescaped.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    private String readToken() throws IOException
+    {
+        int tokenStart = position;
+        while (position < lineEnd && !isWhitespace(buffer[position])) {
+            position++;
+        }
+
+        if (position == tokenStart)
+            throw invalidLine();
+
+        return new String(buffer, tokenStart, position - tokenStart, StandardCharsets.ISO_8859_1);
+    }
+
+    private double parseValue(String token) throws IOException
+    {
+        switch (token) {
+            case "+Inf":
+            case "Inf":
+                return Double.POSITIVE_INFINITY;
+            case "-Inf":
+                return Double.NEGATIVE_INFINITY;
+            case "NaN":
+                return Double.NaN;
+            default:
+                try {
+                    return Double.parseDouble(token);
+                } catch (NumberFormatException e) {
+                    throw invalidLine();
+                }
+        }
+    }
+
+    private long parseTimestamp(String token) throws IOException
+    {
+        try {
+            return Long.parseLong(token);
+        } catch (NumberFormatException e) {
+            throw invalidLine();
+        }
+    }
+
+    private void expect(char character) throws IOException
+    {
+        if (position == lineEnd || buffer[position] != character)
+            throw invalidLine();
+        position++;
+    }
+
+    private void skipWhitespace()
+    {
+        while (position < lineEnd && isWhitespace(buffer[position])) {
+            position++;
+        }
+    }
+
+    private static boolean isWhitespace(byte b)
+    {
+        return b == ' ' || b == '\t';
+    }
+
+    private static int indexOf(byte[] array, int from, int to, byte b)
+    {
+        for (int i = from; i < to; i++) {
+            if (array[i] == b)
+                return i;
+        }
+
+        return -1;
+    }
+
+    private IOException invalidLine()
+    {
+        return new IOException("Invalid line in text format: "
+                + new String(buffer, lineStart, Math.min(lineEnd - lineStart, 128), StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,181 @@
+/*******************************************************************************
+ * Copyright (c) 2020, 2020 IBM Corporation and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+
+package com.kruize.query.prometheus;
+
+import java.io.IOException;
+
+/**
+ * Decoder of the XOR chunks of the Prometheus TSDB, holding up to a few hundred samples of a series.
+ *
+ * A chunk starts with its number of samples, as two big endian bytes, followed by a bit stream:
+ * <pre>
+ *   first sample   timestamp (signed varint) | value (64 bits)
+ *   second sample  timestamp delta (varint) | value
+ *   next samples   delta of the timestamp delta | value
+ * </pre>
+ * Deltas of deltas are written with a prefix giving their size: 0 for none, 10 for 14 bits,
+ * 110 for 17 bits, 1110 for 20 bits and 1111 for 64 bits. Values after the first are the XOR
+ * with the previous value: 0 if it is the same, 10 for the meaningful bits within the leading
+ * and trailing zeros of the previous XOR, 11 for 5 bits of leading zeros, 6 bits of length
+ * and the meaningful bits.
+ */
+final class XorChunk
+{
+    private final byte[] data;
+    private final int end;
+
+    /* Position in bits from the start of the array */
+    private long bitPosition;
+
+    private XorChunk(byte[] data, int offset, int length)
+    {
+        this.data = data;
+        this.end = offset + length;
+        this.bitPosition = (long) offset * 8;
+    }
+
+    /**
+     * @return number of samples of the chunk at the offset
+     */
+    static int getCount(byte[] data, int offset, int length) throws IOException
+    {
+        if (length < 2)
+            throw new IOException("Truncated XOR chunk");
+
+        return (data[offset] & 0xFF) << 8 | (data[offset + 1] & 0xFF);
+    }
+
+    /**
+     * Decode the samples of a chunk, oldest first.
+     *
+     * @param timestamps array for the timestamps in milliseconds, with room for {@link #getCount} samples
+     * @param values array for the values, with room for {@link #getCount} samples
+     * @return number of samples decoded
+     * @throws IOException if the chunk is not valid
+     */
+    static int decode(byte[] data, int offset, int length, long[] timestamps, double[] values) throws IOException
+    {
+        int count = getCount(data, offset, length);
+        XorChunk chunk = new XorChunk(data, offset + 2, length - 2);
+
+        long timestamp = 0;
+        long timestampDelta = 0;
+        long valueBits = 0;
+        int leading = 0;
+        int trailing = 0;
+
+        for (int i = 0; i < count; i++) {
+            if (i == 0) {
+                long zigzag = chunk.readVarint();
+                timestamp = (zigzag >>> 1) ^ -(zigzag & 1);
+                valueBits = chunk.readBits(64);
+            } else {
+                if (i == 1) {
+                    timestampDelta = chunk.readVarint();
+                } else {
+                    timestampDelta += chunk.readDeltaOfDelta();
+                }
+                timestamp += timestampDelta;
+
+                if (chunk.readBit()) {
+                    if (chunk.readBit()) {
+                        leading = (int) chunk.readBits(5);
+                        int significant = (int) chunk.readBits(6);
+                        if (significant == 0)
+                            significant = 64;
+                        trailing = 64 - leading - significant;
+
+                        if (trailing < 0)
+                            throw new IOException("Invalid XOR chunk value");
+                    }
+
+                    int significant = 64 - leading - trailing;
+                    valueBits ^= chunk.readBits(significant) << trailing;
+                }
+            }
+
+            timestamps[i] = timestamp;
+            values[i] = Double.longBitsToDouble(valueBits);
+        }
+
+        return count;
+    }
+
+    private long readDeltaOfDelta() throws IOException
+    {
+        int size;
+        if (!readBit())
+            return 0;
+        else if (!readBit())
+            size = 14;
+        else if (!readBit())
+            size = 17;
+        else if (!readBit())
+            size = 20;
+        else
+            return readBits(64);
+
+        /* Two's complement on the size, except that the largest negative value stands for the positive one */
+        long bits = readBits(size);
+        if (bits > (1L << (size - 1)))
+            bits -= 1L << size;
+
+        return bits;
+    }
+
+    private long readVarint() throws IOException
+    {
+        long result = 0;
+
+        for (int shift = 0; shift < 64; shift += 7) {
+            long b = readBits(8);
+            result |= (b & 0x7F) << shift;
+            if (b < 0x80)
+                return result;
+        }
+
+        throw new IOException("Invalid varint in XOR chunk");
+    }
+
+    private boolean readBit() throws IOException
+    {
+        return readBits(1) != 0;
+    }
+
+    private long readBits(int count) throws IOException
+    {
+        if (bitPosition + count > (long) end * 8)
+            throw new IOException("Truncated XOR chunk");
+
+        long result = 0;
+        while (count > 0) {
+            int index = (int) (bitPosition >>> 3);
+            int bitOffset = (int) (bitPosition & 7);
+
+            /* Bits of the current byte, most significant first */
+            int available = 8 - bitOffset;
+            int taken = Math.min(available, count);
+            int bits = ((data[index] & 0xFF) >>> (available - taken)) & ((1 << taken) - 1);
+
+            result = (result << taken) | bits;
+            bitPosition += taken;
+            count -= taken;
+        }
+
+        return result;
+    }
+}
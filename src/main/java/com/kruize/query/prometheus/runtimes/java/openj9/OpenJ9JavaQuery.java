@@ -16,15 +16,19 @@
 
 package com.kruize.query.prometheus.runtimes.java.openj9;
 
+import com.kruize.query.prometheus.PrometheusQuery;
 import com.kruize.query.prometheus.runtimes.java.openj9.heap.OpenJ9BalancedHeapQuery;
 import com.kruize.query.prometheus.runtimes.java.openj9.heap.OpenJ9GenconHeapQuery;
 import com.kruize.query.prometheus.runtimes.java.openj9.heap.OpenJ9MetronomeHeapQuery;
 import com.kruize.query.prometheus.runtimes.java.openj9.heap.OpenJ9NoGcHeapQuery;
 import com.kruize.query.runtimes.java.JavaQuery;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 
 public class OpenJ9JavaQuery extends JavaQuery
@@ -65,6 +69,31 @@ public class OpenJ9JavaQuery extends JavaQuery
         }
     }
 
+    @Override
+    public String getMemoryQuery(String application, String area)
+    {
+        List<String> ids = new ArrayList<>(Arrays.asList(heapQuery.getPartsOfHeap()));
+        ids.addAll(Arrays.asList(nonHeapQuery.getIdsOfNonHeap()));
+
+        return "jvm_memory_" + area + "_bytes{id=~\"" + PrometheusQuery.getRegexAlternation(ids) + "\"," +
+                podLabel + "=\"" + application + "\"}";
+    }
+
+    /**
+     * Get a single query for the memory of all the given applications, whatever their GC policy.
+     * Each series is routed to its application by the pod label, and to its part by the id label.
+     *
+     * @param podLabel label identifying the application
+     * @param applications values of the pod label of the applications
+     * @param area area of memory
+     * @return query string
+     */
+    public static String getMemoryQuery(String podLabel, Collection<String> applications, String area)
+    {
+        return "jvm_memory_" + area + "_bytes{" +
+                podLabel + "=~\"" + PrometheusQuery.getRegexAlternation(applications) + "\"}";
+    }
+
     /**
      * Each GC policy is associated with specific areas of heap.
      * Returns the set GC policy of the application based on the area
@@ -22,6 +22,10 @@ import com.kruize.query.runtimes.java.NonHeapQuery;
 public class OpenJ9NonHeapQuery implements NonHeapQuery
 {
     private final String[] partsOfNonHeap = {"miscellaneous", "class storage", "JIT code cache", "JIT data cache"};
+
+    /* Id labels of the parts of non-heap, in the same order */
+    private final String[] idsOfNonHeap =
+            {"miscellaneous non-heap storage", "class storage", "JIT code cache", "JIT data cache"};
     private String podLabel = null;
 
     OpenJ9NonHeapQuery(String podLabel)
@@ -35,6 +39,23 @@ public class OpenJ9NonHeapQuery implements NonHeapQuery
         return partsOfNonHeap;
     }
 
+    @Override
+    public String[] getIdsOfNonHeap()
+    {
+        return idsOfNonHeap;
+    }
+
+    @Override
+    public String getPartOfNonHeap(String id)
+    {
+        for (int i = 0; i < idsOfNonHeap.length; i++) {
+            if (idsOfNonHeap[i].equals(id))
+                return partsOfNonHeap[i];
+        }
+
+        return null;
+    }
+
     @Override
     public String getNonHeapQuery(String application, String partOfNonHeap, String area) throws InvalidValueException
     {
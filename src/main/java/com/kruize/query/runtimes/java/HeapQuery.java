@@ -18,6 +18,8 @@ package com.kruize.query.runtimes.java;
 
 import com.kruize.exceptions.InvalidValueException;
 
+import java.util.Arrays;
+
 public interface HeapQuery
 {
     /**
@@ -34,4 +36,14 @@ public interface HeapQuery
      * @throws InvalidValueException
      */
     String getHeapQuery(String application, String partOfHeap, String area) throws InvalidValueException;
+
+    /**
+     * Get the part of heap reported by a memory series, from the value of its id label
+     * @param id id label of the series
+     * @return part of heap, or null if the id is not a part of heap
+     */
+    default String getPartOfHeap(String id)
+    {
+        return Arrays.asList(getPartsOfHeap()).contains(id) ? id : null;
+    }
 }
@@ -20,6 +20,8 @@ import com.kruize.environment.DeploymentInfo;
 import com.kruize.exceptions.InvalidValueException;
 import com.kruize.query.prometheus.runtimes.java.openj9.OpenJ9JavaQuery;
 
+import java.util.Collection;
+
 public class JavaQuery
 {
     public String vm = null;
@@ -64,6 +66,35 @@ public class JavaQuery
         throw new InvalidValueException("JavaQuery not supported");
     }
 
+    /**
+     * Get a single query for all parts of heap and non-heap of the application,
+     * returning one series per part identified by its id label
+     * @param application
+     * @param area
+     * @return query string
+     * @throws InvalidValueException if not supported
+     */
+    public String getMemoryQuery(String application, String area) throws InvalidValueException
+    {
+        throw new InvalidValueException("JavaQuery not supported");
+    }
+
+    /**
+     * Get a single query for the memory of all the given applications, returning one series per part
+     * of each application, identified by the pod label and the id label
+     * @param applications
+     * @param area
+     * @return query string
+     * @throws InvalidValueException if not supported
+     */
+    public static String getMemoryQuery(Collection<String> applications, String area) throws InvalidValueException
+    {
+        if (DeploymentInfo.getMonitoringAgent().toUpperCase().equals("PROMETHEUS"))
+            return OpenJ9JavaQuery.getMemoryQuery(podLabel, applications, area);
+
+        throw new InvalidValueException("JavaQuery not supported");
+    }
+
     /**
      * @param areaOfHeap
      * @return JavaQuery supporting the VM-GC policy of the application
@@ -34,4 +34,16 @@ public interface NonHeapQuery
      * @throws InvalidValueException
      */
     String getNonHeapQuery(String application, String partOfNonHeap, String area) throws InvalidValueException;
+
+    /**
+     * @return String array containing the id labels of the non-heap parts of memory
+     */
+    String[] getIdsOfNonHeap();
+
+    /**
+     * Get the part of non-heap reported by a memory series, from the value of its id label
+     * @param id id label of the series
+     * @return part of non-heap, or null if the id is not a part of non-heap
+     */
+    String getPartOfNonHeap(String id);
 }
@@ -19,13 +19,22 @@ package com.kruize.recommendations.application;
 import com.kruize.exceptions.InvalidValueException;
 import com.kruize.exceptions.NoSuchApplicationException;
 import com.kruize.metrics.MetricsImpl;
+import com.kruize.metrics.runtimes.java.JavaApplicationInfo;
+import com.kruize.metrics.runtimes.java.JavaApplicationMetricsImpl;
+import com.kruize.util.MathUtil;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.math.RoundingMode;
-import java.text.DecimalFormat;
-import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 public class ApplicationRecommendationsImpl implements ApplicationRecommendations
 {
@@ -34,10 +43,55 @@ public class ApplicationRecommendationsImpl implements ApplicationRecommendation
     private static ApplicationRecommendationsImpl applicationRecommendations = null;
     private static final Logger LOGGER = LoggerFactory.getLogger(ApplicationRecommendations.class);
 
-    private DecimalFormat oneDecimalPlace = new DecimalFormat("#.#");
+    /*
+        Updated by the collector while discovering applications. The lists of instances are
+        copied on write, so they can be iterated without locking. Terminated instances are
+        removed, except for the last instance of an application, which is kept so that the
+        status of the application remains available once all its instances are gone. The
+        recommendations of removed instances are kept in removedInstances.
+     */
+    public final ConcurrentHashMap<String, CopyOnWriteArrayList<MetricsImpl>> applicationMap = new ConcurrentHashMap<>();
+    public final ConcurrentHashMap<String, Set<String>> runtimesMap = new ConcurrentHashMap<>();
+
+    /* Recommendations of the instances removed from applicationMap, by application, guarded by the list of instances */
+    private final ConcurrentHashMap<String, RemovedInstances> removedInstances = new ConcurrentHashMap<>();
+
+    /* All instances of applicationMap, by namespace and name */
+    private final ConcurrentHashMap<String, MetricsImpl> instanceIndex = new ConcurrentHashMap<>();
+    private final AtomicLong discoveryGeneration = new AtomicLong(0);
+
+    /* Published by the collector after every cycle, the only state read by the REST services */
+    private final AtomicReference<RecommendationsSnapshot> snapshot =
+            new AtomicReference<>(new RecommendationsSnapshot(0, Collections.emptyMap()));
+
+    private static final int CPU_REQUESTS = 0;
+    private static final int CPU_LIMIT = 1;
+    private static final int RSS_REQUESTS = 2;
+    private static final int RSS_LIMITS = 3;
+
+    /**
+     * Recommendations of the removed instances of an application, weighted by their number of
+     * samples, so that the history of the application is kept across rollouts without keeping
+     * the samples of its terminated instances.
+     */
+    private static class RemovedInstances
+    {
+        final double[] weightedRecommendations = new double[4];
+        double totalValues;
+        volatile String runtime;
+
+        void add(MetricsImpl metrics)
+        {
+            int numberOfValues = metrics.getSamples().size();
+            for (int i = 0; i < weightedRecommendations.length; i++) {
+                weightedRecommendations[i] += getRecommendation(metrics, i) * numberOfValues;
+            }
+            totalValues += numberOfValues;
 
-    public HashMap< String, ArrayList<MetricsImpl>> applicationMap = new HashMap<>();
-    public HashMap< String, ArrayList<String>> runtimesMap = new HashMap<>();
+            if (metrics.getRuntime() != null)
+                runtime = metrics.getRuntime();
+        }
+    }
 
     static {
         getInstance();
@@ -50,129 +104,286 @@ public class ApplicationRecommendationsImpl implements ApplicationRecommendation
         return applicationRecommendations;
     }
 
+    /**
+     * Add an instance to an application, or update the status and runtime of the instance if it
+     * was added before. In both cases the instance is marked as seen by the current discovery pass.
+     */
     public void addMetricToApplication(String applicationName, MetricsImpl metrics)
     {
-        /* Checking if the pod has already been added before */
-        for (MetricsImpl metric : applicationMap.get(applicationName)) {
-            if (metric.getName().equals(metrics.getName())) {
-                try {
-                    metric.setStatus(metrics.getStatus());
-                    metric.setRuntime(metrics.getRuntime());
-                } catch (InvalidValueException e) {
-                    e.printStackTrace();
-                }
-                return;
+        long generation = discoveryGeneration.get();
+
+        MetricsImpl existing = instanceIndex.putIfAbsent(
+                getInstanceKey(metrics.getNamespace(), metrics.getName()), metrics);
+
+        if (existing != null) {
+            try {
+                existing.setStatus(metrics.getStatus());
+                existing.setRuntime(metrics.getRuntime());
+            } catch (InvalidValueException e) {
+                e.printStackTrace();
             }
+            existing.setDiscoveryGeneration(generation);
+            return;
         }
-        applicationMap.get(applicationName).add(metrics);
+
+        metrics.setDiscoveryGeneration(generation);
+        CopyOnWriteArrayList<MetricsImpl> instances =
+                applicationMap.computeIfAbsent(applicationName, name -> new CopyOnWriteArrayList<>());
+
+        /* A terminated instance kept as the last one of the application is no longer needed */
+        boolean replacesTerminated = instances.size() == 1 && isTerminated(instances.get(0));
+
+        instances.add(metrics);
         LOGGER.debug("Application {} added for monitoring", applicationName);
+
+        if (replacesTerminated)
+            removeTerminated(applicationName, instances);
     }
 
-    @Override
-    public double getRssLimits(String applicationName) throws NoSuchApplicationException
+    /**
+     * Start a discovery pass listing all instances. Instances not added again before
+     * {@link #terminateUnseen(long)} is called with the returned generation are terminated.
+     *
+     * @return generation of the discovery pass
+     */
+    public long beginDiscovery()
     {
-        oneDecimalPlace.setRoundingMode(RoundingMode.CEILING);
-
-        if (applicationMap.containsKey(applicationName)) {
-            double weightedRssLimits = 0;
-            double totalValues = 0;
-
-            for (MetricsImpl metrics : applicationMap.get(applicationName)) {
-                int numberOfValues = metrics.metricCollector.size();
-                weightedRssLimits += metrics.getRssLimits() * numberOfValues;
+        return discoveryGeneration.incrementAndGet();
+    }
 
-                totalValues += numberOfValues;
-            }
+    /**
+     * Terminate the instances that were not added during the discovery pass.
+     *
+     * @param generation generation returned by {@link #beginDiscovery()}
+     */
+    public void terminateUnseen(long generation)
+    {
+        Set<String> applications = new HashSet<>();
 
-            if (totalValues == 0) {
-                return 0;
-            } else {
-                return Double.parseDouble(oneDecimalPlace.format(weightedRssLimits / totalValues));
+        for (MetricsImpl instance : instanceIndex.values()) {
+            if (instance.getDiscoveryGeneration() < generation) {
+                setTerminated(instance);
+                applications.add(instance.getApplicationName());
             }
+        }
 
-        } else {
-            throw new NoSuchApplicationException();
+        /* Removed application by application, as every removal copies the list of instances */
+        for (String application : applications) {
+            List<MetricsImpl> instances = applicationMap.get(application);
+            if (instances != null)
+                removeTerminated(application, instances);
         }
     }
 
-    @Override
-    public double getCpuLimit(String applicationName) throws NoSuchApplicationException
+    /**
+     * @return instance of the namespace and name, null if there is none
+     */
+    public MetricsImpl findInstance(String namespace, String name)
     {
-        oneDecimalPlace.setRoundingMode(RoundingMode.CEILING);
+        return instanceIndex.get(getInstanceKey(namespace, name));
+    }
 
-        if (applicationMap.containsKey(applicationName)) {
-            double weightedCpuLimits = 0;
-            double totalValues = 0;
+    /**
+     * Terminate a single instance, such as a deleted pod.
+     */
+    public void terminateInstance(String namespace, String name)
+    {
+        MetricsImpl instance = instanceIndex.get(getInstanceKey(namespace, name));
+        if (instance == null)
+            return;
 
-            for (MetricsImpl metrics : applicationMap.get(applicationName)) {
-                int numberOfValues = metrics.metricCollector.size();
-                weightedCpuLimits += metrics.getCpuLimit() * numberOfValues;
+        setTerminated(instance);
 
-                totalValues += numberOfValues;
+        List<MetricsImpl> instances = applicationMap.get(instance.getApplicationName());
+        if (instances != null)
+            removeTerminated(instance.getApplicationName(), instances);
+    }
+
+    private static void setTerminated(MetricsImpl instance)
+    {
+        try {
+            instance.setStatus("terminated");
+        } catch (InvalidValueException ignored) { }
+    }
+
+    private static boolean isTerminated(MetricsImpl instance)
+    {
+        return "terminated".equals(instance.getStatus());
+    }
+
+    /**
+     * Remove the terminated instances of an application from the application and the index,
+     * keeping one if the application has no other instance. Their recommendations are still
+     * counted by the recommendations of the application.
+     */
+    private void removeTerminated(String applicationName, List<MetricsImpl> instances)
+    {
+        Set<MetricsImpl> removed = new HashSet<>();
+
+        synchronized (instances) {
+            for (MetricsImpl instance : instances) {
+                if (isTerminated(instance))
+                    removed.add(instance);
             }
 
-            if (totalValues == 0) {
-                return 0;
-            } else {
-                return Double.parseDouble(oneDecimalPlace.format(weightedCpuLimits / totalValues));
+            if (removed.size() == instances.size())
+                removed.remove(instances.get(instances.size() - 1));
+
+            if (removed.isEmpty())
+                return;
+
+            RemovedInstances removedRecommendations =
+                    removedInstances.computeIfAbsent(applicationName, name -> new RemovedInstances());
+            for (MetricsImpl instance : removed) {
+                removedRecommendations.add(instance);
             }
 
-        } else {
-            throw new NoSuchApplicationException();
+            instances.removeAll(removed);
+        }
+
+        for (MetricsImpl instance : removed) {
+            instanceIndex.remove(getInstanceKey(instance.getNamespace(), instance.getName()), instance);
         }
+        LOGGER.debug("Removed {} terminated instances of application {}", removed.size(), applicationName);
     }
 
-    @Override
-    public double getRssRequests(String applicationName) throws NoSuchApplicationException
+    private static String getInstanceKey(String namespace, String name)
+    {
+        return namespace + "/" + name;
+    }
+
+    /**
+     * @param runtime runtime such as java
+     * @return names of the applications known to use the runtime, safe to update concurrently
+     */
+    public Set<String> getRuntimeApplications(String runtime)
     {
-        oneDecimalPlace.setRoundingMode(RoundingMode.CEILING);
+        return runtimesMap.computeIfAbsent(runtime, name -> ConcurrentHashMap.newKeySet());
+    }
 
-        if (applicationMap.containsKey(applicationName)) {
-            double weightedRssRequests = 0;
-            double totalValues = 0;
+    /**
+     * Build the status and recommendations of all applications from their current state, serialize
+     * them, and publish both for the REST services in a single step.
+     */
+    public void publishSnapshot()
+    {
+        Map<String, ApplicationSnapshot> applications = new LinkedHashMap<>();
 
-            for (MetricsImpl metrics : applicationMap.get(applicationName)) {
-                int numberOfValues = metrics.metricCollector.size();
-                weightedRssRequests += metrics.getRssRequests() * numberOfValues;
+        for (Map.Entry<String, CopyOnWriteArrayList<MetricsImpl>> entry : applicationMap.entrySet()) {
+            String application = entry.getKey();
+            List<MetricsImpl> instances = entry.getValue();
 
-                totalValues += numberOfValues;
-            }
+            if (instances.isEmpty())
+                continue;
+
+            String javaVm = null;
+            String gcPolicy = null;
+            double heapRecommendation = 0;
 
-            if (totalValues == 0) {
-                return 0;
-            } else {
-                return Double.parseDouble(oneDecimalPlace.format(weightedRssRequests / totalValues));
+            JavaApplicationInfo javaApplicationInfo = JavaApplicationMetricsImpl.javaApplicationInfoMap
+                    .get(instances.get(0).getLabelName());
+            if (javaApplicationInfo != null) {
+                javaVm = javaApplicationInfo.getVM();
+                gcPolicy = javaApplicationInfo.getJavaRecommendations().getGcPolicy();
+                heapRecommendation = javaApplicationInfo.getJavaRecommendations().getHeapRecommendation();
             }
 
-        } else {
-            throw new NoSuchApplicationException();
+            try {
+                applications.put(application, new ApplicationSnapshot(application,
+                        getStatus(application), getRuntime(application),
+                        getCpuRequests(application), getCpuLimit(application),
+                        getRssRequests(application), getRssLimits(application),
+                        javaVm, gcPolicy, heapRecommendation));
+            } catch (NoSuchApplicationException e) {
+                e.printStackTrace();
+            }
         }
+
+        /* Only the collector publishes, so the version cannot be taken by another snapshot */
+        long version = snapshot.get().getVersion() + 1;
+        snapshot.set(new RecommendationsSnapshot(version, Collections.unmodifiableMap(applications)));
+    }
+
+    /**
+     * @return status and recommendations of all applications as of the last collection cycle
+     */
+    public RecommendationsSnapshot getSnapshot()
+    {
+        return snapshot.get();
+    }
+
+    @Override
+    public double getRssLimits(String applicationName) throws NoSuchApplicationException
+    {
+        return getWeightedRecommendation(applicationName, RSS_LIMITS);
+    }
+
+    @Override
+    public double getCpuLimit(String applicationName) throws NoSuchApplicationException
+    {
+        return getWeightedRecommendation(applicationName, CPU_LIMIT);
+    }
+
+    @Override
+    public double getRssRequests(String applicationName) throws NoSuchApplicationException
+    {
+        return getWeightedRecommendation(applicationName, RSS_REQUESTS);
     }
 
     @Override
     public double getCpuRequests(String applicationName) throws NoSuchApplicationException
     {
-        oneDecimalPlace.setRoundingMode(RoundingMode.CEILING);
+        return getWeightedRecommendation(applicationName, CPU_REQUESTS);
+    }
 
-        if (applicationMap.containsKey(applicationName)) {
-            double weightedCpuRequests = 0;
-            double totalValues = 0;
+    /**
+     * @return recommendation of the instances of the application, current and removed, weighted
+     * by their number of samples
+     */
+    private double getWeightedRecommendation(String applicationName, int recommendation)
+            throws NoSuchApplicationException
+    {
+        List<MetricsImpl> instances = applicationMap.get(applicationName);
+        if (instances == null)
+            throw new NoSuchApplicationException();
 
-            for (MetricsImpl metrics : applicationMap.get(applicationName)) {
-                int numberOfValues = metrics.metricCollector.size();
-                weightedCpuRequests += metrics.getCpuRequests() * numberOfValues;
+        double weightedRecommendation = 0;
+        double totalValues = 0;
 
-                totalValues += numberOfValues;
+        /* Locked so that an instance being removed is counted either as an instance or as removed */
+        synchronized (instances) {
+            RemovedInstances removed = removedInstances.get(applicationName);
+            if (removed != null) {
+                weightedRecommendation = removed.weightedRecommendations[recommendation];
+                totalValues = removed.totalValues;
             }
 
-            if (totalValues == 0) {
-                return 0;
-            } else {
-                return Double.parseDouble(oneDecimalPlace.format(weightedCpuRequests / totalValues));
+            for (MetricsImpl metrics : instances) {
+                int numberOfValues = metrics.getSamples().size();
+                weightedRecommendation += getRecommendation(metrics, recommendation) * numberOfValues;
+
+                totalValues += numberOfValues;
             }
+        }
 
+        if (totalValues == 0) {
+            return 0;
         } else {
-            throw new NoSuchApplicationException();
+            return MathUtil.ceilToTenth(weightedRecommendation / totalValues);
+        }
+    }
+
+    private static double getRecommendation(MetricsImpl metrics, int recommendation)
+    {
+        switch (recommendation) {
+            case CPU_REQUESTS:
+                return metrics.getCpuRequests();
+            case CPU_LIMIT:
+                return metrics.getCpuLimit();
+            case RSS_REQUESTS:
+                return metrics.getRssRequests();
+            default:
+                return metrics.getRssLimits();
         }
     }
 
@@ -214,6 +425,7 @@ public class ApplicationRecommendationsImpl implements ApplicationRecommendation
             }
         }
 
-        return null;
+        RemovedInstances removed = removedInstances.get(applicationName);
+        return removed == null ? null : removed.runtime;
     }
 }
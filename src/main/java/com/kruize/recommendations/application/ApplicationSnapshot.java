@@ -0,0 +1,104 @@
+/*******************************************************************************
+ * Copyright (c) 2020, 2020 IBM Corporation and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+
+package com.kruize.recommendations.application;
+
+/**
+ * Status and recommendations of an application at the end of a collection cycle.
+ * Immutable, so that it can be read by any thread once published.
+ */
+public class ApplicationSnapshot
+{
+    private final String applicationName;
+    private final String status;
+    private final String runtime;
+
+    private final double cpuRequests;
+    private final double cpuLimit;
+    private final double rssRequests;
+    private final double rssLimits;
+
+    /* Java VM of the application, null if it is not a known java application */
+    private final String javaVm;
+    private final String gcPolicy;
+    private final double heapRecommendation;
+
+    ApplicationSnapshot(String applicationName, String status, String runtime,
+                        double cpuRequests, double cpuLimit, double rssRequests, double rssLimits,
+                        String javaVm, String gcPolicy, double heapRecommendation)
+    {
+        this.applicationName = applicationName;
+        this.status = status;
+        this.runtime = runtime;
+        this.cpuRequests = cpuRequests;
+        this.cpuLimit = cpuLimit;
+        this.rssRequests = rssRequests;
+        this.rssLimits = rssLimits;
+        this.javaVm = javaVm;
+        this.gcPolicy = gcPolicy;
+        this.heapRecommendation = heapRecommendation;
+    }
+
+    public String getApplicationName()
+    {
+        return applicationName;
+    }
+
+    public String getStatus()
+    {
+        return status;
+    }
+
+    public String getRuntime()
+    {
+        return runtime;
+    }
+
+    public double getCpuRequests()
+    {
+        return cpuRequests;
+    }
+
+    public double getCpuLimit()
+    {
+        return cpuLimit;
+    }
+
+    public double getRssRequests()
+    {
+        return rssRequests;
+    }
+
+    public double getRssLimits()
+    {
+        return rssLimits;
+    }
+
+    public String getJavaVm()
+    {
+        return javaVm;
+    }
+
+    public String getGcPolicy()
+    {
+        return gcPolicy;
+    }
+
+    public double getHeapRecommendation()
+    {
+        return heapRecommendation;
+    }
+}
@@ -0,0 +1,261 @@
+/*******************************************************************************
+ * Copyright (c) 2020, 2020 IBM Corporation and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+
+package com.kruize.recommendations.application;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.kruize.util.MathUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Serialized recommendations of a snapshot: one document for all applications,
+ * and one for every application, each with the ETag of its content.
+ *
+ * The documents are built by the collector along with the snapshot, and published with it,
+ * so that the REST services only write them out.
+ */
+public class RecommendationsDocuments
+{
+    private static final Logger LOGGER = LoggerFactory.getLogger(RecommendationsDocuments.class);
+
+    private static final Gson GSON = new GsonBuilder().setPrettyPrinting().create();
+
+    /**
+     * Serialized JSON response with its ETag.
+     */
+    public static class Document
+    {
+        private final byte[] body;
+        private final String etag;
+
+        private Document(JsonArray jsonArray)
+        {
+            this.body = (GSON.toJson(jsonArray) + System.lineSeparator()).getBytes(UTF_8);
+            this.etag = computeETag(body);
+        }
+
+        public byte[] getBody()
+        {
+            return body;
+        }
+
+        public String getETag()
+        {
+            return etag;
+        }
+    }
+
+    private final Document allApplications;
+    private final Map<String, Document> applications;
+
+    private RecommendationsDocuments(Document allApplications, Map<String, Document> applications)
+    {
+        this.allApplications = allApplications;
+        this.applications = applications;
+    }
+
+    /**
+     * @param snapshots snapshots of the applications to serialize the recommendations of
+     * @return documents of the applications
+     */
+    static RecommendationsDocuments build(Collection<ApplicationSnapshot> snapshots)
+    {
+        JsonArray allApplicationsJson = new JsonArray();
+        Map<String, Document> applications = new HashMap<>();
+
+        for (ApplicationSnapshot application : snapshots) {
+            JsonArray applicationJsonArray = new JsonArray();
+
+            JsonObject applicationRecommendationJson = getApplicationJson(application);
+            if (applicationRecommendationJson != null) {
+                allApplicationsJson.add(applicationRecommendationJson);
+                applicationJsonArray.add(applicationRecommendationJson);
+            }
+
+            applications.put(application.getApplicationName(), new Document(applicationJsonArray));
+        }
+
+        return new RecommendationsDocuments(new Document(allApplicationsJson), applications);
+    }
+
+    public Document getAllApplications()
+    {
+        return allApplications;
+    }
+
+    /**
+     * @return document of the application, null if there is no such application
+     */
+    public Document getApplication(String application)
+    {
+        return applications.get(application);
+    }
+
+    /**
+     * The ETag is derived from the content rather than from the snapshot version, so that it stays
+     * the same across collection cycles and restarts as long as the recommendations do not change.
+     */
+    private static String computeETag(byte[] body)
+    {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(body);
+
+            StringBuilder etag = new StringBuilder("\"");
+            for (int i = 0; i < 16; i++) {
+                etag.append(Character.forDigit((digest[i] >> 4) & 0xf, 16))
+                        .append(Character.forDigit(digest[i] & 0xf, 16));
+            }
+            return etag.append('"').toString();
+        } catch (NoSuchAlgorithmException e) {
+            /* Every Java platform supports SHA-256 */
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static JsonObject getApplicationJson(ApplicationSnapshot application)
+    {
+        JsonObject applicationRecommendationJson = new JsonObject();
+        applicationRecommendationJson.addProperty("application_name", application.getApplicationName());
+
+        JsonObject resourcesJson = getResourceJson(application);
+
+        if (resourcesJson != null) {
+            applicationRecommendationJson.add("resources", resourcesJson);
+            return applicationRecommendationJson;
+        }
+
+        return null;
+    }
+
+    private static JsonObject getResourceJson(ApplicationSnapshot application)
+    {
+        String applicationStatus = application.getStatus();
+
+        /* If application is still running or idle, or if application is removed,
+            but Kruize has earlier generated recommendations.
+         */
+        if (applicationStatus.equals("running") || applicationStatus.equals("idle")
+                || (application.getRssRequests() != 0)) {
+            JsonObject resourcesJson = new JsonObject();
+            JsonObject resourceRequestsJson = new JsonObject();
+            resourceRequestsJson.addProperty("memory", application.getRssRequests() + "M");
+            resourceRequestsJson.addProperty("cpu", application.getCpuRequests());
+
+            JsonObject resourceLimitsJson = new JsonObject();
+            resourceLimitsJson.addProperty("memory", application.getRssLimits() + "M");
+            resourceLimitsJson.addProperty("cpu", application.getCpuLimit());
+
+            resourcesJson.add("requests", resourceRequestsJson);
+            resourcesJson.add("limits", resourceLimitsJson);
+
+            JsonArray envJson = getEnvJson(application);
+
+            if (envJson != null) {
+                resourcesJson.add("env", envJson);
+            }
+
+            return resourcesJson;
+        }
+
+        /* Debug, as the documents are built every collection cycle for every application */
+        LOGGER.debug("Application {} is no longer running and has no recommendations generated earlier, "
+                + "not returning any recommendations", application.getApplicationName());
+        return null;
+    }
+
+    /**
+     * Get additional env options recommendations
+     * @param application snapshot of the application
+     * @return env options, null if there are none
+     */
+    private static JsonArray getEnvJson(ApplicationSnapshot application)
+    {
+        JsonArray envJsonArray = new JsonArray();
+
+        if (application.getRuntime() != null) {
+            JsonObject runtimeOptions = getRuntimeOptions(application);
+            if (runtimeOptions != null) {
+                envJsonArray.add(runtimeOptions);
+                return envJsonArray;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Get runtime recommendations JSON for an application if available
+     * @param application snapshot of the application
+     * @return JSON containing the runtime recommendation
+     */
+    private static JsonObject getRuntimeOptions(ApplicationSnapshot application)
+    {
+        if (application.getRuntime().equals("java") && application.getJavaVm() != null)
+        {
+            return getJavaOptions(application);
+        }
+        return null;
+    }
+
+    /**
+     * Get java runtime options recommendations if available
+     * @param application snapshot of the application
+     * @return JSON containing the runtime recommendation
+     */
+    private static JsonObject getJavaOptions(ApplicationSnapshot application)
+    {
+        double heapRecommendations = application.getHeapRecommendation();
+
+        String gcPolicyRecommendation = application.getGcPolicy();
+
+        String percentage = "0";
+        double rssLimits = application.getRssLimits();
+
+        if (rssLimits != 0) {
+            percentage = MathUtil.toDecimalString(MathUtil.ceilToDecimals((heapRecommendations * 100)
+                    / rssLimits, 2));
+        }
+
+        JsonObject runtimeRecommendationJson = new JsonObject();
+        runtimeRecommendationJson.addProperty("name", "JAVA_TOOL_OPTIONS");
+
+        if (application.getJavaVm().equals("OpenJ9")) {
+            String suggestedOptions = "-XX:InitialRAMPercentage=" + percentage +
+                    " -XX:MaxRAMPercentage=" + percentage +
+                    " -Xgcpolicy:" + gcPolicyRecommendation;
+
+            byte[] ptext = suggestedOptions.getBytes(ISO_8859_1);
+
+            runtimeRecommendationJson.addProperty("value",
+                    new String(ptext, UTF_8));
+        }
+
+        return runtimeRecommendationJson;
+    }
+}
@@ -0,0 +1,56 @@
+/*******************************************************************************
+ * Copyright (c) 2020, 2020 IBM Corporation and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+
+package com.kruize.recommendations.application;
+
+import java.util.Map;
+
+/**
+ * Snapshots of all applications published at the end of a collection cycle, with their
+ * recommendations serialized for the REST services.
+ */
+public class RecommendationsSnapshot
+{
+    private final long version;
+    private final Map<String, ApplicationSnapshot> applications;
+    private final RecommendationsDocuments documents;
+
+    /**
+     * @param version number of the snapshot, increasing with every snapshot published
+     * @param applications unmodifiable snapshots by application name
+     */
+    RecommendationsSnapshot(long version, Map<String, ApplicationSnapshot> applications)
+    {
+        this.version = version;
+        this.applications = applications;
+        this.documents = RecommendationsDocuments.build(applications.values());
+    }
+
+    public long getVersion()
+    {
+        return version;
+    }
+
+    public Map<String, ApplicationSnapshot> getApplications()
+    {
+        return applications;
+    }
+
+    public RecommendationsDocuments getDocuments()
+    {
+        return documents;
+    }
+}
@@ -26,7 +26,10 @@ public class HealthService extends HttpServlet
     public static final int STATUS_UP = 1;
     public static final int STATUS_DOWN = 0;
 
-    private static int CURRENT_STATUS = STATUS_DOWN;
+    /* Up, but collection is paused while the monitoring agent is failing */
+    public static final int STATUS_DEGRADED = 2;
+
+    private static volatile int CURRENT_STATUS = STATUS_DOWN;
 
     public static int getCurrentStatus()
     {
@@ -36,7 +39,8 @@ public class HealthService extends HttpServlet
     public static void setCurrentStatus(int currentStatus)
     {
         if (currentStatus == STATUS_UP
-            || currentStatus == STATUS_DOWN)
+            || currentStatus == STATUS_DOWN
+            || currentStatus == STATUS_DEGRADED)
             CURRENT_STATUS = currentStatus;
     }
 
@@ -47,6 +51,9 @@ public class HealthService extends HttpServlet
         if (CURRENT_STATUS == STATUS_UP) {
             resp.setStatus(HttpServletResponse.SC_OK);
             resp.getWriter().println("UP");
+        } else if (CURRENT_STATUS == STATUS_DEGRADED) {
+            resp.setStatus(HttpServletResponse.SC_OK);
+            resp.getWriter().println("DEGRADED");
         } else {
             resp.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
             resp.getWriter().println("DOWN");
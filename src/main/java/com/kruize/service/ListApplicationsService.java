@@ -20,13 +20,13 @@ import com.google.gson.GsonBuilder;
 import com.google.gson.JsonArray;
 import com.google.gson.JsonObject;
 import com.kruize.environment.EnvTypeImpl;
-import com.kruize.exceptions.NoSuchApplicationException;
-import com.kruize.recommendations.application.ApplicationRecommendationsImpl;
+import com.kruize.recommendations.application.ApplicationSnapshot;
 
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
+import java.util.Map;
 
 public class ListApplicationsService extends HttpServlet
 {
@@ -69,22 +69,17 @@ public class ListApplicationsService extends HttpServlet
         JsonArray jsonArray = new JsonArray();
         resp.setContentType("application/json");
 
-        ApplicationRecommendationsImpl applicationRecommendations = EnvTypeImpl.getInstance().applicationRecommendations;
+        Map<String, ApplicationSnapshot> applications =
+                EnvTypeImpl.getInstance().applicationRecommendations.getSnapshot().getApplications();
 
-        for (String application : applicationRecommendations.applicationMap.keySet())
+        for (ApplicationSnapshot application : applications.values())
         {
-            String recommendationsGenerated = "no";
-
-            try {
-                if (applicationRecommendations.getRssLimits(application) != 0)
-                    recommendationsGenerated = "yes";
-            } catch (NoSuchApplicationException ignored) { }
-
-            String runtime = applicationRecommendations.getRuntime(application);
+            String recommendationsGenerated = application.getRssLimits() != 0 ? "yes" : "no";
+            String runtime = application.getRuntime();
 
             JsonObject applicationJson = new JsonObject();
-            applicationJson.addProperty("application_name", application);
-            applicationJson.addProperty("status", applicationRecommendations.getStatus(application));
+            applicationJson.addProperty("application_name", application.getApplicationName());
+            applicationJson.addProperty("status", application.getStatus());
             applicationJson.addProperty("recommendations_generated", recommendationsGenerated);
 
             if (runtime != null)
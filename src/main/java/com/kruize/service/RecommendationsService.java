@@ -16,31 +16,16 @@
 
 package com.kruize.service;
 
-import com.google.gson.GsonBuilder;
-import com.google.gson.JsonArray;
-import com.google.gson.JsonObject;
 import com.kruize.environment.EnvTypeImpl;
-import com.kruize.exceptions.NoSuchApplicationException;
-import com.kruize.metrics.runtimes.java.JavaApplicationMetricsImpl;
-import com.kruize.recommendations.application.ApplicationRecommendationsImpl;
-import com.kruize.recommendations.runtimes.java.JavaRecommendations;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
+import com.kruize.recommendations.application.RecommendationsDocuments;
 
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
-import java.math.RoundingMode;
-import java.text.DecimalFormat;
-
-import static java.nio.charset.StandardCharsets.ISO_8859_1;
-import static java.nio.charset.StandardCharsets.UTF_8;
 
 public class RecommendationsService extends HttpServlet
 {
-    private static final Logger LOGGER = LoggerFactory.getLogger(RecommendationsService.class);
-
     /**
      *
      * Returns a JSON of recommendations for applications monitored by Kruize.
@@ -48,6 +33,9 @@ public class RecommendationsService extends HttpServlet
      * API:
      * /recommendations : gives recommendations for all applications monitored by Kruize
      * /recommendations?application_name=<APPLICATION_NAME> : gives recommendation for specific application monitored by Kruize
+     *
+     * The recommendations are serialized by the collector once per collection cycle, along with the snapshot. Responses carry an ETag, and a request
+     * with a matching If-None-Match header gets a 304 response without a body.
      * <pre>
      * Example JSON:
      * [
@@ -86,184 +74,55 @@ public class RecommendationsService extends HttpServlet
     {
         String application_name = req.getParameter("application_name");
 
-        JsonArray jsonArray = new JsonArray();
-
-        ApplicationRecommendationsImpl applicationRecommendations = EnvTypeImpl.getInstance().applicationRecommendations;
+        RecommendationsDocuments recommendationsDocuments =
+                EnvTypeImpl.getInstance().applicationRecommendations.getSnapshot().getDocuments();
+        RecommendationsDocuments.Document document;
 
         /* No parameter application_name in HTTP request. Give recommendations for all applications monitored */
         if (application_name == null)
         {
-            for (String application : applicationRecommendations.applicationMap.keySet())
-            {
-                try {
-                    JsonObject applicationRecommendationJson = getApplicationJson(applicationRecommendations,
-                            application);
-                    if (applicationRecommendationJson != null) {
-                        jsonArray.add(applicationRecommendationJson);
-                    }
-                } catch (NoSuchApplicationException e) {
-                    System.out.println(application + " not found");
-
-                }
-            }
+            document = recommendationsDocuments.getAllApplications();
         }
         else
         {
-            try {
-                JsonObject applicationRecommendationJson = getApplicationJson(applicationRecommendations,
-                        application_name);
-                if (applicationRecommendationJson != null)
-                    jsonArray.add(applicationRecommendationJson);
-            } catch (NoSuchApplicationException e) {
+            document = recommendationsDocuments.getApplication(application_name);
+            if (document == null) {
                 resp.getWriter().println("Error: No such application found");
                 return;
             }
         }
 
-        resp.setContentType("application/json; charset=utf-8");
-
-        /* Pretty print the recommendations JSON */
-        resp.getWriter().println(new GsonBuilder().setPrettyPrinting().create().toJson(jsonArray));
-    }
-
-    private JsonObject getApplicationJson(ApplicationRecommendationsImpl applicationRecommendations, String application) throws NoSuchApplicationException
-    {
-        JsonObject applicationRecommendationJson = new JsonObject();
-        applicationRecommendationJson.addProperty("application_name", application);
-
-        JsonObject resourcesJson = getResourceJson(applicationRecommendations, application);
-
-        if (resourcesJson != null) {
-            applicationRecommendationJson.add("resources", resourcesJson);
-            return applicationRecommendationJson;
-        }
-
-        return null;
-    }
-
-    private JsonObject getResourceJson(ApplicationRecommendationsImpl applicationRecommendations, String application) throws NoSuchApplicationException
-    {
-        String applicationStatus = applicationRecommendations.getStatus(application);
-
-        /* If application is still running or idle, or if application is removed,
-            but Kruize has earlier generated recommendations.
-         */
-        if (applicationStatus.equals("running") || applicationStatus.equals("idle")
-                || (applicationRecommendations.getRssRequests(application) != 0)) {
-            JsonObject resourcesJson = new JsonObject();
-            JsonObject resourceRequestsJson = new JsonObject();
-            resourceRequestsJson.addProperty("memory", applicationRecommendations.getRssRequests(application) + "M");
-            resourceRequestsJson.addProperty("cpu", applicationRecommendations.getCpuRequests(application));
-
-            JsonObject resourceLimitsJson = new JsonObject();
-            resourceLimitsJson.addProperty("memory", applicationRecommendations.getRssLimits(application) + "M");
-            resourceLimitsJson.addProperty("cpu", applicationRecommendations.getCpuLimit(application));
-
-            resourcesJson.add("requests", resourceRequestsJson);
-            resourcesJson.add("limits", resourceLimitsJson);
-
-            JsonArray envJson = getEnvJson(applicationRecommendations, application);
-
-            if (envJson != null) {
-                resourcesJson.add("env", envJson);
-            }
-
-            return resourcesJson;
-        }
-
-        LOGGER.info("Application {} is no longer running and has no recommendations generated earlier", application);
-        LOGGER.info("Not returning any recommendations");
-        return null;
-    }
-
-    /**
-     * Get additional env options recommendations
-     * @param applicationRecommendations
-     * @param application
-     * @return
-     * @throws NullPointerException
-     */
-    private JsonArray getEnvJson(ApplicationRecommendationsImpl applicationRecommendations, String application)
-            throws NullPointerException
-    {
-        JsonArray envJsonArray = new JsonArray();
+        resp.setHeader("ETag", document.getETag());
 
-        if (applicationRecommendations.getRuntime(application) != null) {
-            try {
-                envJsonArray.add(getRuntimeOptions(applicationRecommendations, application));
-                return envJsonArray;
-            } catch (NoSuchApplicationException | NullPointerException ignored) { }
+        if (matchesETag(req.getHeader("If-None-Match"), document.getETag())) {
+            resp.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return;
         }
 
-        return null;
-    }
-
-    /**
-     * Get runtime recommendations JSON for an application if available
-     * @param applicationRecommendations
-     * @param application
-     * @return JSON containing the runtime recommendation
-     * @throws NoSuchApplicationException
-     * @throws NullPointerException
-     */
-    private JsonObject getRuntimeOptions(ApplicationRecommendationsImpl applicationRecommendations, String application)
-            throws NoSuchApplicationException, NullPointerException
-    {
-        if (applicationRecommendations.getRuntime(application).equals("java"))
-        {
-            return getJavaOptions(applicationRecommendations, application);
-        }
-        return null;
+        resp.setContentType("application/json; charset=utf-8");
+        resp.setContentLength(document.getBody().length);
+        resp.getOutputStream().write(document.getBody());
     }
 
     /**
-     * Get java runtime options recommendations if available
-     * @param applicationRecommendations
-     * @param application
-     * @return JSON containing the runtime recommendation
-     * @throws NoSuchApplicationException
-     * @throws NullPointerException
+     * @param ifNoneMatch value of the If-None-Match header, a list of ETags or *
      */
-    private JsonObject getJavaOptions(ApplicationRecommendationsImpl applicationRecommendations, String application)
-            throws NoSuchApplicationException, NullPointerException
+    private static boolean matchesETag(String ifNoneMatch, String etag)
     {
-        DecimalFormat precisionTwo = new DecimalFormat("#.##");
-        precisionTwo.setRoundingMode(RoundingMode.CEILING);
-
-        String labelName = applicationRecommendations.applicationMap.get(application)
-                .get(0).getLabelName();
-
-        JavaRecommendations javaRecommendations = JavaApplicationMetricsImpl.javaApplicationInfoMap
-                .get(labelName)
-                .getJavaRecommendations();
-
-        double heapRecommendations = javaRecommendations.getHeapRecommendation();
-
-        String gcPolicyRecommendation = javaRecommendations.getGcPolicy();
-
-        String percentage = "0";
-        double rssLimits = applicationRecommendations.getRssLimits(application);
-
-        if (rssLimits != 0) {
-            percentage = precisionTwo.format((heapRecommendations * 100)
-                    / rssLimits);
-        }
-
-        JsonObject runtimeRecommendationJson = new JsonObject();
-        runtimeRecommendationJson.addProperty("name", "JAVA_TOOL_OPTIONS");
+        if (ifNoneMatch == null)
+            return false;
 
-        if (JavaApplicationMetricsImpl.javaApplicationInfoMap.get(labelName)
-                .getVM().equals("OpenJ9")) {
-            String suggestedOptions = "-XX:InitialRAMPercentage=" + percentage +
-                    " -XX:MaxRAMPercentage=" + percentage +
-                    " -Xgcpolicy:" + gcPolicyRecommendation;
+        for (String candidate : ifNoneMatch.split(",")) {
+            candidate = candidate.trim();
 
-            byte[] ptext = suggestedOptions.getBytes(ISO_8859_1);
+            /* Weak comparison, as the body is the same whatever the encoding */
+            if (candidate.startsWith("W/"))
+                candidate = candidate.substring(2);
 
-            runtimeRecommendationJson.addProperty("value",
-                    new String(ptext, UTF_8));
+            if (candidate.equals("*") || candidate.equals(etag))
+                return true;
         }
 
-        return runtimeRecommendationJson;
+        return false;
     }
 }
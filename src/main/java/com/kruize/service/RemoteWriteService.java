@@ -0,0 +1,85 @@
+/*******************************************************************************
+ * Copyright (c) 2020, 2020 IBM Corporation and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+
+package com.kruize.service;
+
+import com.kruize.collection.PushedMetrics;
+import com.kruize.query.prometheus.RemoteWriteDecoder;
+import io.prometheus.client.Counter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.InputStream;
+
+public class RemoteWriteService extends HttpServlet
+{
+    private static final Logger LOGGER = LoggerFactory.getLogger(RemoteWriteService.class);
+
+    /* Largest request accepted, Prometheus sending a few thousand samples per request */
+    private static final int MAX_REQUEST_BYTES = 32 << 20;
+
+    private static final Counter samplesReceivedCounter = Counter.build()
+            .name("kruize_remote_write_samples_total")
+            .help("Samples received through remote write")
+            .register();
+
+    /**
+     * Receives the samples scraped by Prometheus, configured with Kruize as a remote write endpoint.
+     * The body is a snappy compressed protobuf WriteRequest. Prometheus retries the requests
+     * answered with a 5xx status, but not the ones answered with a 4xx status.
+     *
+     * @throws IOException
+     */
+    @Override
+    protected void doPost(HttpServletRequest req, HttpServletResponse resp) throws IOException
+    {
+        if (req.getContentLengthLong() > MAX_REQUEST_BYTES) {
+            resp.sendError(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE);
+            return;
+        }
+
+        byte[] body;
+        try (InputStream inputStream = req.getInputStream()) {
+            body = inputStream.readNBytes(MAX_REQUEST_BYTES + 1);
+        }
+
+        if (body.length > MAX_REQUEST_BYTES) {
+            resp.sendError(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE);
+            return;
+        }
+
+        PushedMetrics pushedMetrics = PushedMetrics.getInstance();
+        long[] samples = new long[1];
+
+        try {
+            RemoteWriteDecoder.decode(body, (labels, timestamp, value) -> {
+                pushedMetrics.add(labels, timestamp, value);
+                samples[0]++;
+            });
+        } catch (IOException e) {
+            LOGGER.warn("Invalid remote write request: {}", e.getMessage());
+            resp.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
+            return;
+        }
+
+        samplesReceivedCounter.inc(samples[0]);
+        resp.setStatus(HttpServletResponse.SC_NO_CONTENT);
+    }
+}
@@ -0,0 +1,244 @@
+/*******************************************************************************
+ * Copyright (c) 2020, 2020 IBM Corporation and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+
+package com.kruize.storage;
+
+import com.kruize.analysis.runtimes.java.OpenJ9AnalysisImpl;
+import com.kruize.exceptions.InvalidValueException;
+import com.kruize.metrics.MetricsImpl;
+import com.kruize.recommendations.application.ApplicationRecommendationsImpl;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Checkpoint of the recommendations of all instances, restored at startup so that they do not
+ * have to be rebuilt from the recommendations exported to the monitoring agent.
+ *
+ * The file holds a header, the year to date and current recommendations of every instance,
+ * the state of the OpenJ9 analysis, and a CRC32 of all of it:
+ * <pre>
+ *   magic (int) | version (int) | time written (long) | instance count (int)
+ *   namespace | name | application | 4 year to date and 4 current recommendations (double)
+ *   ...
+ *   OpenJ9 analysis state
+ *   CRC32 (int)
+ * </pre>
+ * It is written to a temporary file next to it and moved in place, so that a crash leaves
+ * either the previous checkpoint or the new one.
+ */
+public class RecommendationsCheckpoint
+{
+    private static final Logger LOGGER = LoggerFactory.getLogger(RecommendationsCheckpoint.class);
+
+    private static final int MAGIC = 0x4B525A43;
+    private static final int VERSION = 1;
+
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private final Path path;
+
+    public RecommendationsCheckpoint(Path path)
+    {
+        this.path = path.toAbsolutePath();
+    }
+
+    public Path getPath()
+    {
+        return path;
+    }
+
+    /**
+     * Write the recommendations of all instances, replacing the previous checkpoint.
+     * Called by the collector and on shutdown, one at a time.
+     */
+    public synchronized void write(ApplicationRecommendationsImpl applicationRecommendations) throws IOException
+    {
+        Path tempPath = path.resolveSibling(path.getFileName() + TEMP_SUFFIX);
+        if (path.getParent() != null)
+            Files.createDirectories(path.getParent());
+
+        try (FileChannel channel = FileChannel.open(tempPath, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+
+            CheckedOutputStream checkedOutput = new CheckedOutputStream(
+                    new BufferedOutputStream(Channels.newOutputStream(channel)), new CRC32());
+            DataOutputStream output = new DataOutputStream(checkedOutput);
+
+            output.writeInt(MAGIC);
+            output.writeInt(VERSION);
+            output.writeLong(System.currentTimeMillis());
+
+            /* Instances added while writing are left for the next checkpoint */
+            List<MetricsImpl> instances = new ArrayList<>();
+            for (CopyOnWriteArrayList<MetricsImpl> applicationInstances
+                    : applicationRecommendations.applicationMap.values()) {
+                instances.addAll(applicationInstances);
+            }
+
+            output.writeInt(instances.size());
+            for (MetricsImpl instance : instances) {
+                output.writeUTF(instance.getNamespace());
+                output.writeUTF(instance.getName());
+                output.writeUTF(instance.getApplicationName());
+
+                output.writeDouble(instance.getCpuRequests());
+                output.writeDouble(instance.getCpuLimit());
+                output.writeDouble(instance.getRssRequests());
+                output.writeDouble(instance.getRssLimits());
+
+                output.writeDouble(instance.getCurrentCpuRequests());
+                output.writeDouble(instance.getCurrentCpuLimit());
+                output.writeDouble(instance.getCurrentRssRequests());
+                output.writeDouble(instance.getCurrentRssLimit());
+            }
+
+            OpenJ9AnalysisImpl.writeState(output);
+
+            output.writeInt((int) checkedOutput.getChecksum().getValue());
+            output.flush();
+            channel.force(true);
+        }
+
+        Files.move(tempPath, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Restore the recommendations of the checkpoint, before the first collection cycle.
+     *
+     * Instances are matched by namespace and name. Instances of an application in the checkpoint
+     * that are not in it, such as the pods of a new rollout, get the largest recommendations of
+     * the instances of the application in the checkpoint.
+     *
+     * @return applications with restored recommendations, empty if there is no checkpoint
+     * @throws IOException if the checkpoint cannot be read or is corrupted
+     */
+    public Set<String> restore(ApplicationRecommendationsImpl applicationRecommendations) throws IOException
+    {
+        byte[] bytes;
+        try {
+            bytes = Files.readAllBytes(path);
+        } catch (NoSuchFileException e) {
+            return new HashSet<>();
+        }
+
+        if (bytes.length < Integer.BYTES)
+            throw new IOException("Truncated checkpoint: " + path);
+
+        CRC32 crc = new CRC32();
+        crc.update(bytes, 0, bytes.length - Integer.BYTES);
+        int checksum = new DataInputStream(new ByteArrayInputStream(bytes, bytes.length - Integer.BYTES,
+                Integer.BYTES)).readInt();
+        if (checksum != (int) crc.getValue())
+            throw new IOException("Corrupted checkpoint: " + path);
+
+        DataInputStream input = new DataInputStream(new ByteArrayInputStream(bytes, 0,
+                bytes.length - Integer.BYTES));
+
+        if (input.readInt() != MAGIC || input.readInt() != VERSION)
+            throw new IOException("Not a recommendations checkpoint: " + path);
+        long writtenAt = input.readLong();
+
+        Set<String> restoredApplications = new HashSet<>();
+        Set<MetricsImpl> restoredInstances = new HashSet<>();
+        Map<String, double[]> applicationMaximums = new HashMap<>();
+
+        int instances = input.readInt();
+        for (int i = 0; i < instances; i++) {
+            String namespace = input.readUTF();
+            String name = input.readUTF();
+            String application = input.readUTF();
+
+            double[] recommendations = new double[8];
+            for (int j = 0; j < recommendations.length; j++) {
+                recommendations[j] = input.readDouble();
+            }
+
+            double[] maximums = applicationMaximums.computeIfAbsent(application, key -> new double[8]);
+            for (int j = 0; j < recommendations.length; j++) {
+                maximums[j] = Math.max(maximums[j], recommendations[j]);
+            }
+
+            MetricsImpl instance = applicationRecommendations.findInstance(namespace, name);
+            if (instance != null && setRecommendations(instance, recommendations)) {
+                restoredInstances.add(instance);
+                restoredApplications.add(instance.getApplicationName());
+            }
+        }
+
+        for (Map.Entry<String, double[]> entry : applicationMaximums.entrySet()) {
+            CopyOnWriteArrayList<MetricsImpl> applicationInstances =
+                    applicationRecommendations.applicationMap.get(entry.getKey());
+            if (applicationInstances == null)
+                continue;
+
+            for (MetricsImpl instance : applicationInstances) {
+                if (!restoredInstances.contains(instance) && setRecommendations(instance, entry.getValue()))
+                    restoredApplications.add(entry.getKey());
+            }
+        }
+
+        OpenJ9AnalysisImpl.readState(input);
+
+        LOGGER.info("Restored the recommendations of {} applications from the checkpoint of {}",
+                restoredApplications.size(), new Date(writtenAt));
+        return restoredApplications;
+    }
+
+    /**
+     * @return false if the recommendations are not valid
+     */
+    private static boolean setRecommendations(MetricsImpl instance, double[] recommendations)
+    {
+        try {
+            instance.setCpuRequests(Math.max(recommendations[0], instance.getCpuRequests()));
+            instance.setCpuLimit(Math.max(recommendations[1], instance.getCpuLimit()));
+            instance.setRssRequests(Math.max(recommendations[2], instance.getRssRequests()));
+            instance.setRssLimit(Math.max(recommendations[3], instance.getRssLimits()));
+
+            instance.setCurrentCpuRequests(recommendations[4]);
+            instance.setCurrentCpuLimit(recommendations[5]);
+            instance.setCurrentRssRequests(recommendations[6]);
+            instance.setCurrentRssLimit(recommendations[7]);
+            return true;
+        } catch (InvalidValueException e) {
+            LOGGER.warn("Invalid recommendations of {} in the checkpoint: {}", instance.getName(), e.getMessage());
+            return false;
+        }
+    }
+}
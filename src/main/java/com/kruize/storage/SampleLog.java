@@ -0,0 +1,361 @@
+/*******************************************************************************
+ * Copyright (c) 2020, 2020 IBM Corporation and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+
+package com.kruize.storage;
+
+import com.kruize.metrics.MetricsImpl;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BiFunction;
+import java.util.function.BiPredicate;
+
+/**
+ * Append-only log of the samples of all instances on the local disk, so that their history
+ * can be loaded again after a restart without querying the monitoring agent.
+ *
+ * Samples are appended to memory mapped segments of fixed size, a new segment being started
+ * when the current one is full. Instances are identified in the segments by a number, listed
+ * with their namespace and name in a separate file. Segments holding only samples older than
+ * the retention are deleted, and segments where most samples belong to terminated instances
+ * are rewritten without them. Every start of Kruize begins a new segment, so that samples
+ * are never written after a record torn by a crash.
+ */
+public class SampleLog
+{
+    private static final Logger LOGGER = LoggerFactory.getLogger(SampleLog.class);
+
+    /* 10 MB per segment */
+    private static final int RECORDS_PER_SEGMENT = 1 << 18;
+
+    private static final String INSTANCES_FILE = "instances";
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".log";
+
+    private final Path directory;
+    private final FileChannel instancesChannel;
+    private final Writer instancesWriter;
+
+    /* Instances of the log, by id and by namespace and name */
+    private final List<InstanceEntry> instances = new ArrayList<>();
+    private final Map<String, InstanceEntry> instancesByKey = new HashMap<>();
+
+    /* Segments in the order they were written, the last one being appended to */
+    private final List<SampleLogSegment> segments = new ArrayList<>();
+
+    private boolean failed = false;
+
+    /**
+     * Index entry of an instance
+     */
+    private static class InstanceEntry
+    {
+        private final int id;
+        private final String namespace;
+        private final String name;
+
+        InstanceEntry(int id, String namespace, String name)
+        {
+            this.id = id;
+            this.namespace = namespace;
+            this.name = name;
+        }
+    }
+
+    private SampleLog(Path directory, FileChannel instancesChannel)
+    {
+        this.directory = directory;
+        this.instancesChannel = instancesChannel;
+        this.instancesWriter = Channels.newWriter(instancesChannel, StandardCharsets.UTF_8.newEncoder(), -1);
+    }
+
+    /**
+     * Open the log of the directory, creating it if needed.
+     */
+    public static SampleLog open(Path directory) throws IOException
+    {
+        Files.createDirectories(directory);
+
+        Path instancesPath = directory.resolve(INSTANCES_FILE);
+        FileChannel instancesChannel = FileChannel.open(instancesPath, StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+        SampleLog sampleLog = new SampleLog(directory, instancesChannel);
+        sampleLog.readInstances(instancesPath);
+        sampleLog.openSegments();
+
+        return sampleLog;
+    }
+
+    /**
+     * Add the samples of the log to the instances they belong to, oldest first.
+     *
+     * @param lookup instance of a namespace and name, null if it is no longer monitored
+     * @return timestamp of the latest sample loaded for each instance
+     */
+    public synchronized Map<MetricsImpl, Long> replay(BiFunction<String, String, MetricsImpl> lookup)
+    {
+        MetricsImpl[] instancesById = new MetricsImpl[instances.size()];
+        for (InstanceEntry entry : instances) {
+            instancesById[entry.id] = lookup.apply(entry.namespace, entry.name);
+        }
+
+        Map<MetricsImpl, Long> lastTimestamps = new HashMap<>();
+
+        for (SampleLogSegment segment : segments) {
+            segment.scan((instanceId, timestamp, cpu, rss, network) -> {
+                if (instanceId < 0 || instanceId >= instancesById.length)
+                    return;
+
+                MetricsImpl instance = instancesById[instanceId];
+                if (instance != null) {
+                    instance.addSample(timestamp, rss, cpu, network);
+                    lastTimestamps.merge(instance, timestamp, Math::max);
+                }
+            });
+        }
+
+        return lastTimestamps;
+    }
+
+    /**
+     * Append a sample of an instance. Failures to write are logged, and stop the log.
+     */
+    public synchronized void append(MetricsImpl instance, long timestamp, double rss, double cpu, double network)
+    {
+        if (failed)
+            return;
+
+        try {
+            InstanceEntry entry = getEntry(instance.getNamespace(), instance.getName());
+            SampleLogSegment segment = segments.get(segments.size() - 1);
+
+            if (!segment.append(entry.id, timestamp, cpu, rss, network)) {
+                segment.force();
+                segment = openSegment(segment.getSequence() + 1);
+                segment.append(entry.id, timestamp, cpu, rss, network);
+            }
+        } catch (IOException e) {
+            LOGGER.error("Cannot write to the sample log in {}, samples are no longer logged: {}",
+                    directory, e.getMessage());
+            failed = true;
+        }
+    }
+
+    /**
+     * Write the samples appended so far to the disk, so that they also survive a crash of the system.
+     */
+    public synchronized void force()
+    {
+        try {
+            instancesWriter.flush();
+            instancesChannel.force(false);
+        } catch (IOException e) {
+            LOGGER.warn("Cannot write the instances of the sample log: {}", e.getMessage());
+        }
+
+        segments.get(segments.size() - 1).force();
+    }
+
+    /**
+     * Delete the segments older than the retention, and rewrite the segments where most
+     * samples are older than the retention or belong to instances no longer monitored.
+     * The segment being appended to is left as is.
+     *
+     * @param minTimestamp samples before it are no longer needed
+     * @param isLive whether the instance of a namespace and name is still monitored
+     */
+    public synchronized void compact(long minTimestamp, BiPredicate<String, String> isLive)
+    {
+        boolean[] live = new boolean[instances.size()];
+        for (InstanceEntry entry : instances) {
+            live[entry.id] = isLive.test(entry.namespace, entry.name);
+        }
+
+        for (int i = 0; i < segments.size() - 1; i++) {
+            SampleLogSegment segment = segments.get(i);
+
+            try {
+                if (segment.getMaxTimestamp() < minTimestamp) {
+                    Files.delete(segment.getPath());
+                    segments.remove(i--);
+                    LOGGER.debug("Deleted sample log segment {}", segment.getPath());
+                    continue;
+                }
+
+                int[] kept = new int[1];
+                segment.scan((instanceId, timestamp, cpu, rss, network) -> {
+                    if (isKept(live, instanceId, timestamp, minTimestamp))
+                        kept[0]++;
+                });
+
+                if (kept[0] == 0) {
+                    Files.delete(segment.getPath());
+                    segments.remove(i--);
+                    LOGGER.debug("Deleted sample log segment {}", segment.getPath());
+                } else if (kept[0] * 2 < segment.getCapacity()) {
+                    /* Also shrinks the segments left partly filled by a restart */
+                    segments.set(i, rewrite(segment, kept[0], live, minTimestamp));
+                }
+            } catch (IOException e) {
+                LOGGER.warn("Cannot compact sample log segment {}: {}", segment.getPath(), e.getMessage());
+            }
+        }
+    }
+
+    private static boolean isKept(boolean[] live, int instanceId, long timestamp, long minTimestamp)
+    {
+        return timestamp >= minTimestamp && instanceId >= 0 && instanceId < live.length && live[instanceId];
+    }
+
+    /**
+     * Replace a segment by one holding only the samples kept
+     */
+    private SampleLogSegment rewrite(SampleLogSegment segment, int kept, boolean[] live, long minTimestamp)
+            throws IOException
+    {
+        Path temporaryPath = segment.getPath().resolveSibling(segment.getPath().getFileName() + ".tmp");
+        Files.deleteIfExists(temporaryPath);
+
+        SampleLogSegment compacted = SampleLogSegment.open(temporaryPath, segment.getSequence(), kept, false);
+        segment.scan((instanceId, timestamp, cpu, rss, network) -> {
+            if (isKept(live, instanceId, timestamp, minTimestamp))
+                compacted.append(instanceId, timestamp, cpu, rss, network);
+        });
+        compacted.force();
+
+        Files.move(temporaryPath, segment.getPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        LOGGER.debug("Compacted sample log segment {} from {} to {} samples", segment.getPath(),
+                segment.getCount(), kept);
+
+        return SampleLogSegment.open(segment.getPath(), segment.getSequence(), 0, true);
+    }
+
+    /**
+     * @return entry of the instance, added to the log if it is new
+     */
+    private InstanceEntry getEntry(String namespace, String name) throws IOException
+    {
+        String key = namespace + "/" + name;
+        InstanceEntry entry = instancesByKey.get(key);
+
+        if (entry == null) {
+            entry = new InstanceEntry(instances.size(), namespace, name);
+
+            /* Written before any sample of the instance */
+            instancesWriter.write(entry.id + "\t" + namespace + "\t" + name + "\n");
+            instancesWriter.flush();
+
+            instances.add(entry);
+            instancesByKey.put(key, entry);
+        }
+
+        return entry;
+    }
+
+    /**
+     * Read the instances of the log. A line cut short by a crash ends the file, and is overwritten.
+     */
+    private void readInstances(Path instancesPath) throws IOException
+    {
+        byte[] content = Files.readAllBytes(instancesPath);
+        int lineStart = 0;
+
+        for (int lineEnd = 0; lineEnd < content.length; lineEnd++) {
+            if (content[lineEnd] != '\n')
+                continue;
+
+            String[] fields = new String(content, lineStart, lineEnd - lineStart, StandardCharsets.UTF_8)
+                    .split("\t", -1);
+            if (fields.length != 3 || !fields[0].equals(String.valueOf(instances.size())))
+                break;
+
+            InstanceEntry entry = new InstanceEntry(instances.size(), fields[1], fields[2]);
+            instances.add(entry);
+            instancesByKey.put(fields[1] + "/" + fields[2], entry);
+
+            lineStart = lineEnd + 1;
+        }
+
+        instancesChannel.truncate(lineStart);
+        instancesChannel.position(lineStart);
+    }
+
+    /**
+     * Open the segments of the directory, and start a new one to append to.
+     */
+    private void openSegments() throws IOException
+    {
+        List<Long> sequences = new ArrayList<>();
+
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, SEGMENT_PREFIX + "*")) {
+            for (Path file : files) {
+                String fileName = file.getFileName().toString();
+
+                if (fileName.endsWith(SEGMENT_SUFFIX + ".tmp")) {
+                    /* Left by a compaction that did not complete, the segment itself is intact */
+                    Files.delete(file);
+                } else if (fileName.endsWith(SEGMENT_SUFFIX)) {
+                    try {
+                        sequences.add(Long.parseLong(fileName.substring(SEGMENT_PREFIX.length(),
+                                fileName.length() - SEGMENT_SUFFIX.length())));
+                    } catch (NumberFormatException ignored) { }
+                }
+            }
+        }
+
+        sequences.sort(null);
+
+        for (long sequence : sequences) {
+            try {
+                segments.add(SampleLogSegment.open(getSegmentPath(sequence), sequence, 0, true));
+            } catch (IOException e) {
+                LOGGER.warn("Skipping sample log segment {}: {}", getSegmentPath(sequence), e.getMessage());
+            }
+        }
+
+        /* Samples are appended to a new segment, the last one may end with a torn record */
+        openSegment(sequences.isEmpty() ? 0 : sequences.get(sequences.size() - 1) + 1);
+    }
+
+    private SampleLogSegment openSegment(long sequence) throws IOException
+    {
+        SampleLogSegment segment = SampleLogSegment.open(getSegmentPath(sequence), sequence,
+                RECORDS_PER_SEGMENT, false);
+        segments.add(segment);
+        return segment;
+    }
+
+    private Path getSegmentPath(long sequence)
+    {
+        return directory.resolve(String.format("%s%020d%s", SEGMENT_PREFIX, sequence, SEGMENT_SUFFIX));
+    }
+}
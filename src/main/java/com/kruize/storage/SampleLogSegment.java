@@ -0,0 +1,203 @@
+/*******************************************************************************
+ * Copyright (c) 2020, 2020 IBM Corporation and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+
+package com.kruize.storage;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+/**
+ * A file of fixed size records, each holding one sample of an instance, mapped into memory.
+ *
+ * The file starts with a header, followed by the records:
+ * <pre>
+ *   timestamp (long) | cpu (double) | rss (double) | network (double) | instance id (int) | CRC32 (int)
+ * </pre>
+ * A segment is filled in order. A record with a wrong checksum, such as the zeros after the
+ * last record or a record torn by a crash, ends the segment.
+ */
+class SampleLogSegment
+{
+    private static final int MAGIC = 0x4B525A53;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 16;
+
+    private static final int RECORD_SIZE = 40;
+    private static final int CHECKSUM_OFFSET = RECORD_SIZE - Integer.BYTES;
+
+    private final Path path;
+    private final long sequence;
+    private final MappedByteBuffer buffer;
+    private final int capacity;
+    private final CRC32 crc = new CRC32();
+
+    /* Number of valid records, the next record is written after them */
+    private int count = 0;
+
+    /* Statistics of the records, for compaction */
+    private long maxTimestamp = Long.MIN_VALUE;
+
+    interface RecordHandler
+    {
+        void onRecord(int instanceId, long timestamp, double cpu, double rss, double network);
+    }
+
+    private SampleLogSegment(Path path, long sequence, MappedByteBuffer buffer, int capacity)
+    {
+        this.path = path;
+        this.sequence = sequence;
+        this.buffer = buffer;
+        this.capacity = capacity;
+    }
+
+    /**
+     * Create a segment, or open an existing one positioned after its last valid record.
+     *
+     * @param capacity number of records the segment holds
+     * @param readOnly map the file read only, for segments that are no longer appended to
+     */
+    static SampleLogSegment open(Path path, long sequence, int capacity, boolean readOnly) throws IOException
+    {
+        long size = HEADER_SIZE + (long) capacity * RECORD_SIZE;
+
+        try (FileChannel channel = readOnly
+                ? FileChannel.open(path, StandardOpenOption.READ)
+                : FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                        StandardOpenOption.WRITE)) {
+
+            boolean created = channel.size() == 0;
+            if (readOnly)
+                size = channel.size();
+
+            MappedByteBuffer buffer = channel.map(readOnly ? FileChannel.MapMode.READ_ONLY
+                    : FileChannel.MapMode.READ_WRITE, 0, size);
+
+            /* Segments rewritten by compaction hold fewer records than the others */
+            int segmentCapacity = (int) ((size - HEADER_SIZE) / RECORD_SIZE);
+            SampleLogSegment segment = new SampleLogSegment(path, sequence, buffer, segmentCapacity);
+
+            if (created) {
+                buffer.putInt(0, MAGIC);
+                buffer.putInt(4, VERSION);
+                buffer.putLong(8, System.currentTimeMillis());
+            } else if (size < HEADER_SIZE || buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+                throw new IOException("Not a sample log segment: " + path);
+            } else {
+                segment.count = segment.scan(null);
+            }
+
+            return segment;
+        }
+    }
+
+    Path getPath()
+    {
+        return path;
+    }
+
+    long getSequence()
+    {
+        return sequence;
+    }
+
+    int getCount()
+    {
+        return count;
+    }
+
+    int getCapacity()
+    {
+        return capacity;
+    }
+
+    long getMaxTimestamp()
+    {
+        return maxTimestamp;
+    }
+
+    /**
+     * @return false if the segment is full
+     */
+    boolean append(int instanceId, long timestamp, double cpu, double rss, double network)
+    {
+        if (count == capacity)
+            return false;
+
+        int offset = HEADER_SIZE + count * RECORD_SIZE;
+        buffer.putLong(offset, timestamp);
+        buffer.putDouble(offset + 8, cpu);
+        buffer.putDouble(offset + 16, rss);
+        buffer.putDouble(offset + 24, network);
+        buffer.putInt(offset + 32, instanceId);
+        buffer.putInt(offset + CHECKSUM_OFFSET, getChecksum(offset));
+
+        count++;
+        maxTimestamp = Math.max(maxTimestamp, timestamp);
+        return true;
+    }
+
+    /**
+     * Pass the valid records to the handler, in the order they were appended.
+     *
+     * @param handler handler of the records, null to only count them
+     * @return number of valid records
+     */
+    int scan(RecordHandler handler)
+    {
+        int records = 0;
+
+        while (records < capacity) {
+            int offset = HEADER_SIZE + records * RECORD_SIZE;
+            if (buffer.getInt(offset + CHECKSUM_OFFSET) != getChecksum(offset))
+                break;
+
+            long timestamp = buffer.getLong(offset);
+            maxTimestamp = Math.max(maxTimestamp, timestamp);
+
+            if (handler != null) {
+                handler.onRecord(buffer.getInt(offset + 32), timestamp, buffer.getDouble(offset + 8),
+                        buffer.getDouble(offset + 16), buffer.getDouble(offset + 24));
+            }
+            records++;
+        }
+
+        return records;
+    }
+
+    /**
+     * Write the records to the disk.
+     */
+    void force()
+    {
+        if (!buffer.isReadOnly())
+            buffer.force();
+    }
+
+    private int getChecksum(int offset)
+    {
+        ByteBuffer record = buffer.duplicate();
+        record.limit(offset + CHECKSUM_OFFSET).position(offset);
+
+        crc.reset();
+        crc.update(record);
+        return (int) crc.getValue();
+    }
+}
@@ -0,0 +1,119 @@
+/*******************************************************************************
+ * Copyright (c) 2020, 2020 IBM Corporation and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+
+package com.kruize.util;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Stops requests to a remote service after too many consecutive failures.
+ *
+ * Once open, requests are refused until the cooldown has passed. A single probe request
+ * is then let through: the circuit closes again if it succeeds, and stays open for another
+ * cooldown if it fails.
+ */
+public class CircuitBreaker
+{
+    private static final Logger LOGGER = LoggerFactory.getLogger(CircuitBreaker.class);
+
+    private enum State { CLOSED, OPEN, HALF_OPEN }
+
+    private final String name;
+    private final int failureThreshold;
+    private final long cooldownNanos;
+
+    private State state = State.CLOSED;
+    private int consecutiveFailures = 0;
+    private long openedAt;
+
+    /**
+     * @param name name of the remote service, for logging
+     * @param failureThreshold consecutive failures after which the circuit opens
+     * @param cooldown time the circuit stays open before a probe request
+     * @param unit unit of the cooldown
+     */
+    public CircuitBreaker(String name, int failureThreshold, long cooldown, TimeUnit unit)
+    {
+        this.name = name;
+        this.failureThreshold = failureThreshold;
+        this.cooldownNanos = unit.toNanos(cooldown);
+    }
+
+    /**
+     * @return true if a request may be sent now
+     */
+    public synchronized boolean allowRequest()
+    {
+        switch (state) {
+            case CLOSED:
+                return true;
+            case OPEN:
+                if (System.nanoTime() - openedAt < cooldownNanos)
+                    return false;
+
+                state = State.HALF_OPEN;
+                LOGGER.info("Probing {} after {}s", name, TimeUnit.NANOSECONDS.toSeconds(cooldownNanos));
+                return true;
+            default:
+                /* The probe is still in flight */
+                return false;
+        }
+    }
+
+    public synchronized void recordSuccess()
+    {
+        if (state != State.CLOSED)
+            LOGGER.info("{} is responding again, resuming requests", name);
+
+        state = State.CLOSED;
+        consecutiveFailures = 0;
+    }
+
+    public synchronized void recordFailure()
+    {
+        consecutiveFailures++;
+
+        if (state == State.HALF_OPEN || (state == State.CLOSED && consecutiveFailures >= failureThreshold)) {
+            if (state == State.CLOSED)
+                LOGGER.warn("{} failed {} times in a row, pausing requests", name, consecutiveFailures);
+
+            state = State.OPEN;
+            openedAt = System.nanoTime();
+        }
+    }
+
+    /**
+     * @return true while requests are being refused or probed
+     */
+    public synchronized boolean isOpen()
+    {
+        return state != State.CLOSED;
+    }
+
+    /**
+     * @return time until a probe request is allowed, 0 if requests are allowed now
+     */
+    public synchronized long getNanosUntilProbe()
+    {
+        if (state != State.OPEN)
+            return 0;
+
+        return Math.max(cooldownNanos - (System.nanoTime() - openedAt), 0);
+    }
+}
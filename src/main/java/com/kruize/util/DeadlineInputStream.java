@@ -0,0 +1,114 @@
+/*******************************************************************************
+ * Copyright (c) 2020, 2020 IBM Corporation and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+
+package com.kruize.util;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Response body that has to be read before a deadline.
+ *
+ * The timeout of a request only covers the wait for the response headers, so a server
+ * stalling in the middle of a streamed body would block its reader without limit. Once
+ * the deadline passes, the stream is closed, which wakes up a blocked read, and any
+ * further read fails.
+ */
+class DeadlineInputStream extends FilterInputStream
+{
+    private final long timeout;
+    private final TimeUnit unit;
+
+    private volatile boolean closed = false;
+    private volatile boolean expired = false;
+
+    /**
+     * @param inputStream response body
+     * @param timeout time allowed for reading the whole body, from now
+     * @param unit unit of the timeout
+     */
+    DeadlineInputStream(InputStream inputStream, long timeout, TimeUnit unit)
+    {
+        super(inputStream);
+        this.timeout = timeout;
+        this.unit = unit;
+
+        CompletableFuture.delayedExecutor(timeout, unit).execute(this::expire);
+    }
+
+    @Override
+    public int read() throws IOException
+    {
+        checkDeadline();
+        try {
+            return super.read();
+        } catch (IOException e) {
+            checkDeadline();
+            throw e;
+        }
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException
+    {
+        checkDeadline();
+        try {
+            return super.read(buffer, offset, length);
+        } catch (IOException e) {
+            checkDeadline();
+            throw e;
+        }
+    }
+
+    @Override
+    public long skip(long count) throws IOException
+    {
+        checkDeadline();
+        try {
+            return super.skip(count);
+        } catch (IOException e) {
+            checkDeadline();
+            throw e;
+        }
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        closed = true;
+        super.close();
+    }
+
+    private void expire()
+    {
+        if (closed)
+            return;
+
+        expired = true;
+        try {
+            super.close();
+        } catch (IOException ignored) { }
+    }
+
+    private void checkDeadline() throws IOException
+    {
+        if (expired)
+            throw new IOException("Response body not read within " + timeout + " " + unit.toString().toLowerCase());
+    }
+}
@@ -21,97 +21,416 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.net.ssl.*;
-import java.io.BufferedReader;
+import java.io.Closeable;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.net.HttpURLConnection;
+import java.io.InputStream;
+import java.net.Socket;
+import java.net.URI;
+import java.net.URISyntaxException;
 import java.net.URL;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
 import java.security.KeyManagementException;
 import java.security.NoSuchAlgorithmException;
 import java.security.cert.X509Certificate;
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
 
 public class HttpUtil
 {
     private static final Logger LOGGER = LoggerFactory.getLogger(HttpUtil.class);
 
+    private static final String LEGAL_URI_CHARACTERS = "-._~!$&'()*+,;=:@/?";
+
+    /* Retries back off exponentially from the base delay, with full jitter */
+    private static final long RETRY_BASE_DELAY_MILLIS = 250;
+    private static final long RETRY_MAX_DELAY_MILLIS = 4000;
+
+    private static final int HTTP_TOO_MANY_REQUESTS = 429;
+
+    /* Consecutive failed requests after which requests are paused. There is one circuit
+     * breaker for all requests, whatever their endpoint, not one per monitoring agent. */
+    private static final int CIRCUIT_BREAKER_THRESHOLD = 10;
+
+    private static volatile HttpTransport transport = null;
+    private static volatile CircuitBreaker circuitBreaker = null;
+
     public static String getDataFromURL(URL url)
     {
-        String result = null;
+        return join(getDataFromURLAsync(url), url);
+    }
+
+    /**
+     * @param url URL to get
+     * @return future completed with the response body, or with null if the request failed
+     */
+    public static CompletableFuture<String> getDataFromURLAsync(URL url)
+    {
         try {
-            HttpURLConnection connection;
+            return sendAsync(newRequest(url).GET().build(), url, HttpResponse.BodyHandlers.ofString());
+        } catch (URISyntaxException e) {
+            e.printStackTrace();
+            return CompletableFuture.completedFuture(null);
+        }
+    }
 
-            if (url.getProtocol().equals("https")) {
-                connection = (HttpsURLConnection) url.openConnection();
-            } else {
-                connection = (HttpURLConnection) url.openConnection();
-            }
+    /**
+     * @param url URL to get
+     * @return future completed with a stream of the response body, or with null if the request failed.
+     * The stream has to be closed by the caller.
+     */
+    public static CompletableFuture<InputStream> getStreamFromURLAsync(URL url)
+    {
+        try {
+            return sendAsync(newRequest(url).GET().build(), url, ofInputStreamWithDeadline());
+        } catch (URISyntaxException e) {
+            e.printStackTrace();
+            return CompletableFuture.completedFuture(null);
+        }
+    }
+
+    /**
+     * POST the form parameters to the URL. Used for queries that would be too long for a GET.
+     *
+     * @param url URL to post to
+     * @param formParameters parameter names and values, form encoded before being sent
+     * @return response body, or null if the request failed
+     */
+    public static String postFormToURL(URL url, Map<String, String> formParameters)
+    {
+        return join(postFormToURLAsync(url, formParameters), url);
+    }
 
-            //TODO Find another way to authorize
-            String bearerToken = DeploymentInfo.getAuthToken();
+    /**
+     * @param url URL to post to
+     * @param formParameters parameter names and values, form encoded before being sent
+     * @return future completed with the response body, or with null if the request failed
+     */
+    public static CompletableFuture<String> postFormToURLAsync(URL url, Map<String, String> formParameters)
+    {
+        try {
+            return sendAsync(newFormRequest(url, formParameters), url, HttpResponse.BodyHandlers.ofString());
+        } catch (URISyntaxException e) {
+            e.printStackTrace();
+            return CompletableFuture.completedFuture(null);
+        }
+    }
 
-            connection.setRequestProperty("Authorization", bearerToken);
+    /**
+     * @param url URL to post to
+     * @param formParameters parameter names and values, form encoded before being sent
+     * @return future completed with a stream of the response body, or with null if the request failed.
+     * The stream has to be closed by the caller.
+     */
+    public static CompletableFuture<InputStream> postFormForStreamAsync(URL url, Map<String, String> formParameters)
+    {
+        try {
+            return sendAsync(newFormRequest(url, formParameters), url, ofInputStreamWithDeadline());
+        } catch (URISyntaxException e) {
+            e.printStackTrace();
+            return CompletableFuture.completedFuture(null);
+        }
+    }
 
-            if (connection.getResponseCode() == HttpsURLConnection.HTTP_OK) {
-                result = getDataFromConnection(connection);
-            } else {
-                if (connection.getResponseCode() == HttpsURLConnection.HTTP_FORBIDDEN) {
-                    LOGGER.error("Please refresh your auth token");
-                    System.exit(1);
-                }
-                LOGGER.debug("{} Response Failure for {}", connection.getResponseCode(),
-                        url.toString());
+    /**
+     * POST a binary body to the URL, such as a protobuf request.
+     *
+     * @param url URL to post to
+     * @param headers headers of the request, such as its content type
+     * @param body body of the request
+     * @return future completed with a stream of the response body, or with null if the request failed.
+     * The stream has to be closed by the caller.
+     */
+    public static CompletableFuture<InputStream> postForStreamAsync(URL url, Map<String, String> headers, byte[] body)
+    {
+        try {
+            HttpRequest.Builder builder = newRequest(url);
+            for (Map.Entry<String, String> header : headers.entrySet()) {
+                builder.header(header.getKey(), header.getValue());
             }
-        } catch (IOException e) {
+
+            return sendAsync(builder.POST(HttpRequest.BodyPublishers.ofByteArray(body)).build(), url,
+                    ofInputStreamWithDeadline());
+        } catch (URISyntaxException e) {
             e.printStackTrace();
+            return CompletableFuture.completedFuture(null);
         }
+    }
+
+    private static HttpRequest newFormRequest(URL url, Map<String, String> formParameters)
+            throws URISyntaxException
+    {
+        StringBuilder form = new StringBuilder();
 
-        return result;
+        for (Map.Entry<String, String> parameter : formParameters.entrySet()) {
+            if (form.length() > 0)
+                form.append('&');
+
+            form.append(URLEncoder.encode(parameter.getKey(), StandardCharsets.UTF_8))
+                    .append('=')
+                    .append(URLEncoder.encode(parameter.getValue(), StandardCharsets.UTF_8));
+        }
+
+        return newRequest(url)
+                .header("Content-Type", "application/x-www-form-urlencoded")
+                .POST(HttpRequest.BodyPublishers.ofString(form.toString()))
+                .build();
     }
 
     public static int getResponseCode(URL url)
     {
         try {
-            HttpURLConnection connection;
+            return getTransport()
+                    .send(newRequest(url).GET().build(), HttpResponse.BodyHandlers.discarding())
+                    .join()
+                    .statusCode();
+        }
 
-            if (url.getProtocol().equals("https")) {
-                connection = (HttpsURLConnection) url.openConnection();
-            } else {
-                connection = (HttpURLConnection) url.openConnection();
+        catch (URISyntaxException | CompletionException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Replace the transport used for all requests.
+     *
+     * @param httpTransport transport to be used
+     */
+    public static void setTransport(HttpTransport httpTransport)
+    {
+        transport = httpTransport;
+    }
+
+    /**
+     * @return true while requests to the monitoring agent are paused after repeated failures
+     */
+    public static boolean isMonitoringAgentUnavailable()
+    {
+        return getCircuitBreaker().isOpen();
+    }
+
+    /**
+     * @return time until requests to the monitoring agent are tried again, 0 if they are not paused
+     */
+    public static long getNanosUntilRetry()
+    {
+        return getCircuitBreaker().getNanosUntilProbe();
+    }
+
+    private static CircuitBreaker getCircuitBreaker()
+    {
+        if (circuitBreaker == null) {
+            synchronized (HttpUtil.class) {
+                if (circuitBreaker == null)
+                    circuitBreaker = new CircuitBreaker("Monitoring agent", CIRCUIT_BREAKER_THRESHOLD,
+                            DeploymentInfo.getCircuitBreakerCooldown(), TimeUnit.SECONDS);
+            }
+        }
+
+        return circuitBreaker;
+    }
+
+    private static HttpTransport getTransport()
+    {
+        if (transport == null) {
+            synchronized (HttpUtil.class) {
+                if (transport == null)
+                    transport = newTransport(null);
             }
+        }
 
-            //TODO Find another way to authorize
-            String bearerToken = DeploymentInfo.getAuthToken();
+        return transport;
+    }
 
-            connection.setRequestProperty("Authorization", bearerToken);
+    private static HttpTransport newTransport(SSLContext sslContext)
+    {
+        HttpClient.Version version = DeploymentInfo.getHttpVersion().equals("HTTP_2")
+                ? HttpClient.Version.HTTP_2
+                : HttpClient.Version.HTTP_1_1;
 
-            return connection.getResponseCode();
+        try {
+            if (sslContext == null)
+                sslContext = SSLContext.getDefault();
+        } catch (NoSuchAlgorithmException e) {
+            e.printStackTrace();
         }
 
-        catch (IOException e) {
-            return -1;
+        return new JdkHttpTransport(version, Duration.ofSeconds(DeploymentInfo.getHttpConnectTimeout()), sslContext);
+    }
+
+    private static HttpRequest.Builder newRequest(URL url) throws URISyntaxException
+    {
+        HttpRequest.Builder builder = HttpRequest.newBuilder(toURI(url))
+                .timeout(Duration.ofSeconds(DeploymentInfo.getHttpRequestTimeout()));
+
+        //TODO Find another way to authorize
+        String bearerToken = DeploymentInfo.getAuthToken();
+
+        if (bearerToken != null && !bearerToken.isEmpty())
+            builder.header("Authorization", bearerToken);
+
+        return builder;
+    }
+
+    private static <T> CompletableFuture<T> sendAsync(HttpRequest request, URL url,
+                                                      HttpResponse.BodyHandler<T> bodyHandler)
+    {
+        return sendAsync(request, url, bodyHandler, 0);
+    }
+
+    /**
+     * Send the request, retrying failed connections, timeouts and overload responses
+     * up to the configured number of retries. While the circuit breaker is open the
+     * request is not sent and the future completes with null.
+     */
+    private static <T> CompletableFuture<T> sendAsync(HttpRequest request, URL url,
+                                                      HttpResponse.BodyHandler<T> bodyHandler, int attempt)
+    {
+        CircuitBreaker breaker = getCircuitBreaker();
+
+        if (!breaker.allowRequest()) {
+            LOGGER.debug("Not sending request to {} while the monitoring agent is unavailable", url);
+            return CompletableFuture.completedFuture(null);
         }
+
+        /* The request timeout only covers the wait for the response headers, while a body read
+         * as a string is received before the future completes, so the future is bounded as well */
+        return getTransport()
+                .send(request, bodyHandler)
+                .orTimeout(DeploymentInfo.getHttpRequestTimeout(), TimeUnit.SECONDS)
+                .handle((response, error) -> {
+                    boolean failed = error != null || isRetryable(response.statusCode());
+
+                    if (!failed) {
+                        breaker.recordSuccess();
+                        return CompletableFuture.completedFuture(getResponseBody(response, url));
+                    }
+
+                    breaker.recordFailure();
+
+                    if (attempt < DeploymentInfo.getHttpRetries()) {
+                        if (response != null)
+                            closeBody(response);
+
+                        long delay = getRetryDelayMillis(attempt);
+                        LOGGER.debug("Retrying request to {} in {}ms", url, delay);
+
+                        return CompletableFuture
+                                .supplyAsync(() -> null, CompletableFuture.delayedExecutor(delay, TimeUnit.MILLISECONDS))
+                                .thenCompose(ignored -> sendAsync(request, url, bodyHandler, attempt + 1));
+                    }
+
+                    if (error != null)
+                        return CompletableFuture.<T>failedFuture(error);
+
+                    return CompletableFuture.completedFuture(getResponseBody(response, url));
+                })
+                .thenCompose(Function.identity());
+    }
+
+    /**
+     * @return handler streaming the response body, which has to be read within the request
+     * timeout once the response headers are received
+     */
+    private static HttpResponse.BodyHandler<InputStream> ofInputStreamWithDeadline()
+    {
+        long timeout = DeploymentInfo.getHttpRequestTimeout();
+
+        return responseInfo -> HttpResponse.BodySubscribers.mapping(HttpResponse.BodySubscribers.ofInputStream(),
+                body -> new DeadlineInputStream(body, timeout, TimeUnit.SECONDS));
+    }
+
+    /**
+     * @return true for the responses of an overloaded or unavailable server
+     */
+    private static boolean isRetryable(int responseCode)
+    {
+        return responseCode == HTTP_TOO_MANY_REQUESTS || responseCode >= HttpsURLConnection.HTTP_INTERNAL_ERROR;
     }
 
-    private static String getDataFromConnection(HttpURLConnection connection) throws IOException
+    private static long getRetryDelayMillis(int attempt)
     {
-        BufferedReader bufferedReader = new BufferedReader(new InputStreamReader(
-                connection.getInputStream()
-        ));
+        long maxDelay = Math.min(RETRY_MAX_DELAY_MILLIS, RETRY_BASE_DELAY_MILLIS << Math.min(attempt, 16));
+        return ThreadLocalRandom.current().nextLong(maxDelay + 1);
+    }
 
-        String inputLine;
-        StringBuilder response = new StringBuilder();
+    private static <T> T getResponseBody(HttpResponse<T> response, URL url)
+    {
+        int responseCode = response.statusCode();
 
-        while ((inputLine = bufferedReader.readLine()) != null) {
-            response.append(inputLine);
+        if (responseCode == HttpsURLConnection.HTTP_OK) {
+            return response.body();
         }
 
-        bufferedReader.close();
-        return response.toString();
+        closeBody(response);
+
+        if (responseCode == HttpsURLConnection.HTTP_FORBIDDEN) {
+            LOGGER.error("Access to {} forbidden, please refresh your auth token", url);
+        } else {
+            LOGGER.debug("{} Response Failure for {}", responseCode, url.toString());
+        }
+
+        return null;
+    }
+
+    /**
+     * Release the connection of a streamed body that will not be read
+     */
+    private static void closeBody(HttpResponse<?> response)
+    {
+        if (response.body() instanceof Closeable) {
+            try {
+                ((Closeable) response.body()).close();
+            } catch (IOException ignored) { }
+        }
+    }
+
+    private static String join(CompletableFuture<String> response, URL url)
+    {
+        try {
+            return response.join();
+        } catch (CompletionException e) {
+            LOGGER.debug("Request to {} failed: {}", url, e.getCause().toString());
+            return null;
+        }
+    }
+
+    /**
+     * Queries are appended to URLs as they are, with characters like braces and quotes
+     * which are not legal in a URI. Escape those, leaving existing escapes untouched.
+     */
+    private static URI toURI(URL url) throws URISyntaxException
+    {
+        String urlString = url.toString();
+        StringBuilder uri = new StringBuilder(urlString.length());
+
+        for (byte character : urlString.getBytes(StandardCharsets.UTF_8)) {
+            if ((character >= 'a' && character <= 'z')
+                    || (character >= 'A' && character <= 'Z')
+                    || (character >= '0' && character <= '9')
+                    || character == '%'
+                    || LEGAL_URI_CHARACTERS.indexOf(character) >= 0) {
+                uri.append((char) character);
+            } else {
+                uri.append('%').append(String.format("%02X", character & 0xff));
+            }
+        }
+
+        return new URI(uri.toString());
     }
 
     public static void disableSSLVertification()
     {
-        TrustManager[] dummyTrustManager = new TrustManager[]{new X509TrustManager()
+        /* An extended trust manager, so that the http client does not verify the hostname either */
+        TrustManager[] dummyTrustManager = new TrustManager[]{new X509ExtendedTrustManager()
         {
             public X509Certificate[] getAcceptedIssuers()
             {
@@ -125,6 +444,22 @@ public class HttpUtil
             public void checkServerTrusted(X509Certificate[] certs, String authType)
             {
             }
+
+            public void checkClientTrusted(X509Certificate[] certs, String authType, Socket socket)
+            {
+            }
+
+            public void checkServerTrusted(X509Certificate[] certs, String authType, Socket socket)
+            {
+            }
+
+            public void checkClientTrusted(X509Certificate[] certs, String authType, SSLEngine engine)
+            {
+            }
+
+            public void checkServerTrusted(X509Certificate[] certs, String authType, SSLEngine engine)
+            {
+            }
         }};
 
         HostnameVerifier allHostsValid = (hostname, session) -> true;
@@ -140,5 +475,6 @@ public class HttpUtil
         assert sslContext != null;
         HttpsURLConnection.setDefaultSSLSocketFactory(sslContext.getSocketFactory());
         HttpsURLConnection.setDefaultHostnameVerifier(allHostsValid);
+        setTransport(newTransport(sslContext));
     }
 }
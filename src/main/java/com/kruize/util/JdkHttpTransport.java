@@ -0,0 +1,54 @@
+/*******************************************************************************
+ * Copyright (c) 2020, 2020 IBM Corporation and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+
+package com.kruize.util;
+
+import javax.net.ssl.SSLContext;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * {@link HttpTransport} backed by a single java.net.http.HttpClient, which keeps
+ * connections to the monitoring agent alive and reuses them across requests.
+ */
+public class JdkHttpTransport implements HttpTransport
+{
+    private final HttpClient httpClient;
+
+    /**
+     * @param version HTTP version to be preferred, HTTP/2 falls back to HTTP/1.1 if not supported
+     * @param connectTimeout timeout for establishing a new connection
+     * @param sslContext SSL context for https connections
+     */
+    public JdkHttpTransport(HttpClient.Version version, Duration connectTimeout, SSLContext sslContext)
+    {
+        httpClient = HttpClient.newBuilder()
+                .version(version)
+                .connectTimeout(connectTimeout)
+                .followRedirects(HttpClient.Redirect.NORMAL)
+                .sslContext(sslContext)
+                .build();
+    }
+
+    @Override
+    public <T> CompletableFuture<HttpResponse<T>> send(HttpRequest request, HttpResponse.BodyHandler<T> bodyHandler)
+    {
+        return httpClient.sendAsync(request, bodyHandler);
+    }
+}
@@ -0,0 +1,169 @@
+/*******************************************************************************
+ * Copyright (c) 2020, 2020 IBM Corporation and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+
+package com.kruize.util;
+
+import java.util.Arrays;
+
+/**
+ * Counts by long key, in an open-addressing hash table of primitives with linear probing.
+ *
+ * A key is removed once its count drops back to 0, so a slot with a count of 0 is free.
+ * Entries are read slot by slot, from 0 to {@link #capacity()}, without allocating.
+ */
+public class LongCountMap
+{
+    private static final int INITIAL_CAPACITY = 16;
+
+    private long[] keys;
+    private long[] counts;
+    private int mask;
+    private int size = 0;
+
+    public LongCountMap()
+    {
+        keys = new long[INITIAL_CAPACITY];
+        counts = new long[INITIAL_CAPACITY];
+        mask = INITIAL_CAPACITY - 1;
+    }
+
+    /**
+     * Add delta to the count of the key, removing the key if its count becomes 0.
+     */
+    public void add(long key, long delta)
+    {
+        if (delta == 0)
+            return;
+
+        int slot = getSlot(key);
+        while (counts[slot] != 0) {
+            if (keys[slot] == key) {
+                counts[slot] += delta;
+                if (counts[slot] == 0)
+                    delete(slot);
+                return;
+            }
+            slot = (slot + 1) & mask;
+        }
+
+        keys[slot] = key;
+        counts[slot] = delta;
+        size++;
+
+        /* Keep the table at most half full so that probe sequences stay short */
+        if (size * 2 > keys.length)
+            resize(keys.length * 2);
+    }
+
+    public long get(long key)
+    {
+        for (int slot = getSlot(key); counts[slot] != 0; slot = (slot + 1) & mask) {
+            if (keys[slot] == key)
+                return counts[slot];
+        }
+        return 0;
+    }
+
+    public int size()
+    {
+        return size;
+    }
+
+    public int capacity()
+    {
+        return keys.length;
+    }
+
+    /**
+     * @return key in the slot, only meaningful if its count is not 0
+     */
+    public long getKeyAt(int slot)
+    {
+        return keys[slot];
+    }
+
+    /**
+     * @return count in the slot, 0 if the slot is free
+     */
+    public long getCountAt(int slot)
+    {
+        return counts[slot];
+    }
+
+    public void clear()
+    {
+        if (size == 0)
+            return;
+
+        Arrays.fill(counts, 0);
+        size = 0;
+    }
+
+    private int getSlot(long key)
+    {
+        /* Finalizer of MurmurHash3, as bucket keys are often consecutive */
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        return (int) key & mask;
+    }
+
+    /**
+     * Free the slot, moving back the entries of the probe sequence that follows it
+     * so that none of them is cut off from its home slot.
+     */
+    private void delete(int slot)
+    {
+        counts[slot] = 0;
+        size--;
+
+        int free = slot;
+        for (int next = (slot + 1) & mask; counts[next] != 0; next = (next + 1) & mask) {
+            int home = getSlot(keys[next]);
+
+            /* The entry can move to the free slot unless its home lies cyclically in (free, next] */
+            boolean reachable = free <= next ? (home > free && home <= next) : (home > free || home <= next);
+            if (!reachable) {
+                keys[free] = keys[next];
+                counts[free] = counts[next];
+                counts[next] = 0;
+                free = next;
+            }
+        }
+    }
+
+    private void resize(int capacity)
+    {
+        long[] oldKeys = keys;
+        long[] oldCounts = counts;
+
+        keys = new long[capacity];
+        counts = new long[capacity];
+        mask = capacity - 1;
+
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldCounts[i] == 0)
+                continue;
+
+            int slot = getSlot(oldKeys[i]);
+            while (counts[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            keys[slot] = oldKeys[i];
+            counts[slot] = oldCounts[i];
+        }
+    }
+}
@@ -16,41 +16,62 @@
 
 package com.kruize.util;
 
-import com.kruize.metrics.MetricCollector;
-import org.apache.commons.math3.stat.descriptive.DescriptiveStatistics;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.ArrayList;
-
 public class MathUtil
 {
     private static final Logger LOGGER = LoggerFactory.getLogger(HttpUtil.class);
 
-    @SuppressWarnings("SameParameterValue")
-    public static double getPercentile(DescriptiveStatistics descriptiveStatistics, double percentile)
+    /* Scale of each number of decimal places supported when rounding */
+    private static final double[] DECIMAL_SCALES = { 1, 10, 100, 1000, 10000 };
+
+    /**
+     * Round up to a number of decimal places, without formatting the value.
+     *
+     * The result is the smallest double with that many decimal places not below the value, so
+     * that 0.3 stays 0.3 although 0.3 * 10 is slightly above 3. Values within a tenth of the
+     * last decimal place from 0 round to 0, as they did when formatted with DecimalFormat.
+     *
+     * @param value value to round
+     * @param decimals number of decimal places kept, from 0 to 4
+     * @return value rounded towards positive infinity
+     */
+    public static double ceilToDecimals(double value, int decimals)
+    {
+        double scale = DECIMAL_SCALES[decimals];
+
+        if (Math.abs(value) * scale * 10 < 1)
+            return 0;
+
+        double scaled = Math.ceil(value * scale);
+
+        /* Correct the rounding error of the multiplication in either direction */
+        if ((scaled - 1) / scale >= value)
+            scaled--;
+        else if (scaled / scale < value)
+            scaled++;
+
+        return scaled / scale;
+    }
+
+    /**
+     * @return value rounded up to one decimal place
+     */
+    public static double ceilToTenth(double value)
     {
-        return descriptiveStatistics.getPercentile(percentile);
+        return ceilToDecimals(value, 1);
     }
 
-    public static double getMode(ArrayList<MetricCollector> metricCollector, int targetIndex)
+    /**
+     * @return the value without a trailing ".0" if it is a whole number, like DecimalFormat("#.##")
+     */
+    public static String toDecimalString(double value)
     {
-        double modeValue = 0;
-        int maxCount = 0;
-        for (int i = 0; i < metricCollector.size(); ++i) {
-            int count = 0;
-            for (MetricCollector metric : metricCollector) {
-                if (metric.getFromIndex(targetIndex) == metricCollector.get(i).getFromIndex(targetIndex))
-                    ++count;
-            }
+        if (value == Math.rint(value) && Math.abs(value) < Long.MAX_VALUE)
+            return Long.toString((long) value);
 
-            if (count > maxCount) {
-                maxCount = count;
-                modeValue = metricCollector.get(i).getFromIndex(targetIndex);
-            }
-        }
-        LOGGER.debug("Mode is: {}", modeValue);
-        return modeValue;
+        return Double.toString(value);
     }
 
     public static double bytesToMB(double bytes)
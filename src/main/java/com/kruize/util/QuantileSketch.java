@@ -0,0 +1,257 @@
+/*******************************************************************************
+ * Copyright (c) 2020, 2020 IBM Corporation and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+
+package com.kruize.util;
+
+/**
+ * Quantile sketch of non-negative values with a relative error guarantee, in the style of DDSketch.
+ *
+ * Values are counted in logarithmic buckets: bucket i holds the values in (gamma^(i-1), gamma^i],
+ * with gamma = (1 + a) / (1 - a) for a relative accuracy a. Any quantile is then returned within
+ * a relative error of a of a value of the sketch at the same rank. Values too small to be told
+ * apart from 0 are counted separately and returned as 0.
+ *
+ * Buckets are kept in a single array spanning the lowest to the highest bucket in use, of at most
+ * {@link #MAX_BUCKETS} buckets. Past that, the lowest buckets are merged, which only affects the
+ * accuracy of the lowest quantiles. Since the counts are exact, values can also be removed.
+ */
+public class QuantileSketch
+{
+    private static final int MAX_BUCKETS = 2048;
+    private static final int INITIAL_BUCKETS = 64;
+
+    /* Values below this are counted as 0 */
+    private static final double MIN_INDEXABLE_VALUE = 1e-9;
+
+    private final double relativeAccuracy;
+    private final double gamma;
+    private final double logGamma;
+
+    /* counts[i] is the count of bucket offset + i */
+    private long[] counts = null;
+    private int offset;
+    private int minIndex;
+    private int maxIndex;
+
+    private long zeroCount = 0;
+    private long count = 0;
+
+    /**
+     * @param relativeAccuracy relative error of the quantiles, between 0 and 1 exclusive
+     */
+    public QuantileSketch(double relativeAccuracy)
+    {
+        if (!(relativeAccuracy > 0 && relativeAccuracy < 1))
+            throw new IllegalArgumentException("Relative accuracy must be between 0 and 1: " + relativeAccuracy);
+
+        this.relativeAccuracy = relativeAccuracy;
+        this.gamma = (1 + relativeAccuracy) / (1 - relativeAccuracy);
+        this.logGamma = Math.log(gamma);
+    }
+
+    public double getRelativeAccuracy()
+    {
+        return relativeAccuracy;
+    }
+
+    public long getCount()
+    {
+        return count;
+    }
+
+    public boolean isEmpty()
+    {
+        return count == 0;
+    }
+
+    public void add(double value)
+    {
+        count++;
+
+        if (!(value >= MIN_INDEXABLE_VALUE)) {
+            zeroCount++;
+            return;
+        }
+
+        int index = getIndex(value);
+
+        if (counts == null) {
+            counts = new long[INITIAL_BUCKETS];
+            offset = index - INITIAL_BUCKETS / 2;
+            minIndex = index;
+            maxIndex = index;
+        } else if (index < minIndex || index > maxIndex) {
+            extend(Math.min(index, minIndex), Math.max(index, maxIndex));
+        }
+
+        /* Values below the buckets kept are counted in the lowest one */
+        counts[Math.max(index, minIndex) - offset]++;
+    }
+
+    /**
+     * Remove a value previously added to the sketch.
+     */
+    public void remove(double value)
+    {
+        if (count == 0)
+            return;
+
+        if (!(value >= MIN_INDEXABLE_VALUE)) {
+            if (zeroCount > 0) {
+                zeroCount--;
+                count--;
+            }
+            return;
+        }
+
+        /* Values of merged buckets were counted in the lowest bucket kept */
+        int index = Math.max(getIndex(value), minIndex);
+        if (index > maxIndex || counts[index - offset] == 0)
+            return;
+
+        counts[index - offset]--;
+        count--;
+    }
+
+    /**
+     * The quantile is estimated like the default percentile of DescriptiveStatistics: at position
+     * quantile * (count + 1) among the values sorted from 1, interpolated between the values at the
+     * ranks around it, and clamped to the lowest and highest values.
+     *
+     * @param quantile quantile between 0 and 1, 0.8 being the 80th percentile
+     * @return value at the quantile within the relative accuracy, 0 if the sketch is empty
+     */
+    public double getQuantile(double quantile)
+    {
+        if (count == 0)
+            return 0;
+
+        quantile = Math.max(0, Math.min(quantile, 1));
+
+        double position = quantile * (count + 1);
+        if (position < 1)
+            return getValueAtRank(0);
+        if (position >= count)
+            return getValueAtRank(count - 1);
+
+        long lowerPosition = (long) position;
+        double lower = getValueAtRank(lowerPosition - 1);
+        double upper = getValueAtRank(lowerPosition);
+
+        return lower + (position - lowerPosition) * (upper - lower);
+    }
+
+    /**
+     * @param rank rank among the values sorted, counted from 0
+     * @return value at the rank within the relative accuracy
+     */
+    private double getValueAtRank(long rank)
+    {
+        if (rank < zeroCount)
+            return 0;
+
+        long seen = zeroCount;
+        for (int index = minIndex; index <= maxIndex; index++) {
+            seen += counts[index - offset];
+            if (seen > rank)
+                return getValue(index);
+        }
+
+        return getValue(maxIndex);
+    }
+
+    public void clear()
+    {
+        counts = null;
+        zeroCount = 0;
+        count = 0;
+    }
+
+    private int getIndex(double value)
+    {
+        return (int) Math.ceil(Math.log(value) / logGamma);
+    }
+
+    /**
+     * @return value of the bucket with the same relative error to both of its bounds
+     */
+    private double getValue(int index)
+    {
+        return 2 * Math.pow(gamma, index) / (gamma + 1);
+    }
+
+    /**
+     * Make room for the buckets from newMinIndex to newMaxIndex, merging the lowest
+     * buckets if they do not all fit.
+     */
+    private void extend(int newMinIndex, int newMaxIndex)
+    {
+        if (newMaxIndex - newMinIndex + 1 > MAX_BUCKETS) {
+            int collapsedMinIndex = newMaxIndex - MAX_BUCKETS + 1;
+
+            /* Merge the buckets falling below the range into its lowest bucket */
+            if (collapsedMinIndex > minIndex) {
+                long merged = 0;
+                for (int index = minIndex; index <= Math.min(maxIndex, collapsedMinIndex - 1); index++) {
+                    merged += counts[index - offset];
+                    counts[index - offset] = 0;
+                }
+
+                if (collapsedMinIndex <= maxIndex) {
+                    counts[collapsedMinIndex - offset] += merged;
+                } else {
+                    relocate(collapsedMinIndex, newMaxIndex);
+                    counts[collapsedMinIndex - offset] += merged;
+                    minIndex = collapsedMinIndex;
+                    maxIndex = newMaxIndex;
+                    return;
+                }
+            }
+            newMinIndex = collapsedMinIndex;
+        }
+
+        if (newMinIndex < offset || newMaxIndex >= offset + counts.length)
+            relocate(newMinIndex, newMaxIndex);
+
+        minIndex = newMinIndex;
+        maxIndex = newMaxIndex;
+    }
+
+    /**
+     * Move the buckets to an array covering newMinIndex to newMaxIndex, with room to spare on both sides.
+     */
+    private void relocate(int newMinIndex, int newMaxIndex)
+    {
+        int needed = newMaxIndex - newMinIndex + 1;
+        int length = Math.min(Math.max(counts.length, Integer.highestOneBit(needed) * 2), MAX_BUCKETS);
+        int newOffset = newMinIndex - (length - needed) / 2;
+
+        long[] newCounts = new long[length];
+        for (int index = Math.max(minIndex, newOffset); index <= Math.min(maxIndex, newOffset + length - 1); index++) {
+            newCounts[index - newOffset] = counts[index - offset];
+        }
+
+        counts = newCounts;
+        offset = newOffset;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "QuantileSketch{relativeAccuracy=" + relativeAccuracy + ", count=" + count
+                + ", buckets=" + (counts == null ? 0 : maxIndex - minIndex + 1) + "}";
+    }
+}
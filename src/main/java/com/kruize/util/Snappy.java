@@ -0,0 +1,181 @@
+/*******************************************************************************
+ * Copyright (c) 2020, 2020 IBM Corporation and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+
+package com.kruize.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+/**
+ * The snappy block format, as used by the Prometheus remote write and read protocols.
+ *
+ * A block is the length of the uncompressed data as a varint, followed by elements that are
+ * either literals or copies of data already decompressed. The framing format of snappy streams
+ * is not supported.
+ */
+public final class Snappy
+{
+    /* Largest block accepted, so that a corrupted length does not allocate without bound */
+    private static final int MAX_UNCOMPRESSED_LENGTH = 256 << 20;
+
+    private static final int LITERAL = 0;
+    private static final int COPY_1_BYTE_OFFSET = 1;
+    private static final int COPY_2_BYTE_OFFSET = 2;
+
+    /* Longest literal whose length fits in the two bytes after the tag */
+    private static final int MAX_LITERAL_LENGTH = 1 << 16;
+
+    private Snappy() { }
+
+    /**
+     * Encode data as a snappy block made of literals only. It is not compressed, which is
+     * enough for the small requests sent by Kruize, and can be read by any snappy decoder.
+     *
+     * @param data data to be encoded
+     * @return snappy block
+     */
+    public static byte[] compress(byte[] data)
+    {
+        ByteArrayOutputStream output = new ByteArrayOutputStream(data.length + data.length / 1000 + 16);
+
+        for (int length = data.length; ; length >>>= 7) {
+            if (length < 0x80) {
+                output.write(length);
+                break;
+            }
+            output.write((length & 0x7F) | 0x80);
+        }
+
+        for (int position = 0; position < data.length; position += MAX_LITERAL_LENGTH) {
+            int length = Math.min(MAX_LITERAL_LENGTH, data.length - position) - 1;
+
+            /* Tag 61 is a literal with its length minus one in the next two bytes */
+            output.write(61 << 2 | LITERAL);
+            output.write(length & 0xFF);
+            output.write(length >>> 8);
+            output.write(data, position, length + 1);
+        }
+
+        return output.toByteArray();
+    }
+
+    /**
+     * @param compressed snappy block
+     * @return uncompressed data
+     * @throws IOException if the block is not valid
+     */
+    public static byte[] decompress(byte[] compressed) throws IOException
+    {
+        return decompress(compressed, 0, compressed.length);
+    }
+
+    /**
+     * @param compressed array holding the snappy block
+     * @param offset start of the block in the array
+     * @param length length of the block
+     * @return uncompressed data
+     * @throws IOException if the block is not valid
+     */
+    public static byte[] decompress(byte[] compressed, int offset, int length) throws IOException
+    {
+        int end = offset + length;
+        int position = offset;
+
+        /* Uncompressed length, a varint of at most 32 bits */
+        long uncompressedLength = 0;
+        for (int shift = 0; ; shift += 7) {
+            if (position == end || shift > 28)
+                throw new IOException("Invalid snappy length");
+
+            int b = compressed[position++] & 0xFF;
+            uncompressedLength |= (long) (b & 0x7F) << shift;
+            if (b < 0x80)
+                break;
+        }
+
+        if (uncompressedLength > MAX_UNCOMPRESSED_LENGTH)
+            throw new IOException("Snappy block too large: " + uncompressedLength);
+
+        byte[] output = new byte[(int) uncompressedLength];
+        int written = 0;
+
+        try {
+            while (position < end) {
+                int tag = compressed[position++] & 0xFF;
+                int elementLength;
+                int copyOffset;
+
+                switch (tag & 0x03) {
+                    case LITERAL:
+                        elementLength = tag >>> 2;
+                        if (elementLength >= 60) {
+                            /* Length minus one in the next 1 to 4 bytes, little endian */
+                            int bytes = elementLength - 59;
+                            elementLength = 0;
+                            for (int i = 0; i < bytes; i++) {
+                                elementLength |= (compressed[position++] & 0xFF) << (8 * i);
+                            }
+                        }
+                        elementLength++;
+
+                        if (elementLength <= 0 || elementLength > end - position
+                                || elementLength > output.length - written)
+                            throw new IOException("Invalid snappy literal");
+
+                        System.arraycopy(compressed, position, output, written, elementLength);
+                        position += elementLength;
+                        written += elementLength;
+                        continue;
+
+                    case COPY_1_BYTE_OFFSET:
+                        elementLength = 4 + ((tag >>> 2) & 0x07);
+                        copyOffset = ((tag >>> 5) << 8) | (compressed[position++] & 0xFF);
+                        break;
+
+                    case COPY_2_BYTE_OFFSET:
+                        elementLength = 1 + (tag >>> 2);
+                        copyOffset = (compressed[position] & 0xFF) | (compressed[position + 1] & 0xFF) << 8;
+                        position += 2;
+                        break;
+
+                    default:
+                        elementLength = 1 + (tag >>> 2);
+                        copyOffset = (compressed[position] & 0xFF)
+                                | (compressed[position + 1] & 0xFF) << 8
+                                | (compressed[position + 2] & 0xFF) << 16
+                                | (compressed[position + 3] & 0xFF) << 24;
+                        position += 4;
+                }
+
+                if (copyOffset <= 0 || copyOffset > written || elementLength > output.length - written)
+                    throw new IOException("Invalid snappy copy");
+
+                /* The copy can overlap the data it writes, repeating it */
+                for (int i = 0; i < elementLength; i++) {
+                    output[written] = output[written - copyOffset];
+                    written++;
+                }
+            }
+        } catch (ArrayIndexOutOfBoundsException e) {
+            throw new IOException("Truncated snappy block");
+        }
+
+        if (position != end || written != output.length)
+            throw new IOException("Invalid snappy block length");
+
+        return output;
+    }
+}
@@ -0,0 +1,89 @@
+/*******************************************************************************
+ * Copyright (c) 2020, 2020 IBM Corporation and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+
+package com.kruize.collection;
+
+import com.kruize.analysis.AnalysisImpl;
+import com.kruize.metrics.MetricsImpl;
+import org.slf4j.LoggerFactory;
+
+import java.lang.management.ManagementFactory;
+import java.util.Random;
+
+/**
+ * Measures the bytes allocated by the analysis of an instance holding a week of samples, as run
+ * for every instance on every collection cycle, with debug logging off.
+ *
+ * Not run by the tests. Run it with:
+ * <pre>
+ *   mvn -B test-compile dependency:build-classpath -Dmdep.outputFile=target/classpath.txt
+ *   java -cp target/classes:target/test-classes:$(cat target/classpath.txt) \
+ *       com.kruize.collection.AnalyseMetricsBenchmark
+ * </pre>
+ */
+public class AnalyseMetricsBenchmark
+{
+    /* A week of samples, one every 30 seconds, within the default retention */
+    private static final int SAMPLES = 20000;
+    private static final long SAMPLE_INTERVAL_MILLIS = 30000;
+
+    private static final int WARMUP_CALLS = 20000;
+    private static final int CALLS = 20000;
+
+    public static void main(String[] args) throws Exception
+    {
+        if (LoggerFactory.getLogger(AnalysisImpl.class).isDebugEnabled())
+            throw new IllegalStateException("Debug logging has to be off");
+
+        com.sun.management.ThreadMXBean threadMXBean =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+
+        MetricsImpl instance = new MetricsImpl();
+        instance.setNamespace("benchmark");
+        instance.setApplicationName("benchmark-app");
+        instance.setName("benchmark-app-1");
+        instance.setStatus("running");
+
+        Random random = new Random(1);
+        long start = System.currentTimeMillis() - SAMPLES * SAMPLE_INTERVAL_MILLIS;
+        for (int i = 0; i < SAMPLES; i++) {
+            double cpu = 0.2 + random.nextDouble() * (random.nextInt(20) == 0 ? 2 : 0.5);
+            double rss = 300e6 + random.nextGaussian() * 20e6;
+            instance.addSample(start + i * SAMPLE_INTERVAL_MILLIS, rss, cpu, 0);
+        }
+
+        AnalysisImpl analysis = AnalysisImpl.getInstance();
+        for (int i = 0; i < WARMUP_CALLS; i++) {
+            CollectMetrics.analyseMetrics(analysis, instance);
+        }
+
+        long allocatedBefore = threadMXBean.getThreadAllocatedBytes(threadId);
+        long startNanos = System.nanoTime();
+
+        for (int i = 0; i < CALLS; i++) {
+            CollectMetrics.analyseMetrics(analysis, instance);
+        }
+
+        long nanos = System.nanoTime() - startNanos;
+        long allocated = threadMXBean.getThreadAllocatedBytes(threadId) - allocatedBefore;
+
+        System.out.printf("analyseMetrics over %d samples: %.1f bytes allocated, %.1f us per call%n",
+                instance.getSamples().size(), (double) allocated / CALLS, nanos / 1e3 / CALLS);
+        System.out.printf("CPU requests %.1f, CPU limit %.1f, RSS requests %.1f MB, RSS limit %.1f MB%n",
+                instance.getCpuRequests(), instance.getCpuLimit(), instance.getRssRequests(), instance.getRssLimits());
+    }
+}
@@ -0,0 +1,109 @@
+/*******************************************************************************
+ * Copyright (c) 2020, 2020 IBM Corporation and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+
+package com.kruize.collection;
+
+import com.kruize.exceptions.InvalidValueException;
+import com.kruize.metrics.MetricsImpl;
+import com.kruize.query.prometheus.PrometheusQuery;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+
+public class PushedMetricsTest
+{
+    private final PushedMetrics pushedMetrics = PushedMetrics.getInstance();
+
+    @Test
+    public void sumsContainerRatesWithTheRssOfThePod() throws InvalidValueException
+    {
+        pushCpu("web-1", "a", 0, 10);
+        pushCpu("web-1", "b", 0, 20);
+        pushRss("web-1", 0, 100);
+
+        pushCpu("web-1", "a", 10000, 15);
+        pushCpu("web-1", "b", 10000, 21);
+        /* The cgroup of the pause container is not part of the pod */
+        pushCpu("web-1", "POD", 10000, 1000);
+        pushRss("web-1", 10000, 200);
+
+        pushCpu("web-1", "a", 20000, 20);
+        pushRss("web-1", 20000, 300);
+
+        /* The first scrape gives no rate, and the last one can still be completed */
+        assertEquals(Arrays.asList("10000 0.6 200.0"), takeSamples("web-1"));
+
+        pushCpu("web-1", "b", 20000, 23);
+        pushRss("web-1", 30000, 400);
+
+        assertEquals(Arrays.asList("20000 0.7 300.0"), takeSamples("web-1"));
+        assertEquals(Arrays.asList(), takeSamples("web-1"));
+    }
+
+    @Test
+    public void dropsCounterResets() throws InvalidValueException
+    {
+        pushCpu("web-2", "a", 0, 10);
+        pushRss("web-2", 0, 100);
+        pushCpu("web-2", "a", 10000, 2);
+        pushRss("web-2", 10000, 100);
+        pushCpu("web-2", "a", 20000, 4);
+        pushRss("web-2", 20000, 100);
+        pushRss("web-2", 30000, 100);
+
+        assertEquals(Arrays.asList("20000 0.2 100.0"), takeSamples("web-2"));
+    }
+
+    private void pushCpu(String pod, String container, long timestamp, double value)
+    {
+        Map<String, String> labels = getLabels("container_cpu_usage_seconds_total", pod);
+        labels.put(PrometheusQuery.getInstance().getContainerLabel(), container);
+        pushedMetrics.add(labels, timestamp, value);
+    }
+
+    private void pushRss(String pod, long timestamp, double value)
+    {
+        /* Empty labels are not pushed, so the series of the pod has no container label */
+        pushedMetrics.add(getLabels("container_memory_working_set_bytes", pod), timestamp, value);
+    }
+
+    private List<String> takeSamples(String pod) throws InvalidValueException
+    {
+        MetricsImpl instance = new MetricsImpl();
+        instance.setNamespace("pushed");
+        instance.setName(pod);
+
+        List<String> samples = new ArrayList<>();
+        pushedMetrics.takeSamples(instance, (timestamp, cpu, rss) ->
+                samples.add(timestamp + " " + Math.round(cpu * 1000) / 1000.0 + " " + rss));
+        return samples;
+    }
+
+    private static Map<String, String> getLabels(String name, String pod)
+    {
+        Map<String, String> labels = new HashMap<>();
+        labels.put("__name__", name);
+        labels.put("namespace", "pushed");
+        labels.put(PrometheusQuery.getInstance().getPodLabel(), pod);
+        return labels;
+    }
+}
@@ -0,0 +1,119 @@
+/*******************************************************************************
+ * Copyright (c) 2020, 2020 IBM Corporation and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+
+package com.kruize.environment.kubernetes;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import io.kubernetes.client.ApiClient;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Local stand-in for the Kubernetes API server, answering the requests of a path with a handler
+ * registered by the test, and recording the URI of every request.
+ */
+class FakeApiServer implements Closeable
+{
+    private final HttpServer server;
+    private final List<String> requests = new CopyOnWriteArrayList<>();
+
+    FakeApiServer() throws IOException
+    {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.setExecutor(Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "fake-api-server");
+            thread.setDaemon(true);
+            return thread;
+        }));
+        server.start();
+    }
+
+    /**
+     * @param path path prefix of the requests handled
+     */
+    void handle(String path, HttpHandler handler)
+    {
+        server.createContext(path, exchange -> {
+            requests.add(exchange.getRequestURI().toString());
+            try {
+                handler.handle(exchange);
+            } finally {
+                exchange.close();
+            }
+        });
+    }
+
+    /**
+     * @return URIs of the requests received so far, in order
+     */
+    List<String> getRequests()
+    {
+        return requests;
+    }
+
+    /**
+     * @return client of the server, without a read timeout so that watches stay open
+     */
+    ApiClient getApiClient()
+    {
+        ApiClient apiClient = new ApiClient();
+        apiClient.setBasePath("http://" + server.getAddress().getHostString() + ":" + server.getAddress().getPort());
+        apiClient.getHttpClient().setReadTimeout(0, TimeUnit.SECONDS);
+        return apiClient;
+    }
+
+    static void respond(HttpExchange exchange, int status, String contentType, String body) throws IOException
+    {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+
+        exchange.getResponseHeaders().set("Content-Type", contentType);
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream output = exchange.getResponseBody()) {
+            output.write(bytes);
+        }
+    }
+
+    static String getQueryParameter(HttpExchange exchange, String name)
+    {
+        String query = exchange.getRequestURI().getRawQuery();
+        if (query == null)
+            return null;
+
+        for (String parameter : query.split("&")) {
+            if (parameter.startsWith(name + "="))
+                return parameter.substring(name.length() + 1);
+        }
+
+        return null;
+    }
+
+    @Override
+    public void close()
+    {
+        server.stop(0);
+    }
+}
@@ -0,0 +1,150 @@
+/*******************************************************************************
+ * Copyright (c) 2020, 2020 IBM Corporation and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+
+package com.kruize.environment.kubernetes;
+
+import com.sun.net.httpserver.HttpExchange;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class KubeletScraperTest
+{
+    private static final String CADVISOR_METRICS =
+            "# TYPE container_cpu_usage_seconds_total counter\n"
+            + "container_cpu_usage_seconds_total{container=\"web\",namespace=\"default\",pod=\"web-1\"} 42.5 1600000000000\n"
+            + "container_cpu_usage_seconds_total{container=\"log\",namespace=\"default\",pod=\"web-1\"} 1.5 1600000005000\n"
+            + "container_fs_reads_total{container=\"web\",namespace=\"default\",pod=\"web-1\"} 12\n"
+            + "container_memory_working_set_bytes{namespace=\"default\",pod=\"web-1\"} 1e+08 1600000000000\n";
+
+    private FakeApiServer server;
+
+    private final AtomicInteger nodeLists = new AtomicInteger();
+    private final List<String> acceptHeaders = Collections.synchronizedList(new ArrayList<>());
+
+    @Before
+    public void setUp() throws IOException
+    {
+        server = new FakeApiServer();
+        server.handle("/api/v1/nodes", this::handleNodes);
+        KubernetesClient.setApiClient(server.getApiClient());
+    }
+
+    @After
+    public void tearDown()
+    {
+        KubernetesClient.setApiClient(null);
+        server.close();
+    }
+
+    @Test
+    public void scrapesEveryNodeConcurrently() throws Exception
+    {
+        List<String> samples = Collections.synchronizedList(new ArrayList<>());
+        List<Long> timestamps = Collections.synchronizedList(new ArrayList<>());
+
+        KubeletScraper scraper = new KubeletScraper(
+                new HashSet<>(Arrays.asList("container_cpu_usage_seconds_total", "container_memory_working_set_bytes")),
+                (labels, timestamp, value) -> {
+                    samples.add(labels.get("__name__") + " " + labels.get("container") + " " + value);
+                    timestamps.add(timestamp);
+                });
+
+        List<Runnable> tasks = scraper.getScrapeTasks();
+        assertEquals(3, tasks.size());
+
+        long before = System.currentTimeMillis();
+        runConcurrently(tasks);
+
+        /* Node 3 answers with an error, and is skipped */
+        List<String> expected = new ArrayList<>();
+        for (int node = 0; node < 2; node++) {
+            expected.addAll(Arrays.asList(
+                    "container_cpu_usage_seconds_total web 42.5",
+                    "container_cpu_usage_seconds_total log 1.5",
+                    "container_memory_working_set_bytes null 1.0E8"));
+        }
+        Collections.sort(expected);
+        Collections.sort(samples);
+        assertEquals(expected, samples);
+
+        /* Samples are stamped with the time of the scrape, instead of the times exposed by cAdvisor */
+        for (long timestamp : timestamps) {
+            assertTrue(timestamp >= before && timestamp <= System.currentTimeMillis());
+        }
+        for (String accept : acceptHeaders) {
+            assertTrue(accept.startsWith("text/plain"));
+        }
+
+        /* The nodes are not listed again for every scrape */
+        assertEquals(3, scraper.getScrapeTasks().size());
+        assertEquals(1, nodeLists.get());
+    }
+
+    private void handleNodes(HttpExchange exchange) throws IOException
+    {
+        String path = exchange.getRequestURI().getPath();
+
+        if (path.equals("/api/v1/nodes")) {
+            nodeLists.incrementAndGet();
+            FakeApiServer.respond(exchange, 200, "application/json",
+                    "{\"kind\":\"NodeList\",\"apiVersion\":\"v1\",\"metadata\":{\"resourceVersion\":\"1\"},"
+                            + "\"items\":[" + node("node-1") + "," + node("node-2") + "," + node("node-3") + "]}");
+        } else if (path.equals("/api/v1/nodes/node-3/proxy/metrics/cadvisor")) {
+            FakeApiServer.respond(exchange, 503, "text/plain", "kubelet unavailable");
+        } else if (path.endsWith("/proxy/metrics/cadvisor")) {
+            acceptHeaders.add(exchange.getRequestHeaders().getFirst("Accept"));
+            FakeApiServer.respond(exchange, 200, "text/plain; version=0.0.4", CADVISOR_METRICS);
+        } else {
+            FakeApiServer.respond(exchange, 404, "text/plain", "not found");
+        }
+    }
+
+    private static void runConcurrently(List<Runnable> tasks) throws Exception
+    {
+        ExecutorService executor = Executors.newFixedThreadPool(tasks.size());
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (Runnable task : tasks) {
+                futures.add(executor.submit(task));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private static String node(String name)
+    {
+        return "{\"metadata\":{\"name\":\"" + name + "\"}}";
+    }
+}
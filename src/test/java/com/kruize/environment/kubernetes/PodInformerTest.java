@@ -0,0 +1,193 @@
+/*******************************************************************************
+ * Copyright (c) 2020, 2020 IBM Corporation and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+
+package com.kruize.environment.kubernetes;
+
+import com.sun.net.httpserver.HttpExchange;
+import io.kubernetes.client.models.V1Pod;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class PodInformerTest
+{
+    private FakeApiServer server;
+    private PodInformer informer;
+
+    /* Responses to the successive list requests, and events of the successive watches */
+    private final BlockingQueue<String> listResponses = new LinkedBlockingQueue<>();
+    private final BlockingQueue<List<String>> watchEvents = new LinkedBlockingQueue<>();
+
+    /* Changes passed to the listener, as changed:name or deleted:name */
+    private final BlockingQueue<String> changes = new LinkedBlockingQueue<>();
+
+    private final CountDownLatch done = new CountDownLatch(1);
+
+    @Before
+    public void setUp() throws IOException
+    {
+        server = new FakeApiServer();
+        server.handle("/api/v1/pods", exchange -> {
+            if ("true".equals(FakeApiServer.getQueryParameter(exchange, "watch")))
+                streamWatch(exchange);
+            else
+                FakeApiServer.respond(exchange, 200, "application/json", listResponses.remove());
+        });
+
+        informer = new PodInformer(server.getApiClient(), null, null, new PodInformer.Listener()
+        {
+            @Override
+            public void onPodChanged(V1Pod pod)
+            {
+                changes.add("changed:" + pod.getMetadata().getName());
+            }
+
+            @Override
+            public void onPodDeleted(V1Pod pod)
+            {
+                changes.add("deleted:" + pod.getMetadata().getName());
+            }
+        });
+    }
+
+    @After
+    public void tearDown()
+    {
+        informer.stop();
+        done.countDown();
+        server.close();
+    }
+
+    @Test
+    public void listsAllPagesThenAppliesWatchEvents() throws Exception
+    {
+        listResponses.add(podList("10", "page2", "a"));
+        listResponses.add(podList("10", null, "b"));
+        watchEvents.add(Arrays.asList(
+                event("ADDED", "c", "11"),
+                event("MODIFIED", "a", "12"),
+                event("DELETED", "b", "13")));
+
+        informer.start();
+
+        /* The list is passed to the listener before start returns */
+        assertEquals(Arrays.asList("changed:a", "changed:b"), Arrays.asList(changes.remove(), changes.remove()));
+
+        assertEquals("changed:c", nextChange());
+        assertEquals("changed:a", nextChange());
+        assertEquals("deleted:b", nextChange());
+
+        List<String> requests = server.getRequests();
+        assertTrue(requests.get(1).contains("continue=page2"));
+        assertTrue(requests.get(2).contains("watch=true"));
+        assertTrue(requests.get(2).contains("resourceVersion=10"));
+    }
+
+    @Test
+    public void listsAgainOnceTheWatchExpires() throws Exception
+    {
+        listResponses.add(podList("10", null, "a", "b"));
+        watchEvents.add(Arrays.asList(
+                event("ADDED", "c", "11"),
+                "{\"type\":\"ERROR\",\"object\":{\"kind\":\"Status\",\"apiVersion\":\"v1\",\"status\":\"Failure\","
+                        + "\"message\":\"too old resource version\",\"reason\":\"Expired\",\"code\":410}}"));
+        listResponses.add(podList("20", null, "a", "d"));
+
+        informer.start();
+        changes.remove();
+        changes.remove();
+        assertEquals("changed:c", nextChange());
+
+        /* The pods listed again are passed as changed, the cached pods no longer listed as deleted */
+        assertEquals("changed:a", nextChange());
+        assertEquals("changed:d", nextChange());
+        assertEquals(new HashSet<>(Arrays.asList("deleted:b", "deleted:c")),
+                new HashSet<>(Arrays.asList(nextChange(), nextChange())));
+    }
+
+    private String nextChange() throws InterruptedException
+    {
+        String change = changes.poll(10, TimeUnit.SECONDS);
+        if (change == null)
+            throw new AssertionError("No change passed to the listener");
+        return change;
+    }
+
+    /**
+     * Stream the events of the next watch, then keep the watch open until the test is done.
+     */
+    private void streamWatch(HttpExchange exchange) throws IOException
+    {
+        List<String> events = watchEvents.poll();
+
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(200, 0);
+
+        try (OutputStream output = exchange.getResponseBody()) {
+            if (events != null) {
+                for (String event : events) {
+                    output.write((event + "\n").getBytes(StandardCharsets.UTF_8));
+                    output.flush();
+                }
+            }
+            done.await(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static String podList(String resourceVersion, String continueToken, String... names)
+    {
+        StringBuilder list = new StringBuilder("{\"kind\":\"PodList\",\"apiVersion\":\"v1\",\"metadata\":{")
+                .append("\"resourceVersion\":\"").append(resourceVersion).append('"');
+        if (continueToken != null)
+            list.append(",\"continue\":\"").append(continueToken).append('"');
+        list.append("},\"items\":[");
+
+        for (int i = 0; i < names.length; i++) {
+            if (i > 0)
+                list.append(',');
+            list.append(pod(names[i], resourceVersion));
+        }
+
+        return list.append("]}").toString();
+    }
+
+    private static String event(String type, String name, String resourceVersion)
+    {
+        return "{\"type\":\"" + type + "\",\"object\":" + pod(name, resourceVersion) + "}";
+    }
+
+    private static String pod(String name, String resourceVersion)
+    {
+        return "{\"metadata\":{\"name\":\"" + name + "\",\"namespace\":\"default\",\"resourceVersion\":\""
+                + resourceVersion + "\"},\"status\":{\"phase\":\"Running\"}}";
+    }
+}
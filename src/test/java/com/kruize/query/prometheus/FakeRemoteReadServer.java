@@ -0,0 +1,159 @@
+/*******************************************************************************
+ * Copyright (c) 2020, 2020 IBM Corporation and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+
+package com.kruize.query.prometheus;
+
+import com.kruize.util.Snappy;
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.zip.CRC32C;
+
+/**
+ * Local stand-in for the remote read API of Prometheus, answering every request with the next
+ * response queued by the test, and recording the decompressed ReadRequest of every request.
+ */
+class FakeRemoteReadServer implements Closeable
+{
+    static final String PATH = "/api/v1/read";
+
+    private final HttpServer server;
+    private final BlockingQueue<byte[]> responses = new LinkedBlockingQueue<>();
+    private final List<byte[]> requests = new CopyOnWriteArrayList<>();
+    private final List<Headers> requestHeaders = new CopyOnWriteArrayList<>();
+
+    FakeRemoteReadServer() throws IOException
+    {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext(PATH, exchange -> {
+            try (InputStream input = exchange.getRequestBody()) {
+                requestHeaders.add(exchange.getRequestHeaders());
+                requests.add(Snappy.decompress(input.readAllBytes()));
+
+                byte[] response = responses.remove();
+                exchange.getResponseHeaders().set("Content-Type",
+                        "application/x-streamed-protobuf; proto=prometheus.ChunkedReadResponse");
+                exchange.sendResponseHeaders(200, response.length);
+                try (OutputStream output = exchange.getResponseBody()) {
+                    output.write(response);
+                }
+            } catch (RuntimeException | IOException e) {
+                exchange.sendResponseHeaders(400, -1);
+            } finally {
+                exchange.close();
+            }
+        });
+        server.start();
+    }
+
+    URL getURL() throws MalformedURLException
+    {
+        return new URL("http", server.getAddress().getHostString(), server.getAddress().getPort(), PATH);
+    }
+
+    /**
+     * @param frames frames of the streamed response to the next request
+     */
+    void addResponse(byte[]... frames)
+    {
+        ByteArrayOutputStream response = new ByteArrayOutputStream();
+        for (byte[] frame : frames) {
+            response.write(frame, 0, frame.length);
+        }
+        responses.add(response.toByteArray());
+    }
+
+    /**
+     * @return decompressed ReadRequests received so far, in order
+     */
+    List<byte[]> getRequests()
+    {
+        return requests;
+    }
+
+    /**
+     * @return headers of the requests received so far, in order
+     */
+    List<Headers> getRequestHeaders()
+    {
+        return requestHeaders;
+    }
+
+    /**
+     * @return frame of a streamed response: the length of the message, its CRC32C and the message
+     */
+    static byte[] frame(ProtobufWriter chunkedReadResponse)
+    {
+        return frame(chunkedReadResponse.toByteArray());
+    }
+
+    static byte[] frame(byte[] message)
+    {
+        CRC32C crc = new CRC32C();
+        crc.update(message, 0, message.length);
+        int checksum = (int) crc.getValue();
+
+        ByteArrayOutputStream frame = new ByteArrayOutputStream();
+        byte[] length = ProtobufWriter.varintBytes(message.length);
+        frame.write(length, 0, length.length);
+        frame.write(checksum >>> 24);
+        frame.write(checksum >>> 16);
+        frame.write(checksum >>> 8);
+        frame.write(checksum);
+        frame.write(message, 0, message.length);
+        return frame.toByteArray();
+    }
+
+    /**
+     * @return ChunkedSeries message holding XOR chunks of the series
+     */
+    static ProtobufWriter chunkedSeries(String[] labels, XorChunkWriter... chunks)
+    {
+        ProtobufWriter series = new ProtobufWriter();
+
+        for (int i = 0; i < labels.length; i += 2) {
+            series.message(1, new ProtobufWriter().string(1, labels[i]).string(2, labels[i + 1]));
+        }
+        for (XorChunkWriter chunk : chunks) {
+            series.message(2, new ProtobufWriter()
+                    .varint(1, chunk.getMinTime())
+                    .varint(2, chunk.getMaxTime())
+                    .varint(3, 1)
+                    .bytes(4, chunk.toByteArray()));
+        }
+
+        return series;
+    }
+
+    @Override
+    public void close()
+    {
+        server.stop(0);
+    }
+}
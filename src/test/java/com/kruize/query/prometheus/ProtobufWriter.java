@@ -0,0 +1,106 @@
+/*******************************************************************************
+ * Copyright (c) 2020, 2020 IBM Corporation and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+
+package com.kruize.query.prometheus;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Hand encoding of protobuf messages, for the requests and responses of the remote write
+ * and read protocols sent by the stand-ins of Prometheus.
+ */
+public class ProtobufWriter
+{
+    private static final int WIRE_VARINT = 0;
+    private static final int WIRE_FIXED64 = 1;
+    private static final int WIRE_LENGTH_DELIMITED = 2;
+
+    private final ByteArrayOutputStream output = new ByteArrayOutputStream();
+
+    public ProtobufWriter varint(int field, long value)
+    {
+        writeVarint(field << 3 | WIRE_VARINT);
+        writeVarint(value);
+        return this;
+    }
+
+    public ProtobufWriter fixed64(int field, double value)
+    {
+        writeVarint(field << 3 | WIRE_FIXED64);
+        long bits = Double.doubleToLongBits(value);
+        for (int i = 0; i < 8; i++) {
+            output.write((int) (bits >>> (8 * i)));
+        }
+        return this;
+    }
+
+    public ProtobufWriter bytes(int field, byte[] value)
+    {
+        writeVarint(field << 3 | WIRE_LENGTH_DELIMITED);
+        writeVarint(value.length);
+        output.write(value, 0, value.length);
+        return this;
+    }
+
+    public ProtobufWriter string(int field, String value)
+    {
+        return bytes(field, value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    public ProtobufWriter message(int field, ProtobufWriter message)
+    {
+        return bytes(field, message.toByteArray());
+    }
+
+    public byte[] toByteArray()
+    {
+        return output.toByteArray();
+    }
+
+    /**
+     * @return TimeSeries message of the remote write and read protocols
+     */
+    public static ProtobufWriter timeSeries(String[] labels, long[] timestamps, double[] values)
+    {
+        ProtobufWriter series = new ProtobufWriter();
+
+        for (int i = 0; i < labels.length; i += 2) {
+            series.message(1, new ProtobufWriter().string(1, labels[i]).string(2, labels[i + 1]));
+        }
+        for (int i = 0; i < timestamps.length; i++) {
+            series.message(2, new ProtobufWriter().fixed64(1, values[i]).varint(2, timestamps[i]));
+        }
+
+        return series;
+    }
+
+    public static byte[] varintBytes(long value)
+    {
+        ProtobufWriter writer = new ProtobufWriter();
+        writer.writeVarint(value);
+        return writer.toByteArray();
+    }
+
+    private void writeVarint(long value)
+    {
+        while ((value & ~0x7FL) != 0) {
+            output.write((int) (value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        output.write((int) value);
+    }
+}
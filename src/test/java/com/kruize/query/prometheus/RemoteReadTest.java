@@ -0,0 +1,192 @@
+/*******************************************************************************
+ * Copyright (c) 2020, 2020 IBM Corporation and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+
+package com.kruize.query.prometheus;
+
+import com.kruize.query.LabelMatcher;
+import com.kruize.util.HttpUtil;
+import com.sun.net.httpserver.Headers;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class RemoteReadTest
+{
+    private static final String[] CPU_SERIES = { "__name__", "container_cpu_usage_seconds_total",
+            "container_name", "web", "pod_name", "web-1" };
+    private static final String[] RSS_SERIES = { "__name__", "container_memory_working_set_bytes",
+            "pod_name", "web-1" };
+
+    private FakeRemoteReadServer server;
+
+    @Before
+    public void setUp() throws IOException
+    {
+        server = new FakeRemoteReadServer();
+    }
+
+    @After
+    public void tearDown()
+    {
+        server.close();
+    }
+
+    @Test
+    public void readsStreamedChunks() throws Exception
+    {
+        XorChunkWriter firstCpuChunk = new XorChunkWriter().append(1000, 1).append(16000, 2.5).append(31000, 4);
+        XorChunkWriter secondCpuChunk = new XorChunkWriter().append(46000, 4).append(61000, 0.5);
+        XorChunkWriter rssChunk = new XorChunkWriter().append(1000, 1e8).append(16000, 1.5e8);
+
+        /* The series of the CPU query is split across two frames, the index of the query coming after the series */
+        server.addResponse(
+                FakeRemoteReadServer.frame(new ProtobufWriter()
+                        .message(1, FakeRemoteReadServer.chunkedSeries(CPU_SERIES, firstCpuChunk))
+                        .varint(2, 0)),
+                FakeRemoteReadServer.frame(new ProtobufWriter()
+                        .message(1, FakeRemoteReadServer.chunkedSeries(CPU_SERIES, secondCpuChunk))),
+                FakeRemoteReadServer.frame(new ProtobufWriter()
+                        .message(1, FakeRemoteReadServer.chunkedSeries(RSS_SERIES, rssChunk))
+                        .varint(2, 1)
+                        .string(3, "skipped")));
+
+        byte[] request = RemoteRead.encodeRequest(1000, 61000, Arrays.asList(
+                Arrays.asList(LabelMatcher.equal("__name__", "container_cpu_usage_seconds_total"),
+                        LabelMatcher.notRegex("container_name", "POD|")),
+                Collections.singletonList(LabelMatcher.equal("__name__", "container_memory_working_set_bytes"))));
+
+        Map<String, String> headers = new LinkedHashMap<>();
+        headers.put("Content-Type", RemoteRead.CONTENT_TYPE);
+        headers.put("Content-Encoding", RemoteRead.CONTENT_ENCODING);
+        headers.put("X-Prometheus-Remote-Read-Version", RemoteRead.VERSION);
+
+        List<String> chunks = new ArrayList<>();
+        RemoteRead.decode(HttpUtil.postForStreamAsync(server.getURL(), headers, request).join(),
+                (queryIndex, labels, timestamps, values, count) -> chunks.add(toString(queryIndex, labels,
+                        timestamps, values, count)));
+
+        assertEquals(Arrays.asList(
+                "0 {__name__=container_cpu_usage_seconds_total, container_name=web, pod_name=web-1}"
+                        + " 1000=1.0 16000=2.5 31000=4.0",
+                "0 {__name__=container_cpu_usage_seconds_total, container_name=web, pod_name=web-1}"
+                        + " 46000=4.0 61000=0.5",
+                "1 {__name__=container_memory_working_set_bytes, pod_name=web-1} 1000=1.0E8 16000=1.5E8"),
+                chunks);
+
+        byte[] expectedRequest = new ProtobufWriter()
+                .message(1, new ProtobufWriter()
+                        .varint(1, 1000)
+                        .varint(2, 61000)
+                        .message(3, labelMatcher(0, "__name__", "container_cpu_usage_seconds_total"))
+                        .message(3, labelMatcher(3, "container_name", "POD|")))
+                .message(1, new ProtobufWriter()
+                        .varint(1, 1000)
+                        .varint(2, 61000)
+                        .message(3, labelMatcher(0, "__name__", "container_memory_working_set_bytes")))
+                .varint(2, 1)
+                .toByteArray();
+        assertArrayEquals(expectedRequest, server.getRequests().get(0));
+
+        Headers requestHeaders = server.getRequestHeaders().get(0);
+        assertEquals("snappy", requestHeaders.getFirst("Content-Encoding"));
+        assertEquals("0.1.0", requestHeaders.getFirst("X-Prometheus-Remote-Read-Version"));
+    }
+
+    @Test
+    public void readsEmptyResponse() throws IOException
+    {
+        List<String> chunks = new ArrayList<>();
+        RemoteRead.decode(new ByteArrayInputStream(new byte[0]),
+                (queryIndex, labels, timestamps, values, count) -> chunks.add(labels.toString()));
+
+        assertEquals(Collections.emptyList(), chunks);
+    }
+
+    @Test
+    public void rejectsInvalidResponses()
+    {
+        byte[] frame = FakeRemoteReadServer.frame(new ProtobufWriter()
+                .message(1, FakeRemoteReadServer.chunkedSeries(RSS_SERIES,
+                        new XorChunkWriter().append(1000, 1).append(2000, 2))));
+
+        /* Truncated anywhere within the frame */
+        for (int length = 1; length < frame.length; length++) {
+            assertInvalid(Arrays.copyOf(frame, length));
+        }
+
+        /* Checksum not matching the message */
+        byte[] corrupted = frame.clone();
+        corrupted[corrupted.length - 1] ^= 1;
+        assertInvalid(corrupted);
+
+        /* Frame larger than accepted, and frame size longer than 32 bits */
+        assertInvalid(ProtobufWriter.varintBytes(65L << 20));
+        assertInvalid(ProtobufWriter.varintBytes(1L << 40));
+
+        /* Chunk encoded otherwise than with XOR */
+        assertInvalid(FakeRemoteReadServer.frame(new ProtobufWriter()
+                .message(1, new ProtobufWriter()
+                        .message(2, new ProtobufWriter().varint(3, 2).bytes(4, new byte[] { 0, 0 })))));
+
+        /* Series longer than its frame */
+        byte[] series = new ProtobufWriter().bytes(1, new byte[4]).toByteArray();
+        series[1] = 100;
+        assertInvalid(FakeRemoteReadServer.frame(series));
+
+        /* Chunk with more samples than its data holds */
+        assertInvalid(FakeRemoteReadServer.frame(new ProtobufWriter()
+                .message(1, new ProtobufWriter()
+                        .message(2, new ProtobufWriter().varint(3, 1).bytes(4, new byte[] { 0, 1, 2 })))));
+    }
+
+    private static ProtobufWriter labelMatcher(int type, String name, String value)
+    {
+        return new ProtobufWriter().varint(1, type).string(2, name).string(3, value);
+    }
+
+    private static String toString(int queryIndex, Map<String, String> labels, long[] timestamps, double[] values,
+                                   int count)
+    {
+        StringBuilder chunk = new StringBuilder().append(queryIndex).append(' ').append(new TreeMap<>(labels));
+        for (int i = 0; i < count; i++) {
+            chunk.append(' ').append(timestamps[i]).append('=').append(values[i]);
+        }
+        return chunk.toString();
+    }
+
+    private static void assertInvalid(byte[] response)
+    {
+        try {
+            RemoteRead.decode(new ByteArrayInputStream(response), (queryIndex, labels, timestamps, values, count) -> { });
+            fail("Invalid response decoded: " + Arrays.toString(response));
+        } catch (IOException expected) {
+        }
+    }
+}
@@ -0,0 +1,133 @@
+/*******************************************************************************
+ * Copyright (c) 2020, 2020 IBM Corporation and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+
+package com.kruize.query.prometheus;
+
+import com.kruize.util.Snappy;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.TreeMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class RemoteWriteDecoderTest
+{
+    @Test
+    public void decodesWriteRequest() throws IOException
+    {
+        byte[] request = new ProtobufWriter()
+                .message(1, ProtobufWriter.timeSeries(
+                        new String[] { "__name__", "container_cpu_usage_seconds_total", "pod_name", "a" },
+                        new long[] { 1000, 2000 },
+                        new double[] { 1.5, 2.5 }))
+                /* Metadata of the request, which is skipped */
+                .message(3, new ProtobufWriter().varint(1, 2).string(2, "container_cpu_usage_seconds_total"))
+                .message(1, ProtobufWriter.timeSeries(
+                        new String[] { "__name__", "container_memory_working_set_bytes", "pod_name", "b" },
+                        new long[] { 3000 },
+                        new double[] { Double.NaN }))
+                .toByteArray();
+
+        assertEquals(Arrays.asList(
+                "{__name__=container_cpu_usage_seconds_total, pod_name=a} 1000 1.5",
+                "{__name__=container_cpu_usage_seconds_total, pod_name=a} 2000 2.5",
+                "{__name__=container_memory_working_set_bytes, pod_name=b} 3000 NaN"),
+                decode(Snappy.compress(request)));
+    }
+
+    @Test
+    public void skipsUnknownFields() throws IOException
+    {
+        ProtobufWriter series = ProtobufWriter.timeSeries(new String[] { "__name__", "up" },
+                new long[] { 1000 }, new double[] { 1 });
+        /* Exemplars, and a fixed32 field */
+        series.message(3, new ProtobufWriter().fixed64(2, 1).varint(3, 1000));
+
+        byte[] request = new ProtobufWriter().message(1, series).toByteArray();
+        byte[] withFixed32 = Arrays.copyOf(request, request.length + 5);
+        withFixed32[request.length] = 4 << 3 | 5;
+
+        assertEquals(Arrays.asList("{__name__=up} 1000 1.0"), decode(Snappy.compress(withFixed32)));
+    }
+
+    @Test
+    public void rejectsTruncatedRequests()
+    {
+        byte[] request = new ProtobufWriter()
+                .message(1, ProtobufWriter.timeSeries(new String[] { "__name__", "up" },
+                        new long[] { 1000 }, new double[] { 1 }))
+                .toByteArray();
+
+        for (int length = 1; length < request.length; length++) {
+            assertInvalid(Snappy.compress(Arrays.copyOf(request, length)));
+        }
+    }
+
+    @Test
+    public void rejectsInvalidRequests()
+    {
+        /* Series longer than the request */
+        byte[] oversized = new ProtobufWriter().bytes(1, new byte[4]).toByteArray();
+        oversized[1] = 100;
+        assertInvalid(Snappy.compress(oversized));
+
+        /* Length above the largest int */
+        byte[] request = concat(new byte[] { 1 << 3 | 2 }, ProtobufWriter.varintBytes(1L << 40));
+        assertInvalid(Snappy.compress(request));
+
+        /* Label running past the end of its series, into the field following the series */
+        byte[] label = new ProtobufWriter().string(1, "__name__").toByteArray();
+        byte[] series = concat(new byte[] { 1 << 3 | 2, (byte) (label.length + 2) }, label);
+        byte[] overrun = concat(concat(new byte[] { 1 << 3 | 2, (byte) series.length }, series),
+                new ProtobufWriter().varint(2, 1).toByteArray());
+        assertInvalid(Snappy.compress(overrun));
+
+        /* Unsupported wire type */
+        assertInvalid(Snappy.compress(new byte[] { 1 << 3 | 3 }));
+
+        /* Not snappy compressed */
+        assertInvalid(new ProtobufWriter().string(1, "not compressed").toByteArray());
+    }
+
+    private static List<String> decode(byte[] body) throws IOException
+    {
+        List<String> samples = new ArrayList<>();
+        RemoteWriteDecoder.decode(body, (labels, timestamp, value) ->
+                samples.add(new TreeMap<>(labels) + " " + timestamp + " " + value));
+        return samples;
+    }
+
+    private static void assertInvalid(byte[] body)
+    {
+        try {
+            decode(body);
+            fail("Invalid request decoded");
+        } catch (IOException expected) {
+        }
+    }
+
+    private static byte[] concat(byte[] first, byte[] second)
+    {
+        byte[] bytes = Arrays.copyOf(first, first.length + second.length);
+        System.arraycopy(second, 0, bytes, first.length, second.length);
+        return bytes;
+    }
+}
@@ -0,0 +1,152 @@
+/*******************************************************************************
+ * Copyright (c) 2020, 2020 IBM Corporation and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+
+package com.kruize.query.prometheus;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class TextFormatParserTest
+{
+    private static final Set<String> METRIC_NAMES = new HashSet<>(Arrays.asList(
+            "container_cpu_usage_seconds_total", "container_memory_working_set_bytes"));
+
+    private static final String CADVISOR_METRICS =
+            "# HELP container_cpu_usage_seconds_total Cumulative cpu time consumed in seconds.\n"
+            + "# TYPE container_cpu_usage_seconds_total counter\n"
+            + "container_cpu_usage_seconds_total{container=\"web\",cpu=\"total\",namespace=\"default\","
+            + "pod=\"web-1\"} 42.5 1600000000123\n"
+            + "container_cpu_usage_seconds_total{container=\"\",namespace=\"default\",pod=\"web-1\"} 43\r\n"
+            + "container_cpu_usage_seconds_total_extra{pod=\"web-1\"} 1\n"
+            + "container_fs_reads_total{container=\"web\",device=\"/dev/sda\"} not a value\n"
+            + "\n"
+            + "  \t\n"
+            + "container_memory_working_set_bytes { id = \"/kubepods/\\\"burstable\\\"\" , "
+            + "path=\"C:\\\\data\\nlogs\", } 1.048576e+08\n"
+            + "container_memory_working_set_bytes{pod=\"web-2\"} +Inf\n"
+            + "container_memory_working_set_bytes{pod=\"web-3\"} -Inf\n"
+            + "container_memory_working_set_bytes{pod=\"web-4\"} NaN\n"
+            + "container_memory_working_set_bytes 7";
+
+    @Test
+    public void parsesRequestedMetrics() throws IOException
+    {
+        assertEquals(Arrays.asList(
+                "{__name__=container_cpu_usage_seconds_total, container=web, cpu=total, namespace=default, "
+                        + "pod=web-1} 1600000000123 42.5",
+                "{__name__=container_cpu_usage_seconds_total, container=, namespace=default, pod=web-1} 1000 43.0",
+                "{__name__=container_memory_working_set_bytes, id=/kubepods/\"burstable\", "
+                        + "path=C:\\data\nlogs} 1000 1.048576E8",
+                "{__name__=container_memory_working_set_bytes, pod=web-2} 1000 Infinity",
+                "{__name__=container_memory_working_set_bytes, pod=web-3} 1000 -Infinity",
+                "{__name__=container_memory_working_set_bytes, pod=web-4} 1000 NaN",
+                "{__name__=container_memory_working_set_bytes} 1000 7.0"),
+                parse(new ByteArrayInputStream(CADVISOR_METRICS.getBytes(StandardCharsets.UTF_8))));
+    }
+
+    @Test
+    public void parsesLinesSplitAcrossReads() throws IOException
+    {
+        List<String> samples = parse(new ByteArrayInputStream(CADVISOR_METRICS.getBytes(StandardCharsets.UTF_8)));
+
+        /* One byte at a time, and lines longer than the read buffer */
+        assertEquals(samples, parse(new TrickleInputStream(CADVISOR_METRICS.getBytes(StandardCharsets.UTF_8), 1)));
+
+        String longLabel = "x".repeat(200000);
+        String longLines = "container_fs_usage_bytes{id=\"" + longLabel + "\"} 1\n"
+                + "container_memory_working_set_bytes{id=\"" + longLabel + "\"} 2\n";
+        assertEquals(Arrays.asList("{__name__=container_memory_working_set_bytes, id=" + longLabel + "} 1000 2.0"),
+                parse(new TrickleInputStream(longLines.getBytes(StandardCharsets.UTF_8), 8192)));
+    }
+
+    @Test
+    public void rejectsInvalidLines()
+    {
+        assertInvalid("container_memory_working_set_bytes{pod=\"web-1\"} not-a-value\n");
+        assertInvalid("container_memory_working_set_bytes{pod=\"web-1\"}\n");
+        assertInvalid("container_memory_working_set_bytes{pod=\"web-1\" 1\n");
+        assertInvalid("container_memory_working_set_bytes{pod=web-1} 1\n");
+        assertInvalid("container_memory_working_set_bytes{pod=\"web-1} 1\n");
+        assertInvalid("container_memory_working_set_bytes{pod} 1\n");
+        assertInvalid("container_memory_working_set_bytes 1 not-a-timestamp\n");
+        assertInvalid("container_memory_working_set_bytes 1 1.5\n");
+    }
+
+    @Test
+    public void rejectsLinesLongerThanAccepted()
+    {
+        /* A response without line ends, even of a metric that is not requested */
+        byte[] metrics = ("container_fs_usage_bytes{id=\"" + "x".repeat(2 << 20) + "\"} 1\n")
+                .getBytes(StandardCharsets.UTF_8);
+
+        try {
+            parse(new ByteArrayInputStream(metrics));
+            fail("Line longer than accepted parsed");
+        } catch (IOException expected) {
+        }
+    }
+
+    private static List<String> parse(InputStream inputStream) throws IOException
+    {
+        List<String> samples = new ArrayList<>();
+        TextFormatParser.parse(inputStream, METRIC_NAMES, 1000, (labels, timestamp, value) ->
+                samples.add(new TreeMap<>(labels) + " " + timestamp + " " + value));
+        return samples;
+    }
+
+    private static void assertInvalid(String metrics)
+    {
+        try {
+            parse(new ByteArrayInputStream(metrics.getBytes(StandardCharsets.UTF_8)));
+            fail("Invalid line parsed: " + metrics);
+        } catch (IOException expected) {
+        }
+    }
+
+    /**
+     * Stream returning at most a few bytes per read, as a body received in small packets.
+     */
+    private static class TrickleInputStream extends FilterInputStream
+    {
+        private final int maxRead;
+
+        TrickleInputStream(byte[] bytes, int maxRead)
+        {
+            super(new ByteArrayInputStream(bytes));
+            this.maxRead = maxRead;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException
+        {
+            return super.read(buffer, offset, Math.min(length, maxRead));
+        }
+    }
+}
@@ -0,0 +1,144 @@
+/*******************************************************************************
+ * Copyright (c) 2020, 2020 IBM Corporation and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+
+package com.kruize.query.prometheus;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class XorChunkTest
+{
+    /* Value of the staleness markers, a NaN that differs from the one of Double.NaN */
+    private static final double STALE_NAN = Double.longBitsToDouble(0x7FF0000000000002L);
+
+    @Test
+    public void decodesChunk() throws IOException
+    {
+        byte[] chunk = {
+                0, 2,                                       /* samples */
+                (byte) 0xD0, 0x0F,                          /* 1000, zigzag encoded */
+                0x3F, (byte) 0xF0, 0, 0, 0, 0, 0, 0,        /* 1.0 */
+                (byte) 0xE8, 0x07,                          /* delta of 1000 */
+                0                                           /* same value, then padding */
+        };
+
+        long[] timestamps = new long[2];
+        double[] values = new double[2];
+
+        assertEquals(2, XorChunk.getCount(chunk, 0, chunk.length));
+        assertEquals(2, XorChunk.decode(chunk, 0, chunk.length, timestamps, values));
+        assertArrayEquals(new long[] { 1000, 2000 }, timestamps);
+        assertArrayEquals(new double[] { 1, 1 }, values, 0);
+    }
+
+    @Test
+    public void roundTripsTimestampDeltas() throws IOException
+    {
+        /* Deltas of deltas at the bounds of each of their sizes */
+        long[] deltasOfDeltas = { 0, 1, -1, 8192, -8191, 8193, -8192, 65536, -65535, 65537,
+                524288, -524287, 524289, -524288, 1L << 40, -(1L << 40), 0, 0 };
+
+        long[] timestamps = new long[deltasOfDeltas.length + 2];
+        timestamps[0] = -5000;
+        timestamps[1] = 10000;
+        long delta = 15000;
+        for (int i = 0; i < deltasOfDeltas.length; i++) {
+            delta += deltasOfDeltas[i];
+            timestamps[i + 2] = timestamps[i + 1] + delta;
+        }
+
+        double[] values = new double[timestamps.length];
+        Arrays.fill(values, 1);
+
+        assertRoundTrip(timestamps, values);
+    }
+
+    @Test
+    public void roundTripsValues() throws IOException
+    {
+        Random random = new Random(1);
+        long[] timestamps = new long[120];
+        double[] values = new double[120];
+
+        double counter = 0;
+        for (int i = 0; i < timestamps.length; i++) {
+            timestamps[i] = 1600000000000L + i * 15000L + random.nextInt(20);
+
+            /* Counters, repeated values, random values, and staleness markers */
+            if (i % 10 == 9)
+                values[i] = STALE_NAN;
+            else if (i % 4 == 0)
+                values[i] = random.nextDouble() * 1e9;
+            else if (i % 4 == 1)
+                values[i] = values[i - 1];
+            else
+                values[i] = counter += random.nextInt(1000) / 100.0;
+        }
+        values[60] = -0.0;
+        values[61] = Double.POSITIVE_INFINITY;
+        values[62] = Double.MIN_VALUE;
+
+        assertRoundTrip(timestamps, values);
+    }
+
+    @Test
+    public void rejectsTruncatedChunks()
+    {
+        XorChunkWriter writer = new XorChunkWriter();
+        for (int i = 0; i < 10; i++) {
+            writer.append(i * 15000L, i * 1.5);
+        }
+        byte[] chunk = writer.toByteArray();
+
+        for (int length = 0; length < chunk.length - 1; length++) {
+            try {
+                XorChunk.decode(chunk, 0, length, new long[10], new double[10]);
+                fail("Truncated chunk of " + length + " bytes decoded");
+            } catch (IOException expected) {
+            }
+        }
+    }
+
+    private static void assertRoundTrip(long[] timestamps, double[] values) throws IOException
+    {
+        XorChunkWriter writer = new XorChunkWriter();
+        for (int i = 0; i < timestamps.length; i++) {
+            writer.append(timestamps[i], values[i]);
+        }
+
+        /* Decoded at an offset within a larger array, as from a frame */
+        byte[] chunk = writer.toByteArray();
+        byte[] frame = new byte[chunk.length + 7];
+        System.arraycopy(chunk, 0, frame, 3, chunk.length);
+
+        long[] decodedTimestamps = new long[timestamps.length];
+        double[] decodedValues = new double[values.length];
+        assertEquals(timestamps.length, XorChunk.decode(frame, 3, chunk.length, decodedTimestamps, decodedValues));
+
+        assertArrayEquals(timestamps, decodedTimestamps);
+        for (int i = 0; i < values.length; i++) {
+            assertEquals("Value " + i, Double.doubleToRawLongBits(values[i]),
+                    Double.doubleToRawLongBits(decodedValues[i]));
+        }
+    }
+}
@@ -0,0 +1,161 @@
+/*******************************************************************************
+ * Copyright (c) 2020, 2020 IBM Corporation and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+
+package com.kruize.query.prometheus;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+
+/**
+ * Encoder of XOR chunks, writing the samples the same way as the Prometheus TSDB, for the
+ * chunks sent by the stand-in of the remote read API.
+ */
+class XorChunkWriter
+{
+    private byte[] bits = new byte[64];
+    private long bitPosition;
+
+    private int count;
+    private long firstTimestamp;
+    private long timestamp;
+    private long timestampDelta;
+    private long valueBits;
+
+    /* Leading and trailing zeros of the last XOR written with its sizes, -1 before the first */
+    private int leading = -1;
+    private int trailing;
+
+    XorChunkWriter append(long timestamp, double value)
+    {
+        long bitsOfValue = Double.doubleToRawLongBits(value);
+
+        if (count == 0) {
+            firstTimestamp = timestamp;
+            writeVarint(timestamp << 1 ^ timestamp >> 63);
+            writeBits(bitsOfValue, 64);
+        } else {
+            long delta = timestamp - this.timestamp;
+
+            if (count == 1) {
+                writeVarint(delta);
+            } else {
+                long deltaOfDelta = delta - timestampDelta;
+
+                if (deltaOfDelta == 0) {
+                    writeBits(0, 1);
+                } else if (fits(deltaOfDelta, 14)) {
+                    writeBits(0b10, 2);
+                    writeBits(deltaOfDelta, 14);
+                } else if (fits(deltaOfDelta, 17)) {
+                    writeBits(0b110, 3);
+                    writeBits(deltaOfDelta, 17);
+                } else if (fits(deltaOfDelta, 20)) {
+                    writeBits(0b1110, 4);
+                    writeBits(deltaOfDelta, 20);
+                } else {
+                    writeBits(0b1111, 4);
+                    writeBits(deltaOfDelta, 64);
+                }
+            }
+
+            writeValue(bitsOfValue ^ valueBits);
+            timestampDelta = delta;
+        }
+
+        this.timestamp = timestamp;
+        this.valueBits = bitsOfValue;
+        count++;
+        return this;
+    }
+
+    long getMinTime()
+    {
+        return firstTimestamp;
+    }
+
+    long getMaxTime()
+    {
+        return timestamp;
+    }
+
+    /**
+     * @return chunk of the samples appended, with its number of samples
+     */
+    byte[] toByteArray()
+    {
+        byte[] chunk = new byte[2 + (int) ((bitPosition + 7) / 8)];
+        chunk[0] = (byte) (count >>> 8);
+        chunk[1] = (byte) count;
+        System.arraycopy(bits, 0, chunk, 2, chunk.length - 2);
+        return chunk;
+    }
+
+    private void writeValue(long xor)
+    {
+        if (xor == 0) {
+            writeBits(0, 1);
+            return;
+        }
+
+        int xorLeading = Math.min(Long.numberOfLeadingZeros(xor), 31);
+        int xorTrailing = Long.numberOfTrailingZeros(xor);
+
+        if (leading >= 0 && xorLeading >= leading && xorTrailing >= trailing) {
+            writeBits(0b10, 2);
+            writeBits(xor >>> trailing, 64 - leading - trailing);
+        } else {
+            leading = xorLeading;
+            trailing = xorTrailing;
+
+            /* 64 significant bits are written as 0 */
+            int significant = 64 - leading - trailing;
+            writeBits(0b11, 2);
+            writeBits(leading, 5);
+            writeBits(significant, 6);
+            writeBits(xor >>> trailing, significant);
+        }
+    }
+
+    /**
+     * Same ranges as the TSDB, where the largest negative value of a size is not used.
+     */
+    private static boolean fits(long value, int size)
+    {
+        return value >= -((1L << (size - 1)) - 1) && value <= 1L << (size - 1);
+    }
+
+    private void writeVarint(long value)
+    {
+        while ((value & ~0x7FL) != 0) {
+            writeBits(value & 0x7F | 0x80, 8);
+            value >>>= 7;
+        }
+        writeBits(value, 8);
+    }
+
+    private void writeBits(long value, int count)
+    {
+        for (int i = count - 1; i >= 0; i--) {
+            int index = (int) (bitPosition >>> 3);
+            if (index == bits.length)
+                bits = Arrays.copyOf(bits, bits.length * 2);
+
+            if ((value >>> i & 1) != 0)
+                bits[index] |= 0x80 >>> (bitPosition & 7);
+            bitPosition++;
+        }
+    }
+}
@@ -0,0 +1,128 @@
+/*******************************************************************************
+ * Copyright (c) 2020, 2020 IBM Corporation and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+
+package com.kruize.recommendations.application;
+
+import com.kruize.exceptions.InvalidValueException;
+import com.kruize.metrics.MetricsImpl;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class ApplicationRecommendationsImplTest
+{
+    /* The recommendations are a singleton, every test uses its own namespace and applications */
+    private final ApplicationRecommendationsImpl recommendations = ApplicationRecommendationsImpl.getInstance();
+
+    @Test
+    public void removesTheInstancesNotSeenAgain() throws InvalidValueException
+    {
+        MetricsImpl first = newInstance("churn", "churn-app", "churn-app-1");
+        MetricsImpl second = newInstance("churn", "churn-app", "churn-app-2");
+        recommendations.addMetricToApplication("churn-app", first);
+        recommendations.addMetricToApplication("churn-app", second);
+
+        long generation = recommendations.beginDiscovery();
+        recommendations.addMetricToApplication("churn-app", newInstance("churn", "churn-app", "churn-app-2"));
+        MetricsImpl third = newInstance("churn", "churn-app", "churn-app-3");
+        recommendations.addMetricToApplication("churn-app", third);
+        recommendations.terminateUnseen(generation);
+
+        assertEquals("terminated", first.getStatus());
+        assertNull(recommendations.findInstance("churn", "churn-app-1"));
+        assertSame(second, recommendations.findInstance("churn", "churn-app-2"));
+        assertEquals(Arrays.asList(second, third), recommendations.applicationMap.get("churn-app"));
+    }
+
+    @Test
+    public void keepsTheLastInstanceUntilReplaced() throws InvalidValueException
+    {
+        MetricsImpl first = newInstance("gone", "gone-app", "gone-app-1");
+        MetricsImpl second = newInstance("gone", "gone-app", "gone-app-2");
+        recommendations.addMetricToApplication("gone-app", first);
+        recommendations.addMetricToApplication("gone-app", second);
+
+        recommendations.terminateInstance("gone", "gone-app-1");
+        recommendations.terminateInstance("gone", "gone-app-2");
+
+        /* The recommendations of the application stay available once all its instances are gone */
+        assertNull(recommendations.findInstance("gone", "gone-app-1"));
+        assertSame(second, recommendations.findInstance("gone", "gone-app-2"));
+        assertEquals(Collections.singletonList(second), recommendations.applicationMap.get("gone-app"));
+
+        MetricsImpl third = newInstance("gone", "gone-app", "gone-app-3");
+        recommendations.addMetricToApplication("gone-app", third);
+
+        assertNull(recommendations.findInstance("gone", "gone-app-2"));
+        assertEquals(Collections.singletonList(third), recommendations.applicationMap.get("gone-app"));
+    }
+
+    @Test
+    public void keepsTheRecommendationsOfRemovedInstances() throws Exception
+    {
+        MetricsImpl first = newInstance("rollout", "rollout-app", "rollout-app-1");
+        MetricsImpl second = newInstance("rollout", "rollout-app", "rollout-app-2");
+        addSamples(first, 3);
+        addSamples(second, 1);
+        first.setCpuRequests(1.0);
+        first.setRssRequests(300);
+        second.setCpuRequests(2.0);
+        second.setRssRequests(100);
+        first.setRuntime("java");
+        recommendations.addMetricToApplication("rollout-app", first);
+        recommendations.addMetricToApplication("rollout-app", second);
+
+        /* Both instances are replaced by a new one, which has no samples yet */
+        long generation = recommendations.beginDiscovery();
+        MetricsImpl third = newInstance("rollout", "rollout-app", "rollout-app-3");
+        recommendations.addMetricToApplication("rollout-app", third);
+        recommendations.terminateUnseen(generation);
+
+        assertEquals(Collections.singletonList(third), recommendations.applicationMap.get("rollout-app"));
+        assertEquals(1.3, recommendations.getCpuRequests("rollout-app"), 1e-9);
+        assertEquals(250, recommendations.getRssRequests("rollout-app"), 1e-9);
+        assertEquals("java", recommendations.getRuntime("rollout-app"));
+
+        /* Weighted with the new instance once it has samples */
+        addSamples(third, 4);
+        third.setCpuRequests(0.5);
+        third.setRssRequests(50);
+        assertEquals(0.9, recommendations.getCpuRequests("rollout-app"), 1e-9);
+        assertEquals(150, recommendations.getRssRequests("rollout-app"), 1e-9);
+    }
+
+    private static void addSamples(MetricsImpl instance, int count)
+    {
+        for (int i = 0; i < count; i++) {
+            instance.addSample(1000L * (i + 1), 100, 0.5, 0);
+        }
+    }
+
+    static MetricsImpl newInstance(String namespace, String application, String name) throws InvalidValueException
+    {
+        MetricsImpl instance = new MetricsImpl();
+        instance.setNamespace(namespace);
+        instance.setApplicationName(application);
+        instance.setName(name);
+        instance.setStatus("running");
+        return instance;
+    }
+}
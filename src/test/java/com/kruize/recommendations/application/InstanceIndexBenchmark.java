@@ -0,0 +1,109 @@
+/*******************************************************************************
+ * Copyright (c) 2020, 2020 IBM Corporation and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+
+package com.kruize.recommendations.application;
+
+import com.kruize.exceptions.InvalidValueException;
+import com.kruize.metrics.MetricsImpl;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Times discovery passes over 50k instances, with a share of the instances replaced by new
+ * ones on every pass, and checks that the terminated instances do not accumulate.
+ *
+ * Not run by the tests. Run it with:
+ * <pre>
+ *   mvn -B test-compile dependency:build-classpath -Dmdep.outputFile=target/classpath.txt
+ *   java -Xmx2g -cp target/classes:target/test-classes:$(cat target/classpath.txt) \
+ *       com.kruize.recommendations.application.InstanceIndexBenchmark
+ * </pre>
+ */
+public class InstanceIndexBenchmark
+{
+    private static final int INSTANCES = 50000;
+    private static final int INSTANCES_PER_APPLICATION = 100;
+
+    /* Share of the instances replaced on every pass, like pods being rolled out */
+    private static final double CHURN = 0.02;
+
+    private static final int WARMUP_PASSES = 5;
+    private static final int PASSES = 20;
+
+    public static void main(String[] args) throws InvalidValueException
+    {
+        ApplicationRecommendationsImpl recommendations = ApplicationRecommendationsImpl.getInstance();
+
+        /* Pods currently running, by index, renamed as they are replaced */
+        List<String> names = new ArrayList<>(INSTANCES);
+        for (int i = 0; i < INSTANCES; i++) {
+            names.add("pod-" + i);
+        }
+
+        int replaced = (int) (INSTANCES * CHURN);
+        int nextPod = INSTANCES;
+        long totalNanos = 0;
+
+        for (int pass = 0; pass < WARMUP_PASSES + PASSES; pass++) {
+            /* Pods of the previous pass are replaced before the pass, as the discovery would find them */
+            for (int i = 0; i < replaced; i++) {
+                names.set((pass * replaced + i) % INSTANCES, "pod-" + nextPod++);
+            }
+
+            List<MetricsImpl> discovered = new ArrayList<>(INSTANCES);
+            for (int i = 0; i < INSTANCES; i++) {
+                discovered.add(ApplicationRecommendationsImplTest.newInstance("benchmark",
+                        getApplication(i), names.get(i)));
+            }
+
+            long start = System.nanoTime();
+
+            long generation = recommendations.beginDiscovery();
+            for (MetricsImpl instance : discovered) {
+                recommendations.addMetricToApplication(instance.getApplicationName(), instance);
+            }
+            recommendations.terminateUnseen(generation);
+
+            long passNanos = System.nanoTime() - start;
+            if (pass >= WARMUP_PASSES)
+                totalNanos += passNanos;
+
+            System.out.printf("Pass %d: %.1f ms, %d instances held%n", pass, passNanos / 1e6,
+                    countInstances(recommendations));
+        }
+
+        int held = countInstances(recommendations);
+        System.out.printf("Average pass over %d instances: %.1f ms%n", INSTANCES, totalNanos / 1e6 / PASSES);
+
+        if (held != INSTANCES)
+            throw new IllegalStateException(held + " instances held instead of " + INSTANCES);
+    }
+
+    private static String getApplication(int instance)
+    {
+        return "benchmark-app-" + instance / INSTANCES_PER_APPLICATION;
+    }
+
+    private static int countInstances(ApplicationRecommendationsImpl recommendations)
+    {
+        int count = 0;
+        for (List<MetricsImpl> instances : recommendations.applicationMap.values()) {
+            count += instances.size();
+        }
+        return count;
+    }
+}
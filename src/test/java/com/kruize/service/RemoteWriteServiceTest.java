@@ -0,0 +1,119 @@
+/*******************************************************************************
+ * Copyright (c) 2020, 2020 IBM Corporation and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+
+package com.kruize.service;
+
+import com.kruize.query.prometheus.ProtobufWriter;
+import com.kruize.util.Snappy;
+import io.prometheus.client.CollectorRegistry;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertEquals;
+
+public class RemoteWriteServiceTest
+{
+    private static final String SAMPLES_COUNTER = "kruize_remote_write_samples_total";
+
+    private Server server;
+    private URI writeUri;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        server = new Server(0);
+
+        ServletContextHandler context = new ServletContextHandler();
+        context.setContextPath("/");
+        context.addServlet(RemoteWriteService.class, "/api/v1/write");
+        server.setHandler(context);
+
+        server.start();
+        writeUri = URI.create("http://localhost:" + ((ServerConnector) server.getConnectors()[0]).getLocalPort()
+                + "/api/v1/write");
+    }
+
+    @After
+    public void tearDown() throws Exception
+    {
+        server.stop();
+    }
+
+    @Test
+    public void acceptsWriteRequest() throws Exception
+    {
+        double samplesBefore = getSamplesReceived();
+
+        byte[] request = new ProtobufWriter()
+                .message(1, ProtobufWriter.timeSeries(
+                        new String[] { "__name__", "container_cpu_usage_seconds_total", "namespace", "remote-write",
+                                "pod_name", "web-1", "container_name", "web" },
+                        new long[] { 1000, 2000 },
+                        new double[] { 1, 2 }))
+                .message(1, ProtobufWriter.timeSeries(
+                        new String[] { "__name__", "container_memory_working_set_bytes", "namespace", "remote-write",
+                                "pod_name", "web-1" },
+                        new long[] { 1000 },
+                        new double[] { 1e8 }))
+                .toByteArray();
+
+        assertEquals(204, send(Snappy.compress(request)).statusCode());
+        assertEquals(3, getSamplesReceived() - samplesBefore, 0);
+    }
+
+    @Test
+    public void rejectsInvalidRequest() throws Exception
+    {
+        double samplesBefore = getSamplesReceived();
+
+        /* Not retried by Prometheus, which drops the samples */
+        assertEquals(400, send("not snappy compressed".getBytes(StandardCharsets.UTF_8)).statusCode());
+        assertEquals(400, send(new byte[] { 100, 0 }).statusCode());
+
+        assertEquals(0, getSamplesReceived() - samplesBefore, 0);
+    }
+
+    /**
+     * Send a request the way Prometheus does, as a remote write sender.
+     */
+    private HttpResponse<String> send(byte[] body) throws Exception
+    {
+        HttpRequest request = HttpRequest.newBuilder(writeUri)
+                .header("Content-Encoding", "snappy")
+                .header("Content-Type", "application/x-protobuf")
+                .header("X-Prometheus-Remote-Write-Version", "0.1.0")
+                .POST(HttpRequest.BodyPublishers.ofByteArray(body))
+                .build();
+
+        return HttpClient.newHttpClient().send(request, HttpResponse.BodyHandlers.ofString());
+    }
+
+    private static double getSamplesReceived()
+    {
+        Double samples = CollectorRegistry.defaultRegistry.getSampleValue(SAMPLES_COUNTER);
+        return samples == null ? 0 : samples;
+    }
+}
@@ -0,0 +1,93 @@
+/*******************************************************************************
+ * Copyright (c) 2020, 2020 IBM Corporation and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+
+package com.kruize.util;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.fail;
+
+public class SnappyTest
+{
+    @Test
+    public void roundTrips() throws IOException
+    {
+        Random random = new Random(1);
+
+        /* Empty, single literal, and literals split at their maximum length */
+        for (int length : new int[] { 0, 1, 100, 65536, 65537, 200000 }) {
+            byte[] data = new byte[length];
+            random.nextBytes(data);
+
+            assertArrayEquals(data, Snappy.decompress(Snappy.compress(data)));
+        }
+    }
+
+    @Test
+    public void decompressesCopies() throws IOException
+    {
+        byte[] block = {
+                12,                         /* uncompressed length */
+                2 << 2, 'a', 'b', 'c',      /* literal of 3 bytes */
+                (6 - 4) << 2 | 1, 3,        /* copy of 6 bytes at offset 3, overlapping what it writes */
+                (3 - 1) << 2 | 2, 9, 0      /* copy of 3 bytes at offset 9, with a 2 byte offset */
+        };
+
+        assertArrayEquals("abcabcabcabc".getBytes(StandardCharsets.US_ASCII), Snappy.decompress(block));
+    }
+
+    @Test
+    public void rejectsTruncatedBlocks()
+    {
+        byte[] block = Snappy.compress("truncated snappy block".getBytes(StandardCharsets.US_ASCII));
+
+        for (int length = 0; length < block.length; length++) {
+            assertInvalid(Arrays.copyOf(block, length));
+        }
+    }
+
+    @Test
+    public void rejectsInvalidBlocks()
+    {
+        /* Longer than the data it holds */
+        assertInvalid(new byte[] { 5, 2 << 2, 'a', 'b', 'c' });
+
+        /* Shorter than the data it holds */
+        assertInvalid(new byte[] { 2, 2 << 2, 'a', 'b', 'c' });
+
+        /* Copy from before the start of the data */
+        assertInvalid(new byte[] { 8, 2 << 2, 'a', 'b', 'c', (5 - 4) << 2 | 1, 4 });
+
+        /* Length above the largest block accepted, and varint longer than 32 bits */
+        assertInvalid(new byte[] { (byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80, 0x01 });
+        assertInvalid(new byte[] { (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x01 });
+    }
+
+    private static void assertInvalid(byte[] block)
+    {
+        try {
+            Snappy.decompress(block);
+            fail("Invalid block decompressed: " + Arrays.toString(block));
+        } catch (IOException expected) {
+        }
+    }
+}